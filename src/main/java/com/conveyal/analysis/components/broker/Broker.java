@@ -13,27 +13,38 @@ import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageKey;
 import com.conveyal.file.FileUtils;
 import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.AnalysisWorker;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.conveyal.r5.analyst.scenario.Scenario;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.MultimapBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gnu.trove.TCollections;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.TObjectLongMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import static com.conveyal.analysis.components.eventbus.RegionalAnalysisEvent.State.CANCELED;
 import static com.conveyal.analysis.components.eventbus.RegionalAnalysisEvent.State.COMPLETED;
@@ -71,10 +82,12 @@ import static com.conveyal.analysis.components.eventbus.WorkerEvent.Role.SINGLE_
  * is serviced, it is taken out of the queue and put at its end. Jobs that have not been serviced
  * float to the top.
  * <p>
- * Most methods on this class are synchronized, because they can be called from many HTTP handler
- * threads at once.
- *
- * TODO evaluate whether synchronizing all methods to make this threadsafe is a performance issue.
+ * Methods on this class can be called from many HTTP handler threads at once. Hundreds of workers
+ * polling every few seconds made a single lock on the whole broker a bottleneck, so only the rare
+ * operations of adding and deleting jobs are synchronized. Jobs are held in concurrent maps, and each
+ * job synchronizes its own task delivery and completion. Status requests from the UI are served from a
+ * snapshot that is rebuilt at most once per second. BrokerLoadTest exercises all of this with many
+ * simulated workers.
  */
 public class Broker {
 
@@ -96,12 +109,35 @@ public class Broker {
     private final EventBus eventBus;
     private final WorkerLauncher workerLauncher;
 
-    private final ListMultimap<WorkerCategory, Job> jobs =
-            MultimapBuilder.hashKeys().arrayListValues().build();
+    private final Map<String, Job> jobsById = new ConcurrentHashMap<>();
 
-    /** The most tasks to deliver to a worker at a time. */
+    /**
+     * The jobs on each network and R5 version, in the order they were enqueued. The lists are copied on write, as
+     * they are iterated over on every poll but only change when jobs are added or removed.
+     */
+    private final Map<WorkerCategory, List<Job>> jobsByCategory = new ConcurrentHashMap<>();
+
+    /** All jobs in the order they were enqueued, from which offline mode delivers tasks regardless of category. */
+    private final List<Job> jobsInOrder = new CopyOnWriteArrayList<>();
+
+    /** How long the job statuses reported to the UI may be reused before they are rebuilt, in milliseconds. */
+    private static final long JOB_STATUS_MAX_AGE_MSEC = 1000;
+
+    /** The job statuses most recently built for the UI, or null if they must be rebuilt on the next request. */
+    private volatile JobStatusSnapshot jobStatusSnapshot = null;
+
+    /** The number of tasks to deliver at a time to workers that do not report how many they can accept. */
     public final int MAX_TASKS_PER_WORKER = 16;
 
+    /**
+     * The most tasks to deliver to any worker at a time. Tasks delivered to a worker that disappears are only delivered
+     * again once all other tasks in the job have been delivered, so we avoid handing too many to any one worker.
+     */
+    public final int MAX_TASKS_PER_DELIVERY = 1000;
+
+    /** Workers are sent enough tasks to keep them busy for about this long, judging by their recent throughput. */
+    public final int TARGET_SECONDS_PER_DELIVERY = 30;
+
     /**
      * Used when auto-starting spot instances. Set to a smaller value to increase the number of
      * workers requested automatically
@@ -132,7 +168,7 @@ public class Broker {
      * These objects piece together results received from workers into one regional analysis result
      * file per job.
      */
-    private static Map<String, MultiOriginAssembler> resultAssemblers = new HashMap<>();
+    private static Map<String, MultiOriginAssembler> resultAssemblers = new ConcurrentHashMap<>();
 
     /**
      * keep track of which graphs we have launched workers on and how long ago we launched them, so
@@ -141,6 +177,20 @@ public class Broker {
     public TObjectLongMap<WorkerCategory> recentlyRequestedWorkers =
             TCollections.synchronizedMap(new TObjectLongHashMap<>());
 
+    /** Used to tell workers which networks and scenarios to prepare for upcoming tasks. */
+    private final HttpClient httpClient = AnalysisWorker.makeHttpClient();
+
+    private final Executor prefetchHintExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("prefetch-hint-%d").setDaemon(true).build()
+    );
+
+    /**
+     * Writes regional results into their assemblers off the HTTP handler threads. Jobs are only removed once all their
+     * accepted results have been written, so this calls back into the broker each time a job's queue is drained.
+     */
+    private final ResultIngester resultIngester =
+            new ResultIngester(Math.min(4, Runtime.getRuntime().availableProcessors()), this::handleResultsWritten);
+
     public Broker (Config config, FileStorage fileStorage, EventBus eventBus, WorkerLauncher workerLauncher) {
         this.config = config;
         this.fileStorage = fileStorage;
@@ -165,7 +215,6 @@ public class Broker {
         }
         WorkerTags workerTags = WorkerTags.fromRegionalAnalysis(regionalAnalysis);
         Job job = new Job(templateTask, workerTags);
-        jobs.put(job.workerCategory, job);
 
         // Register the regional job so results received from multiple workers can be assembled into one file.
         // TODO encapsulate MultiOriginAssemblers in a new Component
@@ -173,6 +222,7 @@ public class Broker {
                 new MultiOriginAssembler(regionalAnalysis, job, config.resultsBucket(), fileStorage);
 
         resultAssemblers.put(templateTask.jobId, assembler);
+        addJob(job, workResult -> writeRegionalWorkResult(assembler, workResult));
 
         if (config.testTaskRedelivery()) {
             // This is a fake job for testing, don't confuse the worker startup code below with null graph ID.
@@ -184,10 +234,46 @@ public class Broker {
         } else {
             // Workers exist in this category, clear out any record that we're waiting for one to start up.
             recentlyRequestedWorkers.remove(job.workerCategory);
+            sendPrefetchHint(job.workerCategory, templateTask);
         }
         eventBus.send(new RegionalAnalysisEvent(templateTask.jobId, STARTED).forUser(workerTags.user, workerTags.group));
     }
 
+    /**
+     * Start delivering the tasks of the given job to workers. The job is only made visible to workers once its results
+     * can be received, which are then passed to the given writer on a writer thread.
+     */
+    void addJob (Job job, Consumer<RegionalWorkResult> resultWriter) {
+        resultIngester.register(job.jobId, resultWriter);
+        jobsByCategory.compute(job.workerCategory, (category, categoryJobs) -> {
+            if (categoryJobs == null) {
+                categoryJobs = new CopyOnWriteArrayList<>();
+            }
+            categoryJobs.add(job);
+            return categoryJobs;
+        });
+        jobsById.put(job.jobId, job);
+        jobsInOrder.add(job);
+        jobStatusSnapshot = null;
+    }
+
+    /**
+     * Stop delivering the tasks of the given job to workers.
+     * @return false if the job had already been removed, for example because it was completed and deleted at once.
+     */
+    private boolean removeJob (Job job) {
+        if (!jobsById.remove(job.jobId, job)) {
+            return false;
+        }
+        jobsByCategory.computeIfPresent(job.workerCategory, (category, categoryJobs) -> {
+            categoryJobs.remove(job);
+            return categoryJobs.isEmpty() ? null : categoryJobs;
+        });
+        jobsInOrder.remove(job);
+        jobStatusSnapshot = null;
+        return true;
+    }
+
     /**
      * The single RegionalTask object represents a lot of individual accessibility tasks at many different origin
      * points, typically on a grid. Before passing that RegionalTask on to the Broker (which distributes tasks to
@@ -230,6 +316,33 @@ public class Broker {
         return templateTask;
     }
 
+    /**
+     * Tell a worker in the given category which network and scenario the tasks of a new job will need, so it can
+     * prepare them in the background before it polls for those tasks. This matters most when one worker serves
+     * several networks, as when running locally. The request is sent on a separate thread so it does not hold up
+     * other callers of the synchronized enqueue method. Any failure is harmless: the worker will load these when
+     * needed.
+     */
+    private void sendPrefetchHint (WorkerCategory workerCategory, RegionalTask templateTask) {
+        String workerAddress = getWorkerAddress(workerCategory);
+        if (workerAddress == null) {
+            return;
+        }
+        String url = String.format("http://%s:%d/prefetch?networkId=%s&scenarioId=%s", workerAddress,
+                AnalysisWorker.WORKER_LISTEN_PORT, URLEncoder.encode(templateTask.graphId, StandardCharsets.UTF_8),
+                URLEncoder.encode(templateTask.scenarioId, StandardCharsets.UTF_8));
+        prefetchHintExecutor.execute(() -> {
+            HttpPost httpPost = new HttpPost(url);
+            try {
+                HttpResponse response = httpClient.execute(httpPost);
+                EntityUtils.consumeQuietly(response.getEntity());
+            } catch (Exception e) {
+                LOG.warn("Could not send prefetch hint to worker at {}: {}", workerAddress, e.toString());
+                httpPost.abort();
+            }
+        });
+    }
+
     /**
      * Create on-demand worker for a given job.
      */
@@ -290,36 +403,73 @@ public class Broker {
      * Attempt to find some tasks that match what a worker is requesting.
      * Always returns a list, which may be empty if there is nothing to deliver.
      */
-    public synchronized List<RegionalTask> getSomeWork (WorkerCategory workerCategory) {
-        Job job;
+    public List<RegionalTask> getSomeWork (WorkerStatus workerStatus) {
+        int maxTasks = getDeliverySize(workerStatus);
+        if (maxTasks <= 0) {
+            // The worker's queue is full.
+            return Collections.EMPTY_LIST;
+        }
+        WorkerCategory workerCategory = workerStatus.getWorkerCategory();
+        Collection<Job> candidateJobs;
         if (config.offline()) {
-            // Working in offline mode; get tasks from the first job that has any tasks to deliver.
-            job = jobs.values().stream()
-                    .filter(j -> j.hasTasksToDeliver()).findFirst().orElse(null);
+            // Working in offline mode; get tasks from the earliest enqueued job that has any tasks to deliver.
+            candidateJobs = jobsInOrder;
         } else {
             // This worker has a preferred network, get tasks from a job on that network.
-            job = jobs.get(workerCategory).stream()
-                    .filter(j -> j.hasTasksToDeliver()).findFirst().orElse(null);
+            candidateJobs = jobsByCategory.getOrDefault(workerCategory, Collections.emptyList());
         }
-        if (job == null) {
-            // No matching job was found.
-            return Collections.EMPTY_LIST;
+        for (Job job : candidateJobs) {
+            if (canDeliverTasks(job)) {
+                // Return up to N tasks that are waiting to be processed. Another worker may have just taken the last
+                // of them, in which case move on to the next job.
+                List<RegionalTask> tasks = job.generateSomeTasksToDeliver(maxTasks);
+                if (!tasks.isEmpty()) {
+                    return tasks;
+                }
+            }
+        }
+        // No matching job was found.
+        return Collections.EMPTY_LIST;
+    }
+
+    /**
+     * Decide how many tasks to send to a worker in response to one poll. Fast workers with many processors would run
+     * out of work between polls if sent a small fixed number of tasks, while slow workers would sit on tasks that could
+     * have been handled elsewhere. So workers are sent about as many tasks as they have recently completed in
+     * TARGET_SECONDS_PER_DELIVERY, never fewer than they have processors and never more than they can queue.
+     */
+    int getDeliverySize (WorkerStatus workerStatus) {
+        if (workerStatus.freeTaskSlots < 0) {
+            // This is an older worker that does not report how many tasks it can accept.
+            return MAX_TASKS_PER_WORKER;
         }
-        // Return up to N tasks that are waiting to be processed.
-        return job.generateSomeTasksToDeliver(MAX_TASKS_PER_WORKER);
+        int tasksPerMinute = 0;
+        if (workerStatus.tasksPerMinuteByJobId != null) {
+            for (int jobTasksPerMinute : workerStatus.tasksPerMinuteByJobId.values()) {
+                tasksPerMinute += jobTasksPerMinute;
+            }
+        }
+        int nTasks = Math.max(tasksPerMinute * TARGET_SECONDS_PER_DELIVERY / 60, workerStatus.processors);
+        nTasks = Math.max(nTasks, 1);
+        return Math.min(nTasks, Math.min(workerStatus.freeTaskSlots, MAX_TASKS_PER_DELIVERY));
+    }
+
+    /**
+     * Jobs whose results are arriving faster than they can be written are skipped until their backlog shrinks.
+     * Workers then receive no tasks for that job and wait before polling again, which is how they are slowed down.
+     */
+    private boolean canDeliverTasks (Job job) {
+        return job.hasTasksToDeliver() && !resultIngester.isBackedUp(job.jobId);
     }
 
     /**
      * Take a normal (non-priority) task out of a job queue, marking it as completed so it will not
-     * be re-delivered. The result of the computation is supplied. This could potentially be merged
-     * with handleRegionalWorkResult, but they have different synchronization requirements.
-     * TODO separate marking complete from returning the work product, since they have different
-     *      synchronization requirements. This would also allow returning errors as JSON and the
-     *      grid result separately.
+     * be re-delivered. This is done as soon as a result is received, separately from writing that
+     * result, since they have different synchronization requirements.
      *
      * @return whether the task was found and removed.
      */
-    public synchronized void markTaskCompleted (String jobId, int taskId) {
+    public void markTaskCompleted (String jobId, int taskId) {
         Job job = findJob(jobId);
         if (job == null) {
             LOG.error("Could not find a job with ID {} and therefore could not mark the task as completed.", jobId);
@@ -328,39 +478,79 @@ public class Broker {
         if (!job.markTaskCompleted(taskId)) {
             LOG.error("Failed to mark task {} completed on job {}.", taskId, jobId);
         }
-        // Once the last task is marked as completed, the job is finished.
+        removeJobIfComplete(job);
+    }
+
+    /**
+     * Mark many tasks of a job completed at once, as when the results for the origins of an incremental analysis that
+     * are unaffected by its scenario have been copied from its base analysis. Tasks already completed are skipped.
+     */
+    public void markTasksCompleted (String jobId, BitSet taskIds) {
+        Job job = findJob(jobId);
+        if (job == null) {
+            LOG.error("Could not find a job with ID {} and therefore could not mark tasks as completed.", jobId);
+            return;
+        }
+        for (int taskId = taskIds.nextSetBit(0); taskId >= 0; taskId = taskIds.nextSetBit(taskId + 1)) {
+            job.markTaskCompleted(taskId);
+        }
+        removeJobIfComplete(job);
+    }
+
+    private void removeJobIfComplete (Job job) {
+        // Once the last task is marked as completed and all results have been written, the job is finished.
         // Purge it from the list to free memory.
-        if (job.isComplete()) {
+        // Several threads may find the job complete at once, but only one of them will succeed in removing it.
+        if (job.isComplete() && resultIngester.isDrained(job.jobId) && removeJob(job)) {
             job.verifyComplete();
-            jobs.remove(job.workerCategory, job);
-            // This method is called after the regional work results are handled, finishing and closing the local file.
+            // All regional work results have been written at this point, finishing and closing the local file.
             // So we can harmlessly remove the MultiOriginAssembler now that the job is removed.
-            resultAssemblers.remove(jobId);
+            resultAssemblers.remove(job.jobId);
+            resultIngester.remove(job.jobId);
             eventBus.send(new RegionalAnalysisEvent(job.jobId, COMPLETED).forUser(job.workerTags.user, job.workerTags.group));
         }
     }
 
     /**
-     * Simple method for querying all current job statuses.
-     * @return List of JobStatuses
+     * Simple method for querying all current job statuses. These may be up to a second old, as many users may be
+     * watching the progress of their jobs at once.
+     * @return List of JobStatuses, which the caller is free to modify.
      */
-    public synchronized Collection<JobStatus> getAllJobStatuses () {
-        TObjectIntMap<String> workersPerJob = workerCatalog.activeWorkersPerJob();
+    public Collection<JobStatus> getAllJobStatuses () {
+        JobStatusSnapshot snapshot = jobStatusSnapshot;
+        if (snapshot == null || System.currentTimeMillis() - snapshot.time > JOB_STATUS_MAX_AGE_MSEC) {
+            // Several threads may rebuild the snapshot at the same time, which is harmless.
+            snapshot = new JobStatusSnapshot();
+            jobStatusSnapshot = snapshot;
+        }
+        // Callers fill in details of each job, so they each get their own copies.
         Collection<JobStatus> jobStatuses = new ArrayList<>();
-        for (Job job : jobs.values()) {
-            JobStatus jobStatus = new JobStatus(job);
-            jobStatus.activeWorkers = workersPerJob.get(job.jobId);
-            jobStatuses.add(jobStatus);
+        for (JobStatus jobStatus : snapshot.jobStatuses) {
+            jobStatuses.add(new JobStatus(jobStatus));
         }
         return jobStatuses;
     }
 
+    /** The statuses of all jobs at one moment, shared between requests arriving within a short time. */
+    private class JobStatusSnapshot {
+
+        final long time = System.currentTimeMillis();
+
+        final List<JobStatus> jobStatuses = new ArrayList<>();
+
+        JobStatusSnapshot () {
+            TObjectIntMap<String> workersPerJob = workerCatalog.activeWorkersPerJob();
+            for (Job job : jobsById.values()) {
+                JobStatus jobStatus = new JobStatus(job);
+                jobStatus.activeWorkers = workersPerJob.get(job.jobId);
+                jobStatuses.add(jobStatus);
+            }
+        }
+    }
+
     /** Find the job for the given jobId, returning null if that job does not exist. */
-    public synchronized Job findJob (String jobId) {
-        return jobs.values().stream()
-                .filter(job -> job.jobId.equals(jobId))
-                .findFirst()
-                .orElse(null);
+    public Job findJob (String jobId) {
+        return jobsById.get(jobId);
     }
 
     /**
@@ -370,7 +560,8 @@ public class Broker {
         // Remove the job from the broker so we stop distributing its tasks to workers.
         Job job = findJob(jobId);
         if (job == null) return false;
-        boolean success = jobs.remove(job.workerCategory, job);
+        boolean success = removeJob(job);
+        resultIngester.remove(jobId);
         // Shut down the object used for assembling results, removing its associated temporary disk file.
         // TODO just put the assembler in the Job object
         MultiOriginAssembler assembler = resultAssemblers.remove(jobId);
@@ -392,7 +583,7 @@ public class Broker {
      * Given a worker commit ID and transport network, return the IP or DNS name of a worker that has that software
      * and network already loaded. If none exist, return null and try to start one.
      */
-    public synchronized String getWorkerAddress(WorkerCategory workerCategory) {
+    public String getWorkerAddress(WorkerCategory workerCategory) {
         if (config.offline()) {
             return "localhost";
         }
@@ -411,7 +602,7 @@ public class Broker {
         return workerCatalog.getAllWorkerObservations();
     }
 
-    public synchronized void unregisterSinglePointWorker (WorkerCategory category) {
+    public void unregisterSinglePointWorker (WorkerCategory category) {
         workerCatalog.tryToReassignSinglePointWork(category);
     }
 
@@ -423,42 +614,69 @@ public class Broker {
     }
 
     /**
-     * Slots a single regional work result received from a worker into the appropriate position in
-     * the appropriate file. Also considers requesting extra spot instances after a few results have
-     * been received. The checks in place should prevent an unduly large number of workers from
-     * proliferating, assuming jobs for a given worker category (transport network + R5 version) are
-     * completed sequentially.
+     * Accepts a single regional work result received from a worker, queueing it to be slotted into the appropriate
+     * position in the appropriate file on a writer thread. The task is marked completed right away so it will not be
+     * redelivered, though the job is only finished once the result has been written. Also considers requesting extra
+     * spot instances after a few results have been received. The checks in place should prevent an unduly large
+     * number of workers from proliferating, assuming jobs for a given worker category (transport network + R5
+     * version) are completed sequentially.
      *
      * @param workResult an object representing accessibility results for a single origin point,
      *                   sent by a worker.
+     * @return false if too many results for the same job are already waiting to be written, in which case this one
+     *         was refused and its task left incomplete, so it should be sent again later. True otherwise.
      */
-    public void handleRegionalWorkResult(RegionalWorkResult workResult) {
-        // Retrieving the job and assembler from their maps is not threadsafe, so we do so in a
-        // synchronized block here. Once the job is retrieved, it can be used to
-        // requestExtraWorkers below without synchronization, because that method only uses final
+    public boolean handleRegionalWorkResult(RegionalWorkResult workResult) {
+        // The job can be used to requestExtraWorkers below without synchronization, because that method only uses final
         // fields of the job.
-        Job job;
-        MultiOriginAssembler assembler;
-        synchronized (this) {
-            job = findJob(workResult.jobId);
-            assembler = resultAssemblers.get(workResult.jobId);
+        Job job = findJob(workResult.jobId);
+        if (job == null) {
+            LOG.error("Received result for unrecognized job ID {}, discarding.", workResult.jobId);
+            return true;
         }
+        if (!resultIngester.offer(workResult)) {
+            return false;
+        }
+        if (!workResult.isUnaffectedOriginsOnly()) {
+            markTaskCompleted(workResult.jobId, workResult.taskId);
+        }
+        // When results for the task with the magic number are received, consider boosting the job by starting EC2
+        // spot instances. Fake jobs for testing do not start workers, as in enqueueTasksForRegionalJob.
+        if (workResult.taskId == AUTO_START_SPOT_INSTANCES_AT_TASK && !config.testTaskRedelivery()) {
+            requestExtraWorkersIfAppropriate(job);
+        }
+        return true;
+    }
 
-        if (assembler == null) {
-            LOG.error("Received result for unrecognized job ID {}, discarding.", workResult.jobId);
-        } else {
-            // FIXME this is building up to 5 grids and uploading them to S3, this should not be done synchronously in
-            //       an HTTP handler.
-            assembler.handleMessage(workResult);
-            // When results for the task with the magic number are received, consider boosting the job by starting EC2
-            // spot instances
-            if (workResult.taskId == AUTO_START_SPOT_INSTANCES_AT_TASK) {
-                requestExtraWorkersIfAppropriate(job);
+    /**
+     * Called on a writer thread for each result queued by handleRegionalWorkResult. Writing grid values and finishing
+     * the result files (which may mean building and uploading several grids) happen here rather than in HTTP handlers.
+     */
+    private void writeRegionalWorkResult (MultiOriginAssembler assembler, RegionalWorkResult workResult) {
+        if (workResult.unaffectedTaskRanges != null && assembler.job.isCopyingUnaffectedOrigins()) {
+            // Fill in the results for origins of an incremental analysis that cannot differ from its base analysis.
+            // Marking them completed means they will not be delivered to any more workers.
+            try {
+                BitSet copiedOrigins = assembler.copyOriginsFromBase(workResult.unaffectedTaskRanges);
+                markTasksCompleted(workResult.jobId, copiedOrigins);
+            } catch (Exception e) {
+                // Origins not yet received will be delivered again as ordinary tasks, so the job can still finish.
+                LOG.error("Could not copy unaffected origins from base analysis into job {}, computing them instead.",
+                        workResult.jobId, e);
+                assembler.job.stopCopyingUnaffectedOrigins();
             }
         }
+        if (!workResult.isUnaffectedOriginsOnly()) {
+            assembler.handleMessage(workResult);
+        }
+    }
 
-        markTaskCompleted(workResult.jobId, workResult.taskId);
-
+    /** Called on a writer thread whenever all results received so far for a job have been written. */
+    private void handleResultsWritten (String jobId) {
+        Job job = findJob(jobId);
+        if (job != null) {
+            removeJobIfComplete(job);
+        }
     }
 
     private void requestExtraWorkersIfAppropriate(Job job) {
@@ -500,14 +718,14 @@ public class Broker {
     }
 
     public boolean anyJobsActive () {
-        for (Job job : jobs.values()) {
+        for (Job job : jobsById.values()) {
             if (!job.isComplete()) return true;
         }
         return false;
     }
 
     public void logJobStatus() {
-        for (Job job : jobs.values()) {
+        for (Job job : jobsById.values()) {
             LOG.info(job.toString());
         }
     }
@@ -0,0 +1,279 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.analysis.components.eventbus.EventBus;
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.AccessibilityResult;
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.r5.analyst.cluster.ThroughputTracker;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This test is not an automatic unit test. It is a load test that must be started manually, because it starts
+ * hundreds of threads and takes a while to run. It creates a Broker in this process without any HTTP server, network
+ * or result files, enqueues several large jobs on a few networks, then simulates many workers polling for tasks and
+ * returning results as fast as they can, alongside a few users watching job progress. Results go through the same
+ * queues and writer threads as real results, but the writer for each job only counts them instead of assembling files.
+ * When all jobs are finished it reports how long the broker took to answer each kind of call, which shows how much the
+ * callers wait on each other.
+ */
+public class BrokerLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerLoadTest.class);
+
+    static final int N_WORKERS = 500;
+    static final int N_CATEGORIES = 4;
+    static final int N_JOBS_PER_CATEGORY = 2;
+    static final int GRID_WIDTH = 500;
+    static final int GRID_HEIGHT = 400;
+
+    /** Time spent computing each task on one processor of a simulated worker. */
+    static final int TASK_MSEC = 8;
+
+    /** Each simulated worker computes this many tasks at once and, like AnalysisWorker, queues six per processor. */
+    static final int WORKER_PROCESSORS = 4;
+    static final int WORKER_QUEUE_LENGTH = WORKER_PROCESSORS * 6;
+
+    /** Time a simulated worker waits before polling again when it receives no tasks. */
+    static final int EMPTY_POLL_WAIT_MSEC = 500;
+
+    static final int N_STATUS_READERS = 8;
+    static final int STATUS_READ_INTERVAL_MSEC = 100;
+
+    /** The number of results passed to the stub result writers, including any duplicates from redelivered tasks. */
+    static final AtomicLong nResultsWritten = new AtomicLong();
+
+    /**
+     * @param params are not used.
+     */
+    public static void main(String[] params) throws InterruptedException {
+        Broker broker = new Broker(new LoadTestConfig(), null, new EventBus(null), null);
+        List<WorkerCategory> categories = new ArrayList<>();
+        for (int c = 0; c < N_CATEGORIES; c++) {
+            WorkerCategory category = new WorkerCategory("network-" + c, "load-test");
+            categories.add(category);
+            for (int j = 0; j < N_JOBS_PER_CATEGORY; j++) {
+                broker.addJob(makeJob(category), workResult -> nResultsWritten.incrementAndGet());
+            }
+        }
+        int nTasksTotal = N_CATEGORIES * N_JOBS_PER_CATEGORY * GRID_WIDTH * GRID_HEIGHT;
+        LOG.info("Enqueued {} tasks. Starting {} simulated workers.", nTasksTotal, N_WORKERS);
+
+        long startTime = System.currentTimeMillis();
+        List<SimulatedCaller> callers = new ArrayList<>();
+        for (int w = 0; w < N_WORKERS; w++) {
+            callers.add(new SimulatedWorker(broker, w, categories.get(w % N_CATEGORIES)));
+        }
+        for (int s = 0; s < N_STATUS_READERS; s++) {
+            callers.add(new SimulatedStatusReader(broker));
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (SimulatedCaller caller : callers) {
+            Thread thread = new Thread(caller);
+            thread.start();
+            threads.add(thread);
+        }
+        while (broker.anyJobsActive()) {
+            broker.logJobStatus();
+            Thread.sleep(2000);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.currentTimeMillis() - startTime) / 1000D;
+        LOG.info("All jobs finished in {} sec, {} tasks per second.", seconds, (int) (nTasksTotal / seconds));
+        LOG.info("{} results written for {} tasks.", nResultsWritten.get(), nTasksTotal);
+
+        TLongList pollNanos = new TLongArrayList();
+        TLongList completionNanos = new TLongArrayList();
+        TLongList statusNanos = new TLongArrayList();
+        TLongList deliverySizes = new TLongArrayList();
+        int nRefused = 0;
+        for (SimulatedCaller caller : callers) {
+            if (caller instanceof SimulatedWorker) {
+                pollNanos.addAll(((SimulatedWorker) caller).pollNanos);
+                completionNanos.addAll(((SimulatedWorker) caller).completionNanos);
+                deliverySizes.addAll(((SimulatedWorker) caller).deliverySizes);
+                nRefused += ((SimulatedWorker) caller).nRefused;
+            } else {
+                statusNanos.addAll(((SimulatedStatusReader) caller).statusNanos);
+            }
+        }
+        logLatencies("Worker polls", pollNanos, seconds);
+        logLatencies("Result returns", completionNanos, seconds);
+        logLatencies("Status requests", statusNanos, seconds);
+        LOG.info("Results sent again because too many were waiting to be written: {}", nRefused);
+        if (!deliverySizes.isEmpty()) {
+            deliverySizes.sort();
+            LOG.info("Tasks per non-empty poll: median {}, max {}.",
+                    deliverySizes.get(deliverySizes.size() / 2), deliverySizes.get(deliverySizes.size() - 1));
+        }
+        System.exit(0);
+    }
+
+    private static Job makeJob (WorkerCategory category) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = RedeliveryTest.compactUUID();
+        templateTask.graphId = category.graphId;
+        templateTask.workerVersion = category.workerVersion;
+        templateTask.zoom = 9;
+        templateTask.west = 0;
+        templateTask.north = 0;
+        templateTask.width = GRID_WIDTH;
+        templateTask.height = GRID_HEIGHT;
+        templateTask.scenarioId = "FAKE";
+        return new Job(templateTask, new WorkerTags("load-test", "load-test", null, null));
+    }
+
+    private static void logLatencies (String name, TLongList nanos, double seconds) {
+        if (nanos.isEmpty()) {
+            LOG.info("{}: none", name);
+            return;
+        }
+        nanos.sort();
+        LOG.info("{}: {} per second, median {} usec, 99th percentile {} usec, max {} usec", name,
+                (int) (nanos.size() / seconds), nanos.get(nanos.size() / 2) / 1000,
+                nanos.get((int) (nanos.size() * 0.99)) / 1000, nanos.get(nanos.size() - 1) / 1000);
+    }
+
+    /** Something calling the broker repeatedly on its own thread until all jobs are finished. */
+    private static abstract class SimulatedCaller implements Runnable {
+
+        final Broker broker;
+
+        SimulatedCaller (Broker broker) {
+            this.broker = broker;
+        }
+
+        @Override
+        public void run () {
+            try {
+                while (broker.anyJobsActive()) {
+                    callBroker();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        abstract void callBroker () throws InterruptedException;
+    }
+
+    /**
+     * Polls for tasks in the same way as AnalysisWorker. Tasks received are placed in a queue, and before each poll
+     * the simulated processors work through the queue until it runs low, which is when AnalysisWorker polls again.
+     * Each poll reports the free places in the queue and the tasks completed in the last minute, as AnalysisWorker
+     * does, so the broker can size its deliveries to each worker. Results are returned before each poll, one batch at
+     * a time as by the results endpoint, which stops accepting a batch at the first result refused because its job is
+     * backed up. That result and all those after it are held and sent again after the requested wait.
+     */
+    private static class SimulatedWorker extends SimulatedCaller {
+
+        final WorkerStatus workerStatus = new WorkerStatus();
+
+        final ThroughputTracker throughputTracker = new ThroughputTracker();
+
+        final List<RegionalTask> queuedTasks = new ArrayList<>();
+
+        /** Whether the last poll returned no tasks, in which case the whole queue is completed before polling again. */
+        boolean lastPollEmpty = false;
+
+        final TLongList pollNanos = new TLongArrayList();
+
+        final TLongList completionNanos = new TLongArrayList();
+
+        final TLongList deliverySizes = new TLongArrayList();
+
+        int nRefused = 0;
+
+        SimulatedWorker (Broker broker, int workerNumber, WorkerCategory category) {
+            super(broker);
+            workerStatus.workerId = "worker-" + workerNumber;
+            workerStatus.workerVersion = category.workerVersion;
+            workerStatus.networks.add(category.graphId);
+            workerStatus.ipAddress = "127.0.0.1";
+            workerStatus.processors = WORKER_PROCESSORS;
+        }
+
+        @Override
+        void callBroker () throws InterruptedException {
+            int nToComplete = lastPollEmpty ? queuedTasks.size() : queuedTasks.size() - WORKER_PROCESSORS;
+            if (nToComplete > 0) {
+                completeTasks(queuedTasks.subList(0, nToComplete));
+            }
+            long start = System.nanoTime();
+            workerStatus.freeTaskSlots = WORKER_QUEUE_LENGTH - queuedTasks.size();
+            workerStatus.tasksPerMinuteByJobId = throughputTracker.getTasksPerMinuteByJobId();
+            broker.recordWorkerObservation(workerStatus);
+            List<RegionalTask> tasks = broker.getSomeWork(workerStatus);
+            pollNanos.add(System.nanoTime() - start);
+            lastPollEmpty = tasks.isEmpty();
+            if (lastPollEmpty) {
+                Thread.sleep(EMPTY_POLL_WAIT_MSEC);
+            } else {
+                deliverySizes.add(tasks.size());
+                queuedTasks.addAll(tasks);
+            }
+        }
+
+        /** Spend the time to compute the given tasks on all processors, return their results and dequeue them. */
+        private void completeTasks (List<RegionalTask> tasks) throws InterruptedException {
+            Thread.sleep(tasks.size() * TASK_MSEC / WORKER_PROCESSORS);
+            List<RegionalWorkResult> results = new ArrayList<>();
+            for (RegionalTask task : tasks) {
+                results.add(new RegionalWorkResult(new OneOriginResult(null, new AccessibilityResult()), task));
+                throughputTracker.recordTaskCompletion(task.jobId);
+            }
+            tasks.clear();
+            while (!results.isEmpty()) {
+                long start = System.nanoTime();
+                int nAccepted = 0;
+                while (nAccepted < results.size() && broker.handleRegionalWorkResult(results.get(nAccepted))) {
+                    nAccepted += 1;
+                }
+                completionNanos.add(System.nanoTime() - start);
+                results = results.subList(nAccepted, results.size());
+                if (!results.isEmpty()) {
+                    nRefused += results.size();
+                    Thread.sleep(ResultIngester.BACKED_UP_RETRY_SECONDS * 1000);
+                }
+            }
+        }
+    }
+
+    /** Requests the status of all jobs at regular intervals, as the UI does while users watch job progress. */
+    private static class SimulatedStatusReader extends SimulatedCaller {
+
+        final TLongList statusNanos = new TLongArrayList();
+
+        SimulatedStatusReader (Broker broker) {
+            super(broker);
+        }
+
+        @Override
+        void callBroker () throws InterruptedException {
+            long start = System.nanoTime();
+            broker.getAllJobStatuses();
+            statusNanos.add(System.nanoTime() - start);
+            Thread.sleep(STATUS_READ_INTERVAL_MSEC);
+        }
+    }
+
+    private static class LoadTestConfig implements Broker.Config {
+        @Override public boolean offline () { return false; }
+        @Override public int maxWorkers () { return N_WORKERS; }
+        @Override public String resultsBucket () { return null; }
+        @Override public String bundleBucket () { return null; }
+        @Override public boolean testTaskRedelivery () { return true; }
+    }
+
+}
@@ -5,6 +5,9 @@ import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.analyst.PointSetCache;
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.util.HilbertCurve;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,6 +18,10 @@ import java.util.List;
 /**
  * A Job is a collection of tasks that represent all the origins in a regional analysis. All the
  * tasks in a Job must have the same network ID and be run against the same R5 version on the workers.
+ * <p>
+ * Methods reading or changing which tasks have been delivered and completed are synchronized on the job
+ * itself rather than the broker, so workers polling for tasks or returning results for different jobs
+ * do not wait on one another. The counters are volatile so status reports can read them without locking.
  */
 public class Job {
 
@@ -34,9 +41,13 @@ public class Job {
     // Essentially what we want to do is random selection (sampling) without replacement.
     // As far as I know there's no way to do this without storing the full sequence, or taking longer and longer
     // to find random tasks as the set of completed tasks gets larger.
-    // On the other hand, working on tasks from the same geographic area might be more efficient because
-    // they probably use all the same transit lines and roads, which will already be in cache.
-    // So let's just keep track of where we're at in the sequence.
+    // On the other hand, working on tasks from the same geographic area is more efficient because they use
+    // the same transit lines, roads and egress tables, which will already be in the worker's memory caches.
+    // So we store the full sequence after all, ordering origins along a Hilbert curve so each batch of tasks
+    // delivered to a worker covers a compact patch of the region, and keep track of where we're at in it.
+    private final int[] deliveryOrder;
+
+    /** The position in deliveryOrder of the next task to deliver. */
     private int nextTaskToDeliver;
 
     /** A unique identifier for this job, we use random UUIDs. */
@@ -58,13 +69,13 @@ public class Job {
      * The number of remaining tasks can be derived from the deliveredTasks BitSet, but as an
      * optimization we keep a separate counter to avoid constantly scanning over that whole bitset.
      */
-    protected int nTasksCompleted;
+    protected volatile int nTasksCompleted;
 
     /**
      * The total number of task deliveries that have occurred. A task may be counted more than
      * once if it is redelivered.
      */
-    protected int nTasksDelivered;
+    protected volatile int nTasksDelivered;
 
     /** Every task in this job will be based on this template task, but have its origin coordinates changed. */
     public final RegionalTask templateTask;
@@ -92,6 +103,9 @@ public class Job {
     private RegionalTask makeOneTask (int taskNumber) {
         RegionalTask task = templateTask.clone();
         task.taskId = taskNumber;
+        if (!copyingUnaffectedOrigins) {
+            task.baseScenarioId = null;
+        }
         if (originPointSet == null) {
             // Origins specified implicitly by web mercator dimensions of task
             int x = taskNumber % templateTask.width;
@@ -125,7 +139,14 @@ public class Job {
      * How many times we have started over delivering tasks, working through those that were not
      * marked complete.
      */
-    public int deliveryPass = 0;
+    public volatile int deliveryPass = 0;
+
+    /**
+     * For an incremental analysis, whether origins unaffected by its scenario are still being copied from its base
+     * analysis. If copying fails, this is cleared and later tasks are delivered without the base scenario, so workers
+     * compute every origin that has not yet been received.
+     */
+    private volatile boolean copyingUnaffectedOrigins = true;
 
     public Job (RegionalTask templateTask, WorkerTags workerTags) {
         this.jobId = templateTask.jobId;
@@ -147,10 +168,49 @@ public class Job {
 
         this.completedTasks = new BitSet(nTasksTotal);
         this.workerTags = workerTags;
+        this.deliveryOrder = makeDeliveryOrder();
+
+    }
+
+    /**
+     * Order the origins along a Hilbert curve. Gridded origins use their grid cells directly. Freeform origins are
+     * placed on the finest supported grid covering their bounding box.
+     */
+    private int[] makeDeliveryOrder () {
+        int[] xs = new int[nTasksTotal];
+        int[] ys = new int[nTasksTotal];
+        int order;
+        if (originPointSet == null) {
+            order = HilbertCurve.orderForSize(Math.max(templateTask.width, templateTask.height));
+            for (int taskNumber = 0; taskNumber < nTasksTotal; taskNumber++) {
+                xs[taskNumber] = taskNumber % templateTask.width;
+                ys[taskNumber] = taskNumber / templateTask.width;
+            }
+        } else {
+            order = HilbertCurve.MAX_ORDER;
+            double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+            double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+            for (int p = 0; p < nTasksTotal; p++) {
+                minLat = Math.min(minLat, originPointSet.getLat(p));
+                maxLat = Math.max(maxLat, originPointSet.getLat(p));
+                minLon = Math.min(minLon, originPointSet.getLon(p));
+                maxLon = Math.max(maxLon, originPointSet.getLon(p));
+            }
+            int maxCell = (1 << order) - 1;
+            for (int p = 0; p < nTasksTotal; p++) {
+                xs[p] = scaleToCell(originPointSet.getLon(p), minLon, maxLon, maxCell);
+                ys[p] = scaleToCell(originPointSet.getLat(p), minLat, maxLat, maxCell);
+            }
+        }
+        return HilbertCurve.sortByIndex(order, xs, ys);
+    }
 
+    private static int scaleToCell (double value, double min, double max, int maxCell) {
+        if (max <= min) return 0;
+        return (int) ((value - min) / (max - min) * maxCell);
     }
 
-    public boolean markTaskCompleted(int taskId) {
+    public synchronized boolean markTaskCompleted(int taskId) {
         // Don't allow negative or huge task numbers to avoid exceptions or expanding the bitset to
         // a huge size.
         if (taskId < 0 || taskId > nTasksTotal) {
@@ -175,22 +235,44 @@ public class Job {
      *         this delivery pass.
      */
     public List<RegionalTask> generateSomeTasksToDeliver (int maxTasks) {
-        List<RegionalTask> tasks = new ArrayList<>(maxTasks);
-        // TODO use special bitset iteration syntax.
-        while (nextTaskToDeliver < nTasksTotal && tasks.size() < maxTasks) {
-            if (!completedTasks.get(nextTaskToDeliver)) {
-                tasks.add(makeOneTask(nextTaskToDeliver));
+        TIntList taskNumbers = new TIntArrayList(maxTasks);
+        synchronized (this) {
+            while (nextTaskToDeliver < nTasksTotal && taskNumbers.size() < maxTasks) {
+                int taskNumber = deliveryOrder[nextTaskToDeliver];
+                if (!completedTasks.get(taskNumber)) {
+                    taskNumbers.add(taskNumber);
+                }
+                nextTaskToDeliver += 1;
             }
-            nextTaskToDeliver += 1;
+            if (!taskNumbers.isEmpty()) {
+                this.lastDeliveryTime = System.currentTimeMillis();
+            }
+            nTasksDelivered += taskNumbers.size();
         }
-        if (!tasks.isEmpty()) {
-            this.lastDeliveryTime = System.currentTimeMillis();
+        // Cloning the template task for each origin does not need to hold up other threads using this job.
+        List<RegionalTask> tasks = new ArrayList<>(taskNumbers.size());
+        for (int i = 0; i < taskNumbers.size(); i++) {
+            tasks.add(makeOneTask(taskNumbers.get(i)));
         }
-        nTasksDelivered += tasks.size();
         return tasks;
     }
 
-    public boolean hasTasksToDeliver() {
+    public boolean isCopyingUnaffectedOrigins () {
+        return copyingUnaffectedOrigins;
+    }
+
+    /**
+     * Stop copying the origins of an incremental analysis from its base analysis. Delivery starts over right away,
+     * so origins that were reported unaffected but could not be copied are computed without waiting for redelivery.
+     */
+    public synchronized void stopCopyingUnaffectedOrigins () {
+        if (copyingUnaffectedOrigins) {
+            copyingUnaffectedOrigins = false;
+            nextTaskToDeliver = 0;
+        }
+    }
+
+    public synchronized boolean hasTasksToDeliver() {
         if (this.isComplete()) {
             return false;
         }
@@ -217,7 +299,7 @@ public class Job {
      * Just as a failsafe, when our counter indicates that the job is complete, actually check how
      * many bits are set.
      */
-    public void verifyComplete() {
+    public synchronized void verifyComplete() {
         if (this.isComplete() && completedTasks.cardinality() != nTasksTotal) {
             LOG.error("Something is amiss in completed task tracking.");
         }
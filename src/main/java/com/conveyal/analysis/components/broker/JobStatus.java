@@ -51,4 +51,18 @@ public class JobStatus {
         this.deliveries = job.nTasksDelivered;
         this.deliveryPass = job.deliveryPass;
     }
+
+    /** Copy another status, so a status shared between several API responses is not modified by any of them. */
+    public JobStatus (JobStatus other) {
+        this.jobId = other.jobId;
+        this.graphId = other.graphId;
+        this.workerCommit = other.workerCommit;
+        this.total = other.total;
+        this.complete = other.complete;
+        this.incomplete = other.incomplete;
+        this.deliveries = other.deliveries;
+        this.deliveryPass = other.deliveryPass;
+        this.activeWorkers = other.activeWorkers;
+        this.regionalAnalysis = other.regionalAnalysis;
+    }
 }
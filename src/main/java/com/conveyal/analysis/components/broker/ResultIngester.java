@@ -0,0 +1,146 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Writes the regional results received from workers into result files on a few dedicated threads, so the HTTP
+ * handlers receiving those results only need to place them in a queue. This keeps worker polls fast when writing is
+ * slow, for example when the disk is busy or when a finishing job is compressing and uploading its result files.
+ *
+ * Each job has its own bounded queue, which at most one writer thread drains at a time. A job whose queue is over half
+ * full is considered backed up: the broker stops handing out its tasks and asks workers to wait before polling again.
+ * When a queue is completely full, further results for that job are refused and must be sent again later.
+ */
+public class ResultIngester {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultIngester.class);
+
+    /** The maximum number of results waiting to be written for any one job. */
+    public static final int MAX_QUEUED_RESULTS_PER_JOB = 10_000;
+
+    /** How long workers are asked to wait before polling again or resending results when a job is backed up. */
+    public static final int BACKED_UP_RETRY_SECONDS = 10;
+
+    /** The number of results written from one job's queue before the writer thread gives other jobs a turn. */
+    private static final int RESULTS_PER_TURN = 1000;
+
+    private final ExecutorService writerExecutor;
+
+    private final Map<String, JobQueue> queues = new ConcurrentHashMap<>();
+
+    /** Called with a job ID on a writer thread each time all results queued for that job have been written. */
+    private final Consumer<String> onDrained;
+
+    public ResultIngester (int nWriterThreads, Consumer<String> onDrained) {
+        this.writerExecutor = Executors.newFixedThreadPool(
+                nWriterThreads,
+                new ThreadFactoryBuilder().setNameFormat("result-writer-%d").setDaemon(true).build()
+        );
+        this.onDrained = onDrained;
+    }
+
+    /** Start accepting results for the given job, which will be passed to the writer function in a writer thread. */
+    public void register (String jobId, Consumer<RegionalWorkResult> writer) {
+        queues.put(jobId, new JobQueue(jobId, writer));
+    }
+
+    /**
+     * Stop accepting results for the given job, discarding any that have not yet been written. A result that is
+     * being written at the moment this is called will still be written.
+     */
+    public void remove (String jobId) {
+        JobQueue queue = queues.remove(jobId);
+        if (queue != null) {
+            queue.results.clear();
+        }
+    }
+
+    /**
+     * Queue a result to be written. Results for jobs that are not registered are discarded.
+     * @return false if the job's queue is full and the result was not accepted, true otherwise.
+     */
+    public boolean offer (RegionalWorkResult workResult) {
+        JobQueue queue = queues.get(workResult.jobId);
+        if (queue == null) {
+            LOG.error("Received result for unregistered job ID {}, discarding.", workResult.jobId);
+            return true;
+        }
+        if (!queue.results.offer(workResult)) {
+            return false;
+        }
+        queue.schedule();
+        return true;
+    }
+
+    /** @return whether so many results are waiting to be written for the given job that workers should back off. */
+    public boolean isBackedUp (String jobId) {
+        JobQueue queue = queues.get(jobId);
+        return queue != null && queue.results.size() > MAX_QUEUED_RESULTS_PER_JOB / 2;
+    }
+
+    /** @return whether every result accepted for the given job has been written. */
+    public boolean isDrained (String jobId) {
+        JobQueue queue = queues.get(jobId);
+        return queue == null || (queue.results.isEmpty() && !queue.scheduled.get());
+    }
+
+    /** The results waiting to be written for one job, and the task that writes them on a writer thread. */
+    private class JobQueue implements Runnable {
+
+        final String jobId;
+
+        final Consumer<RegionalWorkResult> writer;
+
+        final BlockingQueue<RegionalWorkResult> results = new ArrayBlockingQueue<>(MAX_QUEUED_RESULTS_PER_JOB);
+
+        /** Whether this queue is waiting for or running on a writer thread, ensuring only one drains it at once. */
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        JobQueue (String jobId, Consumer<RegionalWorkResult> writer) {
+            this.jobId = jobId;
+            this.writer = writer;
+        }
+
+        void schedule () {
+            if (scheduled.compareAndSet(false, true)) {
+                writerExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run () {
+            try {
+                for (int i = 0; i < RESULTS_PER_TURN; i++) {
+                    RegionalWorkResult workResult = results.poll();
+                    if (workResult == null) break;
+                    try {
+                        writer.accept(workResult);
+                    } catch (Exception e) {
+                        LOG.error("Error writing result for task {} of job {}.", workResult.taskId, jobId, e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            // A result may have been added after the loop ended but before the flag was cleared, without scheduling.
+            if (!results.isEmpty()) {
+                schedule();
+            } else {
+                onDrained.accept(jobId);
+            }
+        }
+    }
+
+}
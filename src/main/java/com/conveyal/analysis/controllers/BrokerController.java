@@ -6,6 +6,7 @@ import com.conveyal.analysis.BackendMain;
 import com.conveyal.analysis.UserPermissions;
 import com.conveyal.analysis.components.broker.Broker;
 import com.conveyal.analysis.components.broker.JobStatus;
+import com.conveyal.analysis.components.broker.ResultIngester;
 import com.conveyal.analysis.components.broker.WorkerObservation;
 import com.conveyal.analysis.components.broker.WorkerTags;
 import com.conveyal.analysis.components.eventbus.EventBus;
@@ -21,6 +22,7 @@ import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.AnalysisWorker;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResultCodec;
 import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.conveyal.r5.common.JsonUtilities;
@@ -43,6 +45,8 @@ import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
@@ -50,6 +54,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.conveyal.r5.common.Util.notNullOrEmpty;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -106,6 +112,7 @@ public class BrokerController implements HttpController {
     public void registerEndpoints (spark.Service sparkService) {
         sparkService.head("", this::headHandler);
         sparkService.post("/internal/poll", this::workerPoll);
+        sparkService.post("/internal/results", this::workerResults);
         sparkService.get("/api/jobs", this::getAllJobs);
         sparkService.get("/api/workers", this::getAllWorkers);
         sparkService.post("/api/analysis", this::singlePoint); // TODO rename HTTP path to "single" or something
@@ -329,19 +336,27 @@ public class BrokerController implements HttpController {
         List<RegionalWorkResult> perOriginResults = workerStatus.results;
 
         // Record any regional analysis results that were supplied by the worker and mark them completed.
+        int nRefused = 0;
         for (RegionalWorkResult workResult : perOriginResults) {
             // Prevent the backend from shutting down when it's receiving regional analysis results.
             BackendMain.recordActivityToPreventShutdown();
-            broker.handleRegionalWorkResult(workResult);
+            if (!broker.handleRegionalWorkResult(workResult)) {
+                nRefused += 1;
+            }
+        }
+        if (nRefused > 0) {
+            // Workers sending results in the poll body will not resend them. Their tasks remain incomplete and will be
+            // redelivered.
+            LOG.warn("Refused {} results polled from worker {}, too many are waiting to be written.",
+                    nRefused, workerStatus.workerId);
         }
         // Clear out the results field so it's not visible in the worker list API endpoint.
         workerStatus.results = null;
 
         // Add this worker to our catalog, tracking its graph affinity and the last time it was seen among other things.
         broker.recordWorkerObservation(workerStatus);
-        WorkerCategory workerCategory = workerStatus.getWorkerCategory();
         // See if any appropriate tasks exist for this worker.
-        List<RegionalTask> tasks = broker.getSomeWork(workerCategory);
+        List<RegionalTask> tasks = broker.getSomeWork(workerStatus);
         // If there is no work for the worker, signal this clearly with a "no content" code,
         // so the worker can sleep a while before the next polling attempt.
         if (tasks.isEmpty()) {
@@ -351,6 +366,40 @@ public class BrokerController implements HttpController {
         }
     }
 
+    /**
+     * Workers return batches of regional analysis results to this endpoint in the binary form written by
+     * RegionalWorkResultCodec, before polling for more work. Each result is handled as soon as it is decoded from the
+     * request body, without deserializing the whole batch first. If reading fails partway through, the worker will
+     * send the whole batch again, and any results already handled are harmlessly received twice. When results arrive
+     * faster than the broker can write them, the first result refused and all those following it in the batch are
+     * left unhandled. The response then gives the number of results accepted before that one, so the worker can hold
+     * on to only the remainder for a while and then send it again, without adding duplicates to a backed-up job.
+     */
+    private Object workerResults (Request request, Response response) {
+        try (InputStream inputStream = request.raw().getInputStream()) {
+            AtomicInteger nAccepted = new AtomicInteger();
+            AtomicBoolean refused = new AtomicBoolean(false);
+            // The rest of the body is still read after a refusal, so the worker does not see the connection reset.
+            RegionalWorkResultCodec.read(inputStream, workResult -> {
+                if (refused.get()) return;
+                // Prevent the backend from shutting down when it's receiving regional analysis results.
+                BackendMain.recordActivityToPreventShutdown();
+                if (broker.handleRegionalWorkResult(workResult)) {
+                    nAccepted.incrementAndGet();
+                } else {
+                    refused.set(true);
+                }
+            });
+            if (refused.get()) {
+                response.header("Retry-After", Integer.toString(ResultIngester.BACKED_UP_RETRY_SECONDS));
+                return jsonResponse(response, HttpStatus.SERVICE_UNAVAILABLE_503, nAccepted.get());
+            }
+            return jsonResponse(response, HttpStatus.OK_200, nAccepted.get());
+        } catch (IOException e) {
+            throw AnalysisServerException.badRequest("Could not read regional work results: " + e.getMessage());
+        }
+    }
+
     /**
      * Deserializes an object of the given type from JSON in the body of the supplied Spark request.
      */
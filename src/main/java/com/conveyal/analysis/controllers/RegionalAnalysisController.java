@@ -14,8 +14,11 @@ import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageFormat;
 import com.conveyal.file.FileStorageKey;
 import com.conveyal.file.FileUtils;
+import com.conveyal.r5.analyst.AffectedOriginFinder;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.primitives.Ints;
 import com.mongodb.QueryBuilder;
 import gnu.trove.list.array.TIntArrayList;
@@ -472,6 +475,22 @@ public class RegionalAnalysisController implements HttpController {
         task.cutoffsMinutes = regionalAnalysis.cutoffsMinutes;
         task.percentiles = regionalAnalysis.travelTimePercentiles;
 
+        // Optionally reuse the results of an earlier analysis for the origins that a change of scenario cannot affect.
+        if (analysisRequest.baseRegionalAnalysisId != null) {
+            RegionalAnalysis baseAnalysis = Persistence.regionalAnalyses.findByIdIfPermitted(
+                    analysisRequest.baseRegionalAnalysisId,
+                    accessGroup
+            );
+            checkIncrementalBase(baseAnalysis, regionalAnalysis);
+            if (AffectedOriginFinder.canFindAffectedOrigins(task.scenario) &&
+                    AffectedOriginFinder.canFindAffectedOrigins(baseAnalysis.request.scenario)) {
+                task.baseScenarioId = baseAnalysis.request.scenarioId;
+                regionalAnalysis.baseRegionalAnalysisId = baseAnalysis._id;
+            } else {
+                LOG.info("Scenarios contain modifications whose effects cannot be located, computing all origins.");
+            }
+        }
+
         // Persist this newly created RegionalAnalysis to Mongo.
         // Why are we overwriting the regionalAnalysis reference with the result of saving it? This looks like a no-op.
         regionalAnalysis = Persistence.regionalAnalyses.create(regionalAnalysis);
@@ -482,6 +501,36 @@ public class RegionalAnalysisController implements HttpController {
         return regionalAnalysis;
     }
 
+    /**
+     * Check that an earlier regional analysis can serve as the base of an incremental analysis: it must be a complete
+     * gridded accessibility analysis of the same network bundle, with every setting except the scenario identical.
+     */
+    private static void checkIncrementalBase (RegionalAnalysis base, RegionalAnalysis analysis) {
+        checkNotNull(base, "Base regional analysis could not be found in database.");
+        checkArgument(base.complete && !base.deleted, "Base regional analysis must be complete.");
+        checkArgument(base.bundleId.equals(analysis.bundleId), "Base regional analysis must use the same bundle.");
+        RegionalTask task = analysis.request;
+        checkArgument(
+            task.recordAccessibility && !task.recordTimes && !task.makeTauiSite && task.originPointSetKey == null,
+            "Only gridded accessibility analyses can reuse the results of an earlier analysis."
+        );
+        checkArgument(
+            Arrays.equals(base.destinationPointSetIds, analysis.destinationPointSetIds),
+            "Base regional analysis must have the same destinations."
+        );
+        checkArgument(
+            settingsExceptScenario(base.request).equals(settingsExceptScenario(task)),
+            "Base regional analysis must have the same bounds, cutoffs, percentiles and routing settings."
+        );
+    }
+
+    /** The JSON representation of a regional task, without the fields identifying its job and scenario. */
+    private static JsonNode settingsExceptScenario (RegionalTask task) {
+        ObjectNode settings = JsonUtil.objectMapper.valueToTree(task);
+        settings.remove(Arrays.asList("jobId", "scenario", "scenarioId", "baseScenarioId"));
+        return settings;
+    }
+
     private RegionalAnalysis updateRegionalAnalysis(Request request, Response response) throws IOException {
         final String accessGroup = request.attribute("accessGroup");
         final String email = request.attribute("email");
@@ -122,6 +122,13 @@ public class AnalysisRequest {
     /** Whether to record cumulative opportunity accessibility indicators for each origin. */
     public boolean recordAccessibility = true;
 
+    /**
+     * Optionally, the ID of a completed gridded accessibility analysis with identical settings but a different scenario
+     * (typically another variant of the same project). Origins that the differences between the two scenarios cannot
+     * affect are then copied from that analysis instead of being computed again.
+     */
+    public String baseRegionalAnalysisId;
+
     // For multi-criteria optimization (Pareto search on time and fare cost) =======================
 
     /**
@@ -66,6 +66,12 @@ public class RegionalAnalysis extends Model implements Cloneable {
      */
     public Geometry bounds;
 
+    /**
+     * If this is an incremental analysis, the ID of the earlier analysis from which the results for origins unaffected
+     * by the change of scenario are copied.
+     */
+    public String baseRegionalAnalysisId;
+
     /** Is this Analysis complete? */
     public boolean complete;
 
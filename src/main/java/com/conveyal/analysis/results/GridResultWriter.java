@@ -4,11 +4,20 @@ import com.conveyal.file.FileStorage;
 import com.conveyal.r5.analyst.LittleEndianIntOutputStream;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.conveyal.r5.common.Util.human;
 
@@ -34,6 +43,12 @@ import static com.conveyal.r5.common.Util.human;
  * <li>(4 byte int) number of values (channels) per pixel</li>
  * <li>(repeated 4-byte int) values of each pixel in row-major order: axis order (row, column, channel).</li>
  * </ol>
+ * <p>
+ * The data section of the buffer file is memory-mapped in little-endian byte order. Each origin owns a disjoint slice
+ * of the file, and values are written with absolute puts that do not touch the shared position of the mapped buffer,
+ * so results for different origins can be written by many threads at once. Those threads share a read lock, which
+ * finishing or terminating the writer takes exclusively before unmapping the buffers, so no value is ever written into
+ * a buffer that has been released. Values arriving after that are dropped.
  */
 public class GridResultWriter extends ResultWriter {
 
@@ -45,8 +60,29 @@ public class GridResultWriter extends ResultWriter {
     /** The offset to get to the data section of the access grid file. */
     private static final long HEADER_LENGTH_BYTES = 9 * Integer.BYTES;
 
+    /**
+     * A single MappedByteBuffer can cover at most 2GB, so the data section is mapped as several buffers each holding
+     * this many bytes or less. Every buffer holds a whole number of origins, so no origin straddles two buffers.
+     */
+    private static final int MAX_MAPPED_BUFFER_BYTES = 1 << 30;
+
+    /** The number of bytes read at once when copying values from another access grid. */
+    private static final int COPY_CHUNK_BYTES = 1 << 16;
+
     private final int channels;
 
+    /** The number of origins whose values are held in each of the mapped buffers. */
+    private final int originsPerBuffer;
+
+    /** Little-endian views onto consecutive parts of the data section of the buffer file. */
+    private final MappedByteBuffer[] mappedBuffers;
+
+    /** Held shared while writing values into the mapped buffers, and exclusively while releasing them. */
+    private final ReadWriteLock bufferLock = new ReentrantReadWriteLock();
+
+    /** Whether the mapped buffers have been released, after which no more values are accepted. */
+    private boolean closed = false;
+
     /**
      * Construct an writer for a single regional analysis result grid, using the proprietary
      * Conveyal grid format. This also creates the on-disk scratch buffer into which the results
@@ -63,7 +99,9 @@ public class GridResultWriter extends ResultWriter {
             height,
             channels
         );
-        long outputFileSizeBytes = width * height * channels  * Integer.BYTES;
+        final long nOrigins = ((long) width) * height;
+        final int bytesPerOrigin = channels * Integer.BYTES;
+        long dataSizeBytes = nOrigins * bytesPerOrigin;
         super.prepare(task.jobId, outputBucket);
 
         // Write the access grid file header to the temporary file.
@@ -84,59 +122,186 @@ public class GridResultWriter extends ResultWriter {
         // In the past we filled the file with zeros here, to "overwrite anything that might be in the file already"
         // according to a code comment. However that creates a burst of up to 1GB of disk activity, which exhausts
         // the IOPS budget on cloud servers with network storage. That then causes the server to fall behind in
-        // processing incoming results.
+        // processing incoming results. Mapping the file does not touch any blocks until values are written to them.
         this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
-        randomAccessFile.setLength(outputFileSizeBytes); //TODO check if this should include header length
+        randomAccessFile.setLength(HEADER_LENGTH_BYTES + dataSizeBytes);
         LOG.info("Created temporary file to accumulate results from workers, size is {}.",
                 human(randomAccessFile.length(), "B"));
+
+        this.originsPerBuffer = Math.max(MAX_MAPPED_BUFFER_BYTES / Math.max(bytesPerOrigin, 1), 1);
+        final int nBuffers = (int) ((nOrigins + originsPerBuffer - 1) / originsPerBuffer);
+        this.mappedBuffers = new MappedByteBuffer[nBuffers];
+        FileChannel channel = randomAccessFile.getChannel();
+        for (int b = 0; b < nBuffers; b++) {
+            long firstOrigin = ((long) b) * originsPerBuffer;
+            long originsInBuffer = Math.min(originsPerBuffer, nOrigins - firstOrigin);
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    HEADER_LENGTH_BYTES + firstOrigin * bytesPerOrigin,
+                    originsInBuffer * bytesPerOrigin
+            );
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            mappedBuffers[b] = buffer;
+        }
     }
 
     /** Gzip the access grid and upload it to S3. */
     @Override
     protected synchronized void finish (String fileName) throws IOException {
-        super.finish(fileName);
-        randomAccessFile.close();
-    }
-
-    /**
-     * TODO is this inefficient? Would it be reasonable to just store the regional results in memory
-     *      in a byte buffer instead of writing mini byte buffers into files? We should also be able
-     *      to use a filechannel with native order.
-     */
-    private static byte[] intToLittleEndianByteArray (int i) {
-        final ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES);
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        byteBuffer.putInt(i);
-        return byteBuffer.array();
+        // Make sure all values written through the mapped buffers have reached the file before it is read back.
+        try {
+            releaseMappedBuffers(true);
+            super.finish(fileName);
+        } finally {
+            randomAccessFile.close();
+        }
     }
 
     /**
      * Write all channels at once to the proper subregion of the buffer for this origin. The origins we receive have 2d
      * coordinates. Flatten them to compute file offsets and for the origin checklist.
+     * This method is not synchronized: each origin owns a distinct slice of the mapped file and the absolute puts used
+     * here do not modify the state of the shared buffer, so any number of threads can write different origins at once.
+     * If the same origin is received twice at the same moment, both threads write identical values.
+     * @return false if this writer has already been finished or terminated, in which case nothing was written.
      */
-    synchronized void writeOneOrigin (int taskNumber, int[] values) throws IOException {
+    boolean writeOneOrigin (int taskNumber, int[] values) {
         if (values.length != channels) {
             throw new IllegalArgumentException("Number of channels to be written does not match this writer.");
         }
-        long offset = HEADER_LENGTH_BYTES + (taskNumber * channels * Integer.BYTES);
-        // RandomAccessFile is not threadsafe and multiple threads may call this, so synchronize.
-        // TODO why is the method also synchronized then?
-        synchronized (this) {
-            randomAccessFile.seek(offset);
+        bufferLock.readLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            MappedByteBuffer buffer = mappedBuffers[taskNumber / originsPerBuffer];
+            int index = (taskNumber % originsPerBuffer) * channels * Integer.BYTES;
             // FIXME should this be delta-coded? The Selecting grid reducer seems to expect it to be.
             int lastValue = 0;
             for (int value : values) {
                 int delta = value - lastValue;
-                randomAccessFile.write(intToLittleEndianByteArray(delta));
+                buffer.putInt(index, delta);
+                index += Integer.BYTES;
                 lastValue = value;
             }
+            return true;
+        } finally {
+            bufferLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the stored values for the given origins from a finished, uncompressed access grid with exactly the same
+     * header as this one, such as the results of an earlier regional analysis of the same origins and destinations.
+     * Values are copied as stored, so remain delta-coded. Like writeOneOrigin this is not synchronized: the given
+     * origins must not be written by another thread at the same time. Runs of consecutive origins are read in chunks.
+     * @return false if this writer has already been finished or terminated, in which case nothing was copied.
+     */
+    boolean copyOrigins (File sourceGrid, BitSet origins) throws IOException {
+        final int bytesPerOrigin = channels * Integer.BYTES;
+        bufferLock.readLock().lock();
+        try (RandomAccessFile source = new RandomAccessFile(sourceGrid, "r")) {
+            if (closed) {
+                return false;
+            }
+            FileChannel sourceChannel = source.getChannel();
+            if (sourceChannel.size() != randomAccessFile.getChannel().size()) {
+                throw new IllegalArgumentException("Access grid to copy from has a different size than this one.");
+            }
+            ByteBuffer sourceHeader = ByteBuffer.allocate((int) HEADER_LENGTH_BYTES);
+            ByteBuffer header = ByteBuffer.allocate((int) HEADER_LENGTH_BYTES);
+            readFully(sourceChannel, sourceHeader, 0);
+            readFully(randomAccessFile.getChannel(), header, 0);
+            sourceHeader.flip();
+            header.flip();
+            if (!sourceHeader.equals(header)) {
+                throw new IllegalArgumentException("Access grid to copy from has a different header than this one.");
+            }
+            final int originsPerChunk = Math.max(COPY_CHUNK_BYTES / bytesPerOrigin, 1);
+            ByteBuffer chunk = ByteBuffer.allocate(originsPerChunk * bytesPerOrigin).order(ByteOrder.LITTLE_ENDIAN);
+            for (int origin = origins.nextSetBit(0); origin >= 0; ) {
+                int end = origins.nextClearBit(origin);
+                int nOriginsInChunk = Math.min(end - origin, originsPerChunk);
+                chunk.clear();
+                chunk.limit(nOriginsInChunk * bytesPerOrigin);
+                readFully(sourceChannel, chunk, HEADER_LENGTH_BYTES + ((long) origin) * bytesPerOrigin);
+                chunk.flip();
+                for (int o = origin; o < origin + nOriginsInChunk; o++) {
+                    MappedByteBuffer buffer = mappedBuffers[o / originsPerBuffer];
+                    int index = (o % originsPerBuffer) * bytesPerOrigin;
+                    for (int c = 0; c < channels; c++) {
+                        buffer.putInt(index, chunk.getInt());
+                        index += Integer.BYTES;
+                    }
+                }
+                origin += nOriginsInChunk;
+                if (origin == end) {
+                    origin = origins.nextSetBit(end);
+                }
+            }
+            return true;
+        } finally {
+            bufferLock.readLock().unlock();
+        }
+    }
+
+    /** Fill the remaining space in the buffer from the channel, starting at the given position in the channel. */
+    private static void readFully (FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Access grid file ended unexpectedly.");
+            }
         }
     }
 
     @Override
     synchronized void terminate () throws IOException {
+        releaseMappedBuffers(false);
         bufferFile.delete();
         randomAccessFile.close();
     }
 
+    /**
+     * Stop accepting values, waiting for any that are being written, then unmap all the buffers. Each buffer may
+     * cover up to a gigabyte of the file, so they are released right away instead of whenever they are garbage
+     * collected. Nothing is done if the buffers were already released.
+     * @param force whether to first make sure all values written have reached the file.
+     */
+    private void releaseMappedBuffers (boolean force) {
+        bufferLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int b = 0; b < mappedBuffers.length; b++) {
+                if (force) {
+                    mappedBuffers[b].force();
+                }
+                unmap(mappedBuffers[b]);
+                mappedBuffers[b] = null;
+            }
+        } finally {
+            bufferLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Release the memory mapping behind a buffer immediately. Java 11 has no public API for this, so the JDK-internal
+     * Unsafe.invokeCleaner is called reflectively. If that is not possible, the mapping is left for the garbage
+     * collector to release. The buffer must never be accessed again, as doing so could crash the JVM.
+     */
+    private static void unmap (MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            LOG.warn("Could not unmap result buffer, it will be released when garbage collected: {}", e.toString());
+        }
+    }
+
 }
@@ -5,6 +5,8 @@ import com.conveyal.analysis.components.broker.Job;
 import com.conveyal.analysis.models.RegionalAnalysis;
 import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageFormat;
+import com.conveyal.file.FileStorageKey;
+import com.conveyal.file.FileUtils;
 import com.conveyal.r5.analyst.PointSet;
 import com.conveyal.r5.analyst.PointSetCache;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
@@ -13,7 +15,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.BitSet;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This assembles regional results arriving from workers into one or more files per regional analysis on
@@ -64,7 +68,26 @@ public class MultiOriginAssembler {
 
     private boolean writeAccessibilityCsv = false;
 
-    private boolean error = false;
+    private volatile boolean error = false;
+
+    /**
+     * Set while holding the lock on this assembler once the results have been finished or terminated. Any results
+     * arriving after that, such as duplicates from redelivered tasks, are dropped.
+     */
+    private boolean closed = false;
+
+    private final String outputBucket;
+
+    private final FileStorage fileStorage;
+
+    /**
+     * For an incremental analysis, uncompressed local copies of the base analysis grids for each destination pointset
+     * and percentile, from which the values for unaffected origins are copied. Fetched when first needed, while
+     * holding baseGridLock.
+     */
+    private File[][] baseGridFiles;
+
+    private final Object baseGridLock = new Object();
 
     /**
      * The number of distinct origin points for which we've received at least one result. If for
@@ -120,6 +143,8 @@ public class MultiOriginAssembler {
 
         this.regionalAnalysis = regionalAnalysis;
         this.job = job;
+        this.outputBucket = outputBucket;
+        this.fileStorage = fileStorage;
         this.nPercentiles = job.templateTask.percentiles.length;
         // Newly launched analyses have the cutoffs field, even when being sent to old workers that don't read it.
         this.nCutoffs = job.templateTask.cutoffsMinutes.length;
@@ -181,18 +206,16 @@ public class MultiOriginAssembler {
      */
     private synchronized void finish() {
         LOG.info("Finished receiving data for multi-origin analysis {}", job.jobId);
+        closed = true;
         try {
             if (writeAccessibilityGrid) {
                 for (int d = 0; d < nDestinationPointSets; d++) {
                     for (int p = 0; p < nPercentiles; p++) {
-                        int percentile = job.templateTask.percentiles[p];
-                        String destinationPointSetId = regionalAnalysis.destinationPointSetIds[d];
-                        String gridFileName =
-                                String.format("%s_%s_P%d.access", job.jobId, destinationPointSetId, percentile);
-                        accessibilityGridWriters[d][p].finish(gridFileName);
+                        accessibilityGridWriters[d][p].finish(gridFileName(job.jobId, d, p));
                     }
                 }
             }
+            deleteBaseGridFiles();
             if (writeAccessibilityCsv) {
                 accessibilityCsvWriter.finish(String.format("%s_access.csv.gz",job.jobId));
             }
@@ -204,67 +227,134 @@ public class MultiOriginAssembler {
         }
     }
 
+    /** The name of the stored accessibility grid for the given destination pointset and percentile of a job. */
+    private String gridFileName (String jobId, int destinationIndex, int percentileIndex) {
+        int percentile = job.templateTask.percentiles[percentileIndex];
+        String destinationPointSetId = regionalAnalysis.destinationPointSetIds[destinationIndex];
+        return String.format("%s_%s_P%d.access", jobId, destinationPointSetId, percentile);
+    }
+
     /**
-     * There is a bit of logic in this method that wouldn't strictly need to be synchronized (the
-     * dimension checks) but those should take a trivial amount of time. For safety and simplicity
-     * we will synchronize the whole method. The downside is that this prevents one thread from
-     * writing accessibility while another was writing travel time CSV, but this should not be
-     * assumed to have any impact on performance unless measured. The writeOneValue methods are also
-     * synchronized for good measure. There should be no cost to retaining the lock.
+     * For an incremental analysis, fill in the results for origins that cannot differ from those of the base analysis
+     * by copying them from its stored grids. Origins that have already been received are skipped.
+     * @param taskRanges packed pairs of (first task ID, last task ID + 1) for the origins to copy.
+     * @return the origins newly filled in, which should be marked completed in the job.
+     * @throws Exception if the base analysis results could not be fetched or copied. The origins that were to be
+     *         copied are then not counted as received, so they must be computed instead.
      */
-    public synchronized void handleMessage (RegionalWorkResult workResult) {
+    public BitSet copyOriginsFromBase (int[] taskRanges) throws Exception {
+        if (!writeAccessibilityGrid || regionalAnalysis.baseRegionalAnalysisId == null) {
+            throw new IllegalStateException("Job " + job.jobId + " is not an incremental accessibility grid analysis.");
+        }
+        BitSet origins = new BitSet();
+        for (int i = 0; i + 1 < taskRanges.length; i += 2) {
+            if (taskRanges[i] < 0 || taskRanges[i] > taskRanges[i + 1] || taskRanges[i + 1] > nOriginsTotal) {
+                throw new IllegalArgumentException("Invalid range of unaffected origins.");
+            }
+            origins.set(taskRanges[i], taskRanges[i + 1]);
+        }
+        synchronized (this) {
+            if (closed) return new BitSet();
+            origins.andNot(originsReceived);
+        }
+        if (origins.isEmpty()) return origins;
+        // Fetching the base grids is done without holding the lock on this assembler, so other results for this job
+        // can still be written while they are downloaded.
+        File[][] baseGrids = getBaseGridFiles();
+        for (int d = 0; d < nDestinationPointSets; d++) {
+            for (int p = 0; p < nPercentiles; p++) {
+                if (!accessibilityGridWriters[d][p].copyOrigins(baseGrids[d][p], origins)) {
+                    // The results were finished or terminated while copying, so these origins are not needed.
+                    return new BitSet();
+                }
+            }
+        }
+        synchronized (this) {
+            if (closed) return new BitSet();
+            // Another copy of some of these ranges may have been received while this one was being copied.
+            origins.andNot(originsReceived);
+            originsReceived.or(origins);
+            nComplete += origins.cardinality();
+            if (nComplete == nOriginsTotal && !error) {
+                finish();
+            }
+        }
+        return origins;
+    }
+
+    /**
+     * Fetch and decompress the base analysis grids, unless that has already been done. This holds only the lock
+     * dedicated to the base grids, so threads copying origins wait for one another but not for other results.
+     */
+    private File[][] getBaseGridFiles () throws IOException {
+        synchronized (baseGridLock) {
+            if (baseGridFiles == null) {
+                File[][] files = new File[nDestinationPointSets][nPercentiles];
+                for (int d = 0; d < nDestinationPointSets; d++) {
+                    for (int p = 0; p < nPercentiles; p++) {
+                        String fileName = gridFileName(regionalAnalysis.baseRegionalAnalysisId, d, p);
+                        File compressed = fileStorage.getFile(new FileStorageKey(outputBucket, fileName));
+                        try (InputStream uncompressed = new GZIPInputStream(FileUtils.getInputStream(compressed))) {
+                            files[d][p] = FileUtils.createScratchFile(uncompressed);
+                        }
+                    }
+                }
+                LOG.info("Fetched base analysis {} to copy unaffected origins into job {}.",
+                        regionalAnalysis.baseRegionalAnalysisId, job.jobId);
+                baseGridFiles = files;
+            }
+            return baseGridFiles;
+        }
+    }
+
+    private void deleteBaseGridFiles () {
+        synchronized (baseGridLock) {
+            if (baseGridFiles != null) {
+                for (File[] files : baseGridFiles) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                baseGridFiles = null;
+            }
+        }
+    }
+
+    /**
+     * Results for many origins may arrive at once from different workers. Accessibility grid values for distinct
+     * origins are written to distinct parts of memory-mapped files, so they are written without holding any lock on
+     * this assembler. CSV writing and tracking which origins have been received still require synchronization, so
+     * that part of the method is synchronized. Because the grid values for each origin are written before that origin
+     * is marked as received, they are always complete by the time the last origin is counted and the files finished.
+     * Results arriving after the files have been finished or terminated are dropped.
+     */
+    public void handleMessage (RegionalWorkResult workResult) {
         try {
-            if (writeAccessibilityGrid || writeAccessibilityCsv) {
+            if (writeAccessibilityGrid) {
                 // Sanity check the shape of the work result we received against expectations.
                 checkAccessibilityDimension(workResult);
                 // Infer x and y cell indexes based on the template task
                 int taskNumber = workResult.taskId;
-                // Drop work results for this particular origin into a little-endian output file.
-                // TODO more efficient way to write little-endian integers
+                // Drop work results for this particular origin into little-endian output files.
                 // TODO check monotonic increasing invariants here rather than in worker.
                 for (int d = 0; d < workResult.accessibilityValues.length; d++) {
                     int[][] percentilesForGrid = workResult.accessibilityValues[d];
-                    if (writeAccessibilityCsv) {
-                        String originId = originPointSet.getId(workResult.taskId);
-                        // FIXME this is writing only accessibility for the first percentile and cutoff
-                        accessibilityCsvWriter.writeOneValue(originId, "", percentilesForGrid[0][0]);
-                    }
-                    if (writeAccessibilityGrid) {
-                        for (int p = 0; p < nPercentiles; p++) {
-                            int[] cutoffsForPercentile = percentilesForGrid[p];
-                            GridResultWriter writer = accessibilityGridWriters[d][p];
-                            writer.writeOneOrigin(taskNumber, cutoffsForPercentile);
+                    for (int p = 0; p < nPercentiles; p++) {
+                        int[] cutoffsForPercentile = percentilesForGrid[p];
+                        GridResultWriter writer = accessibilityGridWriters[d][p];
+                        if (!writer.writeOneOrigin(taskNumber, cutoffsForPercentile)) {
+                            LOG.warn("Dropping late result for task {} of finished job {}.", taskNumber, job.jobId);
+                            return;
                         }
                     }
                 }
             }
-
-            if (writeTimeCsv) {
-                // Sanity check the shape of the work result we received against expectations.
-                checkTravelTimeDimension(workResult);
-                String originId = originPointSet.getId(workResult.taskId);
-                boolean oneToOne = job.templateTask.oneToOne;
-                for (int p = 0; p < nPercentiles; p++) {
-                    int[] percentileResult = workResult.travelTimeValues[p];
-                    for (int d = 0; d < percentileResult.length; d++) {
-                        int travelTime = percentileResult[d];
-                        // oneToOne results will perform only one iteration of this loop
-                        // Always writing both origin and destination ID we should alert the user if something is amiss.
-                        int destinationIndex = oneToOne ? workResult.taskId : d;
-                        String destinationId = destinationPointSet.getId(destinationIndex);
-                        timeCsvWriter.writeOneValue(originId, destinationId, travelTime);
-                    }
+            synchronized (this) {
+                if (closed) {
+                    LOG.warn("Dropping late result for task {} of finished job {}.", workResult.taskId, job.jobId);
+                    return;
                 }
-            }
-
-            // Don't double-count origins if we receive them more than once. Atomic get-and-increment requires
-            // synchronization, currently achieved by synchronizing this entire method.
-            if (!originsReceived.get(workResult.taskId)) {
-                originsReceived.set(workResult.taskId);
-                nComplete += 1;
-            }
-            if (nComplete == nOriginsTotal && !error) {
-                finish();
+                handleMessageSynchronized(workResult);
             }
         } catch (Exception e) {
             error = true;
@@ -272,6 +362,52 @@ public class MultiOriginAssembler {
         }
     }
 
+    /**
+     * The part of handleMessage that must be performed while holding the lock on this assembler: writing CSV rows and
+     * counting completed origins. There is a bit of logic in this method that wouldn't strictly need to be
+     * synchronized (the dimension checks) but those should take a trivial amount of time.
+     */
+    private void handleMessageSynchronized (RegionalWorkResult workResult) throws Exception {
+        if (writeAccessibilityCsv) {
+            // Sanity check the shape of the work result we received against expectations.
+            checkAccessibilityDimension(workResult);
+            for (int d = 0; d < workResult.accessibilityValues.length; d++) {
+                int[][] percentilesForGrid = workResult.accessibilityValues[d];
+                String originId = originPointSet.getId(workResult.taskId);
+                // FIXME this is writing only accessibility for the first percentile and cutoff
+                accessibilityCsvWriter.writeOneValue(originId, "", percentilesForGrid[0][0]);
+            }
+        }
+
+        if (writeTimeCsv) {
+            // Sanity check the shape of the work result we received against expectations.
+            checkTravelTimeDimension(workResult);
+            String originId = originPointSet.getId(workResult.taskId);
+            boolean oneToOne = job.templateTask.oneToOne;
+            for (int p = 0; p < nPercentiles; p++) {
+                int[] percentileResult = workResult.travelTimeValues[p];
+                for (int d = 0; d < percentileResult.length; d++) {
+                    int travelTime = percentileResult[d];
+                    // oneToOne results will perform only one iteration of this loop
+                    // Always writing both origin and destination ID we should alert the user if something is amiss.
+                    int destinationIndex = oneToOne ? workResult.taskId : d;
+                    String destinationId = destinationPointSet.getId(destinationIndex);
+                    timeCsvWriter.writeOneValue(originId, destinationId, travelTime);
+                }
+            }
+        }
+
+        // Don't double-count origins if we receive them more than once. Atomic get-and-increment requires
+        // synchronization, currently achieved by calling this method only while holding the lock.
+        if (!originsReceived.get(workResult.taskId)) {
+            originsReceived.set(workResult.taskId);
+            nComplete += 1;
+        }
+        if (nComplete == nOriginsTotal && !error) {
+            finish();
+        }
+    }
+
     /**
      * Check that each dimension of the 3D results array matches the expected size for the job being processed.
      * There are different dimension requirements for accessibility and travel time results, so two different methods.
@@ -302,6 +438,8 @@ public class MultiOriginAssembler {
 
     /** Clean up and cancel this grid assembler, typically when a job is canceled while still being processed. */
     public synchronized void terminate () throws IOException {
+        closed = true;
+        deleteBaseGridFiles();
         if (writeAccessibilityGrid) {
             for (GridResultWriter[] writers : accessibilityGridWriters) {
                 for (GridResultWriter writer : writers) {
@@ -2,20 +2,16 @@ package com.conveyal.analysis.results;
 
 import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageKey;
-import com.conveyal.file.FileUtils;
-import com.google.common.io.ByteStreams;
+import com.conveyal.file.ParallelGzipOutputStream;
+import com.conveyal.file.StorageOutputStream;
+import com.google.common.io.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.file.Files;
 
 import static com.conveyal.r5.common.Util.human;
 
@@ -52,29 +48,39 @@ public abstract class ResultWriter {
     }
 
     /**
-     * Gzip the access grid and store it.
+     * Gzip the access grid and store it, deleting the local buffer file only once it has been stored successfully.
+     * The compressed output is streamed straight into the FileStorage rather than
+     * into a second scratch file, and is compressed in parallel blocks to avoid waiting on a single deflater thread.
      */
     protected synchronized void finish (String fileName) throws IOException {
         LOG.info("Compressing {} and uploading to S3", fileName);
         FileStorageKey fileStorageKey = new FileStorageKey(outputBucket, fileName);
-        File gzippedGridFile = FileUtils.createScratchFile();
 
-        // There's probably a more elegant way to do this with NIO and without closing the buffer.
-        // That would be Files.copy(File.toPath(),X) or ByteStreams.copy.
-        InputStream is = new BufferedInputStream(new FileInputStream(bufferFile));
-        OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzippedGridFile)));
-        ByteStreams.copy(is, os);
-        is.close();
-        os.close();
+        // The storage stream is closed (making the stored file visible) only if everything was successfully written.
+        // On any failure it is aborted before the compressing stream is closed, so closing cannot store a partial
+        // file, and aborting again after a failed close releases the temporary file if closing did not get that far.
+        StorageOutputStream storageStream = fileStorage.getOutputStream(fileStorageKey);
+        CountingOutputStream compressedBytes = new CountingOutputStream(storageStream);
+        try (OutputStream os = new ParallelGzipOutputStream(compressedBytes)) {
+            try {
+                Files.copy(bufferFile.toPath(), os);
+            } catch (Exception e) {
+                storageStream.abort();
+                throw e;
+            }
+        } catch (Exception e) {
+            // The uncompressed buffer file is kept, as it may be the only copy of the results. It remains available
+            // as partial results and is deleted when the writer is terminated.
+            storageStream.abort();
+            throw e;
+        }
 
         LOG.info("GZIP compression reduced analysis results {} from {} to {} ({}x compression)",
                 fileName,
                 human(bufferFile.length(), "B"),
-                human(gzippedGridFile.length(), "B"),
-                (double) bufferFile.length() / gzippedGridFile.length()
+                human(compressedBytes.getCount(), "B"),
+                (double) bufferFile.length() / compressedBytes.getCount()
         );
-
-        fileStorage.moveIntoStorage(fileStorageKey, gzippedGridFile);
         bufferFile.delete();
     }
 
@@ -31,6 +31,14 @@ public interface FileStorage {
      */
     void moveIntoStorage(FileStorageKey fileStorageKey, File file);
 
+    /**
+     * Open a stream that writes a new permanent, immutable file directly into storage, for files produced by the
+     * backend that would otherwise be written into a temporary file and then passed to moveIntoStorage. The file only
+     * becomes visible to other components under the given key once the stream is successfully closed. If writing
+     * fails, the stream should be aborted instead of closed, so that a partial file is never stored.
+     */
+    StorageOutputStream getOutputStream(FileStorageKey fileStorageKey);
+
     /**
      * This should be treated as immutable - never write to a file returned from this method.
      * That could be enforced by making our own class with no write methods, that only allows reading the file.
@@ -54,6 +54,14 @@ public class LocalFileStorage implements FileStorage {
         }
     }
 
+    /**
+     * Write directly into a temporary file beside the final location, which is moved into place when the stream is
+     * closed.
+     */
+    public StorageOutputStream getOutputStream (FileStorageKey key) {
+        return new StorageOutputStream(key, getFile(key), this::moveIntoStorage);
+    }
+
     public File getFile(FileStorageKey key) {
         return new File(String.join("/", directory, key.bucket, key.path));
     }
@@ -0,0 +1,141 @@
+package com.conveyal.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An OutputStream that gzips everything written to it using several threads, for compressing large files without
+ * waiting on a single deflater. The input is cut into fixed-size blocks and each block is compressed independently in
+ * the common ForkJoinPool as a complete gzip member. The members are written to the underlying stream in their
+ * original order. A sequence of concatenated gzip members is itself a valid gzip file (RFC 1952 section 2.2), which is
+ * decompressed by GZIPInputStream and command line tools into the original bytes.
+ *
+ * Compressing blocks independently loses a little compression at each block boundary, which is negligible for blocks
+ * of a megabyte or more. The number of blocks in flight is limited, so memory use is bounded regardless of the total
+ * amount of data written.
+ *
+ * Like other OutputStreams this is not threadsafe: it should be written to by only one thread.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /** The number of uncompressed bytes in each independently compressed gzip member. */
+    public static final int DEFAULT_BLOCK_SIZE_BYTES = 1024 * 1024;
+
+    private final OutputStream out;
+
+    private final int maxBlocksInFlight;
+
+    /** Compressed blocks that have been submitted for compression but not yet written out, in order. */
+    private final Queue<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+
+    private byte[] block;
+
+    private int blockLength = 0;
+
+    private boolean anyBlockWritten = false;
+
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream (OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE_BYTES);
+    }
+
+    public ParallelGzipOutputStream (OutputStream out, int blockSizeBytes) {
+        this.out = out;
+        this.block = new byte[blockSizeBytes];
+        this.maxBlocksInFlight = ForkJoinPool.commonPool().getParallelism() * 2;
+    }
+
+    @Override
+    public void write (int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == block.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write (byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, block.length - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            length -= n;
+            if (blockLength == block.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Hand the current block off for compression and start a new one. If too many blocks are already in flight, first
+     * wait for the oldest one to be compressed and write it out.
+     */
+    private void submitBlock () throws IOException {
+        final byte[] uncompressed = block;
+        final int length = blockLength;
+        blocksInFlight.add(ForkJoinPool.commonPool().submit(() -> compress(uncompressed, length)));
+        anyBlockWritten = true;
+        block = new byte[uncompressed.length];
+        blockLength = 0;
+        while (blocksInFlight.size() >= maxBlocksInFlight) {
+            writeOldestBlock();
+        }
+    }
+
+    private void writeOldestBlock () throws IOException {
+        try {
+            out.write(blocksInFlight.remove().get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to compress block.", e);
+        }
+    }
+
+    /** Compress the given bytes into a complete gzip member, with its own header and trailer. */
+    private static byte[] compress (byte[] bytes, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+            gzipOutputStream.write(bytes, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Flushing only forces out blocks that have already been handed off for compression, because compressing a
+     * partial block would add a gzip member boundary.
+     */
+    @Override
+    public void flush () throws IOException {
+        while (!blocksInFlight.isEmpty()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compress and write out any remaining data, then close the underlying stream. An empty input still produces one
+     * (empty) gzip member, so the output is always a valid gzip file. If compression fails the underlying stream is
+     * deliberately left open: closing a stream that writes into FileStorage would publish the truncated output.
+     */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (blockLength > 0 || !anyBlockWritten) {
+            submitBlock();
+        }
+        flush();
+        out.close();
+    }
+
+}
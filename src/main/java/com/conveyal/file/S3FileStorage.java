@@ -49,6 +49,14 @@ public class S3FileStorage implements FileStorage {
         localFileStorage.moveIntoStorage(key, file);
     }
 
+    /**
+     * Write directly into the local cache, then upload the completed file to S3 when the stream is closed. This keeps
+     * the local copy that moveIntoStorage would also have made, without first writing the file somewhere else.
+     */
+    public StorageOutputStream getOutputStream (FileStorageKey key) {
+        return new StorageOutputStream(key, localFileStorage.getFile(key), this::moveIntoStorage);
+    }
+
     public File getFile(FileStorageKey key) {
         File localFile = localFileStorage.getFile(key);
         // A File object can represent a filesystem path for a file that doesn't exist yet, in which case we create it.
@@ -0,0 +1,92 @@
+package com.conveyal.file;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * An OutputStream used by FileStorage implementations to write a file directly into storage. Bytes are written into
+ * a temporary file beside the final location (so it is on the same filesystem and can be renamed into place). The
+ * file is only handed to the storage, and becomes visible under its key, when this stream is closed. Any other
+ * component will therefore see either the complete file or no file at all. If writing fails, the stream should be
+ * aborted rather than closed, which releases the temporary file without storing it.
+ */
+public class StorageOutputStream extends FilterOutputStream {
+
+    private final FileStorageKey key;
+
+    private final File partialFile;
+
+    private final BiConsumer<FileStorageKey, File> moveIntoStorage;
+
+    private boolean closed = false;
+
+    /**
+     * @param finalFile the location the file will eventually occupy in local storage.
+     * @param moveIntoStorage called once the stream is closed, to make the completed temporary file permanent.
+     */
+    StorageOutputStream (FileStorageKey key, File finalFile, BiConsumer<FileStorageKey, File> moveIntoStorage) {
+        super(null);
+        this.key = key;
+        this.moveIntoStorage = moveIntoStorage;
+        finalFile.getParentFile().mkdirs();
+        this.partialFile = new File(finalFile.getParentFile(), finalFile.getName() + ".partial");
+        this.partialFile.deleteOnExit();
+        try {
+            this.out = new BufferedOutputStream(new FileOutputStream(partialFile));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Override FilterOutputStream's default implementation, which writes one byte at a time. */
+    @Override
+    public void write (byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream into storage has already been closed or aborted.");
+        }
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Close the temporary file and hand it to the storage. If that fails, the temporary file is deleted rather than
+     * left beside the final location.
+     */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+            moveIntoStorage.accept(key, partialFile);
+        } finally {
+            // Once the file has been moved into storage, there is nothing left here to delete.
+            partialFile.delete();
+        }
+    }
+
+    /**
+     * Discard everything written so far without storing it, closing and deleting the temporary file. Later calls to
+     * close() or abort() have no effect, so this can safely be called on any failure, whether or not the stream was
+     * already closed.
+     */
+    public void abort () {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The file is deleted regardless, and the failure that led to aborting is more informative than this one.
+        }
+        partialFile.delete();
+    }
+
+}
@@ -0,0 +1,391 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.scenario.AddStreets;
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.AdjustDwellTime;
+import com.conveyal.r5.analyst.scenario.AdjustFrequency;
+import com.conveyal.r5.analyst.scenario.AdjustSpeed;
+import com.conveyal.r5.analyst.scenario.Modification;
+import com.conveyal.r5.analyst.scenario.ModifyStreets;
+import com.conveyal.r5.analyst.scenario.RemoveStops;
+import com.conveyal.r5.analyst.scenario.RemoveTrips;
+import com.conveyal.r5.analyst.scenario.Reroute;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.transit.TransferTable;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import com.google.common.collect.ImmutableSet;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static com.conveyal.r5.common.SphericalDistanceLibrary.fastDistance;
+import static com.conveyal.r5.common.SphericalDistanceLibrary.metersToDegreesLatitude;
+import static com.conveyal.r5.common.SphericalDistanceLibrary.metersToDegreesLongitude;
+
+/**
+ * Finds the origins of a gridded regional analysis whose results could differ between two scenarios applied to the
+ * same base network, allowing an incremental analysis to compute only those origins and copy the rest from an earlier
+ * analysis of the other scenario.
+ *
+ * Everything a scenario changes is reduced to a set of affected base network stops (those served by any trip pattern
+ * that was added, changed or removed) and a set of small envelopes (around added or removed street edges, and around
+ * stops that exist only in the scenario). An origin can only be affected if some path from it reaches one of these
+ * within the travel time limit. A reverse search over the base network's transit patterns and transfers finds a lower
+ * bound on the time from each stop to the nearest affected element, using the shortest ride between each pair of
+ * consecutive stops and ignoring all waiting. Any origin close enough to an affected envelope, or to a stop whose
+ * lower bound leaves time to spare, at the fastest street speed allowed by the task, is considered affected.
+ *
+ * The result is conservative: every origin that is not marked affected has exactly the same set of possible paths
+ * under both scenarios. Its travel times can still differ slightly between two runs when it can reach frequency-based
+ * routes, because the randomized schedules drawn for those routes depend on the network as a whole.
+ */
+public class AffectedOriginFinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AffectedOriginFinder.class);
+
+    /**
+     * Modification types whose every effect is visible as added, removed or replaced trip patterns or street edges.
+     * Scenarios containing any other type of modification cannot be analyzed incrementally.
+     */
+    private static final Set<Class<? extends Modification>> SUPPORTED_MODIFICATION_TYPES = ImmutableSet.of(
+            AddStreets.class, AddTrips.class, AdjustDwellTime.class, AdjustFrequency.class, AdjustSpeed.class,
+            ModifyStreets.class, RemoveStops.class, RemoveTrips.class, Reroute.class
+    );
+
+    /** An upper bound on the speed of a car on any street, in meters per second (144 km/h). */
+    private static final double MAX_CAR_SPEED_METERS_PER_SECOND = 40;
+
+    /** Added to every search radius to cover the error of the fast distance approximation. */
+    private static final double MARGIN_METERS = 100;
+
+    private final RegionalTask task;
+
+    private final TransportNetwork baseNetwork;
+
+    private final int maxTripDurationSeconds;
+
+    /** The fastest speed at which any street mode allowed by the task can travel. */
+    private final double maxStreetSpeedMetersPerSecond;
+
+    /** Base network stops that are served differently in at least one of the scenarios. */
+    private final BitSet affectedStops = new BitSet();
+
+    /** Envelopes in floating point degrees around changed street edges and stops that exist only in a scenario. */
+    private final List<Envelope> affectedEnvelopes = new ArrayList<>();
+
+    private AffectedOriginFinder (RegionalTask task, TransportNetwork baseNetwork) {
+        this.task = task;
+        this.baseNetwork = baseNetwork;
+        this.maxTripDurationSeconds = task.maxTripDurationMinutes * 60;
+        double maxSpeed = 0;
+        for (StreetMode mode : LegMode.toStreetModeSet(task.accessModes, task.egressModes, task.directModes)) {
+            double speed = (mode == StreetMode.CAR) ? MAX_CAR_SPEED_METERS_PER_SECOND : task.getSpeedForMode(mode);
+            maxSpeed = Math.max(maxSpeed, speed);
+        }
+        // Transfers between stops are always walked.
+        this.maxStreetSpeedMetersPerSecond = Math.max(maxSpeed, task.walkSpeed);
+    }
+
+    /**
+     * @return whether every modification in the scenario is of a type whose effects this class can find.
+     */
+    public static boolean canFindAffectedOrigins (Scenario scenario) {
+        return scenario.modifications.stream().allMatch(m -> SUPPORTED_MODIFICATION_TYPES.contains(m.getClass()));
+    }
+
+    /**
+     * Find the origins of a gridded regional task whose results could differ between any of the given scenario
+     * networks, all of which must have been made by applying a scenario to the given base network.
+     * @return a BitSet with one bit set for each potentially affected task ID.
+     */
+    public static BitSet findAffectedOrigins (RegionalTask task, TransportNetwork baseNetwork,
+                                              TransportNetwork... scenarioNetworks) {
+        if (task.originPointSetKey != null) {
+            throw new IllegalArgumentException("Affected origins can only be found for gridded origins.");
+        }
+        AffectedOriginFinder finder = new AffectedOriginFinder(task, baseNetwork);
+        for (TransportNetwork scenarioNetwork : scenarioNetworks) {
+            finder.addChangedElements(scenarioNetwork);
+        }
+        BitSet affectedOrigins = finder.markAffectedOrigins();
+        LOG.info("{} stops and {} street envelopes affected by scenarios, {} of {} origins may have changed.",
+                finder.affectedStops.cardinality(), finder.affectedEnvelopes.size(),
+                affectedOrigins.cardinality(), task.width * task.height);
+        return affectedOrigins;
+    }
+
+    /** Record the stops and street edges the given scenario network changed relative to the base network. */
+    private void addChangedElements (TransportNetwork scenarioNetwork) {
+        TransitLayer baseTransit = baseNetwork.transitLayer;
+        TransitLayer scenarioTransit = scenarioNetwork.transitLayer;
+        // Patterns not touched by any modification are shared between the base and scenario networks.
+        Set<TripPattern> basePatterns = Collections.newSetFromMap(new IdentityHashMap<>());
+        basePatterns.addAll(baseTransit.tripPatterns);
+        Set<TripPattern> scenarioPatterns = Collections.newSetFromMap(new IdentityHashMap<>());
+        scenarioPatterns.addAll(scenarioTransit.tripPatterns);
+        for (TripPattern pattern : baseTransit.tripPatterns) {
+            if (!scenarioPatterns.contains(pattern)) {
+                addAffectedStops(pattern, scenarioNetwork);
+            }
+        }
+        for (TripPattern pattern : scenarioTransit.tripPatterns) {
+            if (!basePatterns.contains(pattern)) {
+                addAffectedStops(pattern, scenarioNetwork);
+            }
+        }
+        StreetLayer scenarioStreets = scenarioNetwork.streetLayer;
+        if (scenarioStreets != baseNetwork.streetLayer) {
+            EdgeStore.Edge edge = scenarioStreets.edgeStore.getCursor();
+            scenarioStreets.edgeStore.forEachTemporarilyAddedOrDeletedEdge(e -> {
+                edge.seek(e);
+                affectedEnvelopes.add(fixedToFloating(edge.getEnvelope()));
+            });
+        }
+    }
+
+    /** Record all the stops of a pattern that was added, changed or removed by a scenario. */
+    private void addAffectedStops (TripPattern pattern, TransportNetwork scenarioNetwork) {
+        int nBaseStops = baseNetwork.transitLayer.getStopCount();
+        for (int stop : pattern.stops) {
+            if (stop < nBaseStops) {
+                affectedStops.set(stop);
+            } else {
+                // This stop was created by the scenario and is not part of the base network's transit graph.
+                Coordinate coordinate = scenarioNetwork.transitLayer.getCoordinateForStopFixed(stop);
+                if (coordinate != null) {
+                    affectedEnvelopes.add(fixedToFloating(new Envelope(coordinate)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find a lower bound on the time needed to reach an affected element from every base network stop, then mark every
+     * origin within reach of an affected envelope or of a stop that leaves enough time to reach one.
+     */
+    private BitSet markAffectedOrigins () {
+        BitSet affectedOrigins = new BitSet(task.width * task.height);
+        int[] lowerBoundSeconds = findLowerBoundSeconds();
+        for (int stop = 0; stop < lowerBoundSeconds.length; stop++) {
+            if (lowerBoundSeconds[stop] < maxTripDurationSeconds) {
+                Coordinate coordinate = baseNetwork.transitLayer.getCoordinateForStopFixed(stop);
+                if (coordinate == null) continue;
+                double remainingSeconds = maxTripDurationSeconds - lowerBoundSeconds[stop];
+                double radiusMeters = remainingSeconds * maxStreetSpeedMetersPerSecond;
+                markOriginsNear(fixedToFloating(new Envelope(coordinate)), radiusMeters, affectedOrigins);
+            }
+        }
+        for (Envelope envelope : affectedEnvelopes) {
+            markOriginsNear(envelope, maxTripDurationSeconds * maxStreetSpeedMetersPerSecond, affectedOrigins);
+        }
+        return affectedOrigins;
+    }
+
+    /**
+     * Search backward from the affected stops and envelopes over the base network's transit patterns and transfers.
+     * @return for each base network stop, a lower bound on the seconds needed to reach any affected element from that
+     *         stop, or Integer.MAX_VALUE if none can be reached within the travel time limit.
+     */
+    private int[] findLowerBoundSeconds () {
+        TransitLayer transitLayer = baseNetwork.transitLayer;
+        int nStops = transitLayer.getStopCount();
+        int[] lowerBoundSeconds = new int[nStops];
+        Arrays.fill(lowerBoundSeconds, Integer.MAX_VALUE);
+        // Entries are encoded as (seconds << 32 | stop) so that ordering the longs orders the stops by time.
+        PriorityQueue<Long> queue = new PriorityQueue<>();
+
+        // Seed the search with the affected stops, and with the time to travel in a straight line at top speed from
+        // each stop to the nearest affected envelope.
+        STRtree envelopeIndex = new STRtree();
+        for (Envelope envelope : affectedEnvelopes) {
+            envelopeIndex.insert(envelope, envelope);
+        }
+        double maxRadiusMeters = maxTripDurationSeconds * maxStreetSpeedMetersPerSecond + MARGIN_METERS;
+        for (int stop = 0; stop < nStops; stop++) {
+            if (affectedStops.get(stop)) {
+                lowerBoundSeconds[stop] = 0;
+            } else if (!affectedEnvelopes.isEmpty()) {
+                Coordinate coordinate = transitLayer.getCoordinateForStopFixed(stop);
+                if (coordinate == null) continue;
+                double lat = VertexStore.fixedDegreesToFloating(coordinate.y);
+                double lon = VertexStore.fixedDegreesToFloating(coordinate.x);
+                Envelope searchEnvelope = new Envelope(lon, lon, lat, lat);
+                searchEnvelope.expandBy(metersToDegreesLongitude(maxRadiusMeters, lat),
+                        metersToDegreesLatitude(maxRadiusMeters));
+                double minDistanceMeters = Double.POSITIVE_INFINITY;
+                for (Object candidate : envelopeIndex.query(searchEnvelope)) {
+                    minDistanceMeters = Math.min(minDistanceMeters, distanceMeters(lat, lon, (Envelope) candidate));
+                }
+                double seconds = Math.max(minDistanceMeters - MARGIN_METERS, 0) / maxStreetSpeedMetersPerSecond;
+                if (seconds < maxTripDurationSeconds) {
+                    lowerBoundSeconds[stop] = (int) seconds;
+                }
+            }
+            if (lowerBoundSeconds[stop] < maxTripDurationSeconds) {
+                queue.add(((long) lowerBoundSeconds[stop] << 32) | stop);
+            }
+        }
+        if (queue.isEmpty()) {
+            return lowerBoundSeconds;
+        }
+
+        // The shortest ride over each segment of each pattern, and the transfers leading into each stop.
+        int[][] minSegmentSeconds = new int[transitLayer.tripPatterns.size()][];
+        for (int p = 0; p < minSegmentSeconds.length; p++) {
+            minSegmentSeconds[p] = findMinSegmentSeconds(transitLayer.tripPatterns.get(p));
+        }
+        TransferTable reverseTransfers = reverseTransfers(transitLayer.transfersForStop, nStops);
+        double walkSpeedMillimetersPerSecond = task.walkSpeed * 1000;
+
+        while (!queue.isEmpty()) {
+            long entry = queue.poll();
+            int stop = (int) entry;
+            int seconds = (int) (entry >>> 32);
+            if (seconds > lowerBoundSeconds[stop]) continue;
+            // Alighting at this stop, having boarded a pattern at the preceding stop.
+            for (int i = transitLayer.firstPatternForStop[stop]; i < transitLayer.firstPatternForStop[stop + 1]; i++) {
+                int p = transitLayer.patternsForStop[i];
+                int[] patternStops = transitLayer.tripPatterns.get(p).stops;
+                for (int s = 1; s < patternStops.length; s++) {
+                    if (patternStops[s] == stop) {
+                        long rideSeconds = minSegmentSeconds[p][s - 1];
+                        relax(patternStops[s - 1], seconds + rideSeconds, lowerBoundSeconds, queue);
+                    }
+                }
+            }
+            // Walking to this stop from another stop.
+            for (int t = 0; t < reverseTransfers.size(stop); t++) {
+                int distanceMillimeters = reverseTransfers.getDistanceMillimeters(stop, t);
+                int walkSeconds = (int) (distanceMillimeters / walkSpeedMillimetersPerSecond);
+                relax(reverseTransfers.getTargetStop(stop, t), seconds + walkSeconds, lowerBoundSeconds, queue);
+            }
+        }
+        return lowerBoundSeconds;
+    }
+
+    private void relax (int stop, long seconds, int[] lowerBoundSeconds, PriorityQueue<Long> queue) {
+        if (seconds < maxTripDurationSeconds && seconds < lowerBoundSeconds[stop]) {
+            lowerBoundSeconds[stop] = (int) seconds;
+            queue.add(((long) seconds << 32) | stop);
+        }
+    }
+
+    /** @return for each pair of consecutive stops on the pattern, the shortest time any trip takes between them. */
+    private static int[] findMinSegmentSeconds (TripPattern pattern) {
+        int[] minSegmentSeconds = new int[Math.max(pattern.stops.length - 1, 0)];
+        Arrays.fill(minSegmentSeconds, Integer.MAX_VALUE);
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            for (int s = 0; s < minSegmentSeconds.length; s++) {
+                int rideSeconds = Math.max(schedule.arrivals[s + 1] - schedule.departures[s], 0);
+                minSegmentSeconds[s] = Math.min(minSegmentSeconds[s], rideSeconds);
+            }
+        }
+        return minSegmentSeconds;
+    }
+
+    /** @return a table holding, for each stop, the transfers that lead into it from other stops. */
+    private static TransferTable reverseTransfers (TransferTable transfers, int nStops) {
+        int[] nTransfersInto = new int[nStops];
+        for (int stop = 0; stop < nStops; stop++) {
+            for (int t = 0; t < transfers.size(stop); t++) {
+                nTransfersInto[transfers.getTargetStop(stop, t)] += 1;
+            }
+        }
+        List<int[]> packedTransfersInto = new ArrayList<>(nStops);
+        for (int stop = 0; stop < nStops; stop++) {
+            packedTransfersInto.add(new int[nTransfersInto[stop] * 2]);
+        }
+        int[] nextSlot = new int[nStops];
+        for (int stop = 0; stop < nStops; stop++) {
+            for (int t = 0; t < transfers.size(stop); t++) {
+                int target = transfers.getTargetStop(stop, t);
+                int[] packed = packedTransfersInto.get(target);
+                packed[nextSlot[target]++] = stop;
+                packed[nextSlot[target]++] = transfers.getDistanceMillimeters(stop, t);
+            }
+        }
+        return TransferTable.fromPackedTransfers(packedTransfersInto);
+    }
+
+    /** Mark every origin in the task's grid whose center lies within the given distance of the envelope. */
+    private void markOriginsNear (Envelope envelope, double radiusMeters, BitSet affectedOrigins) {
+        radiusMeters += MARGIN_METERS;
+        double maxAbsLat = Math.max(Math.abs(envelope.getMinY()), Math.abs(envelope.getMaxY()));
+        double radiusLon = metersToDegreesLongitude(radiusMeters, Math.min(maxAbsLat, 89));
+        double radiusLat = metersToDegreesLatitude(radiusMeters);
+        int zoom = task.zoom;
+        // Pixel y increases southward.
+        int minX = Math.max(Grid.lonToPixel(envelope.getMinX() - radiusLon, zoom) - task.west, 0);
+        int maxX = Math.min(Grid.lonToPixel(envelope.getMaxX() + radiusLon, zoom) - task.west, task.width - 1);
+        int minY = Math.max(Grid.latToPixel(Math.min(envelope.getMaxY() + radiusLat, 85), zoom) - task.north, 0);
+        int maxY = Math.min(Grid.latToPixel(Math.max(envelope.getMinY() - radiusLat, -85), zoom) - task.north,
+                task.height - 1);
+        for (int y = minY; y <= maxY; y++) {
+            double lat = Grid.pixelToCenterLat(task.north + y, zoom);
+            for (int x = minX; x <= maxX; x++) {
+                int origin = y * task.width + x;
+                if (affectedOrigins.get(origin)) continue;
+                double lon = Grid.pixelToCenterLon(task.west + x, zoom);
+                if (distanceMeters(lat, lon, envelope) <= radiusMeters) {
+                    affectedOrigins.set(origin);
+                }
+            }
+        }
+    }
+
+    /** @return the approximate distance from the given point to the nearest point of the envelope, in meters. */
+    private static double distanceMeters (double lat, double lon, Envelope envelope) {
+        double nearestLon = Math.min(Math.max(lon, envelope.getMinX()), envelope.getMaxX());
+        double nearestLat = Math.min(Math.max(lat, envelope.getMinY()), envelope.getMaxY());
+        return fastDistance(new Coordinate(lon, lat), new Coordinate(nearestLon, nearestLat));
+    }
+
+    private static Envelope fixedToFloating (Envelope fixed) {
+        return new Envelope(
+                VertexStore.fixedDegreesToFloating(fixed.getMinX()),
+                VertexStore.fixedDegreesToFloating(fixed.getMaxX()),
+                VertexStore.fixedDegreesToFloating(fixed.getMinY()),
+                VertexStore.fixedDegreesToFloating(fixed.getMaxY())
+        );
+    }
+
+    /**
+     * @return the task IDs not set in the given BitSet of affected origins, as packed pairs of (first, last + 1)
+     *         covering consecutive runs of unaffected origins.
+     */
+    public static int[] getUnaffectedTaskRanges (BitSet affectedOrigins, int nOrigins) {
+        TIntList ranges = new TIntArrayList();
+        int first = affectedOrigins.nextClearBit(0);
+        while (first < nOrigins) {
+            int nextAffected = affectedOrigins.nextSetBit(first);
+            int end = (nextAffected < 0) ? nOrigins : Math.min(nextAffected, nOrigins);
+            ranges.add(first);
+            ranges.add(end);
+            first = affectedOrigins.nextClearBit(end);
+        }
+        return ranges.toArray();
+    }
+
+}
@@ -145,6 +145,14 @@ public class LinkageCache {
         linkageMap.put(key, newLinkage);
     }
 
+    /**
+     * @return the linkage previously built with buildUnevictableLinkage for the given PointSet, StreetLayer and mode,
+     *         or null if there is no such linkage. Unlike getLinkage, this never builds a new linkage.
+     */
+    public LinkedPointSet getUnevictableLinkage (PointSet pointSet, StreetLayer streetLayer, StreetMode mode) {
+        return linkageMap.get(new Key(pointSet, streetLayer, mode));
+    }
+
     public LinkageCache () {
         this.linkageCache = CacheBuilder.newBuilder()
                 .maximumSize(LINKAGE_CACHE_SIZE)
@@ -77,6 +77,8 @@ public class NetworkPreloader extends AsyncLoader<NetworkPreloader.Key, Transpor
 
     public NetworkPreloader(TransportNetworkCache transportNetworkCache) {
         this.transportNetworkCache = transportNetworkCache;
+        // Don't hold on to networks after they're evicted from the cache, which would prevent freeing their memory.
+        transportNetworkCache.addRemovalListener(networkId -> removeValues(key -> key.networkId.equals(networkId)));
     }
 
     public LoaderState<TransportNetwork> preloadData (AnalysisWorkerTask task) {
@@ -86,6 +88,16 @@ public class NetworkPreloader extends AsyncLoader<NetworkPreloader.Key, Transpor
         return get(Key.forTask(task));
     }
 
+    /**
+     * Start loading the given network and applying the given scenario in the background, without waiting for either
+     * to finish. This is called when the broker tells the worker which network and scenario its next tasks will need.
+     * @param scenarioId the scenario to apply, or null to only load the base network.
+     */
+    public void prefetch (String networkId, String scenarioId) {
+        LOG.info("Prefetching network {} with scenario {}.", networkId, scenarioId);
+        transportNetworkCache.prefetch(networkId, scenarioId);
+    }
+
     @Override
     protected TransportNetwork buildValue(Key key) {
 
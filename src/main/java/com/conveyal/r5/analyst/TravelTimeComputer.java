@@ -13,6 +13,7 @@ import com.conveyal.r5.profile.FareDominatingList;
 import com.conveyal.r5.profile.FastRaptorWorker;
 import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter;
 import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.profile.SearchContext;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.PointSetTimes;
@@ -47,6 +48,18 @@ public class TravelTimeComputer {
     private final AnalysisWorkerTask request;
     private final TransportNetwork network;
 
+    /**
+     * If true, the Monte Carlo draws at each departure minute of the transit search will be run in parallel.
+     * See FastRaptorWorker.parallelFrequencyDraws. This should only be set for single-point requests.
+     */
+    public boolean parallelFrequencyDraws = false;
+
+    /**
+     * If non-null, large buffers will be reused from this context rather than allocated anew. This should be set only
+     * when computing travel times from many origins in succession on the same thread, as in regional analyses.
+     */
+    public SearchContext searchContext = null;
+
     /** Constructor. */
     public TravelTimeComputer (AnalysisWorkerTask request, TransportNetwork network) {
         this.request = request;
@@ -163,6 +176,8 @@ public class TravelTimeComputer {
             // Even if generalized cost tags were present on the input data, we always minimize travel time.
             // The generalized cost calculations currently increment time and weight by the same amount.
             sr.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+            // Only the travel times at reached vertices are used, never the paths, so use the low-allocation search.
+            sr.compactSearch = true;
             sr.route();
             // Change to walking in order to reach transit stops in pedestrian-only areas like train stations.
             // This implies you are dropped off or have a very easy parking spot for your vehicle.
@@ -205,6 +220,7 @@ public class TravelTimeComputer {
                     walkSpeedMillimetersPerSecond,
                     origin
             );
+            sr.releaseSearchLabels();
 
             if (accessService != NO_WAIT_ALL_STOPS) {
                 LOG.info("Delaying direct travel times by {} seconds (to wait for {} pick-up).",
@@ -274,6 +290,8 @@ public class TravelTimeComputer {
         FastRaptorWorker worker = null;
         if (request.inRoutingFareCalculator == null) {
             worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
+            worker.parallelFrequencyDraws = parallelFrequencyDraws;
+            worker.searchContext = searchContext;
             if (request.computePaths || request.computeTravelTimeBreakdown) {
                 // By default, this is false and intermediate results (e.g. paths) are discarded.
                 // TODO do we really need to save all states just to get the travel time breakdown?
@@ -315,6 +333,7 @@ public class TravelTimeComputer {
         // We cannot yet merge the functionality of the TravelTimeReducer into the PerTargetPropagator
         // because in the non-transit case we call the reducer directly (see above).
         perTargetPropagater.travelTimeReducer = travelTimeReducer;
+        perTargetPropagater.searchContext = searchContext;
 
         // When building a static site, perform some additional initialization causing the propagator to do extra work.
         if (request.computePaths || request.computeTravelTimeBreakdown) {
@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 
+import static com.conveyal.r5.common.Util.newIntArray;
 import static com.conveyal.r5.common.Util.notNullOrEmpty;
 import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -58,6 +59,14 @@ public class TravelTimeReducer {
      */
     private int[] zeroPointsForCutoffs;
 
+    /**
+     * For each cutoff, the decay function weight at every whole second of travel time below the zero point for that
+     * cutoff. Computing weights can involve calls to exp() which are slow in the innermost loop over destinations,
+     * percentiles and cutoffs. A table covering every possible cutoff would be far too big, but the few cutoffs
+     * actually requested in a task give a table of manageable size.
+     */
+    private double[][] weightTablesForCutoffs;
+
     /**
      * The number of travel times we will record at each destination.
      * This is affected by the number of Monte Carlo draws requested and the departure time window.
@@ -67,6 +76,61 @@ public class TravelTimeReducer {
     /** Provides a weighting factor for opportunities at a given travel time. */
     private final DecayFunction decayFunction;
 
+    /**
+     * The ways in which percentiles can be extracted from the travel times at each destination. Both give exactly
+     * the same results, but SORT also leaves the supplied travel times sorted.
+     */
+    public enum PercentileMethod {
+        /** Fully sort the travel times to each destination and read off the values at the percentile indexes. */
+        SORT,
+        /**
+         * Count the travel times falling into coarse time buckets, then only sort the few times falling into the
+         * buckets known to contain the requested percentiles. This is linear in the number of travel times.
+         */
+        HISTOGRAM
+    }
+
+    /** How percentiles will be extracted from the travel times at each destination. May be changed after construction. */
+    public PercentileMethod percentileMethod = PercentileMethod.HISTOGRAM;
+
+    /**
+     * Histogram buckets are 2^HISTOGRAM_SHIFT seconds wide. Using a power of two avoids a division per travel time.
+     * Buckets of about a minute are narrow enough that only a handful of travel times fall into each one.
+     */
+    private static final int HISTOGRAM_SHIFT = 6;
+
+    /**
+     * The index of the last histogram bucket, which receives all travel times beyond the maximum trip duration
+     * including UNREACHED. Travel times in this bucket are still sorted exactly if they contain a percentile.
+     */
+    private final int overflowBucket;
+
+    // The remaining fields are scratch space reused for every destination to avoid allocation in tight loops.
+    // One reducer is created for each origin being processed, so these are never shared between threads.
+
+    /** Reused to hold the percentiles of travel time at each destination. */
+    private final int[] percentileTravelTimesSeconds;
+
+    /** Reused to hold the percentiles of travel time at each destination after conversion to minutes. */
+    private final int[] percentileTravelTimesMinutes;
+
+    /** The number of travel times falling into each histogram bucket. */
+    private final int[] bucketCounts;
+
+    /** For each histogram bucket, its position in sortedBucketTimes if it contains a percentile, otherwise -1. */
+    private final int[] bucketSlots;
+
+    /** The histogram bucket containing each percentile, and the percentile's rank among the times in that bucket. */
+    private final int[] percentileBuckets;
+    private final int[] percentileRanks;
+
+    /** For each bucket containing a percentile, where its travel times begin and end in sortedBucketTimes. */
+    private final int[] slotStarts;
+    private final int[] slotEnds;
+
+    /** Travel times copied out of the buckets containing percentiles, so they can be sorted. */
+    private final int[] sortedBucketTimes;
+
     /**
      * Reduce travel time values to requested summary outputs for each origin. The type of output (a single
      * cumulative opportunity accessibility value per origin, or selected percentiles of travel times to all
@@ -111,6 +175,20 @@ public class TravelTimeReducer {
         for (int p = 0; p < nPercentiles; p++) {
             percentileIndexes[p] = findPercentileIndex(timesPerDestination, task.percentiles[p]);
         }
+        this.percentileTravelTimesSeconds = new int[nPercentiles];
+        this.percentileTravelTimesMinutes = new int[nPercentiles];
+
+        // Allocate histogram scratch space. Travel times should not exceed the maximum trip duration, so one bucket
+        // per minute or so up to that duration plus one overflow bucket are enough to hold the times in small groups.
+        // The results remain correct if this assumption does not hold, but percentile extraction will be slower.
+        this.overflowBucket = ((Math.max(task.maxTripDurationMinutes, 1) * 60) >> HISTOGRAM_SHIFT) + 1;
+        this.bucketCounts = new int[overflowBucket + 1];
+        this.bucketSlots = newIntArray(overflowBucket + 1, -1);
+        this.percentileBuckets = new int[nPercentiles];
+        this.percentileRanks = new int[nPercentiles];
+        this.slotStarts = new int[nPercentiles];
+        this.slotEnds = new int[nPercentiles];
+        this.sortedBucketTimes = new int[timesPerDestination];
 
         // Decide whether we want to retain travel times to all destinations for this origin.
         // This is currently only used with regional tasks when origins are freeform pointsets.
@@ -149,10 +227,13 @@ public class TravelTimeReducer {
             this.nCutoffs = task.cutoffsMinutes.length;
             this.cutoffsSeconds = new int[nCutoffs];
             this.zeroPointsForCutoffs = new int[nCutoffs];
+            this.weightTablesForCutoffs = new double[nCutoffs][];
             for (int c = 0; c < nCutoffs; c++) {
                 final int cutoffSeconds = task.cutoffsMinutes[c] * 60;
                 this.cutoffsSeconds[c] = cutoffSeconds;
                 this.zeroPointsForCutoffs[c] = decayFunction.reachesZeroAt(cutoffSeconds);
+                this.weightTablesForCutoffs[c] =
+                        decayFunction.computeWeightTable(cutoffSeconds, zeroPointsForCutoffs[c]);
             }
         }
 
@@ -183,17 +264,17 @@ public class TravelTimeReducer {
      * @param timeSeconds a single travel time for results with no variation, e.g. from walking, biking, or driving.
      */
     public void recordUnvaryingTravelTimeAtTarget (int target, int timeSeconds){
-        int[] travelTimePercentilesSeconds = new int[nPercentiles];
-        Arrays.fill(travelTimePercentilesSeconds, timeSeconds);
-        recordTravelTimePercentilesForTarget(target, travelTimePercentilesSeconds);
+        Arrays.fill(percentileTravelTimesSeconds, timeSeconds);
+        recordTravelTimePercentilesForTarget(target, percentileTravelTimesSeconds);
     }
 
     /**
      * Given a list of travel times of the expected length, extract the requested percentiles, then record those values
-     * at the specified target. WARNING: this method destructively sorts the supplied times travel in place.
-     * Their positions in the array will no longer correspond to the raptor iterations that produced them.
+     * at the specified target. WARNING: depending on the percentileMethod, this method may destructively sort the
+     * supplied travel times in place. Their positions in the array may no longer correspond to the raptor iterations
+     * that produced them.
      *
-     * @param timesSeconds which will be destructively sorted in place to extract percentiles.
+     * @param timesSeconds which may be destructively sorted in place to extract percentiles.
      */
     public void extractTravelTimePercentilesAndRecord (int target, int[] timesSeconds) {
         checkArgument(timesSeconds.length == timesPerDestination,
@@ -202,16 +283,90 @@ public class TravelTimeReducer {
             checkArgument(i >= 0, "Travel times must be positive.");
         }
 
-        // Sort the travel times to this target and extract percentiles at the pre-calculated percentile indexes.
-        // We used to convert these to minutes before sorting, which may allow the sort to be more efficient.
-        // We even had a prototype counting sort that would take advantage of this detail. However, applying distance
-        // decay functions with one-second resolution decreases sensitivity to randomization error in travel times.
+        recordTravelTimePercentilesForTarget(target, extractPercentiles(timesSeconds));
+    }
+
+    /**
+     * Extract the requested percentiles from the travel times to one destination using the selected percentileMethod.
+     * @return the percentiles of travel time in seconds, in an array that will be overwritten by the next call.
+     */
+    int[] extractPercentiles (int[] timesSeconds) {
+        if (percentileMethod == PercentileMethod.HISTOGRAM) {
+            extractPercentilesByHistogram(timesSeconds);
+        } else {
+            extractPercentilesBySorting(timesSeconds);
+        }
+        return percentileTravelTimesSeconds;
+    }
+
+    /**
+     * Sort the travel times to this target and extract percentiles at the pre-calculated percentile indexes.
+     * We used to convert these to minutes before sorting, which may allow the sort to be more efficient.
+     * We even had a prototype counting sort that would take advantage of this detail. However, applying distance
+     * decay functions with one-second resolution decreases sensitivity to randomization error in travel times.
+     */
+    private void extractPercentilesBySorting (int[] timesSeconds) {
         Arrays.sort(timesSeconds);
-        int[] percentileTravelTimesSeconds = new int[nPercentiles];
         for (int p = 0; p < nPercentiles; p++) {
             percentileTravelTimesSeconds[p] = timesSeconds[percentileIndexes[p]];
         }
-        recordTravelTimePercentilesForTarget(target, percentileTravelTimesSeconds);
+    }
+
+    /**
+     * Find exactly the same percentiles as extractPercentilesBySorting, with one-second resolution, without sorting
+     * all the travel times. The travel times are first counted into coarse buckets, which tells us which bucket
+     * each percentile falls in and its rank among the times in that bucket. Then only the times in those few buckets
+     * are copied out and sorted. The supplied travel times are not modified.
+     */
+    private void extractPercentilesByHistogram (int[] timesSeconds) {
+        Arrays.fill(bucketCounts, 0);
+        for (int t : timesSeconds) {
+            bucketCounts[bucketForTime(t)] += 1;
+        }
+        // Walk up the cumulative distribution to find the bucket containing each percentile. The percentiles are in
+        // ascending order, so this is a single pass over the buckets. Reserve space for the times in each bucket.
+        int nSlots = 0;
+        int nextSlotStart = 0;
+        int bucket = 0;
+        int timesBelowBucket = 0;
+        for (int p = 0; p < nPercentiles; p++) {
+            final int percentileIndex = percentileIndexes[p];
+            while (timesBelowBucket + bucketCounts[bucket] <= percentileIndex) {
+                timesBelowBucket += bucketCounts[bucket];
+                bucket += 1;
+            }
+            percentileBuckets[p] = bucket;
+            percentileRanks[p] = percentileIndex - timesBelowBucket;
+            if (bucketSlots[bucket] < 0) {
+                bucketSlots[bucket] = nSlots;
+                slotStarts[nSlots] = nextSlotStart;
+                slotEnds[nSlots] = nextSlotStart;
+                nextSlotStart += bucketCounts[bucket];
+                nSlots += 1;
+            }
+        }
+        // Copy out only the times falling into the buckets that contain percentiles, and sort each bucket separately.
+        for (int t : timesSeconds) {
+            final int slot = bucketSlots[bucketForTime(t)];
+            if (slot >= 0) {
+                sortedBucketTimes[slotEnds[slot]++] = t;
+            }
+        }
+        for (int s = 0; s < nSlots; s++) {
+            Arrays.sort(sortedBucketTimes, slotStarts[s], slotEnds[s]);
+        }
+        for (int p = 0; p < nPercentiles; p++) {
+            final int slot = bucketSlots[percentileBuckets[p]];
+            percentileTravelTimesSeconds[p] = sortedBucketTimes[slotStarts[slot] + percentileRanks[p]];
+        }
+        // Leave the bucket slots cleared for the next destination.
+        for (int p = 0; p < nPercentiles; p++) {
+            bucketSlots[percentileBuckets[p]] = -1;
+        }
+    }
+
+    private int bucketForTime (int timeSeconds) {
+        return Math.min(timeSeconds >>> HISTOGRAM_SHIFT, overflowBucket);
     }
 
     /**
@@ -226,7 +381,6 @@ public class TravelTimeReducer {
             checkArgument(i >= 0, "Travel times must be positive.");
         }
         if (calculateTravelTimes) {
-            int[] percentileTravelTimesMinutes = new int[nPercentiles];
             for (int p = 0; p < nPercentiles; p++) {
                 percentileTravelTimesMinutes[p] = convertToMinutes(travelTimePercentilesSeconds[p]);
             }
@@ -251,14 +405,11 @@ public class TravelTimeReducer {
                     // Iterate backward through sorted cutoffs, to allow early bail-out when travel time exceeds the
                     // point where the decay function reaches zero weight.
                     for (int c = nCutoffs - 1; c >= 0; c--) {
-                        final int cutoffSeconds = cutoffsSeconds[c];
                         if (travelTimeSeconds >= zeroPointsForCutoffs[c]) {
                             break;
                         }
-                        // Precomputing travel weight factors does not seem practical, as it would involve a
-                        // 7200x7200 matrix containing about 415MB of coefficients. Reading through that much memory
-                        // may well be slower than computing the coefficient each time it's needed.
-                        double weightFactor = decayFunction.computeWeight(cutoffSeconds, travelTimeSeconds);
+                        // Below the zero point, the weight is always found in the precomputed table for this cutoff.
+                        double weightFactor = weightTablesForCutoffs[c][travelTimeSeconds];
                         if (weightFactor > 0) {
                             double weightedOpportunityCount = opportunityCountAtTarget * weightFactor;
                             accessibilityResult.incrementAccessibility(d, p, c, weightedOpportunityCount);
@@ -8,6 +8,7 @@ import com.conveyal.file.S3FileStorage;
 import com.conveyal.gtfs.GTFSCache;
 import com.conveyal.r5.OneOriginResult;
 import com.conveyal.r5.analyst.AccessibilityResult;
+import com.conveyal.r5.analyst.AffectedOriginFinder;
 import com.conveyal.r5.analyst.FilePersistence;
 import com.conveyal.r5.analyst.NetworkPreloader;
 import com.conveyal.r5.analyst.PersistenceBuffer;
@@ -17,6 +18,7 @@ import com.conveyal.r5.analyst.TravelTimeComputer;
 import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.error.TaskError;
 import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.r5.profile.SearchContext;
 import com.conveyal.r5.streets.OSMCache;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TransportNetworkCache;
@@ -24,12 +26,16 @@ import com.conveyal.r5.transitive.TransitiveNetwork;
 import com.conveyal.r5.util.AsyncLoader;
 import com.conveyal.r5.util.ExceptionUtils;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.LittleEndianDataOutputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
@@ -46,11 +52,13 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -117,6 +125,12 @@ public class AnalysisWorker implements Runnable {
      */
     private final boolean testTaskRedelivery;
 
+    /**
+     * If this is true, the Monte Carlo draws within each single-point request will be spread over all processors.
+     * This reduces the time users wait for results on frequency-heavy scenarios. It has no effect on regional tasks.
+     */
+    private final boolean parallelFrequencyDraws;
+
     /** In the type of tests described above, this is how often the worker will fail to return a result for a task. */
     public static final int TESTING_FAILURE_RATE_PERCENT = 20;
 
@@ -164,6 +178,29 @@ public class AnalysisWorker implements Runnable {
      */
     private List<RegionalWorkResult> workResults = new ArrayList<>();
 
+    /**
+     * For recent incremental regional jobs, the origins whose results may differ from those of the base analysis.
+     * Finding them takes about as long as computing a few origins, so this is done once per job on each worker.
+     */
+    private final Cache<String, BitSet> affectedOriginsForJob = CacheBuilder.newBuilder().maximumSize(4).build();
+
+    /**
+     * The recent incremental jobs for which this worker has already reported all unaffected origins to the broker.
+     * This holds many more jobs than affectedOriginsForJob because its entries are tiny. If a job that is still running
+     * is evicted, its unaffected origins are only reported again, which the broker handles like any duplicate result.
+     */
+    private final Cache<String, Boolean> jobsWithUnaffectedOriginsReported =
+            CacheBuilder.newBuilder().maximumSize(100).build();
+
+    /** Whether to return results to the backend on a separate binary request rather than in the poll body. */
+    private volatile boolean backendAcceptsBinaryResults = true;
+
+    /**
+     * When the backend is writing results more slowly than it receives them, it asks workers to hold on to their
+     * results for a while. Until this time (in milliseconds since the epoch) results accumulate without being sent.
+     */
+    private volatile long holdResultsUntil = 0;
+
     /** The last time (in milliseconds since the epoch) that we polled for work. */
     private long lastPollingTime;
 
@@ -216,6 +253,18 @@ public class AnalysisWorker implements Runnable {
      */
     private ThreadPoolExecutor regionalTaskExecutor;
 
+    /** The queue of regional tasks waiting for a thread in regionalTaskExecutor. */
+    private BlockingQueue<Runnable> regionalTaskQueue;
+
+    /**
+     * The number of queued regional tasks at or below which the worker polls for more, rather than waiting for the
+     * poll interval to elapse. This is enough to keep every thread busy while the poll is underway.
+     */
+    private int regionalTaskQueueLowWater;
+
+    /** Notified each time a regional task finishes, waking the polling loop if the queue has run low. */
+    private final Object regionalTaskQueueMonitor = new Object();
+
     /** The HTTP server that receives single-point requests. */
     private spark.Service sparkHttpService;
 
@@ -249,6 +298,7 @@ public class AnalysisWorker implements Runnable {
         // PARSE THE CONFIGURATION TODO move configuration parsing into a separate method.
 
         testTaskRedelivery = Boolean.parseBoolean(config.getProperty("test-task-redelivery", "false"));
+        parallelFrequencyDraws = Boolean.parseBoolean(config.getProperty("parallel-frequency-draws", "false"));
 
         // Region region = Region.getRegion(Regions.fromName(config.getProperty("aws-region")));
         // TODO Eliminate this default base-bucket value "analysis-staging" and set it properly when the backend starts workers.
@@ -328,15 +378,26 @@ public class AnalysisWorker implements Runnable {
     public void run() {
 
         // Create executors with up to one thread per processor.
-        // The default task rejection policy is "Abort".
-        // The executor's queue is rather long because some tasks complete very fast and we poll max once per second.
+        // The executor's queue is rather long because some tasks complete very fast. The number of free places in the
+        // queue is reported to the broker, which uses it to decide how many tasks to send on each poll.
+        // When the queue is full, the rejection policy blocks the polling thread until a place becomes free.
         int availableProcessors = Runtime.getRuntime().availableProcessors();
         LOG.info("Java reports the number of available processors is: {}", availableProcessors);
         int maxThreads = availableProcessors;
         int taskQueueLength = availableProcessors * 6;
         LOG.info("Maximum number of regional processing threads is {}, length of task queue is {}.", maxThreads, taskQueueLength);
-        BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>(taskQueueLength);
-        regionalTaskExecutor = new ThreadPoolExecutor(1, maxThreads, 60, TimeUnit.SECONDS, taskQueue);
+        regionalTaskQueue = new LinkedBlockingQueue<>(taskQueueLength);
+        regionalTaskQueueLowWater = maxThreads;
+        regionalTaskExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                regionalTaskQueue, (runnable, executor) -> {
+            try {
+                executor.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        });
+        regionalTaskExecutor.allowCoreThreadTimeOut(true);
 
         // Before we go into an endless loop polling for regional tasks that can be computed asynchronously, start a
         // single-endpoint web server on this worker to receive single-point requests that must be handled immediately.
@@ -352,23 +413,21 @@ public class AnalysisWorker implements Runnable {
         if (listenForSinglePointRequests) {
             // Use the newer non-static Spark framework syntax.
             sparkHttpService = spark.Service.ignite().port(WORKER_LISTEN_PORT);
-            sparkHttpService.post("/single", new AnalysisWorkerController(this)::handleSinglePoint);
+            AnalysisWorkerController controller = new AnalysisWorkerController(this);
+            sparkHttpService.post("/single", controller::handleSinglePoint);
+            sparkHttpService.post("/prefetch", controller::handlePrefetch);
         }
 
         // Main polling loop to fill the regional work queue.
-        // You'd think the ThreadPoolExecutor could just block when the blocking queue is full, but apparently
-        // people all over the world have been jumping through hoops to try to achieve this simple behavior
-        // with no real success, at least without writing bug and deadlock-prone custom executor services.
-        // Two alternative approaches are trying to keep the queue full and waiting for the queue to be almost empty.
-        // To keep the queue full, we repeatedly try to add each task to the queue, pausing and retrying when
-        // it's full. To wait until it's almost empty, we could use wait() in a loop and notify() as tasks are handled.
-        // see https://stackoverflow.com/a/15185004/778449
-        // A simpler approach might be to spin-wait checking whether the queue is low and sleeping briefly,
-        // then fetch more work only when the queue is getting empty.
+        // We poll as soon as the queue runs low, so the threads never run out of work while tasks remain on the
+        // broker, and otherwise at least every POLL_WAIT_SECONDS to return results and show we are still alive.
         while (true) {
+            boolean queueWasLow = waitForRegionalTaskQueueToRunLow();
             List<RegionalTask> tasks = getSomeWork();
             if (tasks == null || tasks.isEmpty()) {
-                // Either there was no work, or some kind of error occurred.
+                // Either there was no work, or some kind of error occurred, or our queue was still too full to take any
+                // more tasks. In the last case, go back to waiting for the queue to run low.
+                if (!queueWasLow) continue;
                 // Sleep for a while before polling again, adding a random component to spread out the polling load.
                 if (autoShutdown) {considerShuttingDown();}
                 int randomWait = random.nextInt(POLL_MAX_RANDOM_WAIT);
@@ -377,21 +436,50 @@ public class AnalysisWorker implements Runnable {
                 continue;
             }
             for (RegionalTask task : tasks) {
-                while (true) {
+                // This blocks if the queue is full, which should be rare as the broker sends no more tasks than there
+                // are free places in the queue.
+                // TODO define non-anonymous runnable class to instantiate here, specifically for async regional tasks.
+                regionalTaskExecutor.execute(() -> {
                     try {
-                        // TODO define non-anonymous runnable class to instantiate here, specifically for async regional tasks.
-                        regionalTaskExecutor.execute(() -> this.handleOneRegionalTask(task));
-                        break;
-                    } catch (RejectedExecutionException e) {
-                        // Queue is full, wait a bit and try to feed it more tasks.
-                        // FIXME if we burn through the internal queue in less than 1 second this is a speed bottleneck.
-                        // This happens with regions unconnected to transit and with very small travel time cutoffs.
-                        // FIXME this is really using the list of fetched tasks as a secondary queue, it's awkward.
-                        sleepSeconds(1);
+                        this.handleOneRegionalTask(task);
+                    } finally {
+                        synchronized (regionalTaskQueueMonitor) {
+                            regionalTaskQueueMonitor.notifyAll();
+                        }
                     }
+                });
+            }
+        }
+    }
+
+    /**
+     * Wait until few enough regional tasks are queued that the worker should ask for more, or until the poll interval
+     * has elapsed, whichever comes first.
+     * @return whether the queue has run low, rather than the poll interval having elapsed.
+     */
+    private boolean waitForRegionalTaskQueueToRunLow () {
+        long deadline = System.currentTimeMillis() + POLL_WAIT_SECONDS * 1000;
+        synchronized (regionalTaskQueueMonitor) {
+            while (regionalTaskQueue.size() > regionalTaskQueueLowWater) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                try {
+                    regionalTaskQueueMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
         }
+        return true;
+    }
+
+    /**
+     * @return the number of regional tasks that can be queued on this worker without waiting, or -1 if this worker is
+     *         not processing regional tasks.
+     */
+    int getFreeRegionalTaskSlots () {
+        return regionalTaskQueue == null ? -1 : regionalTaskQueue.remainingCapacity();
     }
 
     /**
@@ -448,6 +536,7 @@ public class AnalysisWorker implements Runnable {
 
         // Perform the core travel time computations.
         TravelTimeComputer computer = new TravelTimeComputer(task, transportNetwork);
+        computer.parallelFrequencyDraws = parallelFrequencyDraws;
         OneOriginResult oneOriginResult = computer.computeTravelTimes();
 
         // Prepare the travel time grid which will be written back to the client. We gzip the data before sending
@@ -538,6 +627,13 @@ public class AnalysisWorker implements Runnable {
             TransportNetwork transportNetwork = networkPreloader.transportNetworkCache.getNetworkForScenario(task
                     .graphId, task.scenarioId);
 
+            // In an incremental analysis, origins that cannot be affected by the differences between this scenario and
+            // that of the base analysis are not computed. The backend copies their results from the base analysis.
+            if (task.baseScenarioId != null && !getAffectedOrigins(task).get(task.taskId)) {
+                addRegionalWorkResult(RegionalWorkResult.forUnaffectedOrigin(task), task);
+                return;
+            }
+
             // Static site tasks do not specify destinations, but all other regional tasks should.
             // Load the PointSets based on the IDs (actually, full storage keys including IDs) in the task.
             // The presence of these grids in the task will then trigger the computation of accessibility values.
@@ -556,7 +652,9 @@ public class AnalysisWorker implements Runnable {
             adjustShutdownClock(REGIONAL_KEEPALIVE_MINUTES);
 
             // Perform the core travel time and accessibility computations.
+            // Successive origins of the same job on this thread reuse the same large buffers.
             TravelTimeComputer computer = new TravelTimeComputer(task, transportNetwork);
+            computer.searchContext = SearchContext.forJob(task.jobId);
             OneOriginResult oneOriginResult = computer.computeTravelTimes();
 
             if (task.makeTauiSite) {
@@ -583,9 +681,7 @@ public class AnalysisWorker implements Runnable {
             // For most regional analyses, this is an accessibility indicator value for one of many origins,
             // but for static sites the indicator value is not known, it is computed in the UI. We still want to return
             // dummy (zero) accessibility results so the backend is aware of progress through the list of origins.
-            synchronized (workResults) {
-                workResults.add(new RegionalWorkResult(oneOriginResult, task));
-            }
+            addRegionalWorkResult(new RegionalWorkResult(oneOriginResult, task), task);
             throughputTracker.recordTaskCompletion(task.jobId);
         } catch (Exception ex) {
             LOG.error("An error occurred while handling a regional task: {}", ExceptionUtils.asString(ex));
@@ -593,6 +689,47 @@ public class AnalysisWorker implements Runnable {
         }
     }
 
+    /**
+     * Add a result to be returned to the backend with the next poll. The first result this worker returns for an
+     * incremental analysis also carries all the origins that analysis does not need to compute.
+     */
+    private void addRegionalWorkResult (RegionalWorkResult workResult, RegionalTask task) throws Exception {
+        if (task.baseScenarioId != null
+                && jobsWithUnaffectedOriginsReported.asMap().putIfAbsent(task.jobId, true) == null) {
+            BitSet affectedOrigins = getAffectedOrigins(task);
+            workResult.unaffectedTaskRanges =
+                    AffectedOriginFinder.getUnaffectedTaskRanges(affectedOrigins, task.width * task.height);
+        }
+        synchronized (workResults) {
+            workResults.add(workResult);
+        }
+    }
+
+    /**
+     * Find the origins of an incremental regional analysis whose results may differ between its scenario and that of
+     * its base analysis, or retrieve them if they were already found for the task's job. If they cannot be found,
+     * every origin is considered affected, so all of them are computed.
+     */
+    private BitSet getAffectedOrigins (RegionalTask task) throws ExecutionException {
+        return affectedOriginsForJob.get(task.jobId, () -> {
+            TransportNetworkCache cache = networkPreloader.transportNetworkCache;
+            try {
+                return AffectedOriginFinder.findAffectedOrigins(
+                        task,
+                        cache.getNetwork(task.graphId),
+                        cache.getNetworkForScenario(task.graphId, task.baseScenarioId),
+                        cache.getNetworkForScenario(task.graphId, task.scenarioId)
+                );
+            } catch (Exception e) {
+                LOG.error("Could not find origins affected by scenario, computing all origins: {}",
+                        ExceptionUtils.asString(e));
+                BitSet allOrigins = new BitSet();
+                allOrigins.set(0, task.width * task.height);
+                return allOrigins;
+            }
+        });
+    }
+
     /**
      * Used in tests of the task redelivery mechanism. Report work as completed without actually doing anything,
      * but fail to report results a certain percentage of the time.
@@ -683,11 +820,22 @@ public class AnalysisWorker implements Runnable {
         String url = brokerBaseUrl + "/poll";
         HttpPost httpPost = new HttpPost(url);
         WorkerStatus workerStatus = new WorkerStatus(this);
-        // Include all completed work results when polling the backend.
+        // Include all completed work results when polling the backend, unless the backend asked us to wait.
         // Atomically copy and clear the accumulated work results, while blocking writes from other threads.
         synchronized (workResults) {
-            workerStatus.results = new ArrayList<>(workResults);
-            workResults.clear();
+            if (System.currentTimeMillis() < holdResultsUntil) {
+                workerStatus.results = new ArrayList<>();
+            } else {
+                workerStatus.results = new ArrayList<>(workResults);
+                workResults.clear();
+            }
+        }
+        // Return the results in compact binary form on a separate request if the backend supports it, leaving the poll
+        // body small. If that fails for any reason, the results are sent as JSON in the poll body as before.
+        if (!workerStatus.results.isEmpty() && backendAcceptsBinaryResults) {
+            if (sendBinaryResults(workerStatus.results)) {
+                workerStatus.results = new ArrayList<>();
+            }
         }
 
         // Compute throughput in tasks per minute and include it in the worker status report.
@@ -733,6 +881,68 @@ public class AnalysisWorker implements Runnable {
         return null;
     }
 
+    /**
+     * Stream the given results to the backend in the binary form written by RegionalWorkResultCodec.
+     * @return whether the results were dealt with, either received by the backend or put back to send again once the
+     *         backend has caught up with writing earlier results.
+     */
+    private boolean sendBinaryResults (List<RegionalWorkResult> results) {
+        HttpPost httpPost = new HttpPost(brokerBaseUrl + "/results");
+        EntityTemplate entity = new EntityTemplate(out -> RegionalWorkResultCodec.write(results, out));
+        entity.setContentType(RegionalWorkResultCodec.CONTENT_TYPE);
+        httpPost.setEntity(entity);
+        HttpEntity responseEntity = null;
+        try {
+            HttpResponse response = httpClient.execute(httpPost);
+            responseEntity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 200) {
+                return true;
+            }
+            if (statusCode == 503) {
+                // The backend is busy writing earlier results. It accepted the results before the first one it refused
+                // and ignored the rest. Hold back the rest rather than including them in the poll.
+                Header retryAfter = response.getFirstHeader("Retry-After");
+                int retrySeconds = retryAfter == null ? POLL_WAIT_SECONDS : Integer.parseInt(retryAfter.getValue());
+                int nAccepted = Math.min(countAccepted(responseEntity), results.size());
+                List<RegionalWorkResult> refusedResults = results.subList(nAccepted, results.size());
+                LOG.info("Backend is busy writing results. Holding {} results for {} sec.",
+                        refusedResults.size(), retrySeconds);
+                holdResultsUntil = System.currentTimeMillis() + retrySeconds * 1000L;
+                synchronized (workResults) {
+                    workResults.addAll(refusedResults);
+                }
+                return true;
+            }
+            if (statusCode == 404) {
+                // This is an older backend without the binary endpoint. Stop trying it.
+                LOG.warn("Backend does not accept binary results, returning them in the body of each poll instead.");
+                backendAcceptsBinaryResults = false;
+            } else {
+                LOG.error("Unsuccessful return of binary results. HTTP response code: {}", statusCode);
+            }
+        } catch (Exception e) {
+            LOG.error("Exception while returning binary results to backend: {}", ExceptionUtils.asString(e));
+        } finally {
+            EntityUtils.consumeQuietly(responseEntity);
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of results the backend reports having accepted in the body of a response to sendBinaryResults,
+     *         or zero if that cannot be read, in which case all the results will be sent again.
+     */
+    private static int countAccepted (HttpEntity responseEntity) {
+        if (responseEntity == null) return 0;
+        try {
+            return Math.max(0, Integer.parseInt(EntityUtils.toString(responseEntity).trim()));
+        } catch (Exception e) {
+            LOG.warn("Could not read the number of results accepted by the backend, sending all of them again.");
+            return 0;
+        }
+    }
+
     /**
      * Generate and write out metadata describing what's in a directory of static site output.
      */
@@ -21,8 +21,8 @@ import static com.conveyal.r5.analyst.cluster.AnalysisWorker.addJsonToGrid;
 
 /**
  * This class contains Spark HTTP request handler methods that are served up by Analysis workers.
- * Currently the worker exposes only a single method that allows the broker to push it single point requests for
- * immediate processing.
+ * These allow the broker to push single point requests to the worker for immediate processing, and to tell the worker
+ * which network and scenario it should prepare for upcoming tasks.
  */
 public class AnalysisWorkerController {
 
@@ -77,6 +77,21 @@ public class AnalysisWorkerController {
         }
     }
 
+    /**
+     * Begin loading a network and applying a scenario in the background, in anticipation of tasks that will need
+     * them. The network and scenario IDs are supplied as query parameters, and the scenario ID is optional. This
+     * responds immediately without waiting for loading to complete.
+     */
+    public Object handlePrefetch (Request request, Response response) {
+        String networkId = request.queryParams("networkId");
+        String scenarioId = request.queryParams("scenarioId");
+        if (networkId == null) {
+            return jsonResponse(response, HttpStatus.BAD_REQUEST_400, "A networkId parameter is required.");
+        }
+        analysisWorker.networkPreloader.prefetch(networkId, scenarioId);
+        return jsonResponse(response, HttpStatus.ACCEPTED_202, "Prefetching network " + networkId);
+    }
+
     private static byte[] jsonResponse (Response response, int httpStatusCode, String message) {
         response.status(httpStatusCode);
         response.header("Content-Type", "application/json");
@@ -47,6 +47,13 @@ public class RegionalTask extends AnalysisWorkerTask implements Cloneable {
      */
     public boolean recordAccessibility;
 
+    /**
+     * If this is an incremental analysis, the ID of the scenario used by the earlier analysis whose results will be
+     * reused. Workers compute only the origins whose results could differ between that scenario and this one, and
+     * report the rest as unaffected so the backend can copy their values from the earlier results.
+     */
+    public String baseScenarioId;
+
     @Override
     public Type getType() {
         return Type.REGIONAL_ANALYSIS;
@@ -29,8 +29,18 @@ public class RegionalWorkResult {
      */
     public int[][][] accessibilityValues; // TODO Should this be floating point?
 
-    /** Trivial no-arg constructor for deserialization. Private to prevent usage outside deserialization. */
-    private RegionalWorkResult() { }
+    /**
+     * In an incremental regional analysis, origins whose results cannot differ from those of the base analysis, as
+     * packed pairs of (first task ID, last task ID + 1). A worker sends all of these with its first result for a job,
+     * and one range for each such origin it is given afterward. Null in all other results.
+     */
+    public int[] unaffectedTaskRanges;
+
+    /**
+     * Trivial no-arg constructor for deserialization, from JSON or by RegionalWorkResultCodec. Not public to prevent
+     * usage outside deserialization.
+     */
+    RegionalWorkResult() { }
 
     /**
      * Convert the supplied internal R5 OneOriginResult into this more compact form intended for serialization
@@ -44,6 +54,23 @@ public class RegionalWorkResult {
         this.accessibilityValues = result.accessibility == null ? null : result.accessibility.getIntValues();
     }
 
+    /**
+     * Make a result with no values for an origin of an incremental analysis whose values will be copied from the
+     * base analysis.
+     */
+    public static RegionalWorkResult forUnaffectedOrigin (RegionalTask task) {
+        RegionalWorkResult result = new RegionalWorkResult();
+        result.jobId = task.jobId;
+        result.taskId = task.taskId;
+        result.unaffectedTaskRanges = new int[] { task.taskId, task.taskId + 1 };
+        return result;
+    }
+
+    /** @return whether this result only reports origins to be copied from the base analysis, carrying no values. */
+    public boolean isUnaffectedOriginsOnly () {
+        return unaffectedTaskRanges != null && travelTimeValues == null && accessibilityValues == null;
+    }
+
     // TODO checkTravelTimeInvariants, checkAccessibilityInvariants
 
 }
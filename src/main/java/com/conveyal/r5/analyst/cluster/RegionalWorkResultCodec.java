@@ -0,0 +1,259 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.osmlib.VarIntInputStream;
+import com.conveyal.osmlib.VarIntOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes and reads batches of regional work results in a compact binary form, used by workers to return results to
+ * the backend. JSON spends several bytes on every integer and requires the backend to build the whole batch of objects
+ * in memory before handling any of them. Here every integer is a variable-width (protobuf style) varint, and values
+ * along the innermost dimension of each array are delta-coded and zigzag-encoded, so that similar neighboring values
+ * take a single byte. The body is compressed with a fast Deflater setting, and results are decoded and handed to the
+ * caller one at a time as the stream is read.
+ *
+ * A batch looks like this:
+ * <ol>
+ * <li>Header (ASCII text "R5WR")</li>
+ * <li>(1 byte) format version</li>
+ * <li>(1 byte) compression of the rest of the stream: 0 for none, 1 for deflate</li>
+ * <li>for each result, a byte containing 1 followed by:
+ *   <ol>
+ *   <li>(varint) index of the job ID among those already seen in this batch. If this equals the number of job IDs
+ *       already seen, it is followed by the job ID as a varint length and UTF-8 bytes.</li>
+ *   <li>(varint) task ID</li>
+ *   <li>(1 byte) flags: 1 if travel times are present, 2 if accessibility values are present, 4 if unaffected task
+ *       ranges are present</li>
+ *   <li>each array that is present, as nested lengths and delta-coded values</li>
+ *   </ol>
+ * </li>
+ * <li>a byte containing 0, marking the end of the batch</li>
+ * </ol>
+ *
+ * Every length read from a batch is checked against the largest an analysis can produce before any array is allocated,
+ * so a corrupted batch is rejected with an IOException rather than exhausting the backend's memory.
+ */
+public class RegionalWorkResultCodec {
+
+    public static final String CONTENT_TYPE = "application/x-r5-work-results";
+
+    private static final byte[] HEADER = { 'R', '5', 'W', 'R' };
+
+    private static final int VERSION = 1;
+
+    private static final int COMPRESSION_NONE = 0;
+
+    private static final int COMPRESSION_DEFLATE = 1;
+
+    private static final int RESULT = 1;
+
+    private static final int END = 0;
+
+    private static final int HAS_TRAVEL_TIMES = 1;
+
+    private static final int HAS_ACCESSIBILITY = 2;
+
+    private static final int HAS_UNAFFECTED_TASK_RANGES = 4;
+
+    /** Job IDs are UUIDs or database IDs, far shorter than this. */
+    private static final int MAX_JOB_ID_BYTES = 256;
+
+    /** The most origins or destinations in one analysis, as in the largest grid accepted by AnalysisRequest. */
+    private static final int MAX_POINTS = 5_000_000;
+
+    /** Far more destination point sets than can be chosen for one regional analysis. */
+    private static final int MAX_DESTINATION_POINT_SETS = 100;
+
+    /** The largest number of cutoffs in any task, which is the number used for single point analyses. */
+    private static final int MAX_CUTOFFS = AnalysisWorkerTask.N_SINGLE_POINT_CUTOFFS;
+
+    /** Write the given results as one compressed batch, leaving the output stream open. */
+    public static void write (Collection<RegionalWorkResult> workResults, OutputStream outputStream)
+            throws IOException {
+        outputStream.write(HEADER);
+        outputStream.write(VERSION);
+        outputStream.write(COMPRESSION_DEFLATE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream compressed = new DeflaterOutputStream(outputStream, deflater);
+            BufferedOutputStream buffered = new BufferedOutputStream(compressed);
+            VarIntOutputStream out = new VarIntOutputStream(buffered);
+            List<String> jobIds = new ArrayList<>();
+            for (RegionalWorkResult workResult : workResults) {
+                out.writeByte(RESULT);
+                int jobIndex = jobIds.indexOf(workResult.jobId);
+                if (jobIndex < 0) {
+                    out.writeUInt32(jobIds.size());
+                    out.writeString(workResult.jobId);
+                    jobIds.add(workResult.jobId);
+                } else {
+                    out.writeUInt32(jobIndex);
+                }
+                out.writeUInt32(workResult.taskId);
+                int flags = 0;
+                if (workResult.travelTimeValues != null) flags |= HAS_TRAVEL_TIMES;
+                if (workResult.accessibilityValues != null) flags |= HAS_ACCESSIBILITY;
+                if (workResult.unaffectedTaskRanges != null) flags |= HAS_UNAFFECTED_TASK_RANGES;
+                out.writeByte(flags);
+                if (workResult.travelTimeValues != null) {
+                    writeArray(out, workResult.travelTimeValues);
+                }
+                if (workResult.accessibilityValues != null) {
+                    out.writeUInt32(workResult.accessibilityValues.length);
+                    for (int[][] values : workResult.accessibilityValues) {
+                        writeArray(out, values);
+                    }
+                }
+                if (workResult.unaffectedTaskRanges != null) {
+                    writeArray(out, workResult.unaffectedTaskRanges);
+                }
+            }
+            out.writeByte(END);
+            buffered.flush();
+            compressed.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read one batch of results from the given stream, passing each one to the handler as soon as it is decoded.
+     * Results before any error in the stream will already have been handled when the exception is thrown.
+     * @return the number of results read.
+     */
+    public static int read (InputStream inputStream, Consumer<RegionalWorkResult> handler) throws IOException {
+        DataInputStream header = new DataInputStream(inputStream);
+        byte[] headerBytes = new byte[HEADER.length];
+        header.readFully(headerBytes);
+        for (int i = 0; i < HEADER.length; i++) {
+            if (headerBytes[i] != HEADER[i]) {
+                throw new IOException("Stream does not contain regional work results.");
+            }
+        }
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported regional work result format version " + version);
+        }
+        int compression = header.readUnsignedByte();
+        Inflater inflater = null;
+        InputStream body;
+        if (compression == COMPRESSION_DEFLATE) {
+            inflater = new Inflater();
+            body = new InflaterInputStream(inputStream, inflater);
+        } else if (compression == COMPRESSION_NONE) {
+            body = inputStream;
+        } else {
+            throw new IOException("Unsupported regional work result compression " + compression);
+        }
+        try {
+            VarIntInputStream in = new VarIntInputStream(new BufferedInputStream(body));
+            List<String> jobIds = new ArrayList<>();
+            int nResults = 0;
+            while (true) {
+                int marker = in.readRawByte();
+                if (marker == END) break;
+                if (marker != RESULT) {
+                    throw new IOException("Regional work results are corrupted or truncated.");
+                }
+                RegionalWorkResult workResult = new RegionalWorkResult();
+                int jobIndex = readLength(in, jobIds.size(), "job index");
+                if (jobIndex == jobIds.size()) {
+                    jobIds.add(new String(in.readBytes(readLength(in, MAX_JOB_ID_BYTES, "job ID")), UTF_8));
+                }
+                workResult.jobId = jobIds.get(jobIndex);
+                workResult.taskId = readLength(in, Integer.MAX_VALUE, "task ID");
+                int flags = in.readRawByte();
+                if ((flags & HAS_TRAVEL_TIMES) != 0) {
+                    // Travel times are stored per percentile, then per destination.
+                    workResult.travelTimeValues = readArray2D(in, AnalysisWorkerTask.MAX_PERCENTILES, MAX_POINTS);
+                }
+                if ((flags & HAS_ACCESSIBILITY) != 0) {
+                    // Accessibility is stored per destination point set, then per percentile, then per cutoff.
+                    int[][][] accessibilityValues =
+                            new int[readLength(in, MAX_DESTINATION_POINT_SETS, "destination point sets")][][];
+                    for (int d = 0; d < accessibilityValues.length; d++) {
+                        accessibilityValues[d] = readArray2D(in, AnalysisWorkerTask.MAX_PERCENTILES, MAX_CUTOFFS);
+                    }
+                    workResult.accessibilityValues = accessibilityValues;
+                }
+                if ((flags & HAS_UNAFFECTED_TASK_RANGES) != 0) {
+                    // Runs of unaffected origins are stored as start and end task IDs, at most one run per origin.
+                    workResult.unaffectedTaskRanges = readArray(in, MAX_POINTS * 2);
+                }
+                handler.accept(workResult);
+                nResults += 1;
+            }
+            return nResults;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static void writeArray (VarIntOutputStream out, int[][] values) throws IOException {
+        out.writeUInt32(values.length);
+        for (int[] row : values) {
+            writeArray(out, row);
+        }
+    }
+
+    /** Write the length of the array followed by the differences between successive values. */
+    private static void writeArray (VarIntOutputStream out, int[] values) throws IOException {
+        out.writeUInt32(values.length);
+        int lastValue = 0;
+        for (int value : values) {
+            // Overflow is harmless here: the reader's addition wraps around in the same way.
+            out.writeSInt32(value - lastValue);
+            lastValue = value;
+        }
+    }
+
+    private static int[][] readArray2D (VarIntInputStream in, int maxLength, int maxRowLength) throws IOException {
+        int[][] values = new int[readLength(in, maxLength, "array")][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readArray(in, maxRowLength);
+        }
+        return values;
+    }
+
+    private static int[] readArray (VarIntInputStream in, int maxLength) throws IOException {
+        int[] values = new int[readLength(in, maxLength, "array")];
+        int lastValue = 0;
+        for (int i = 0; i < values.length; i++) {
+            lastValue += in.readSInt32();
+            values[i] = lastValue;
+        }
+        return values;
+    }
+
+    /**
+     * Read an unsigned length or index, which may have any 32-bit value in a corrupted batch.
+     * @throws IOException if the value is negative when read as a signed int, or greater than the given maximum.
+     */
+    private static int readLength (VarIntInputStream in, int max, String name) throws IOException {
+        int length = in.readUInt32();
+        if (length < 0 || length > max) {
+            throw new IOException(String.format("Regional work results are corrupted: %s %s is greater than %d.",
+                    name, Integer.toUnsignedString(length), max));
+        }
+        return length;
+    }
+
+}
@@ -2,6 +2,7 @@ package com.conveyal.r5.analyst.cluster;
 
 import com.conveyal.analysis.BackendVersion;
 import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.profile.SearchContext;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
 import com.google.common.collect.Sets;
@@ -11,6 +12,7 @@ import org.slf4j.LoggerFactory;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashSet;
@@ -50,6 +52,28 @@ public class WorkerStatus {
     public String ipAddress;
     public List<RegionalWorkResult> results;
 
+    /**
+     * The number of regional tasks this worker can queue without waiting, which is the most the broker should send it
+     * in response to this poll. Workers that do not report this are sent a fixed number of tasks.
+     */
+    public int freeTaskSlots = -1;
+
+    /** Total bytes of large search buffers allocated by per-thread SearchContexts since the worker started. */
+    public long searchBufferBytesAllocated;
+
+    /** Total bytes of large search buffers reused by per-thread SearchContexts instead of being allocated. */
+    public long searchBufferBytesReused;
+
+    /**
+     * Bytes allocated on the heap per second by all live threads since the previous status was created, or -1 if the
+     * JVM does not support measuring per-thread allocation.
+     */
+    public double allocationRateBytesPerSecond;
+
+    /** The values used to compute allocationRateBytesPerSecond at the previous status report. */
+    private static long previousAllocatedBytes = -1;
+    private static long previousAllocationSampleNanos;
+
     /** No-arg constructor used when deserializing. */
     public WorkerStatus() { }
 
@@ -72,6 +96,7 @@ public class WorkerStatus {
         networks = Sets.newHashSet(worker.networkId);
         scenarios = worker.networkPreloader.transportNetworkCache.getAppliedScenarios();
         ec2 = worker.ec2info;
+        freeTaskSlots = worker.getFreeRegionalTaskSlots();
 
         OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
         architecture = operatingSystemMXBean.getArch();
@@ -92,6 +117,10 @@ public class WorkerStatus {
         memoryTotal = runtime.totalMemory();
         memoryFree = runtime.freeMemory();
 
+        searchBufferBytesAllocated = SearchContext.getTotalBytesAllocated();
+        searchBufferBytesReused = SearchContext.getTotalBytesReused();
+        allocationRateBytesPerSecond = sampleAllocationRate();
+
         if (ec2.privateIp != null) {
             // Give priority to the private IP address if running on EC2
             ipAddress = ec2.privateIp;
@@ -106,6 +135,35 @@ public class WorkerStatus {
         }
     }
 
+    /**
+     * Find the total number of bytes allocated by all live threads, and divide the increase since the last call by the
+     * time elapsed. The first call only records a sample and returns zero.
+     */
+    private static synchronized double sampleAllocationRate () {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!allocationMXBean.isThreadAllocatedMemorySupported() || !allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long allocatedBytes = 0;
+        for (long bytes : allocationMXBean.getThreadAllocatedBytes(allocationMXBean.getAllThreadIds())) {
+            // Threads that have terminated since their IDs were fetched are reported as -1.
+            if (bytes > 0) allocatedBytes += bytes;
+        }
+        long sampleNanos = System.nanoTime();
+        double rate = 0;
+        if (previousAllocatedBytes >= 0) {
+            double elapsedSeconds = (sampleNanos - previousAllocationSampleNanos) / 1e9;
+            // The total can decrease when threads terminate, so never report a negative rate.
+            long increase = Math.max(0, allocatedBytes - previousAllocatedBytes);
+            rate = elapsedSeconds > 0 ? increase / elapsedSeconds : 0;
+        }
+        previousAllocatedBytes = allocatedBytes;
+        previousAllocationSampleNanos = sampleNanos;
+        return rate;
+    }
+
     /**
      * Return a single network ID or null, rather than a list of loaded network IDs.
      * This is a stopgap measure until workers can cache more than one loaded network.
@@ -68,6 +68,26 @@ public abstract class DecayFunction {
      */
     public abstract void prepare ();
 
+    /**
+     * Tabulate the weights this function returns for a single cutoff at every whole second of travel time up to (but
+     * not including) the given zero point, so that weights can be looked up rather than computed in tight loops.
+     * For a handful of cutoffs this is a small table that stays in cache, unlike a table covering every possible
+     * cutoff. Some functions (logistic and exponential) call exp() for every weight, so when evaluating
+     * accessibility to many destinations the lookup is much faster than calling computeWeight repeatedly. The tabulated
+     * values are exactly those returned by computeWeight.
+     *
+     * @param zeroPointSeconds the value returned by reachesZeroAt for this cutoff. Travel times at or above this point
+     *                         have zero weight and are not included in the table.
+     * @return an array of weights indexed by travel time in seconds.
+     */
+    public double[] computeWeightTable (int cutoffSeconds, int zeroPointSeconds) {
+        double[] weights = new double[zeroPointSeconds];
+        for (int t = 0; t < zeroPointSeconds; t++) {
+            weights[t] = computeWeight(cutoffSeconds, t);
+        }
+        return weights;
+    }
+
     /**
      * For functions without a simple analytic solution, find the effective zero point by bisection.
      * Adapted from Python's bisect_right function. Quick benchmarks show effective search time is under one msec.
@@ -9,8 +9,8 @@ import static org.apache.commons.math3.util.FastMath.sqrt;
  * The logistic cumulative distribution function, expressed such that parameters are the median (inflection
  * point) and standard deviation. From Bauer and Groneberg equation 9. This applies a sigmoid rolloff.
  * The parameters can be set to reflect the mean and standard deviation of travel times in the commuting population.
- * Number crunching is typically much faster than memory access on modern machines, we should only implement a
- * table-lookup optimization if we can show significant slowdown due to these on the fly calculations.
+ * This calls exp() for every weight, so when computing accessibility the TravelTimeReducer looks weights up in small
+ * per-cutoff tables (see DecayFunction.computeWeightTable) rather than calling computeWeight in its innermost loop.
  */
 public class LogisticDecayFunction extends DecayFunction {
 
@@ -3,10 +3,13 @@ package com.conveyal.r5.analyst.scenario;
 import com.beust.jcommander.internal.Lists;
 import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.error.TaskError;
+import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.transit.TransferFinder;
-import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
-import org.locationtech.jts.geom.Geometry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -147,11 +150,8 @@ public class Scenario implements Serializable {
 
         // Rebuild edge lists to account for changes from scenario application
         copiedNetwork.streetLayer.buildEdgeLists();
-        // TODO Elaborate on this
-        // Rebuild distance tables affected by street network changes
-        Geometry treeRebuildZone =
-                copiedNetwork.streetLayer.scenarioEdgesBoundingGeometry(TransitLayer.WALK_DISTANCE_LIMIT_METERS);
-        copiedNetwork.transitLayer.buildDistanceTables(treeRebuildZone);
+        // Rebuild distance tables for new stops and for stops whose existing search trees reach changed streets.
+        copiedNetwork.transitLayer.rebuildDistanceTablesAffectedByScenario();
         
         // Find the transfers originating at or terminating at new stops.
         // TODO also rebuild transfers which are near street network changes but which do not connect to new stops.
@@ -171,6 +171,40 @@ public class Scenario implements Serializable {
         return copiedNetwork;
     }
 
+    /**
+     * Put the modifications in canonical order, then compute a hash of the content of each leading subsequence of the
+     * ordered modifications. The last element identifies the whole scenario by content: two scenarios with different
+     * IDs but the same modifications in the same order have the same final hash, and will produce the same network
+     * when applied to the same base network. Each hash is computed from the previous one and the JSON of the next
+     * modification, so if one scenario's modifications are a prefix of another's, the same hash appears in both lists.
+     * Free-text comments and warnings left by any earlier application do not affect the result of applying a
+     * modification, so they are excluded.
+     * @return one hexadecimal hash string for each modification, or a single hash of no content if there are none.
+     */
+    public List<String> getModificationPrefixHashes () {
+        modifications.sort(Comparator.comparingInt(Modification::getSortOrder));
+        List<String> prefixHashes = new ArrayList<>();
+        HashCode hash = Hashing.sha256().hashBytes(new byte[0]);
+        try {
+            for (Modification modification : modifications) {
+                ObjectNode json = JsonUtilities.objectMapper.valueToTree(modification);
+                json.remove("comment");
+                json.remove("warnings");
+                hash = Hashing.sha256().newHasher()
+                        .putBytes(hash.asBytes())
+                        .putBytes(JsonUtilities.objectMapper.writeValueAsBytes(json))
+                        .hash();
+                prefixHashes.add(hash.toString());
+            }
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Could not serialize modification to compute scenario content hash.", e);
+        }
+        if (prefixHashes.isEmpty()) {
+            prefixHashes.add(hash.toString());
+        }
+        return prefixHashes;
+    }
+
     /**
      * @return true if applying this scenario will cause changes to the StreetLayer of a TransportNetwork.
      * This indicates whether a protective copy must be made of the StreetLayer, whether the resulting
@@ -59,13 +59,13 @@ public class Stop {
         wheelchairBoarding = transitLayer.stopsWheelchair.get(stopIdx);
 
         if (fillMode) {
-            final int[] patternidx = new int[1];
-            transitLayer.patternsForStop.get(stopIdx).forEach(p -> {
-                patternidx[0] = p;
-                return false;
-            });
+            // Use the first pattern passing through this stop (or pattern zero if there is none).
+            int patternidx = 0;
+            if (transitLayer.firstPatternForStop[stopIdx] < transitLayer.firstPatternForStop[stopIdx + 1]) {
+                patternidx = transitLayer.patternsForStop[transitLayer.firstPatternForStop[stopIdx]];
+            }
 
-            com.conveyal.r5.transit.TripPattern pattern = transitLayer.tripPatterns.get(patternidx[0]);
+            com.conveyal.r5.transit.TripPattern pattern = transitLayer.tripPatterns.get(patternidx);
             RouteInfo routeInfo = transitLayer.routes.get(pattern.routeIndex);
             mode = TransitLayer.getTransitModes(routeInfo.route_type);
         }
@@ -6,12 +6,18 @@ import com.conveyal.kryo.TIntArrayListSerializer;
 import com.conveyal.kryo.TIntIntHashMapSerializer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.ReferenceResolver;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.CollectionSerializer;
 import com.esotericsoftware.kryo.serializers.ExternalizableSerializer;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.esotericsoftware.kryo.util.DefaultStreamFactory;
 import com.esotericsoftware.kryo.util.MapReferenceResolver;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import gnu.trove.impl.hash.TPrimitiveHash;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -19,12 +25,26 @@ import org.objenesis.strategy.SerializingInstantiatorStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This class groups the static methods for saving and loading TransportNetworks.
@@ -38,8 +58,14 @@ public abstract class KryoNetworkSerializer {
 
     private static final Logger LOG = LoggerFactory.getLogger(KryoNetworkSerializer.class);
 
+    /** The header of files saved by previous versions of R5, holding the whole network in one Kryo stream. */
     public static final byte[] HEADER = "R5NETWORK".getBytes();
 
+    /** The header of files holding a network in independently compressed sections. This is the same length as HEADER. */
+    public static final byte[] SECTIONED_HEADER = "R5NETSECT".getBytes();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /** Set this to true to count instances and print a report including which serializer is handling each class. */
     private static final boolean COUNT_CLASS_INSTANCES = false;
 
@@ -85,46 +111,228 @@ public abstract class KryoNetworkSerializer {
     }
 
     /**
-     * Serialize the supplied network using Kryo, storing the result in a file.
+     * Serialize the supplied network using Kryo, storing the result in a file. The network is split into sections
+     * which are each serialized and compressed by their own Kryo instance, so they can later be read in parallel.
+     * Each section is compressed straight into the file rather than into memory, so saving a large network does not
+     * need room for a compressed copy of it. The file begins with a header, followed by the sections, then an index
+     * giving the name, root class, and position of each section within the file. The last eight bytes of the file give
+     * the position of that index. Objects that are the root of one section (such as the StreetLayer) are only written
+     * out in that section. Any references to them from other sections are written as Kryo references to objects that
+     * have already been seen, so the shape of the object graph is reproduced exactly when the file is read.
      */
     public static void write (TransportNetwork network, File file) throws IOException {
         LOG.info("Writing transport network...");
-        Output output = new Output(new FileOutputStream(file));
-        Kryo kryo = makeKryo();
-        output.write(HEADER);
-        kryo.writeObject(output, BackendVersion.instance.version);
-        kryo.writeObject(output, BackendVersion.instance.commit);
-        kryo.writeObject(output, network);
-        output.close();
+        List<Section> sections = new ArrayList<>();
+        List<Object> roots = new ArrayList<>();
+        for (Section section : Section.values()) {
+            Object root = section.getRoot(network);
+            if (root != null) {
+                sections.add(section);
+                roots.add(root);
+            }
+        }
+        List<SectionEntry> entries = new ArrayList<>();
+        CountingOutputStream countingOutput = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        try (DataOutputStream output = new DataOutputStream(countingOutput)) {
+            output.write(SECTIONED_HEADER);
+            output.writeUTF(BackendVersion.instance.version);
+            output.writeUTF(BackendVersion.instance.commit);
+            output.flush();
+            for (int i = 0; i < sections.size(); i++) {
+                entries.add(writeSection(sections.get(i), roots, i, countingOutput));
+            }
+            long indexPosition = countingOutput.getCount();
+            output.writeInt(entries.size());
+            for (SectionEntry entry : entries) {
+                output.writeUTF(entry.section.name());
+                output.writeUTF(entry.className);
+                output.writeLong(entry.offset);
+                output.writeLong(entry.compressedLength);
+                output.writeLong(entry.uncompressedLength);
+            }
+            output.writeLong(indexPosition);
+        }
         LOG.info("Done writing.");
+    }
+
+    /**
+     * Serialize and compress one section of a network onto the end of the given stream, leaving the stream open. All
+     * the other section roots are registered with the Kryo instance as objects it has already written, in the same
+     * order they will be registered when reading.
+     */
+    private static SectionEntry writeSection (Section section, List<Object> roots, int sectionIndex,
+                                              CountingOutputStream fileOutput) throws IOException {
+        Kryo kryo = makeKryo();
+        ReferenceResolver referenceResolver = kryo.getReferenceResolver();
+        for (int i = 0; i < roots.size(); i++) {
+            if (i != sectionIndex) referenceResolver.addWrittenObject(roots.get(i));
+        }
+        Object root = roots.get(sectionIndex);
+        SectionEntry entry = new SectionEntry(section, root.getClass().getName());
+        entry.offset = fileOutput.getCount();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream compressedOutput = new DeflaterOutputStream(fileOutput, deflater, BUFFER_SIZE);
+            Output output = new Output(compressedOutput, BUFFER_SIZE);
+            kryo.writeObject(output, root);
+            // Finish the compressed stream without closing the file, which the following sections are written to.
+            output.flush();
+            compressedOutput.finish();
+            entry.uncompressedLength = output.total();
+        } finally {
+            deflater.end();
+        }
+        entry.compressedLength = fileOutput.getCount() - entry.offset;
+        LOG.info("Network section {} is {} MB, compressed to {} MB.", section,
+                entry.uncompressedLength / 1_000_000, entry.compressedLength / 1_000_000);
         if (COUNT_CLASS_INSTANCES) {
             ((InstanceCountingClassResolver)kryo.getClassResolver()).summarize();
         }
+        return entry;
     }
 
     /**
      * Read the given file and decode with Kryo into a new R5 TransportNetwork object.
      * Transient fields that were not serialized will be rebuilt (indexes and cached PointSet linkage).
+     * Files in the sectioned format are read in parallel, and files saved in the older single-stream format by
+     * previous versions of R5 are still read on a single thread.
      */
     public static TransportNetwork read (File file) throws Exception {
         LOG.info("Reading transport network...");
+        byte[] header = new byte[HEADER.length];
+        List<SectionEntry> entries = new ArrayList<>();
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.readFully(header);
+            if (Arrays.equals(HEADER, header)) {
+                return readSingleStream(file);
+            }
+            if (!Arrays.equals(SECTIONED_HEADER, header)) {
+                throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network?");
+            }
+            String version = input.readUTF();
+            String commit = input.readUTF();
+            LOG.info("Loading {} file saved by R5 version {} commit {}", new String(header), version, commit);
+            checkVersion(version);
+            input.seek(input.length() - Long.BYTES);
+            input.seek(input.readLong());
+            int nSections = input.readInt();
+            for (int i = 0; i < nSections; i++) {
+                SectionEntry entry = new SectionEntry(Section.valueOf(input.readUTF()), input.readUTF());
+                entry.offset = input.readLong();
+                entry.compressedLength = input.readLong();
+                entry.uncompressedLength = input.readLong();
+                entries.add(entry);
+            }
+        }
+        // Create an empty instance of every section root before reading any sections. Each section is then read into
+        // its own root instance, while references to the roots of other sections resolve to the instances created
+        // here, even if they have not been filled in yet.
+        Kryo kryo = makeKryo();
+        List<Object> roots = new ArrayList<>();
+        for (SectionEntry entry : entries) {
+            roots.add(kryo.newInstance(Class.forName(entry.className)));
+        }
+        // The linkages are stored in hash maps keyed on point sets, whose hash codes depend on their contents.
+        // They are therefore read only after all the other sections are complete.
+        IntStream.range(0, entries.size()).parallel()
+                .filter(i -> entries.get(i).section != Section.LINKAGES)
+                .forEach(i -> readSection(file, entries, roots, i));
+        IntStream.range(0, entries.size())
+                .filter(i -> entries.get(i).section == Section.LINKAGES)
+                .forEach(i -> readSection(file, entries, roots, i));
+        TransportNetwork result = null;
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).section == Section.NETWORK) result = (TransportNetwork) roots.get(i);
+        }
+        LOG.info("Done reading.");
+        return finishReading(result);
+    }
+
+    /** Decompress and deserialize one section of a file into the root instance that was already created for it. */
+    private static void readSection (File file, List<SectionEntry> entries, List<Object> roots, int sectionIndex) {
+        Kryo kryo = makeKryo();
+        ReferenceResolver referenceResolver = kryo.getReferenceResolver();
+        for (int i = 0; i < roots.size(); i++) {
+            if (i != sectionIndex) {
+                Object root = roots.get(i);
+                referenceResolver.setReadObject(referenceResolver.nextReadId(root.getClass()), root);
+            }
+        }
+        SectionEntry entry = entries.get(sectionIndex);
+        Object root = roots.get(sectionIndex);
+        Inflater inflater = new Inflater();
+        try (FileInputStream fileInput = new FileInputStream(file)) {
+            fileInput.getChannel().position(entry.offset);
+            InputStream compressedInput = ByteStreams.limit(fileInput, entry.compressedLength);
+            Input input = new Input(new InflaterInputStream(compressedInput, inflater, BUFFER_SIZE));
+            kryo.readObject(input, root.getClass(), rootSerializer(kryo, root));
+            input.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** @return a Kryo serializer that reads the fields or elements of a section root into the given instance. */
+    private static Serializer rootSerializer (Kryo kryo, Object root) {
+        if (root instanceof Collection) {
+            return new CollectionSerializer() {
+                @Override
+                protected Collection create (Kryo kryo, Input input, Class<Collection> type) {
+                    return (Collection) root;
+                }
+            };
+        }
+        return new FieldSerializer(kryo, root.getClass()) {
+            @Override
+            protected Object create (Kryo kryo, Input input, Class type) {
+                return root;
+            }
+        };
+    }
+
+    /**
+     * Read a network saved by a previous version of R5, which wrote the whole network to a single Kryo stream.
+     */
+    private static TransportNetwork readSingleStream (File file) throws Exception {
         Input input = new Input(new FileInputStream(file));
         Kryo kryo = makeKryo();
         byte[] header = new byte[HEADER.length];
         input.read(header, 0, header.length);
-        if (!Arrays.equals(HEADER, header)) {
-            throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network?");
-        }
         String version = kryo.readObject(input, String.class);
         String commit = kryo.readObject(input, String.class);
         LOG.info("Loading {} file saved by R5 version {} commit {}", new String(header), version, commit);
+        checkVersion(version);
+        TransportNetwork result = kryo.readObject(input, TransportNetwork.class);
+        input.close();
+        LOG.info("Done reading.");
+        return finishReading(result);
+    }
+
+    /**
+     * Write the network to a single Kryo stream as done by previous versions of R5. This is retained only so tests can
+     * check that files in that format are still readable.
+     */
+    static void writeSingleStream (TransportNetwork network, File file) throws IOException {
+        Output output = new Output(new FileOutputStream(file));
+        Kryo kryo = makeKryo();
+        output.write(HEADER);
+        kryo.writeObject(output, BackendVersion.instance.version);
+        kryo.writeObject(output, BackendVersion.instance.commit);
+        kryo.writeObject(output, network);
+        output.close();
+    }
+
+    private static void checkVersion (String version) {
         if (!BackendVersion.instance.version.equals(version)) {
             throw new RuntimeException(String.format("File version %s is not compatible with this R5 version %s",
                     version, BackendVersion.instance.version));
         }
-        TransportNetwork result = kryo.readObject(input, TransportNetwork.class);
-        input.close();
-        LOG.info("Done reading.");
+    }
+
+    private static TransportNetwork finishReading (TransportNetwork result) {
         if (result.fareCalculator != null) {
             result.fareCalculator.transitLayer = result.transitLayer;
         }
@@ -132,4 +340,46 @@ public abstract class KryoNetworkSerializer {
         return result;
     }
 
+    /**
+     * The parts into which a network is split when it is saved. Each section holds the objects reachable from its
+     * root object, except for the roots of other sections. Sections whose root is null are not written.
+     */
+    enum Section {
+        NETWORK(network -> network),
+        GRID_POINT_SET(network -> network.fullExtentGridPointSet),
+        STREET_LAYER(network -> network.streetLayer),
+        VERTEX_STORE(network -> network.streetLayer == null ? null : network.streetLayer.vertexStore),
+        EDGE_STORE(network -> network.streetLayer == null ? null : network.streetLayer.edgeStore),
+        TRANSIT_LAYER(network -> network.transitLayer),
+        DISTANCE_TABLES(network -> network.transitLayer == null ? null
+                : network.transitLayer.stopToVertexDistanceTables),
+        LINKAGES(network -> network.linkageCache);
+
+        private final Function<TransportNetwork, Object> rootGetter;
+
+        Section (Function<TransportNetwork, Object> rootGetter) {
+            this.rootGetter = rootGetter;
+        }
+
+        Object getRoot (TransportNetwork network) {
+            return rootGetter.apply(network);
+        }
+    }
+
+    /** An entry in the index at the end of a sectioned network file. */
+    static class SectionEntry {
+        final Section section;
+        /** The class of the section's root object, which must be instantiated before reading any sections. */
+        final String className;
+        /** Position of the compressed section from the beginning of the file. */
+        long offset;
+        long compressedLength;
+        long uncompressedLength;
+
+        SectionEntry (Section section, String className) {
+            this.section = section;
+            this.className = className;
+        }
+    }
+
 }
@@ -122,6 +122,12 @@ public class TNBuilderConfig {
      */
     public String bikeRentalFile;
 
+    /**
+     * Store street edge geometries packed into a single array rather than as one small array per edge pair, which
+     * greatly reduces the number of objects on the heap for large networks. See PackedGeometryList.
+     */
+    public final boolean packEdgeGeometries;
+
     /** The fare calculator for analysis */
     public InRoutingFareCalculator analysisFareCalculator;
 
@@ -142,6 +148,7 @@ public class TNBuilderConfig {
         staticParkAndRide = true;
         staticBikeParkAndRide = false;
         bikeRentalFile = null;
+        packEdgeGeometries = false;
         speeds = SpeedConfig.defaultConfig();
         analysisFareCalculator = null;
     }
@@ -65,6 +65,11 @@ public class ExecutionTimer {
         this.stop();
     }
 
+    /** @return the total time accumulated by this timer over all start/stop cycles, in nanoseconds. */
+    public long getAccumulatedDurationNanos () {
+        return accumulatedDurationNanos;
+    }
+
     public String getMessage () {
         String description = running ? "[RUNNING]" : accumulatedDurationNanos / 1e9D + "s";
         return String.format("%s: %s", name, description);
@@ -3,11 +3,10 @@ package com.conveyal.r5.profile;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.transit.PickDropType;
 import com.conveyal.r5.transit.RouteInfo;
+import com.conveyal.r5.transit.TransferTable;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
-import gnu.trove.iterator.TIntIterator;
-import gnu.trove.list.TIntList;
 import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,8 +15,10 @@ import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.HALF_HEADWAY;
 import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.MONTE_CARLO;
@@ -116,6 +117,19 @@ public class FastRaptorWorker {
     /** The indexes of the trip patterns running on a given day with scheduled trips of selected modes. */
     private final BitSet runningScheduledPatterns = new BitSet();
 
+    /**
+     * Compact views of the scheduled trips running on the search date, for each pattern index set in
+     * runningScheduledPatterns. Other elements are null. These are built once per search in prefilterPatterns().
+     */
+    private FilteredPattern[] filteredPatterns;
+
+    /**
+     * Scratch space holding the patterns to explore in the next round, cleared and refilled in place each round to
+     * avoid allocating a new BitSet for every round. This one is used by the scheduled search and by frequency
+     * searches on the calling thread; Monte Carlo draws running in parallel each need their own.
+     */
+    private final BitSet patternsToExplore = new BitSet();
+
     /** Generates and stores departure time offsets for every frequency-based set of trips. */
     private final FrequencyRandomOffsets offsets;
 
@@ -141,13 +155,39 @@ public class FastRaptorWorker {
     /** If we're going to store paths to every destination (e.g. for static sites) then they'll be retained here. */
     public List<Path[]> pathsPerIteration;
 
+    /**
+     * Set to true to run the Monte Carlo draws at each departure minute in parallel on the common ForkJoin pool.
+     * This reduces the latency of single-point requests on frequency-heavy scenarios. It should not be enabled for
+     * regional analyses, which already keep all processors busy by handling many origins at once. Each draw uses its
+     * own FrequencyRandomOffsets seeded from the departure minute and draw number, so results are reproducible.
+     */
+    public boolean parallelFrequencyDraws = false;
+
+    /**
+     * If this is set, the large arrays used in the search and the travel times it returns are reused buffers held by
+     * this context, which are overwritten when the next origin is routed on the same thread.
+     */
+    public SearchContext searchContext = null;
+
     public FastRaptorWorker (TransitLayer transitLayer, ProfileRequest request, TIntIntMap accessStops) {
+        this(transitLayer, request, accessStops, new FrequencyRandomOffsets(transitLayer));
+    }
+
+    /**
+     * Create a worker whose sequential Monte Carlo draws use the supplied offsets. Tests can supply seeded offsets so
+     * that two searches make the same draws.
+     */
+    FastRaptorWorker (
+            TransitLayer transitLayer,
+            ProfileRequest request,
+            TIntIntMap accessStops,
+            FrequencyRandomOffsets offsets
+    ) {
         this.transit = transitLayer;
         this.request = request;
         this.accessStops = accessStops;
         this.servicesActive  = transit.getActiveServicesForDate(request.date);
-
-        offsets = new FrequencyRandomOffsets(transitLayer);
+        this.offsets = offsets;
 
         // compute number of minutes for scheduled search
         nMinutes = request.getTimeWindowLengthMinutes();
@@ -181,7 +221,8 @@ public class FastRaptorWorker {
                 nMinutes, monteCarloDrawsPerMinute, nIterations
             );
         }
-        int[][] travelTimesToStopsPerIteration = new int[nIterations][];
+        int[][] travelTimesToStopsPerIteration = (searchContext == null) ?
+                new int[nIterations][] : searchContext.getTravelTimesToStopsPerIteration(nIterations, nStops);
         if (retainPaths) pathsPerIteration = new ArrayList<>();
 
         // This main outer loop iterates backward over all minutes in the departure times window.
@@ -200,7 +241,8 @@ public class FastRaptorWorker {
             for (int[] arrivalTimesAtStops : resultsForDepartureMinute) {
                 // Make a protective copy of the arrival times, transforming them into travel times (durations).
                 checkState(arrivalTimesAtStops.length == nStops, "Result should contain one value per stop.");
-                int[] travelTimesToStops = new int[nStops];
+                int[] travelTimesToStops = (searchContext == null) ?
+                        new int[nStops] : travelTimesToStopsPerIteration[currentIteration];
                 for (int s = 0; s < nStops; s++) {
                     int arrivalTime = arrivalTimesAtStops[s];
                     travelTimesToStops[s] = (arrivalTime == UNREACHED) ? UNREACHED : arrivalTime - departureTime;
@@ -248,6 +290,7 @@ public class FastRaptorWorker {
      * defined to be on same route, and GTFS allows only one mode per route.
      */
     private void prefilterPatterns () {
+        filteredPatterns = new FilteredPattern[transit.tripPatterns.size()];
         for (int patternIndex = 0; patternIndex < transit.tripPatterns.size(); patternIndex++) {
             TripPattern pattern = transit.tripPatterns.get(patternIndex);
             RouteInfo routeInfo = transit.routes.get(pattern.routeIndex);
@@ -260,6 +303,7 @@ public class FastRaptorWorker {
                 // Schedule case is not an "else" clause because we support patterns with both frequency and schedule.
                 if (pattern.hasSchedules) {
                     runningScheduledPatterns.set(patternIndex);
+                    filteredPatterns[patternIndex] = new FilteredPattern(pattern, servicesActive);
                 }
             }
         }
@@ -275,11 +319,20 @@ public class FastRaptorWorker {
      * frequency-based routes within a single round, instead of applying them in two phases.)
      */
     private void initializeScheduleState (int departureTime) {
-        this.scheduleState = new RaptorState[request.maxRides + 1];
-        for (int r = 0; r < scheduleState.length; r++) {
-            scheduleState[r] = new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * SECONDS_PER_MINUTE);
-            scheduleState[r].departureTime = departureTime;
-            scheduleState[r].previous = (r == 0) ? null : scheduleState[r - 1];
+        final int maxDurationSeconds = request.maxTripDurationMinutes * SECONDS_PER_MINUTE;
+        if (searchContext != null) {
+            this.scheduleState = searchContext.getScheduleState(
+                    request.maxRides + 1, transit.getStopCount(), maxDurationSeconds);
+            for (RaptorState state : scheduleState) {
+                state.departureTime = departureTime;
+            }
+        } else {
+            this.scheduleState = new RaptorState[request.maxRides + 1];
+            for (int r = 0; r < scheduleState.length; r++) {
+                scheduleState[r] = new RaptorState(transit.getStopCount(), maxDurationSeconds);
+                scheduleState[r].departureTime = departureTime;
+                scheduleState[r].previous = (r == 0) ? null : scheduleState[r - 1];
+            }
         }
         // Add initial stops reached by the access mode (pre-transit)
         RaptorState initialState = scheduleState[0];
@@ -350,7 +403,7 @@ public class FastRaptorWorker {
                 scheduleState[round].minMergePrevious();
 
                 raptorTimer.scheduledSearchTransit.start();
-                doScheduledSearchForRound(scheduleState[round]);
+                doScheduledSearchForRound(scheduleState[round], patternsToExplore);
                 raptorTimer.scheduledSearchTransit.stop();
 
                 // If there are frequency routes, we will be randomizing the schedules (phase) of those routes.
@@ -361,7 +414,7 @@ public class FastRaptorWorker {
                 // Perhaps we should only do it when iterationsPerMinute is high (2 or more?)
                 if (ENABLE_OPTIMIZATION_FREQ_UPPER_BOUND && transit.hasFrequencies && boardingMode == MONTE_CARLO) {
                     raptorTimer.scheduledSearchFrequencyBounds.start();
-                    doFrequencySearchForRound(scheduleState[round], UPPER_BOUND);
+                    doFrequencySearchForRound(scheduleState[round], UPPER_BOUND, offsets, patternsToExplore);
                     raptorTimer.scheduledSearchFrequencyBounds.stop();
                 }
                 // Apply transfers to the scheduled result that will be reused for the previous departure minute.
@@ -383,37 +436,52 @@ public class FastRaptorWorker {
             raptorTimer.frequencySearch.start();
             int[][] result = new int[iterationsPerMinute][];
 
-            // In Monte Carlo mode, each iteration is a fresh randomization of frequency route offsets.
-            // In half-headway mode, only one iteration will happen and schedules will not be randomized.
-            for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
-                // Make a fresh copy of the upper bound travel times for each new randomized schedule (iteration).
-                // Array contains one state per round we're going to perform with this schedule.
-                RaptorState[] frequencyState = copyMultiRoundState(scheduleState);
-                if (boardingMode == MONTE_CARLO) {
-                    offsets.randomize();
+            if (parallelFrequencyDraws && boardingMode == MONTE_CARLO && iterationsPerMinute > 1) {
+                // Each draw is independent once the scheduled state is copied, so they can be run concurrently.
+                // The per-component timers and pattern scratch space are not threadsafe, so each draw gets its own.
+                Path[][] pathsPerDraw = retainPaths ? new Path[iterationsPerMinute][] : null;
+                IntStream.range(0, iterationsPerMinute).parallel().forEach(iteration -> {
+                    long startNanos = System.nanoTime();
+                    FrequencyRandomOffsets drawOffsets =
+                            new FrequencyRandomOffsets(transit, frequencyDrawSeed(departureTime, iteration));
+                    drawOffsets.randomize();
+                    RaptorState finalRoundState = runFrequencyDraw(drawOffsets, new RaptorTimer(), new BitSet(), null);
+                    result[iteration] = finalRoundState.bestNonTransferTimes;
+                    if (retainPaths) {
+                        pathsPerDraw[iteration] = pathToEachStop(finalRoundState);
+                    }
+                    raptorTimer.recordParallelDraw(System.nanoTime() - startNanos);
+                });
+                if (retainPaths) {
+                    pathsPerIteration.addAll(Arrays.asList(pathsPerDraw));
                 }
-                // Proceed through one round per transit ride; round 0 represents walking to transit stops from origin.
-                // Scan both scheduled and frequency routes to allow transferring back and forth between them.
-                for (int round = 1; round <= request.maxRides; round++) {
-                    frequencyState[round].minMergePrevious();
-
-                    raptorTimer.frequencySearchScheduled.start();
-                    doScheduledSearchForRound(frequencyState[round]);
-                    raptorTimer.frequencySearchScheduled.stop();
-
-                    raptorTimer.frequencySearchFrequency.start();
-                    doFrequencySearchForRound(frequencyState[round], boardingMode);
-                    raptorTimer.frequencySearchFrequency.stop();
-
-                    raptorTimer.frequencySearchTransfers.start();
-                    doTransfers(frequencyState[round]);
-                    raptorTimer.frequencySearchTransfers.stop();
+            } else {
+                // In Monte Carlo mode, each iteration is a fresh randomization of frequency route offsets.
+                // In half-headway mode, only one iteration will happen and schedules will not be randomized.
+                // Reused states are overwritten by every draw, so each draw's times are copied out of them before
+                // the next draw begins.
+                RaptorState[] frequencyState = null;
+                int[][] drawTimes = null;
+                if (searchContext != null) {
+                    frequencyState = searchContext.getFrequencyState(scheduleState.length, transit.getStopCount());
+                    drawTimes = searchContext.getFrequencyDrawTimes(iterationsPerMinute, transit.getStopCount());
                 }
-                // No need to make an additional protective copy, this state is already a copy of the scheduled state.
-                RaptorState finalRoundState = frequencyState[request.maxRides];
-                result[iteration] = finalRoundState.bestNonTransferTimes;
-                if (retainPaths) {
-                    pathsPerIteration.add(pathToEachStop(finalRoundState));
+                for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
+                    if (boardingMode == MONTE_CARLO) {
+                        offsets.randomize();
+                    }
+                    RaptorState finalRoundState =
+                            runFrequencyDraw(offsets, raptorTimer, patternsToExplore, frequencyState);
+                    if (drawTimes == null) {
+                        result[iteration] = finalRoundState.bestNonTransferTimes;
+                    } else {
+                        int[] times = finalRoundState.bestNonTransferTimes;
+                        System.arraycopy(times, 0, drawTimes[iteration], 0, times.length);
+                        result[iteration] = drawTimes[iteration];
+                    }
+                    if (retainPaths) {
+                        pathsPerIteration.add(pathToEachStop(finalRoundState));
+                    }
                 }
             }
             raptorTimer.frequencySearch.stop();
@@ -446,6 +514,60 @@ public class FastRaptorWorker {
         }
     }
 
+    /**
+     * Run all rounds of a single frequency search (one Monte Carlo draw, or the single half-headway search) on top of
+     * a copy of the current scheduled state, using the supplied frequency offsets and recording times in the supplied
+     * timer. This does not modify any shared state, so several draws may be run at once on different threads as long
+     * as each has its own offsets, timer and pattern scratch space.
+     * @param reusedState if non-null, states for each round that will be overwritten with a copy of the scheduled
+     *                    state instead of allocating a new copy.
+     * @return the state for the final round. No additional protective copy is needed, as it is already a copy.
+     */
+    private RaptorState runFrequencyDraw (
+            FrequencyRandomOffsets drawOffsets,
+            RaptorTimer timer,
+            BitSet patternsScratch,
+            RaptorState[] reusedState
+    ) {
+        // Make a fresh copy of the upper bound travel times for each new randomized schedule (iteration).
+        // Array contains one state per round we're going to perform with this schedule.
+        final RaptorState[] frequencyState;
+        if (reusedState != null) {
+            for (int r = 0; r < scheduleState.length; r++) {
+                reusedState[r].copyFrom(scheduleState[r]);
+            }
+            frequencyState = reusedState;
+        } else {
+            frequencyState = copyMultiRoundState(scheduleState);
+        }
+        // Proceed through one round per transit ride; round 0 represents walking to transit stops from origin.
+        // Scan both scheduled and frequency routes to allow transferring back and forth between them.
+        for (int round = 1; round <= request.maxRides; round++) {
+            frequencyState[round].minMergePrevious();
+
+            timer.frequencySearchScheduled.start();
+            doScheduledSearchForRound(frequencyState[round], patternsScratch);
+            timer.frequencySearchScheduled.stop();
+
+            timer.frequencySearchFrequency.start();
+            doFrequencySearchForRound(frequencyState[round], boardingMode, drawOffsets, patternsScratch);
+            timer.frequencySearchFrequency.stop();
+
+            timer.frequencySearchTransfers.start();
+            doTransfers(frequencyState[round]);
+            timer.frequencySearchTransfers.stop();
+        }
+        return frequencyState[request.maxRides];
+    }
+
+    /**
+     * Derive a random seed for one Monte Carlo draw at one departure minute. Departure times are less than a few days
+     * in seconds and draws per minute are far fewer than 2^20, so every draw in a search gets a distinct seed.
+     */
+    private static long frequencyDrawSeed (int departureTime, int draw) {
+        return ((long) departureTime << 20) + draw;
+    }
+
     /**
      * Make a deep copy of an array of RaptorState representing the initial street search and N transit rides (rounds).
      * The copy process clears the sets of flags showing which stops were updated in each round, and the chain of
@@ -481,15 +603,18 @@ public class FastRaptorWorker {
      * A sub-step in the process of performing a RAPTOR search at one specific departure time (at one specific minute).
      * This method handles only the routes that have exact schedules. There is another method that handles only the
      * other kind of routes: the frequency-based routes.
+     * @param patternsScratch a BitSet that will be cleared and reused to hold the patterns to explore.
      */
-    private void doScheduledSearchForRound (RaptorState outputState) {
+    private void doScheduledSearchForRound (RaptorState outputState, BitSet patternsScratch) {
         final RaptorState inputState = outputState.previous;
-        BitSet patternsToExplore = patternsToExploreInNextRound(inputState, runningScheduledPatterns, true);
+        BitSet patternsToExplore =
+                patternsToExploreInNextRound(inputState, runningScheduledPatterns, true, patternsScratch);
         for (int patternIndex = patternsToExplore.nextSetBit(0);
              patternIndex >= 0;
              patternIndex = patternsToExplore.nextSetBit(patternIndex + 1)
         ) {
             TripPattern pattern = transit.tripPatterns.get(patternIndex);
+            FilteredPattern filteredPattern = filteredPatterns[patternIndex];
             int onTrip = -1;
             int waitTime = 0;
             int boardTime = 0;
@@ -518,46 +643,25 @@ public class FastRaptorWorker {
                     pattern.pickups[stopPositionInPattern] != PickDropType.NONE
                 ) {
                     int earliestBoardTime = inputState.bestTimes[stop] + MINIMUM_BOARD_WAIT_SEC;
+                    // The filtered pattern contains only scheduled trips running on the day of the search, so there
+                    // is no need to skip over frequency trips or trips that are not running.
+                    int bestTripIdx;
                     if (onTrip == -1) {
-                        int candidateTripIndex = -1;
-                        for (TripSchedule candidateSchedule : pattern.tripSchedules) {
-                            candidateTripIndex++;
-                            if (!servicesActive.get(candidateSchedule.serviceCode) || candidateSchedule.headwaySeconds != null) {
-                                // frequency trip or not running
-                                continue;
-                            }
-                            if (earliestBoardTime < candidateSchedule.departures[stopPositionInPattern]) {
-                                // board this vehicle
-                                onTrip = candidateTripIndex;
-                                schedule = candidateSchedule;
-                                boardTime = candidateSchedule.departures[stopPositionInPattern];
-                                waitTime = boardTime - inputState.bestTimes[stop];
-                                boardStop = stop;
-                                break;
-                            }
-                        }
+                        bestTripIdx = filteredPattern.firstTripDepartingAfter(stopPositionInPattern, earliestBoardTime);
                     } else {
                         // We are already on a trip, but check if this stop was reached early enough to back up
                         // to an earlier trip on the same pattern.
-                        int bestTripIdx = onTrip;
-                        while (--bestTripIdx >= 0) {
-                            TripSchedule trip = pattern.tripSchedules.get(bestTripIdx);
-                            if (trip.headwaySeconds != null || !servicesActive.get(trip.serviceCode)) {
-                                // This is a frequency trip or it is not running on the day of the search.
-                                continue;
-                            }
-                            if (trip.departures[stopPositionInPattern] > earliestBoardTime) {
-                                onTrip = bestTripIdx;
-                                schedule = trip;
-                                boardTime = trip.departures[stopPositionInPattern];
-                                waitTime = boardTime - inputState.bestTimes[stop];
-                                boardStop = stop;
-                            } else {
-                                // The trip under consideration arrives too early,
-                                // stop searching since trips are sorted by departure time within a pattern.
-                                break;
-                            }
-                        }
+                        bestTripIdx = filteredPattern.earliestTripDepartingAfter(
+                                stopPositionInPattern, earliestBoardTime, onTrip
+                        );
+                    }
+                    if (bestTripIdx > -1 && bestTripIdx != onTrip) {
+                        // board this vehicle
+                        onTrip = bestTripIdx;
+                        schedule = filteredPattern.trips[bestTripIdx];
+                        boardTime = filteredPattern.departure(stopPositionInPattern, bestTripIdx);
+                        waitTime = boardTime - inputState.bestTimes[stop];
+                        boardStop = stop;
                     }
                 }
             }
@@ -591,14 +695,22 @@ public class FastRaptorWorker {
      *
      * TODO maybe convert all these functions to pure functions that create and output new round states.
      * @param frequencyBoardingMode see comments on enum values.
+     * @param frequencyOffsets the randomized offsets to use in MONTE_CARLO mode, ignored in other modes.
+     * @param patternsScratch a BitSet that will be cleared and reused to hold the patterns to explore.
      */
-    private void doFrequencySearchForRound (RaptorState outputState, FrequencyBoardingMode frequencyBoardingMode) {
+    private void doFrequencySearchForRound (
+            RaptorState outputState,
+            FrequencyBoardingMode frequencyBoardingMode,
+            FrequencyRandomOffsets frequencyOffsets,
+            BitSet patternsScratch
+    ) {
         final RaptorState inputState = outputState.previous;
         // Determine which routes are capable of improving on travel times in this round. Monte Carlo frequency searches
         // are applying randomized schedules that are not present in the accumulated range-raptor upper bound state.
         // Those randomized frequency routes may cascade improvements from updates made at previous departure minutes.
         final boolean withinMinute = (frequencyBoardingMode == UPPER_BOUND);
-        BitSet patternsToExplore = patternsToExploreInNextRound(inputState, runningFrequencyPatterns, withinMinute);
+        BitSet patternsToExplore =
+                patternsToExploreInNextRound(inputState, runningFrequencyPatterns, withinMinute, patternsScratch);
         for (int patternIndex = patternsToExplore.nextSetBit(0);
                  patternIndex >= 0;
                  patternIndex = patternsToExplore.nextSetBit(patternIndex + 1)
@@ -658,7 +770,7 @@ public class FastRaptorWorker {
                             //  this looks like a good candidate for polymorphism (board time strategy passed in).
                             //  The offset could be looked up by the getDepartureTime method itself, not passed in.
                             if (frequencyBoardingMode == MONTE_CARLO) {
-                                int offset = offsets.offsets.get(patternIndex)[tripScheduleIndex][frequencyEntryIdx];
+                                int offset = frequencyOffsets.offsets.get(patternIndex)[tripScheduleIndex][frequencyEntryIdx];
                                 newBoardingDepartureTimeAtStop = getRandomFrequencyDepartureTime(
                                         schedule,
                                         stopPositionInPattern,
@@ -846,17 +958,15 @@ public class FastRaptorWorker {
                  stop > 0;
                  stop = state.nonTransferStopsUpdated.nextSetBit(stop + 1)
         ) {
-            TIntList transfersFromStop = transit.transfersForStop.get(stop);
-            if (transfersFromStop != null) {
-                for (int i = 0; i < transfersFromStop.size(); i += 2) {
-                    int targetStop = transfersFromStop.get(i);
-                    int distanceToTargetStopMillimeters = transfersFromStop.get(i + 1);
-                    if (distanceToTargetStopMillimeters < maxWalkMillimeters) {
-                        int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
-                        checkState(walkTimeToTargetStopSeconds >= 0, "Transfer walk time must be positive.");
-                        int timeAtTargetStop = state.bestNonTransferTimes[stop] + walkTimeToTargetStopSeconds;
-                        state.setTimeAtStop(targetStop, timeAtTargetStop, -1, stop, 0, 0, true);
-                    }
+            final TransferTable transfers = transit.transfersForStop;
+            for (int i = 0, nTransfers = transfers.size(stop); i < nTransfers; i++) {
+                int targetStop = transfers.getTargetStop(stop, i);
+                int distanceToTargetStopMillimeters = transfers.getDistanceMillimeters(stop, i);
+                if (distanceToTargetStopMillimeters < maxWalkMillimeters) {
+                    int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
+                    checkState(walkTimeToTargetStopSeconds >= 0, "Transfer walk time must be positive.");
+                    int timeAtTargetStop = state.bestNonTransferTimes[stop] + walkTimeToTargetStopSeconds;
+                    state.setTimeAtStop(targetStop, timeAtTargetStop, -1, stop, 0, 0, true);
                 }
             }
         }
@@ -871,24 +981,49 @@ public class FastRaptorWorker {
      * in the accumulated state (as when we're layering on randomized frequency routes), updates must be cascaded from
      * things that happened in the other departure minutes - in this case the withinMinute parameter should be false.
      * The pattern indexes returned are limited to those in the supplied set, reflecting active service on a given day.
+     *
+     * Within a minute, the stops to consider are read directly from the bitset of stops updated in this round. Across
+     * minutes there is no such bitset, so every stop's time must be compared to the one in the previous round.
+     *
+     * @param patternsScratch a BitSet that will be cleared, filled and returned, to avoid allocating one every round.
      */
-    private BitSet patternsToExploreInNextRound (RaptorState state, BitSet runningPatterns, boolean withinMinute) {
+    private BitSet patternsToExploreInNextRound (
+            RaptorState state,
+            BitSet runningPatterns,
+            boolean withinMinute,
+            BitSet patternsScratch
+    ) {
         if (!ENABLE_OPTIMIZATION_UPDATED_STOPS) {
             // We do not write to the returned bitset, only iterate over it, so do not need to make a protective copy.
             return runningPatterns;
         }
-        BitSet patternsToExplore = new BitSet();
-        final int nStops = state.bestTimes.length;
-        for (int stop = 0; stop < nStops; stop++) {
-            if (!state.stopWasUpdated(stop, withinMinute)) continue;
-            TIntIterator patternsAtStop = transit.patternsForStop.get(stop).iterator();
-            while (patternsAtStop.hasNext()) {
-                int pattern = patternsAtStop.next();
-                if (runningPatterns.get(pattern)) {
-                    patternsToExplore.set(pattern);
+        patternsScratch.clear();
+        if (withinMinute) {
+            for (int stop = state.stopsUpdated.nextSetBit(0);
+                     stop >= 0;
+                     stop = state.stopsUpdated.nextSetBit(stop + 1)
+            ) {
+                markRunningPatternsAtStop(stop, runningPatterns, patternsScratch);
+            }
+        } else {
+            final int nStops = state.bestTimes.length;
+            for (int stop = 0; stop < nStops; stop++) {
+                if (state.stopWasUpdated(stop, false)) {
+                    markRunningPatternsAtStop(stop, runningPatterns, patternsScratch);
                 }
             }
         }
-        return patternsToExplore;
+        return patternsScratch;
+    }
+
+    /** Set the bits for all the patterns passing through the given stop that are also in the running set. */
+    private void markRunningPatternsAtStop (int stop, BitSet runningPatterns, BitSet patterns) {
+        final int end = transit.firstPatternForStop[stop + 1];
+        for (int i = transit.firstPatternForStop[stop]; i < end; i++) {
+            int pattern = transit.patternsForStop[i];
+            if (runningPatterns.get(pattern)) {
+                patterns.set(pattern);
+            }
+        }
     }
 }
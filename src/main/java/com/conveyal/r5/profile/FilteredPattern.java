@@ -0,0 +1,124 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A compact view of the scheduled trips on a single TripPattern, built once per RAPTOR search. Only trips that are
+ * running on the search date and that are not frequency-based are retained, so the innermost boarding search no longer
+ * needs to check service codes and headways for every candidate trip at every stop.
+ *
+ * Departure times are copied into one contiguous array in stop-major order: all the departure times of the retained
+ * trips at the first stop of the pattern, then all of those at the second stop and so on. This allows finding the
+ * earliest trip that can be boarded at a given stop with a binary search over a small slice of memory, rather than
+ * following a reference to every TripSchedule in turn.
+ *
+ * Binary search is only valid when departure times at each stop never decrease as the trip index increases, i.e. when
+ * no trip overtakes another. Trips within a pattern are sorted by departure time at the first stop, but GTFS does not
+ * prevent overtaking further down the pattern. When overtaking is detected we fall back on a linear scan that exactly
+ * reproduces the results of the original trip-by-trip search.
+ */
+public class FilteredPattern {
+
+    /** The scheduled trips on this pattern running on the search date, in the same order as in the TripPattern. */
+    public final TripSchedule[] trips;
+
+    /** The number of retained trips, which is also the stride between stops in the departures array. */
+    public final int nTrips;
+
+    /** The departure time of each retained trip at each stop, indexed as [stopPositionInPattern * nTrips + trip]. */
+    private final int[] departures;
+
+    /** True if at every stop in the pattern the departure times are non-decreasing from one trip to the next. */
+    private final boolean noOvertaking;
+
+    public FilteredPattern (TripPattern pattern, BitSet servicesActive) {
+        List<TripSchedule> runningTrips = new ArrayList<>();
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            if (schedule.headwaySeconds == null && servicesActive.get(schedule.serviceCode)) {
+                runningTrips.add(schedule);
+            }
+        }
+        trips = runningTrips.toArray(new TripSchedule[0]);
+        nTrips = trips.length;
+        final int nStops = pattern.stops.length;
+        departures = new int[nStops * nTrips];
+        boolean overtaking = false;
+        for (int s = 0; s < nStops; s++) {
+            int offset = s * nTrips;
+            for (int t = 0; t < nTrips; t++) {
+                departures[offset + t] = trips[t].departures[s];
+                if (t > 0 && departures[offset + t] < departures[offset + t - 1]) {
+                    overtaking = true;
+                }
+            }
+        }
+        noOvertaking = !overtaking;
+    }
+
+    /** @return the departure time of the given retained trip at the given stop position. */
+    public int departure (int stopPositionInPattern, int trip) {
+        return departures[stopPositionInPattern * nTrips + trip];
+    }
+
+    /**
+     * Find the first trip (in pattern order) departing the given stop strictly after the given time.
+     * @return the index of that trip within the retained trips, or -1 if no such trip exists.
+     */
+    public int firstTripDepartingAfter (int stopPositionInPattern, int time) {
+        final int offset = stopPositionInPattern * nTrips;
+        if (noOvertaking) {
+            int trip = firstIndexAfter(offset, nTrips, time);
+            return (trip < nTrips) ? trip : -1;
+        }
+        for (int t = 0; t < nTrips; t++) {
+            if (departures[offset + t] > time) return t;
+        }
+        return -1;
+    }
+
+    /**
+     * When already on board a trip, check whether we could have boarded an earlier trip at this stop. This steps back
+     * from the current trip as long as the earlier trips still depart strictly after the given time.
+     * @return the index of the earliest such trip, or currentTrip if there is no earlier trip that could be boarded.
+     */
+    public int earliestTripDepartingAfter (int stopPositionInPattern, int time, int currentTrip) {
+        final int offset = stopPositionInPattern * nTrips;
+        if (noOvertaking) {
+            int trip = firstIndexAfter(offset, currentTrip, time);
+            return (trip < currentTrip) ? trip : currentTrip;
+        }
+        int bestTrip = currentTrip;
+        for (int t = currentTrip - 1; t >= 0; t--) {
+            if (departures[offset + t] > time) {
+                bestTrip = t;
+            } else {
+                break;
+            }
+        }
+        return bestTrip;
+    }
+
+    /**
+     * Binary search for the lowest trip index in [0, limit) whose departure at the stop beginning at the given offset
+     * into the departures array is strictly after the given time. Returns limit if there is no such trip.
+     */
+    private int firstIndexAfter (int offset, int limit, int time) {
+        int low = 0;
+        int high = limit;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (departures[offset + mid] > time) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+}
@@ -16,6 +16,8 @@ import java.util.Arrays;
   * Therefore we have no memory of exactly which offsets were used in a particular Monte Carlo search.
   * It may be preferable to work with reproducible low-discrepancy sets instead of simple random samples, in which case
   * we'd need to make alternate implementations that pre-generate the entire set or use deterministic seeded generators.
+  * When Monte Carlo draws are run in parallel, each draw gets its own instance with a deterministic seed, so that the
+  * results do not depend on which thread handles which draw.
   */
 public class FrequencyRandomOffsets {
     /** map from trip pattern index to a list of offsets for trip i and frequency entry j on that pattern */
@@ -23,10 +25,20 @@ public class FrequencyRandomOffsets {
     public final TransitLayer data;
 
     /** The mersenne twister is a higher quality random number generator than the one included with Java */
-    private MersenneTwister mt = new MersenneTwister();
+    private final MersenneTwister mt;
 
     public FrequencyRandomOffsets(TransitLayer data) {
+        this(data, new MersenneTwister());
+    }
+
+    /** Create offsets whose successive randomizations are fully determined by the given seed. */
+    public FrequencyRandomOffsets(TransitLayer data, long seed) {
+        this(data, new MersenneTwister(seed));
+    }
+
+    private FrequencyRandomOffsets(TransitLayer data, MersenneTwister mt) {
         this.data = data;
+        this.mt = mt;
 
         if (!data.hasFrequencies)
             return;
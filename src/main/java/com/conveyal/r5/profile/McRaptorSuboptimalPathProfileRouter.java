@@ -6,12 +6,12 @@ import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.RouteInfo;
+import com.conveyal.r5.transit.TransferTable;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripFlag;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
-import gnu.trove.list.TIntList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TObjectIntMap;
@@ -135,11 +135,11 @@ public class McRaptorSuboptimalPathProfileRouter {
         // Optimization for modeify (PointToPointQuery): find patterns near destination
         // on the final round of the search we only explore these patterns
         if (this.egressTimes != null) {
+            final TransitLayer transitLayer = network.transitLayer;
             this.egressTimes.values().forEach(times -> times.forEachKey(s -> {
-                network.transitLayer.patternsForStop.get(s).forEach(p -> {
-                    patternsNearDestination.set(p);
-                    return true;
-                });
+                for (int i = transitLayer.firstPatternForStop[s]; i < transitLayer.firstPatternForStop[s + 1]; i++) {
+                    patternsNearDestination.set(transitLayer.patternsForStop[i]);
+                }
                 return true;
             }));
 
@@ -484,17 +484,17 @@ public class McRaptorSuboptimalPathProfileRouter {
         BitSet stopsTouchedByTransfer = new BitSet(network.transitLayer.getStopCount());
         double walkSpeedMillimetersPerSecond = request.walkSpeed * 1000;
         for (int stop = touchedStops.nextSetBit(0); stop >= 0; stop = touchedStops.nextSetBit(stop + 1)) {
-            TIntList transfers = network.transitLayer.transfersForStop.get(stop);
+            TransferTable transfers = network.transitLayer.transfersForStop;
 
             // okay to use bestStates directly here, it doesn't allow the router to ride two transit vehicles in one round.
             // because doTransfers only creates transfer states, it does not affect nonTransfer states.
             for (McRaptorState state : bestStates.get(stop).getNonTransferStates()) {
-                for (int transfer = 0; transfer < transfers.size(); transfer += 2) {
-                    int toStop = transfers.get(transfer);
-                    int distanceMillimeters = transfers.get(transfer + 1);
+                for (int transfer = 0; transfer < transfers.size(stop); transfer++) {
+                    int toStop = transfers.getTargetStop(stop, transfer);
+                    int distanceMillimeters = transfers.getDistanceMillimeters(stop, transfer);
                     int walkTimeSeconds = (int)(distanceMillimeters / walkSpeedMillimetersPerSecond);
                     if (addState(toStop, -1, -1, state.time + walkTimeSeconds, -1, -1, -1, state)) {
-                        String to = network.transitLayer.stopNames.get(transfers.get(transfer));
+                        String to = network.transitLayer.stopNames.get(toStop);
                         //LOG.info("Transfer from {} to {} is optimal", from, to);
 
                         stopsTouchedByTransfer.set(toStop);
@@ -583,11 +583,11 @@ public class McRaptorSuboptimalPathProfileRouter {
     private void markPatterns () {
         this.touchedPatterns.clear();
 
+        final TransitLayer transitLayer = network.transitLayer;
         for (int stop = touchedStops.nextSetBit(0); stop >= 0; stop = touchedStops.nextSetBit(stop + 1)) {
-            network.transitLayer.patternsForStop.get(stop).forEach(pat -> {
-                this.touchedPatterns.set(pat);
-                return true;
-            });
+            for (int i = transitLayer.firstPatternForStop[stop]; i < transitLayer.firstPatternForStop[stop + 1]; i++) {
+                this.touchedPatterns.set(transitLayer.patternsForStop[i]);
+            }
         }
 
         this.touchedStops.clear();
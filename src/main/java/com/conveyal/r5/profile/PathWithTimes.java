@@ -2,9 +2,9 @@ package com.conveyal.r5.profile;
 
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.Stats;
+import com.conveyal.r5.transit.TransferTable;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
-import gnu.trove.list.TIntList;
 import gnu.trove.map.TIntIntMap;
 
 import java.util.ArrayList;
@@ -114,16 +114,17 @@ public class PathWithTimes extends Path {
 
                 if (patIdx < this.length - 1) {
                     // find the transfer time
-                    TIntList transfers = network.transitLayer.transfersForStop.get(this.alightStops[patIdx]);
+                    TransferTable transfers = network.transitLayer.transfersForStop;
+                    int alightStop = this.alightStops[patIdx];
 
                     int transferTime;
 
                     if (this.alightStops[patIdx] != this.boardStops[patIdx + 1]) {
                         transferTime = -1;
 
-                        for (int i = 0; i < transfers.size(); i += 2) {
-                            if (transfers.get(i) == this.boardStops[patIdx + 1]) {
-                                int transferDistanceMillimeters = transfers.get(i + 1);
+                        for (int i = 0; i < transfers.size(alightStop); i++) {
+                            if (transfers.getTargetStop(alightStop, i) == this.boardStops[patIdx + 1]) {
+                                int transferDistanceMillimeters = transfers.getDistanceMillimeters(alightStop, i);
                                 transferTime = (int)(transferDistanceMillimeters / walkSpeedMillimetersPerSecond);
                                 break;
                             }
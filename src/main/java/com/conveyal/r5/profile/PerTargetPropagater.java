@@ -11,7 +11,6 @@ import com.conveyal.r5.streets.EgressCostTable;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
-import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +20,8 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
 
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
 /**
  * Given minimum travel times from a single origin point to all transit stops, this class finds minimum travel times to
  * a grid of destinations ("targets") by walking or biking or driving from the transit stops to the targets.
@@ -57,6 +58,9 @@ public class PerTargetPropagater {
     /** One linkage for each street mode for which we want to extend travel times out from transit to destinations. */
     private final List<LinkedPointSet> linkedTargets;
 
+    /** Cursors over the transposed egress cost table of each element of linkedTargets, reused for every target. */
+    private final List<EgressCostTable.PointCursor> pointCursors;
+
     /** the profilerequest (used for walk speed etc.) */
     public final ProfileRequest request;
 
@@ -66,6 +70,9 @@ public class PerTargetPropagater {
     /** If non-null, methods will be called on this object to select and write out paths for a static site.*/
     public PathWriter pathWriter;
 
+    /** If non-null, the transposed travel times to stops will be written into a buffer reused from this context. */
+    public SearchContext searchContext;
+
     /** Times at targets using the street network */
     private final int[] nonTransitTravelTimesToTargets;
 
@@ -137,10 +144,10 @@ public class PerTargetPropagater {
         nStops = travelTimesToStopsForIteration[0].length;
         nTargets = targets.featureCount();
         linkedTargets = new ArrayList<>(modes.size());
+        pointCursors = new ArrayList<>(modes.size());
 
         timer.fullPropagation.start();
         timer.transposition.start();
-        invertTravelTimes();
         if (nonTransitTravelTimesToTargets.length != nTargets) {
             throw new IllegalArgumentException("Non-transit travel times must have the same number of entries as there are points.");
         }
@@ -151,6 +158,7 @@ public class PerTargetPropagater {
             // region-wide baseline). Transposing them only when needed should save a lot of memory.
             linkedTargetsForMode.getEgressCostTable().destructivelyTransposeForPropagationAsNeeded();
             linkedTargets.add(linkedTargetsForMode);
+            pointCursors.add(linkedTargetsForMode.getEgressCostTable().getPointCursor());
         }
         timer.transposition.stop();
         // Prevent top-level timer from counting any intervening actions until caller calls propagate()
@@ -164,6 +172,10 @@ public class PerTargetPropagater {
     public OneOriginResult propagate () {
 
         timer.fullPropagation.start();
+        // This is done here rather than in the constructor so the caller has a chance to supply a SearchContext.
+        timer.transposition.start();
+        invertTravelTimes();
+        timer.transposition.stop();
 
         // perIterationTravelTimes and perIterationDetails are reused when processing each target.
         perIterationTravelTimes = new int[nIterations];
@@ -209,6 +221,14 @@ public class PerTargetPropagater {
                 pathScorer = new PathScorer(perIterationPaths, perIterationTravelTimes);
             }
 
+            // The reducer may sort perIterationTravelTimes in place, so find the lowest travel time before calling it.
+            int minTravelTime = UNREACHED;
+            if (calculateComponents) {
+                for (int travelTime : perIterationTravelTimes) {
+                    minTravelTime = Math.min(minTravelTime, travelTime);
+                }
+            }
+
             // Extract the requested percentiles and save them (and/or the resulting accessibility indicator values)
             int targetToWrite = oneToOne ? 0 : targetIdx;
             timer.reducer.start();
@@ -219,9 +239,8 @@ public class PerTargetPropagater {
                 // TODO Somehow report these in-vehicle, wait and walk breakdown values alongside the total travel time.
                 // TODO WalkTime should be calculated per-iteration, as it may not hold for some summary statistics
                 //      that stat(total) = stat(in-vehicle) + stat(wait) + stat(walk).
-                // The perIterationTravelTimes are sorted as a side effect of the above travelTimeReducer call.
-                // NOTE this is currently using only the first (lowest) travel time.
-                Set<Path> selectedPaths = pathScorer.getTopPaths(pathWriter.nPathsPerTarget, perIterationTravelTimes[0]);
+                // NOTE this is currently using only the lowest travel time.
+                Set<Path> selectedPaths = pathScorer.getTopPaths(pathWriter.nPathsPerTarget, minTravelTime);
                 pathWriter.recordPathsForTarget(selectedPaths);
             }
         }
@@ -252,12 +271,18 @@ public class PerTargetPropagater {
      * array being transposed and duplicated is 70,000 * 1000 * 4 bytes per int ~= 267 megabytes. It does not seem
      * worthwhile to change the routing algorithm to output already-transposed data, as that will create memory
      * locality problems elsewhere (since the pathfinding algorithm solves one iteration for all stops simultaneously).
+     *
+     * While transposing, all times at or above maxTravelTimeSeconds (including UNREACHED) are clamped to exactly
+     * maxTravelTimeSeconds. Such times can never yield a usable travel time at a target, and clamping them means a
+     * short egress time can be added to any transposed value without overflow, removing a check from the tight loop.
      */
     private void invertTravelTimes() {
-        travelTimesToStop = new int[nStops][nIterations];
+        travelTimesToStop = (searchContext == null) ?
+                new int[nStops][nIterations] : searchContext.getTravelTimesToStop(nStops, nIterations);
         for (int iteration = 0; iteration < nIterations; iteration++) {
             for (int stop = 0; stop < nStops; stop++) {
-                travelTimesToStop[stop][iteration] = travelTimesToStopsForIteration[iteration][stop];
+                travelTimesToStop[stop][iteration] =
+                        Math.min(travelTimesToStopsForIteration[iteration][stop], maxTravelTimeSeconds);
             }
         }
     }
@@ -274,8 +299,8 @@ public class PerTargetPropagater {
      */
     private void propagateTransit (int targetIndex) {
         // All linked pointsets are known to be for the same StreetLayer and PointSet, just different modes.
-        for (LinkedPointSet linkedPointSet : linkedTargets) {
-            propagateTransit(targetIndex, linkedPointSet);
+        for (int i = 0; i < linkedTargets.size(); i++) {
+            propagateTransit(targetIndex, linkedTargets.get(i), pointCursors.get(i));
         }
     }
 
@@ -286,12 +311,21 @@ public class PerTargetPropagater {
      * TODO verify if these are actually travel times (vs. clock times after midnight) and clarify code comments.
      * They appear to be travel times (are compared against cutoffSeconds which is a trip duration).
      */
-    private void propagateTransit (int targetIndex, LinkedPointSet linkedTargets) {
+    private void propagateTransit (
+            int targetIndex,
+            LinkedPointSet linkedTargets,
+            EgressCostTable.PointCursor pointToStopCosts
+    ) {
 
         // Grab the set of nearby stops for this target, with their distances.
         EgressCostTable egressCostTable = linkedTargets.getEgressCostTable();
-        TIntIntMap pointToStopLinkageCostTable = egressCostTable.getCostTableForPoint(targetIndex);
         StreetRouter.State.RoutingVariable unit = egressCostTable.linkageCostUnit;
+        if (unit != StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS &&
+                unit != StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+            throw new UnsupportedOperationException("Linkage costs have an unknown unit.");
+        }
+        final boolean costsAreDistances = (unit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS);
+        pointToStopCosts.seek(targetIndex);
 
         /**
          * Pre-compute and retain a pre-multiplied integer speed to avoid float math in the loop below.
@@ -307,65 +341,102 @@ public class PerTargetPropagater {
         // If handling car egress, and car hailing waiting times are defined, initialize with default hail wait time.
         // FIXME ensure this ^ is baked into the PickupDelay class
 
-        // Only try to propagate transit travel times if there are transit stops near this target.
+        // Only transit stops near this target are visited, and there may be none.
         // Even if we don't propagate transit travel times, we still need to pass these non-transit times to
         // the reducer later in the caller, because you can walk even where there is no transit.
-        if (pointToStopLinkageCostTable != null) {
-            // Propagate all iterations from each relevant alighting stop out to this target.
-            pointToStopLinkageCostTable.forEachEntry((stop, linkageCost) -> {
-                int secondsFromStopToTarget;
-                if (unit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) {
-                    secondsFromStopToTarget = linkageCost / speedMillimetersPerSecond;
-                } else if (unit == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
-                    secondsFromStopToTarget = linkageCost;
-                } else {
-                    throw new UnsupportedOperationException("Linkage costs have an unknown unit.");
-                }
-                if (secondsFromStopToTarget < egressLegTimeLimitSeconds){
-                    for (int iteration = 0; iteration < nIterations; iteration++) {
-                        int timeAtStop = travelTimesToStop[stop][iteration];
-                        if (timeAtStop >= maxTravelTimeSeconds || timeAtStop >= perIterationTravelTimes[iteration]) {
-                            // Skip propagation if all resulting times will be greater than the cutoff and
-                            // cannot improve on the best known time at this iteration. Also avoids overflow.
-                            continue;
-                        }
-
-                        // TODO shouldn't all the below egress delays be baked into linkedTargets.getEgressCostTable()
-                        //  .getCostTableForPoint(targetIndex)? At the end of the EgressCostTable constructor, we can
-                        //  see via linkedPointSet.streetLayer.waitTimePolygons (or a new wrapper class
-                        //  AccessEgressWaitTimes) whether each stop has an egress delay and add it in to all stops.
-                        //  Applying the pickup delay modification creates a new street layer, so a new linkage.
-
-                        // Account for any additional delay waiting for pickup at the egress stop.
-                        // FIXME This adds delays to regular BICYCLE egress if BICYCLE_RENT egress has previously been
-                        //  requested (triggering the building of egressStopDelayTables above, which leads to
-                        //  non-null egressStopDelaysSeconds). Maybe this is fine -- as with CAR, the delays should
-                        //  be ignored when running a scenario without pickup delay modifications.
-                        if ((linkedTargets.streetMode == StreetMode.CAR || linkedTargets.streetMode == StreetMode.BICYCLE)
-                                && linkedTargets.egressStopDelaysSeconds != null) {
-                                    int delayAtEgress = linkedTargets.egressStopDelaysSeconds[stop];
-                                    if (delayAtEgress < 0) {
-                                        // Pickup for this mode not allowed at this stop, so trove iteration should
-                                        // continue
-                                        return true;
-                                    } else {
-                                        secondsFromStopToTarget += delayAtEgress;
-                                    }
-                        }
-
-                        int timeAtTarget = timeAtStop + secondsFromStopToTarget;
-                        if (timeAtTarget < maxTravelTimeSeconds && timeAtTarget < perIterationTravelTimes[iteration]) {
-                            // To reach this target, alighting at this stop is faster than any previously checked stop.
-                            perIterationTravelTimes[iteration] = timeAtTarget;
-                            if (calculateComponents) {
-                                Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
-                                perIterationPaths[iteration] = pathsToStops[stop];
-                            }
-                        }
-                    }
+        // Egress delays only apply to some modes, and only when a scenario defines them.
+        // FIXME This adds delays to regular BICYCLE egress if BICYCLE_RENT egress has previously been
+        //  requested (triggering the building of egressStopDelayTables above, which leads to
+        //  non-null egressStopDelaysSeconds). Maybe this is fine -- as with CAR, the delays should
+        //  be ignored when running a scenario without pickup delay modifications.
+        final int[] egressStopDelaysSeconds =
+                (linkedTargets.streetMode == StreetMode.CAR || linkedTargets.streetMode == StreetMode.BICYCLE)
+                ? linkedTargets.egressStopDelaysSeconds : null;
+        // Propagate all iterations from each relevant alighting stop out to this target.
+        while (pointToStopCosts.advance()) {
+            final int stop = pointToStopCosts.getStop();
+            final int linkageCost = pointToStopCosts.getCost();
+            int secondsFromStopToTarget = costsAreDistances ? linkageCost / speedMillimetersPerSecond : linkageCost;
+            if (secondsFromStopToTarget >= egressLegTimeLimitSeconds) {
+                continue;
+            }
+
+            // TODO shouldn't egress delays be baked into the transposed linkedTargets.getEgressCostTable()?
+            //  At the end of the EgressCostTable constructor, we can
+            //  see via linkedPointSet.streetLayer.waitTimePolygons (or a new wrapper class
+            //  AccessEgressWaitTimes) whether each stop has an egress delay and add it in to all stops.
+            //  Applying the pickup delay modification creates a new street layer, so a new linkage.
+
+            // Account for any additional delay waiting for pickup at the egress stop. This is the same at every
+            // iteration so it is applied once per stop, outside the loop over iterations.
+            if (egressStopDelaysSeconds != null) {
+                int delayAtEgress = egressStopDelaysSeconds[stop];
+                if (delayAtEgress < 0) {
+                    // Pickup for this mode not allowed at this stop, so continue to the next stop.
+                    continue;
                 }
-                return true; // Trove "continue iteration" signal.
-            });
+                secondsFromStopToTarget += delayAtEgress;
+            }
+
+            if (calculateComponents) {
+                propagateTimesAndPathsFromStop(stop, secondsFromStopToTarget);
+            } else {
+                propagateTimesFromStop(
+                        travelTimesToStop[stop],
+                        secondsFromStopToTarget,
+                        maxTravelTimeSeconds,
+                        perIterationTravelTimes
+                );
+            }
+        }
+    }
+
+    /**
+     * The innermost loop of propagation in the common case where paths are not being recorded: for every iteration,
+     * improve the best known travel time at the target using the travel time to one nearby stop plus the egress time
+     * from that stop to the target. This is by far the hottest loop in regional analyses, so it is kept free of any
+     * mode-specific or path-related logic, with a single counted loop over primitive arrays that the JIT compiler can
+     * unroll and vectorize.
+     *
+     * @param travelTimesAtStop travel times to the stop for each iteration, clamped to maxTravelTimeSeconds so that
+     *                          adding the egress time cannot overflow (see invertTravelTimes).
+     * @param perIterationTravelTimes best known travel times to the target for each iteration, updated in place.
+     */
+    static void propagateTimesFromStop (
+            int[] travelTimesAtStop,
+            int secondsFromStopToTarget,
+            int maxTravelTimeSeconds,
+            int[] perIterationTravelTimes
+    ) {
+        final int nIterations = perIterationTravelTimes.length;
+        for (int iteration = 0; iteration < nIterations; iteration++) {
+            int timeAtTarget = travelTimesAtStop[iteration] + secondsFromStopToTarget;
+            int bestTime = perIterationTravelTimes[iteration];
+            perIterationTravelTimes[iteration] =
+                    (timeAtTarget < maxTravelTimeSeconds) ? Math.min(timeAtTarget, bestTime) : bestTime;
+        }
+    }
+
+    /**
+     * Equivalent to propagateTimesFromStop, but also records the path to the stop for every iteration where the
+     * travel time to the target is improved. This is only used when breaking down travel times or making static sites.
+     */
+    private void propagateTimesAndPathsFromStop (int stop, int secondsFromStopToTarget) {
+        final int[] travelTimesAtStop = travelTimesToStop[stop];
+        for (int iteration = 0; iteration < nIterations; iteration++) {
+            int timeAtStop = travelTimesAtStop[iteration];
+            if (timeAtStop >= maxTravelTimeSeconds || timeAtStop >= perIterationTravelTimes[iteration]) {
+                // Skip propagation if all resulting times will be greater than the cutoff and
+                // cannot improve on the best known time at this iteration.
+                continue;
+            }
+            int timeAtTarget = timeAtStop + secondsFromStopToTarget;
+            if (timeAtTarget < maxTravelTimeSeconds && timeAtTarget < perIterationTravelTimes[iteration]) {
+                // To reach this target, alighting at this stop is faster than any previously checked stop.
+                perIterationTravelTimes[iteration] = timeAtTarget;
+                Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
+                perIterationPaths[iteration] = pathsToStops[stop];
+            }
         }
     }
 
@@ -166,6 +166,46 @@ public class RaptorState {
         this.previous = null;
     }
 
+    /**
+     * Reinitialize this state for a new search, reusing its arrays. Afterward it is equivalent to a state freshly
+     * created by the constructor with the same number of stops and the given maximum duration.
+     */
+    public void reset (int maxDurationSeconds) {
+        this.maxDurationSeconds = maxDurationSeconds;
+        Arrays.fill(bestTimes, UNREACHED);
+        Arrays.fill(bestNonTransferTimes, UNREACHED);
+        Arrays.fill(previousPatterns, -1);
+        Arrays.fill(previousStop, -1);
+        Arrays.fill(transferStop, -1);
+        Arrays.fill(nonTransferWaitTime, 0);
+        Arrays.fill(nonTransferInVehicleTravelTime, 0);
+        stopsUpdated.clear();
+        nonTransferStopsUpdated.clear();
+        this.departureTime = 0;
+        this.previous = null;
+    }
+
+    /**
+     * Overwrite this state with the contents of another state for the same number of stops, reusing this state's
+     * arrays. Like copy(), the sets of stops updated are cleared. The reference to the previous round's state is left
+     * unchanged, as it should refer to another reused state set up by the caller.
+     */
+    public void copyFrom (RaptorState state) {
+        final int nStops = bestTimes.length;
+        checkArgument(state.bestTimes.length == nStops, "Can only copy a state for the same number of stops.");
+        System.arraycopy(state.bestTimes, 0, bestTimes, 0, nStops);
+        System.arraycopy(state.bestNonTransferTimes, 0, bestNonTransferTimes, 0, nStops);
+        System.arraycopy(state.previousPatterns, 0, previousPatterns, 0, nStops);
+        System.arraycopy(state.previousStop, 0, previousStop, 0, nStops);
+        System.arraycopy(state.transferStop, 0, transferStop, 0, nStops);
+        System.arraycopy(state.nonTransferWaitTime, 0, nonTransferWaitTime, 0, nStops);
+        System.arraycopy(state.nonTransferInVehicleTravelTime, 0, nonTransferInVehicleTravelTime, 0, nStops);
+        stopsUpdated.clear();
+        nonTransferStopsUpdated.clear();
+        this.departureTime = state.departureTime;
+        this.maxDurationSeconds = state.maxDurationSeconds;
+    }
+
     /**
      * Makes a deep copy of this raptor state. Everything is replicated, except the sets of stops updated in this round
      * (which are cleared) and the reference to the previous round's state (which is nulled out).
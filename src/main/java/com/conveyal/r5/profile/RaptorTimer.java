@@ -1,10 +1,17 @@
 package com.conveyal.r5.profile;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * This groups together all the timers recording execution time of various steps of a range raptor search.
  */
 public class RaptorTimer {
 
+    private static final Logger LOG = LoggerFactory.getLogger(RaptorTimer.class);
+
     public final ExecutionTimer fullSearch = new ExecutionTimer("Full range-Raptor search");
 
     public final ExecutionTimer scheduledSearch = new ExecutionTimer(fullSearch, "Scheduled/bounds search");
@@ -19,8 +26,26 @@ public class RaptorTimer {
     public final ExecutionTimer frequencySearchScheduled = new ExecutionTimer(frequencySearch, "Resulting updates to scheduled component");
     public final ExecutionTimer frequencySearchTransfers = new ExecutionTimer(frequencySearch, "Transfers");
 
+    /**
+     * When Monte Carlo draws are run in parallel, the timers for the individual components of the frequency search
+     * cannot be shared between threads. Instead we sum the time spent in each draw over all threads, which can be
+     * compared to the wall clock time of the frequency search to find the speedup due to parallelization.
+     */
+    private final AtomicLong parallelDrawNanos = new AtomicLong();
+
+    /** Record the time taken by a single Monte Carlo draw run in parallel with other draws. Threadsafe. */
+    public void recordParallelDraw (long nanos) {
+        parallelDrawNanos.addAndGet(nanos);
+    }
+
     public void log () {
         fullSearch.logWithChildren();
+        long drawNanos = parallelDrawNanos.get();
+        long wallClockNanos = frequencySearch.getAccumulatedDurationNanos();
+        if (drawNanos > 0 && wallClockNanos > 0) {
+            LOG.info("Parallel frequency draws: {}s of work in {}s, speedup {}x",
+                    drawNanos / 1e9D, wallClockNanos / 1e9D, String.format("%.2f", (double) drawNanos / wallClockNanos));
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+package com.conveyal.r5.profile;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the large buffers needed to compute travel times from a single origin, so they can be reused when the same
+ * thread computes travel times from the next origin in the same regional analysis job. Without this, every origin
+ * allocates a full set of RAPTOR states, a travel time to every stop for every iteration, and a transposed copy of
+ * those travel times. On large networks these reach hundreds of megabytes per origin, and the resulting garbage
+ * collection load limits how many threads can usefully share one heap.
+ *
+ * Each worker thread has its own context, so no synchronization is needed on the buffers. Because a context is
+ * attached to a thread rather than to a single origin, anything obtained from it is only valid until the next origin
+ * is handled on the same thread: results that outlive the computation for one origin must never refer to these
+ * buffers. Buffers are retained only while successive origins belong to the same job, as tasks from another job may
+ * have entirely different dimensions.
+ */
+public class SearchContext {
+
+    private static final ThreadLocal<SearchContext> threadContexts = ThreadLocal.withInitial(SearchContext::new);
+
+    /** Total size of buffers allocated by all contexts since this JVM started, for reporting in the worker status. */
+    private static final AtomicLong totalBytesAllocated = new AtomicLong();
+
+    /** Total size of buffers that were reused instead of allocated, for reporting in the worker status. */
+    private static final AtomicLong totalBytesReused = new AtomicLong();
+
+    /** The job whose origins are being handled on this thread. Buffers are discarded when this changes. */
+    private String jobId;
+
+    /** Travel times produced by FastRaptorWorker, indexed as [iteration][stop]. */
+    private int[][] travelTimesToStopsPerIteration;
+
+    /** The transposed copy of those travel times made by PerTargetPropagater, indexed as [stop][iteration]. */
+    private int[][] travelTimesToStop;
+
+    /** The range-RAPTOR scheduled search state, one per round. */
+    private RaptorState[] scheduleState;
+
+    /** Scratch states onto which each frequency search copies the scheduled state, one per round. */
+    private RaptorState[] frequencyState;
+
+    /** The travel times from each frequency search at one departure minute, indexed as [draw][stop]. */
+    private int[][] frequencyDrawTimes;
+
+    private SearchContext () { }
+
+    /**
+     * Get the search context for the current thread, ready to handle an origin in the given job. If the previous
+     * origin handled on this thread was in another job, the buffers retained for that job are released.
+     */
+    public static SearchContext forJob (String jobId) {
+        SearchContext context = threadContexts.get();
+        if (!Objects.equals(context.jobId, jobId)) {
+            context.travelTimesToStopsPerIteration = null;
+            context.travelTimesToStop = null;
+            context.scheduleState = null;
+            context.frequencyState = null;
+            context.frequencyDrawTimes = null;
+            context.jobId = jobId;
+        }
+        return context;
+    }
+
+    public static long getTotalBytesAllocated () {
+        return totalBytesAllocated.get();
+    }
+
+    public static long getTotalBytesReused () {
+        return totalBytesReused.get();
+    }
+
+    /** @return a buffer for the travel time to every stop at every iteration, with unspecified contents. */
+    int[][] getTravelTimesToStopsPerIteration (int nIterations, int nStops) {
+        travelTimesToStopsPerIteration = reuseOrAllocate(travelTimesToStopsPerIteration, nIterations, nStops);
+        return travelTimesToStopsPerIteration;
+    }
+
+    /** @return a buffer for the travel times at every iteration to every stop, with unspecified contents. */
+    int[][] getTravelTimesToStop (int nStops, int nIterations) {
+        travelTimesToStop = reuseOrAllocate(travelTimesToStop, nStops, nIterations);
+        return travelTimesToStop;
+    }
+
+    /**
+     * @return one RaptorState per round, chained together through their previous fields, each reset to the state of
+     *         a freshly constructed RaptorState.
+     */
+    RaptorState[] getScheduleState (int nRounds, int nStops, int maxDurationSeconds) {
+        scheduleState = reuseOrAllocate(scheduleState, nRounds, nStops, maxDurationSeconds);
+        for (RaptorState state : scheduleState) {
+            state.reset(maxDurationSeconds);
+        }
+        chain(scheduleState);
+        return scheduleState;
+    }
+
+    /**
+     * @return one RaptorState per round, chained together through their previous fields, with unspecified contents.
+     *         These are expected to be overwritten using RaptorState.copyFrom().
+     */
+    RaptorState[] getFrequencyState (int nRounds, int nStops) {
+        frequencyState = reuseOrAllocate(frequencyState, nRounds, nStops, 0);
+        chain(frequencyState);
+        return frequencyState;
+    }
+
+    /**
+     * @return a buffer for the arrival times at every stop from each frequency search at one departure minute, with
+     *         unspecified contents. Each draw's times must be copied here, as the states from getFrequencyState() are
+     *         overwritten by the next draw.
+     */
+    int[][] getFrequencyDrawTimes (int nDraws, int nStops) {
+        frequencyDrawTimes = reuseOrAllocate(frequencyDrawTimes, nDraws, nStops);
+        return frequencyDrawTimes;
+    }
+
+    private static int[][] reuseOrAllocate (int[][] buffer, int nRows, int nColumns) {
+        long bytes = (long) nRows * nColumns * Integer.BYTES;
+        if (buffer != null && buffer.length == nRows && (nRows == 0 || buffer[0].length == nColumns)) {
+            totalBytesReused.addAndGet(bytes);
+            return buffer;
+        }
+        totalBytesAllocated.addAndGet(bytes);
+        return new int[nRows][nColumns];
+    }
+
+    private static RaptorState[] reuseOrAllocate (RaptorState[] states, int nRounds, int nStops, int maxDurationSeconds) {
+        // Each RaptorState holds seven int arrays with one element per stop.
+        long bytes = (long) nRounds * nStops * Integer.BYTES * 7;
+        if (states != null && states.length == nRounds && (nRounds == 0 || states[0].bestTimes.length == nStops)) {
+            totalBytesReused.addAndGet(bytes);
+            return states;
+        }
+        totalBytesAllocated.addAndGet(bytes);
+        states = new RaptorState[nRounds];
+        for (int r = 0; r < nRounds; r++) {
+            states[r] = new RaptorState(nStops, maxDurationSeconds);
+        }
+        return states;
+    }
+
+    private static void chain (RaptorState[] states) {
+        for (int r = 0; r < states.length; r++) {
+            states[r].previous = (r == 0) ? null : states[r - 1];
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Search state for the compact mode of the StreetRouter, used when no turn restrictions can apply to a search. In that
+ * case there is never more than one useful state at the end of each edge, so rather than a State object per edge
+ * traversal and a multimap of States, we can keep one label per edge in parallel primitive arrays indexed by edge,
+ * and an indexed binary heap of edges in place of the PriorityQueue of States.
+ *
+ * These arrays cover every edge in the street layer, so they are large and expensive to allocate for every search.
+ * Instances are therefore pooled per thread and street layer: a router checks one out when it begins a compact search
+ * and releases it when its results are no longer needed. Only the entries touched by a search are reset when it is released, so the
+ * cost of reuse is proportional to the size of the search rather than the size of the street network.
+ *
+ * Labels do not keep references to the previous label on the path, so the compact search cannot be used to build
+ * paths, only to find the best travel time, distance or weight at each edge.
+ */
+class CompactEdgeLabels {
+
+    public static final int UNREACHED = Integer.MAX_VALUE;
+
+    /** Each thread holds at most one idle instance, which is removed from the pool while it's in use. */
+    private static final StreetLayerBufferPool<CompactEdgeLabels> pool = new StreetLayerBufferPool<>();
+
+    private static final StreetMode[] STREET_MODES = StreetMode.values();
+
+    /** The number of edges these labels can hold. */
+    private final int capacity;
+
+    /** The street layer these labels are checked out for, or null while they are idle in the pool. */
+    private StreetLayer streetLayer;
+
+    /** Duration at the end of each edge, or UNREACHED if no state exists at the end of that edge. */
+    final int[] durationSeconds;
+
+    final int[] distanceMillimeters;
+
+    /** The ordinal of the StreetMode used to traverse each edge (bicycle searches may walk some edges). */
+    final byte[] streetModes;
+
+    /** Set for edges whose labels were created as origins of the search, rather than by traversing the edge. */
+    final BitSet originLabels = new BitSet();
+
+    /** Every edge that has a label, in the order they were reached. Used to iterate over results and to reset. */
+    final TIntArrayList reachedEdges = new TIntArrayList();
+
+    /** Whether the heap is ordered by duration (true) or by distance (false). */
+    private boolean minimizeDuration = true;
+
+    /** A binary min-heap of edge indexes, ordered by the label at each edge. */
+    private int[] heap = new int[1024];
+
+    private int heapSize = 0;
+
+    /** The position of each edge in the heap array, or -1 if that edge is not in the heap. */
+    private final int[] heapPositions;
+
+    private CompactEdgeLabels (int capacity) {
+        this.capacity = capacity;
+        this.durationSeconds = new int[capacity];
+        this.distanceMillimeters = new int[capacity];
+        this.streetModes = new byte[capacity];
+        this.heapPositions = new int[capacity];
+        Arrays.fill(durationSeconds, UNREACHED);
+        Arrays.fill(heapPositions, -1);
+    }
+
+    /**
+     * Take an idle instance from the current thread's pool if it was used on the same street layer and is big enough
+     * for all its edges, otherwise create a new one.
+     */
+    static CompactEdgeLabels checkOut (StreetLayer streetLayer, boolean minimizeDuration) {
+        int nEdges = streetLayer.edgeStore.nEdges();
+        CompactEdgeLabels labels = pool.take(streetLayer);
+        if (labels == null || labels.capacity < nEdges) {
+            labels = new CompactEdgeLabels(nEdges);
+        }
+        labels.streetLayer = streetLayer;
+        labels.minimizeDuration = minimizeDuration;
+        return labels;
+    }
+
+    /** Reset all the labels that were touched, and return this instance to the current thread's pool. */
+    void release () {
+        for (int i = 0; i < reachedEdges.size(); i++) {
+            int edge = reachedEdges.get(i);
+            durationSeconds[edge] = UNREACHED;
+            heapPositions[edge] = -1;
+        }
+        reachedEdges.resetQuick();
+        originLabels.clear();
+        heapSize = 0;
+        pool.put(streetLayer, this);
+        // An idle instance must not keep its street layer alive.
+        streetLayer = null;
+    }
+
+    boolean isReached (int edge) {
+        return edge >= 0 && edge < capacity && durationSeconds[edge] != UNREACHED;
+    }
+
+    int getRoutingVariable (int edge) {
+        return minimizeDuration ? durationSeconds[edge] : distanceMillimeters[edge];
+    }
+
+    StreetMode getStreetMode (int edge) {
+        return STREET_MODES[streetModes[edge]];
+    }
+
+    /**
+     * Record a new label at the given edge, replacing any existing one, and add the edge to the heap or move it up
+     * to reflect its improved value. The caller is responsible for checking that the new label is an improvement.
+     */
+    void update (int edge, int duration, int distance, StreetMode streetMode) {
+        if (durationSeconds[edge] == UNREACHED) {
+            reachedEdges.add(edge);
+        }
+        originLabels.clear(edge);
+        durationSeconds[edge] = duration;
+        distanceMillimeters[edge] = distance;
+        streetModes[edge] = (byte) streetMode.ordinal();
+        int position = heapPositions[edge];
+        if (position < 0) {
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, heap.length * 2);
+            }
+            position = heapSize++;
+        }
+        siftUp(edge, position);
+    }
+
+    /** Add an edge that already has a label back into the heap, for example to continue the search in another mode. */
+    void enqueue (int edge) {
+        if (heapPositions[edge] < 0) {
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, heap.length * 2);
+            }
+            siftUp(edge, heapSize++);
+        }
+    }
+
+    boolean isEmpty () {
+        return heapSize == 0;
+    }
+
+    void clearHeap () {
+        for (int i = 0; i < heapSize; i++) {
+            heapPositions[heap[i]] = -1;
+        }
+        heapSize = 0;
+    }
+
+    /** Remove and return the edge with the lowest label from the heap. */
+    int poll () {
+        int top = heap[0];
+        heapPositions[top] = -1;
+        heapSize -= 1;
+        if (heapSize > 0) {
+            siftDown(heap[heapSize], 0);
+        }
+        return top;
+    }
+
+    private void siftUp (int edge, int position) {
+        final int key = getRoutingVariable(edge);
+        while (position > 0) {
+            int parentPosition = (position - 1) >>> 1;
+            int parent = heap[parentPosition];
+            if (getRoutingVariable(parent) <= key) {
+                break;
+            }
+            heap[position] = parent;
+            heapPositions[parent] = position;
+            position = parentPosition;
+        }
+        heap[position] = edge;
+        heapPositions[edge] = position;
+    }
+
+    private void siftDown (int edge, int position) {
+        final int key = getRoutingVariable(edge);
+        final int half = heapSize >>> 1;
+        while (position < half) {
+            int childPosition = 2 * position + 1;
+            int child = heap[childPosition];
+            int rightPosition = childPosition + 1;
+            if (rightPosition < heapSize && getRoutingVariable(heap[rightPosition]) < getRoutingVariable(child)) {
+                childPosition = rightPosition;
+                child = heap[childPosition];
+            }
+            if (key <= getRoutingVariable(child)) {
+                break;
+            }
+            heap[position] = child;
+            heapPositions[child] = position;
+            position = childPosition;
+        }
+        heap[position] = edge;
+        heapPositions[edge] = position;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * For every vertex in a StreetLayer, the indexes of the edges leaving it (or arriving at it). These are held in
+ * compressed sparse row form: the edges of all vertices are concatenated into a single array in vertex order, and a
+ * second array gives the position in that array where the edges of each vertex begin. This uses a few bytes per
+ * vertex, rather than a separate list object for every vertex, and iteration does not need to follow any references.
+ *
+ * When a scenario is applied, the edges of the base network cannot change but new edges and vertices can be added.
+ * The lists for a scenario copy of a StreetLayer share the arrays built for the base network, and hold the edges
+ * added by the scenario in a small map from vertex index to additional edges.
+ *
+ * Iterate over the edges of a vertex with an index from zero up to size(vertex), calling get(vertex, index).
+ */
+public class EdgeLists {
+
+    /** The number of vertices in the base network. Vertices at or above this index only have additional edges. */
+    private final int nBaseVertices;
+
+    /** The number of edges in the base network, all of which appear in the arrays below. */
+    private final int nBaseEdges;
+
+    /** For each base vertex, the index in edges where its edges begin. Has one extra element at the end. */
+    private final int[] offsets;
+
+    private final int[] edges;
+
+    /** Edges added by a scenario, keyed on vertex index. Null when there are no added edges. */
+    private final TIntObjectMap<TIntList> additionalEdges;
+
+    private EdgeLists (int[] offsets, int[] edges, int nBaseEdges, TIntObjectMap<TIntList> additionalEdges) {
+        this.nBaseVertices = offsets.length - 1;
+        this.nBaseEdges = nBaseEdges;
+        this.offsets = offsets;
+        this.edges = edges;
+        this.additionalEdges = additionalEdges;
+    }
+
+    /**
+     * Group edges by vertex, retaining the order of the edges at each vertex.
+     * @param vertexForEdge gives the vertex at which each edge should be listed, i.e. its from or to vertex.
+     */
+    public static EdgeLists build (int nVertices, int nEdges, IntUnaryOperator vertexForEdge) {
+        int[] offsets = new int[nVertices + 1];
+        // Count the edges at each vertex, shifted by one so the cumulative sum gives the start of each vertex.
+        for (int edge = 0; edge < nEdges; edge++) {
+            offsets[vertexForEdge.applyAsInt(edge) + 1] += 1;
+        }
+        for (int v = 0; v < nVertices; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] edges = new int[nEdges];
+        int[] nextPosition = new int[nVertices];
+        System.arraycopy(offsets, 0, nextPosition, 0, nVertices);
+        for (int edge = 0; edge < nEdges; edge++) {
+            edges[nextPosition[vertexForEdge.applyAsInt(edge)]++] = edge;
+        }
+        return new EdgeLists(offsets, edges, nEdges, null);
+    }
+
+    /**
+     * Make edge lists for a scenario copy of a StreetLayer, sharing the base network's lists and adding edges with
+     * indexes from the number of base edges up to nEdges.
+     */
+    public EdgeLists extend (int nEdges, IntUnaryOperator vertexForEdge) {
+        TIntObjectMap<TIntList> additionalEdges = new TIntObjectHashMap<>();
+        for (int edge = nBaseEdges; edge < nEdges; edge++) {
+            int vertex = vertexForEdge.applyAsInt(edge);
+            TIntList edgesAtVertex = additionalEdges.get(vertex);
+            if (edgesAtVertex == null) {
+                edgesAtVertex = new TIntArrayList(4);
+                additionalEdges.put(vertex, edgesAtVertex);
+            }
+            edgesAtVertex.add(edge);
+        }
+        return new EdgeLists(offsets, edges, nBaseEdges, additionalEdges);
+    }
+
+    /** @return the number of edges in the base network these lists were built from, excluding any scenario edges. */
+    public int getBaseEdgeCount () {
+        return nBaseEdges;
+    }
+
+    /** @return the number of edges at the given vertex. */
+    public int size (int vertex) {
+        int size = (vertex < nBaseVertices) ? offsets[vertex + 1] - offsets[vertex] : 0;
+        if (additionalEdges != null) {
+            TIntList edgesAtVertex = additionalEdges.get(vertex);
+            if (edgesAtVertex != null) size += edgesAtVertex.size();
+        }
+        return size;
+    }
+
+    /** @return the index of the edge at the given position in the list of edges at the given vertex. */
+    public int get (int vertex, int index) {
+        int baseSize = 0;
+        if (vertex < nBaseVertices) {
+            baseSize = offsets[vertex + 1] - offsets[vertex];
+            if (index < baseSize) return edges[offsets[vertex] + index];
+        }
+        TIntList edgesAtVertex = (additionalEdges == null) ? null : additionalEdges.get(vertex);
+        if (edgesAtVertex == null) {
+            throw new IndexOutOfBoundsException("Vertex " + vertex + " has no edge at position " + index);
+        }
+        return edgesAtVertex.get(index - baseSize);
+    }
+
+    /**
+     * @return a new list containing all the edges at the given vertex. This is convenient where speed is not
+     *         critical, but it allocates a new list on every call, so should not be used in routing.
+     */
+    public TIntList get (int vertex) {
+        int size = size(vertex);
+        TIntList result = new TIntArrayList(size);
+        for (int i = 0; i < size; i++) {
+            result.add(get(vertex, i));
+        }
+        return result;
+    }
+
+}
@@ -76,7 +76,7 @@ public class EdgeStore implements Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EdgeStore.class);
     private static final short DEFAULT_SPEED_KPH = 50;
-    private static final int[] EMPTY_INT_ARRAY = new int[0];
+    static final int[] EMPTY_INT_ARRAY = new int[0];
 
     // The vertices that are referred to in these edges
     public VertexStore vertexStore;
@@ -1211,6 +1211,25 @@ public class EdgeStore implements Serializable {
         return copy;
     }
 
+    /**
+     * Replace the list of separate geometry arrays with a PackedGeometryList holding the same geometries in a single
+     * compact array. This is optional, trading some decoding work each time a geometry is read for a much smaller heap
+     * on large networks. It should be called on a base network once its edges are complete, before any scenario
+     * copies are made, as those copies wrap the base network's list of geometries.
+     */
+    public void packGeometries () {
+        if (this.isExtendOnlyCopy()) {
+            throw new IllegalStateException("Geometries should only be packed in a base network.");
+        }
+        if (geometries instanceof PackedGeometryList) {
+            return;
+        }
+        PackedGeometryList packedGeometries = new PackedGeometryList(geometries);
+        LOG.info("Packed geometries of {} edge pairs into {} MB.", packedGeometries.size(),
+                packedGeometries.getMemoryBytes() / 1_000_000);
+        geometries = packedGeometries;
+    }
+
     /**
      * If this EdgeStore has has a Scenario applied, it may contain temporary edges that are not in the baseline network.
      * The edges added temporarily by a Scenario should always be the numbers from firstModifiableEdge to nEdges.
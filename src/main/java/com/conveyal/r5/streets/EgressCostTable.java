@@ -9,8 +9,6 @@ import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.util.LambdaCounter;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
@@ -19,12 +17,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.conveyal.r5.transit.TransitLayer.WALK_DISTANCE_LIMIT_METERS;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * The final stage of a one-to-many transit trip is what we call "propagation": extending travel times out from all
@@ -82,22 +80,35 @@ public class EgressCostTable implements Serializable {
     public List<int[]> stopToPointLinkageCostTables;
 
     /**
-     * For each PointSet point, the transit stops from which it can be reached as a map from StopID to distance or time
-     * (i.e. "cost"). For walk and bike, distance is in millimeters; for car, distance is actually time in seconds.
+     * For each PointSet point, the transit stops from which it can be reached and the distance or time (i.e. "cost")
+     * from each of those stops. For walk and bike, distance is in millimeters; for car, distance is actually time in
+     * seconds.
      *
      * This is a transposed version of stopToPointLinkageCostTables for direct use in propagation. This is used in
      * PerTargetPropagator to find all the stops near a particular point (grid cell) so we can perform propagation to
      * that grid cell only.
      *
+     * The table is stored in compressed sparse row form: the entries for point p are at indexes pointEntryOffsets[p]
+     * (inclusive) through pointEntryOffsets[p + 1] (exclusive) of the parallel arrays pointEntryStops and
+     * pointEntryCosts, sorted by stop index. This uses about 8 bytes per (point, stop) pair, compared to several times
+     * that plus object overhead for a hash map per point, and allows reading the entries for one point sequentially.
+     * Use a PointCursor to read it.
+     *
      * We only retain a few percentiles of travel time at each target cell, so handling one cell at a time allows us to
      * keep the output size within reason.
      *
-     * TODO This appears to be transient only because the stopToPointLinkageCostTables are more compact (less references).
+     * TODO This appears to be transient only because the stopToPointLinkageCostTables are more compact.
      * We serialize one walk linkage and associated distance tables along with each TransportNetwork.
      * However, keeping both of these in memory is a huge waste of space. The cost tables are one of the largest and
      * most problematic objects in our application from a memory consumption (and S3 data transfer) point of view.
      */
-    private transient List<TIntIntMap> pointToStopLinkageCostTables;
+    private transient int[] pointEntryOffsets;
+
+    /** The stop index of each entry in the transposed table. See pointEntryOffsets. */
+    private transient int[] pointEntryStops;
+
+    /** The cost from the stop to the point for each entry in the transposed table. See pointEntryOffsets. */
+    private transient int[] pointEntryCosts;
 
     /**
      * Build an EgressCostTable for the given LinkedPointSet.
@@ -249,12 +260,13 @@ public class EgressCostTable implements Serializable {
                 // then extend that table out from the street vertices to the points in this PointSet.
                 // TODO reuse the code that computes the walk tables at TransitLayer.buildOneDistanceTable() rather than
                 //      duplicating it below for other modes.
-                TIntIntMap distanceTableToVertices = transitLayer.stopToVertexDistanceTables.get(stopIndex);
+                int[] distanceTableToVertices = transitLayer.stopToVertexDistanceTables.get(stopIndex);
                 return distanceTableToVertices == null ? null :
                         linkedPointSet.extendDistanceTableToPoints(distanceTableToVertices, envelopeAroundStop);
             } else {
                 StreetRouter sr = new StreetRouter(transitLayer.parentNetwork.streetLayer);
                 sr.streetMode = streetMode;
+                sr.compactSearch = true;
                 int vertexId = transitLayer.streetVertexForStop.get(stopIndex);
                 if (vertexId < 0) {
                     LOG.warn("Stop unlinked, cannot build distance table: {}", stopIndex);
@@ -271,7 +283,9 @@ public class EgressCostTable implements Serializable {
                     sr.distanceLimitMeters = linkingDistanceLimitMeters;
                     sr.quantityToMinimize = linkageCostUnit;
                     sr.route();
-                    return linkedPointSet.extendDistanceTableToPoints(sr.getReachedVertices(), envelopeAroundStop);
+                    int[] distancesToVertices = sr.getReachedVerticesPacked();
+                    sr.releaseSearchLabels();
+                    return linkedPointSet.extendDistanceTableToPoints(distancesToVertices, envelopeAroundStop);
                 } else if (streetMode == StreetMode.CAR) {
                     // The speeds for Walk and Bicycle can be specified in an analysis request, so it makes sense above to
                     // store distances and apply the requested speed. In contrast, car speeds vary by link and cannot be
@@ -288,6 +302,7 @@ public class EgressCostTable implements Serializable {
                             LinkedPointSet.OFF_STREET_SPEED_MILLIMETERS_PER_SECOND,
                             null
                     );
+                    sr.releaseSearchLabels();
                     // TODO optimization: should we make spatial index visit() method public to avoid copying results?
                     TIntList packedDriveTimes = new TIntArrayList();
                     for (int p = 0; p < driveTimesToAllPoints.size(); p++) {
@@ -351,11 +366,12 @@ public class EgressCostTable implements Serializable {
     }
 
     /**
-     * Private constructor used by factory methods or other constructors to allow fields to be immutable.
+     * Constructor used by factory methods or other constructors to allow fields to be immutable. This is
+     * package-private rather than private so tests can build tables without a full LinkedPointSet.
      */
-    private EgressCostTable (LinkedPointSet linkedPointSet,
-                            StreetRouter.State.RoutingVariable linkageCostUnit,
-                            List<int[]> stopToPointLinkageCostTables) {
+    EgressCostTable (LinkedPointSet linkedPointSet,
+                     StreetRouter.State.RoutingVariable linkageCostUnit,
+                     List<int[]> stopToPointLinkageCostTables) {
         this.linkedPointSet = linkedPointSet;
         this.linkageCostUnit = linkageCostUnit;
         this.stopToPointLinkageCostTables = stopToPointLinkageCostTables;
@@ -436,39 +452,121 @@ public class EgressCostTable implements Serializable {
      * One should represent the region, or read-through crops of the whole region, and the other should be per-scenario.
      */
     public synchronized void destructivelyTransposeForPropagationAsNeeded() {
-        if (pointToStopLinkageCostTables == null) {
+        if (pointEntryOffsets == null) {
             // Release reference to the source table, in order to fail fast if any other thread tries to read them.
             // We make a local copy so we can release each reference while copying.
             List<int[]> stopToPointTables = new ArrayList<>(this.stopToPointLinkageCostTables);
             this.stopToPointLinkageCostTables = null;
-            TIntIntMap[] result = new TIntIntMap[linkedPointSet.size()];
-            for (int stop = 0; stop < stopToPointTables.size(); stop++) {
+            transpose(stopToPointTables, linkedPointSet.size());
+        }
+    }
+
+    /**
+     * Transpose the given stop -> point tables into the compressed sparse row arrays, releasing each stop's table for
+     * garbage collection once it has been copied. This is a two-pass counting transpose, performed in parallel on
+     * contiguous blocks of stops: the first pass counts the entries each block contributes to each point, which
+     * determines where every block writes its entries for every point; the second pass copies the entries into place.
+     * Because blocks are in stop order and each block handles its stops in order, the entries for each point end up
+     * sorted by stop index without any explicit sort.
+     */
+    void transpose (List<int[]> stopToPointTables, int nPoints) {
+        final int nStops = stopToPointTables.size();
+        // Each block needs a count for every point, so limit the number of blocks to bound the extra memory.
+        final int nBlocks = Math.max(1, Math.min(Math.min(Runtime.getRuntime().availableProcessors(), 16), nStops));
+        final int stopsPerBlock = (nStops + nBlocks - 1) / nBlocks;
+        final int[][] blockPointCounts = new int[nBlocks][];
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int[] counts = new int[nPoints];
+            for (int stop = block * stopsPerBlock; stop < Math.min(nStops, (block + 1) * stopsPerBlock); stop++) {
                 int[] stopToPointTable = stopToPointTables.get(stop);
-                if (stopToPointTable == null) {
-                    continue;
+                if (stopToPointTable == null) continue;
+                for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
+                    counts[stopToPointTable[idx]] += 1;
                 }
+            }
+            blockPointCounts[block] = counts;
+        });
+        // Prefix sum over points, then over blocks within each point. After this loop each block's count array holds
+        // the position at which that block writes its first entry for each point.
+        final int[] offsets = new int[nPoints + 1];
+        int nEntries = 0;
+        for (int point = 0; point < nPoints; point++) {
+            offsets[point] = nEntries;
+            for (int block = 0; block < nBlocks; block++) {
+                int count = blockPointCounts[block][point];
+                blockPointCounts[block][point] = nEntries;
+                nEntries += count;
+            }
+        }
+        offsets[nPoints] = nEntries;
+        final int[] stops = new int[nEntries];
+        final int[] costs = new int[nEntries];
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int[] positions = blockPointCounts[block];
+            for (int stop = block * stopsPerBlock; stop < Math.min(nStops, (block + 1) * stopsPerBlock); stop++) {
+                int[] stopToPointTable = stopToPointTables.get(stop);
+                if (stopToPointTable == null) continue;
                 for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
-                    int point = stopToPointTable[idx];
-                    int distance = stopToPointTable[idx + 1];
-                    if (result[point] == null) {
-                        result[point] = new TIntIntHashMap();
-                    }
-                    result[point].put(stop, distance);
+                    int position = positions[stopToPointTable[idx]]++;
+                    stops[position] = stop;
+                    costs[position] = stopToPointTable[idx + 1];
                 }
-                // Release the reference to this stop's table for garbage collection.
+                // Release the reference to this stop's table for garbage collection. Each block sets only its own
+                // elements of this ArrayList, which never changes size, so this is threadsafe.
                 stopToPointTables.set(stop, null);
             }
-            // Make the transposed table available to propagation.
-            this.pointToStopLinkageCostTables = Arrays.asList(result);
-        }
+            blockPointCounts[block] = null;
+        });
+        // Make the transposed table available to propagation. The offsets are assigned last, as they are used to
+        // check whether the transposition has already happened.
+        this.pointEntryStops = stops;
+        this.pointEntryCosts = costs;
+        this.pointEntryOffsets = offsets;
     }
 
     /**
-     * You should first call destructivelyTransposeForPropagationAsNeeded before calling this method.
-     * @return for the given destination point index, a map from stop_index -> cost_to_reach_point for all nearby stops
+     * You should first call destructivelyTransposeForPropagationAsNeeded before calling this method. A cursor is not
+     * threadsafe, so each thread should use its own.
+     * @return a new cursor that can be positioned on any point to read its cost table.
      */
-    public TIntIntMap getCostTableForPoint (int pointIndex) {
-        return pointToStopLinkageCostTables.get(pointIndex);
+    public PointCursor getPointCursor () {
+        checkState(pointEntryOffsets != null, "Cost tables must be transposed before they are read by point.");
+        return new PointCursor();
+    }
+
+    /**
+     * Iterates over the entries of the transposed cost table for one point at a time. Call seek() to select a point,
+     * then advance() to step to each of the stops that can reach it in ascending order of stop index, reading the stop
+     * and cost after each successful advance. This follows the model of the EdgeStore and VertexStore cursors, giving
+     * access to primitive arrays without allocating an object per point or per entry.
+     */
+    public class PointCursor {
+
+        private int entry;
+
+        private int endEntry;
+
+        private PointCursor () { }
+
+        /** Position this cursor before the first entry for the given point. */
+        public void seek (int pointIndex) {
+            entry = pointEntryOffsets[pointIndex] - 1;
+            endEntry = pointEntryOffsets[pointIndex + 1];
+        }
+
+        /** Move to the next entry for the current point. @return false if there are no more entries. */
+        public boolean advance () {
+            entry += 1;
+            return entry < endEntry;
+        }
+
+        public int getStop () {
+            return pointEntryStops[entry];
+        }
+
+        public int getCost () {
+            return pointEntryCosts[entry];
+        }
     }
 
 }
@@ -480,11 +480,12 @@ public class LinkedPointSet implements Serializable {
      * This is a pure function i.e. it has no side effects on the state of the LinkedPointSet instance.
      *
      * TODO clarify that this can use times or distances, depending on units of the table?
-     * @param distanceTableToVertices a map from integer vertex IDs to distances TODO in what units?
+     * @param distanceTableToVertices packed (vertex, distance) pairs sorted by vertex, see VertexDistanceTable.
+     *                                TODO in what units?
      * @param distanceTableZone TODO clarify: in fixed or floating degrees etc.
      * @return A packed array of (pointIndex, distanceMillimeters), or null if there are no reachable points.
      */
-    public int[] extendDistanceTableToPoints (TIntIntMap distanceTableToVertices, Envelope distanceTableZone) {
+    public int[] extendDistanceTableToPoints (int[] distanceTableToVertices, Envelope distanceTableZone) {
         int nPoints = this.size();
         TIntIntMap distanceToPoint = new TIntIntHashMap(nPoints, 0.5f, Integer.MAX_VALUE, Integer.MAX_VALUE);
         Edge edge = streetLayer.edgeStore.getCursor();
@@ -501,11 +502,13 @@ public class LinkedPointSet implements Serializable {
             int t1 = Integer.MAX_VALUE;
             int t2 = Integer.MAX_VALUE;
             // TODO this is not strictly correct when there are turn restrictions onto the edge this is linked to
-            if (distanceTableToVertices.containsKey(edge.getFromVertex())) {
-                t1 = distanceTableToVertices.get(edge.getFromVertex()) + distances0_mm[p] + distancesToEdge_mm[p];
+            int d1 = VertexDistanceTable.getValue(distanceTableToVertices, edge.getFromVertex());
+            if (d1 >= 0) {
+                t1 = d1 + distances0_mm[p] + distancesToEdge_mm[p];
             }
-            if (distanceTableToVertices.containsKey(edge.getToVertex())) {
-                t2 = distanceTableToVertices.get(edge.getToVertex()) + distances1_mm[p] + distancesToEdge_mm[p];
+            int d2 = VertexDistanceTable.getValue(distanceTableToVertices, edge.getToVertex());
+            if (d2 >= 0) {
+                t2 = d2 + distances1_mm[p] + distancesToEdge_mm[p];
             }
             int t = Math.min(t1, t2);
             if (t != Integer.MAX_VALUE) {
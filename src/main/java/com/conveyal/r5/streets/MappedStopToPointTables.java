@@ -0,0 +1,157 @@
+package com.conveyal.r5.streets;
+
+import com.google.common.io.LittleEndianDataOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The stop -> point cost tables of an EgressCostTable, stored in a flat binary file and read back through a read-only
+ * memory map rather than being deserialized onto the heap. The region-wide walk linkage built along with each network
+ * has one of the largest sets of tables in the system. Keeping them in a file beside the serialized network means the
+ * tables occupy no heap space on workers, they are paged in by the operating system only as needed, and several
+ * worker JVMs on the same machine share a single copy in the page cache.
+ *
+ * The file is little-endian and begins with the header bytes, a format version number, and the number of stops. This
+ * is followed by nStops + 1 offsets into the table values, and finally the values of all the tables concatenated in
+ * stop order. Each table is a flattened sequence of (pointIndex, cost) pairs, as in the EgressCostTable. As in the
+ * EgressCostTable, a stop that cannot reach any points has a null table, stored here as an empty range of values.
+ *
+ * This implements List so it can stand in for the list of tables held in the EgressCostTable. It is read-only, and
+ * each call to get() copies one stop's table onto the heap.
+ */
+public class MappedStopToPointTables extends AbstractList<int[]> {
+
+    public static final byte[] HEADER = "R5STOPPT".getBytes();
+
+    /** Increment this whenever the layout of the file changes. */
+    public static final int VERSION = 1;
+
+    /** Length of the header bytes plus the version and stop count. */
+    private static final int PREAMBLE_BYTES = HEADER.length + Integer.BYTES * 2;
+
+    /** For each stop, the index in values of the first element of its table. Has one extra element at the end. */
+    private final IntBuffer offsets;
+
+    private final IntBuffer values;
+
+    private final int nStops;
+
+    private MappedStopToPointTables (IntBuffer offsets, IntBuffer values, int nStops) {
+        this.offsets = offsets;
+        this.values = values;
+        this.nStops = nStops;
+    }
+
+    /** Write the given stop -> point cost tables into a file that can later be read with map(). */
+    public static void write (List<int[]> stopToPointTables, File file) throws IOException {
+        long nValues = 0;
+        for (int[] table : stopToPointTables) {
+            if (table != null) nValues += table.length;
+        }
+        if (nValues > Integer.MAX_VALUE / Integer.BYTES) {
+            // A single mapped buffer is limited to 2GB.
+            throw new IOException("Stop to point tables are too large to store in a mapped file.");
+        }
+        try (LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(HEADER);
+            out.writeInt(VERSION);
+            out.writeInt(stopToPointTables.size());
+            int offset = 0;
+            for (int[] table : stopToPointTables) {
+                out.writeInt(offset);
+                if (table != null) offset += table.length;
+            }
+            out.writeInt(offset);
+            for (int[] table : stopToPointTables) {
+                if (table == null) continue;
+                for (int value : table) {
+                    out.writeInt(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Map a file created by write() into memory. The mapping remains valid after the file channel is closed, and
+     * is released when this object is garbage collected.
+     * @throws IOException if the file cannot be read, or does not have the expected header and version.
+     */
+    public static MappedStopToPointTables map (File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Mapped stop to point tables file is too large: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] header = new byte[HEADER.length];
+            if (buffer.remaining() < PREAMBLE_BYTES) {
+                throw new IOException("Mapped stop to point tables file is truncated: " + file);
+            }
+            buffer.get(header);
+            if (!Arrays.equals(HEADER, header)) {
+                throw new IOException("Unrecognized header in stop to point tables file: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format(
+                        "Stop to point tables file has version %d, expected %d: %s", version, VERSION, file));
+            }
+            int nStops = buffer.getInt();
+            IntBuffer offsets = intSlice(buffer, PREAMBLE_BYTES, nStops + 1);
+            int nValues = offsets.get(nStops);
+            long expectedSize = PREAMBLE_BYTES + ((long) nStops + 1 + nValues) * Integer.BYTES;
+            if (channel.size() != expectedSize) {
+                throw new IOException("Stop to point tables file does not have the expected length: " + file);
+            }
+            IntBuffer values = intSlice(buffer, PREAMBLE_BYTES + (nStops + 1) * Integer.BYTES, nValues);
+            return new MappedStopToPointTables(offsets, values, nStops);
+        }
+    }
+
+    /** Make a little-endian view of some number of ints in the given buffer, starting at the given byte position. */
+    private static IntBuffer intSlice (ByteBuffer buffer, int bytePosition, int nInts) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(bytePosition);
+        slice.limit(bytePosition + nInts * Integer.BYTES);
+        // Slicing resets the byte order, so it must be set again.
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /** @return a copy of the table for the given stop, or null if the stop cannot reach any points. */
+    @Override
+    public int[] get (int stop) {
+        if (stop < 0 || stop >= nStops) {
+            throw new IndexOutOfBoundsException("Stop index out of range: " + stop);
+        }
+        int start = offsets.get(stop);
+        int end = offsets.get(stop + 1);
+        if (start == end) {
+            return null;
+        }
+        int[] table = new int[end - start];
+        // Absolute bulk get is not available on IntBuffer in Java 11, so use a duplicate to avoid sharing a position.
+        IntBuffer source = values.duplicate();
+        source.position(start);
+        source.get(table);
+        return table;
+    }
+
+    @Override
+    public int size () {
+        return nStops;
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.HilbertCurve;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is not an automatic unit test. It is a benchmark that must be started manually on the street network of a
+ * real region, because any effect of origin order only appears when the network is much larger than the processor
+ * caches. It builds a street layer from the given OSM file, then runs walking access searches from a grid of origins
+ * covering that network, visiting them alternately in row-major order (as workers used to receive regional tasks) and
+ * in Hilbert curve order (as the broker now delivers them). It logs the average time per origin for each order.
+ */
+public class OriginOrderBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OriginOrderBenchmark.class);
+
+    /** Each order is timed this many times, alternating between orders so that warm-up affects both equally. */
+    static final int N_RUNS = 4;
+
+    static final int WALK_LIMIT_SECONDS = 15 * 60;
+
+    /**
+     * @param params the path of an OSM PBF file for a large region, then optionally the number of origins along each
+     *               side of the grid (default 128).
+     */
+    public static void main (String[] params) {
+        if (params.length < 1) {
+            System.err.println("Usage: OriginOrderBenchmark osm-file.pbf [origins-per-side]");
+            System.exit(1);
+        }
+        int size = params.length > 1 ? Integer.parseInt(params[1]) : 128;
+
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromFile(params[0]);
+        StreetLayer streetLayer = new StreetLayer(TNBuilderConfig.defaultConfig());
+        streetLayer.loadFromOsm(osm, false, true);
+        streetLayer.buildEdgeLists();
+        LOG.info("Street layer has {} vertices and {} edges.",
+                streetLayer.getVertexCount(), streetLayer.edgeStore.nEdges());
+        Envelope envelope = streetLayer.getEnvelope();
+
+        int[] xs = new int[size * size];
+        int[] ys = new int[size * size];
+        int[] rowMajor = new int[size * size];
+        for (int i = 0; i < rowMajor.length; i++) {
+            xs[i] = i % size;
+            ys[i] = i / size;
+            rowMajor[i] = i;
+        }
+        int[] hilbert = HilbertCurve.sortByIndex(HilbertCurve.orderForSize(size), xs, ys);
+
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = StreetMode.WALK;
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        router.timeLimitSeconds = WALK_LIMIT_SECONDS;
+        router.compactSearch = true;
+        long[] totalNanos = new long[2];
+        int nLinked = 0;
+        // The first run of each order only warms up the JIT compiler and is not counted.
+        for (int run = 0; run <= N_RUNS; run++) {
+            for (int o = 0; o < 2; o++) {
+                int[] originOrder = o == 0 ? rowMajor : hilbert;
+                long startNanos = System.nanoTime();
+                nLinked = 0;
+                for (int origin : originOrder) {
+                    double lat = envelope.getMinY() + envelope.getHeight() * (ys[origin] + 0.5) / size;
+                    double lon = envelope.getMinX() + envelope.getWidth() * (xs[origin] + 0.5) / size;
+                    if (router.setOrigin(lat, lon)) {
+                        router.route();
+                        router.releaseSearchLabels();
+                        nLinked += 1;
+                    }
+                }
+                if (run > 0) totalNanos[o] += System.nanoTime() - startNanos;
+            }
+        }
+        if (nLinked == 0) {
+            LOG.error("No origins could be linked to the street network.");
+            return;
+        }
+        LOG.info("{} of {} origins linked.", nLinked, size * size);
+        LOG.info("Row-major order: {} usec per origin.", totalNanos[0] / N_RUNS / nLinked / 1000);
+        LOG.info("Hilbert order: {} usec per origin.", totalNanos[1] / N_RUNS / nLinked / 1000);
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.conveyal.r5.streets;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.conveyal.r5.streets.EdgeStore.EMPTY_INT_ARRAY;
+
+/**
+ * A list of edge geometries, each a packed array of fixed-point lat, lon, lat, lon... as in EdgeStore.geometries,
+ * all stored together in a single byte array instead of one small int array per edge pair. Within each geometry the
+ * first point is stored as is and each following point as its difference from the previous point. Intermediate
+ * points on streets are close together, so these differences are small and are written as variable-length integers
+ * of one to five bytes. On large networks this eliminates tens of millions of array objects from the heap, and
+ * typically needs less than half the memory of the arrays it replaces.
+ *
+ * This implements List so it can stand in for the list of arrays in the EdgeStore, including as the base of an
+ * AugmentedList when a scenario copy of the EdgeStore is made. Each call to get() decodes one geometry into a new
+ * array, so callers may not modify the arrays they are given and expect the changes to be stored. Calling set()
+ * appends the new geometry rather than overwriting the old one in place, as its encoded length may differ. This is
+ * fine as the geometry of each edge pair is normally set only once when the network is built.
+ */
+@DefaultSerializer(FieldSerializer.class)
+public class PackedGeometryList extends AbstractList<int[]> implements Serializable {
+
+    /** Offset used for geometries with no intermediate points, which are all represented by a single empty array. */
+    private static final int EMPTY = -1;
+
+    /** Offset used for null geometries. */
+    private static final int NULL = -2;
+
+    /** The encoded geometries, of which the first nBytes are in use. */
+    private byte[] bytes;
+
+    private int nBytes;
+
+    /** For each geometry, the index in bytes where its encoding begins, or one of the special values above. */
+    private int[] offsets;
+
+    private int size;
+
+    public PackedGeometryList () {
+        this(16);
+    }
+
+    public PackedGeometryList (int initialCapacity) {
+        bytes = new byte[initialCapacity * 4];
+        offsets = new int[initialCapacity];
+    }
+
+    /** Bulk load: pack all the geometries in the given list, in the same order. */
+    public PackedGeometryList (List<int[]> geometries) {
+        this(geometries.size());
+        for (int[] geometry : geometries) {
+            add(geometry);
+        }
+        trimToSize();
+    }
+
+    @Override
+    public int[] get (int index) {
+        checkIndex(index);
+        int offset = offsets[index];
+        if (offset == EMPTY) return EMPTY_INT_ARRAY;
+        if (offset == NULL) return null;
+        // Decode all the variable-length values in sequence. The first is the number of points, and the others are
+        // alternating lat and lon differences. This is done inline to avoid allocating anything but the result.
+        int p = offset;
+        int[] geometry = null;
+        int i = -1;
+        while (geometry == null || i < geometry.length) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[p++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (geometry == null) {
+                geometry = new int[value * 2];
+            } else {
+                // Undo the zigzag encoding, then add the difference to the previous lat or lon.
+                int previous = (i < 2) ? 0 : geometry[i - 2];
+                geometry[i] = previous + ((value >>> 1) ^ -(value & 1));
+            }
+            i += 1;
+        }
+        return geometry;
+    }
+
+    @Override
+    public int[] set (int index, int[] geometry) {
+        int[] previous = get(index);
+        offsets[index] = encode(geometry);
+        return previous;
+    }
+
+    @Override
+    public boolean add (int[] geometry) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(16, size * 2));
+        }
+        offsets[size] = encode(geometry);
+        size += 1;
+        modCount += 1;
+        return true;
+    }
+
+    @Override
+    public int size () {
+        return size;
+    }
+
+    /** Release any unused capacity at the end of the internal arrays. */
+    public void trimToSize () {
+        bytes = Arrays.copyOf(bytes, nBytes);
+        offsets = Arrays.copyOf(offsets, size);
+    }
+
+    /** @return the approximate number of bytes of heap memory used by this list, for comparison with other storage. */
+    public long getMemoryBytes () {
+        return bytes.length + (long) offsets.length * Integer.BYTES;
+    }
+
+    private void checkIndex (int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Geometry index out of range: " + index);
+        }
+    }
+
+    /** Append the given geometry to the end of the byte array, returning the offset to record for it. */
+    private int encode (int[] geometry) {
+        if (geometry == null) return NULL;
+        if (geometry.length == 0) return EMPTY;
+        // Each point needs at most two five-byte varints, plus one varint for the number of points.
+        ensureByteCapacity(5 + geometry.length * 5);
+        int offset = nBytes;
+        writeVarInt(geometry.length / 2);
+        int lat = 0;
+        int lon = 0;
+        for (int i = 0; i < geometry.length; i += 2) {
+            writeZigZag(geometry[i] - lat);
+            writeZigZag(geometry[i + 1] - lon);
+            lat = geometry[i];
+            lon = geometry[i + 1];
+        }
+        return offset;
+    }
+
+    private void ensureByteCapacity (int nAdditionalBytes) {
+        long required = (long) nBytes + nAdditionalBytes;
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many geometries to pack into a single array.");
+        }
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(required, bytes.length * 2L)));
+        }
+    }
+
+    /** Write a signed value, mapping small negative and positive values to small unsigned ones. */
+    private void writeZigZag (int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    private void writeVarInt (int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[nBytes++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[nBytes++] = (byte) value;
+    }
+
+}
@@ -49,6 +49,7 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
@@ -111,8 +112,8 @@ public class StreetLayer implements Serializable, Cloneable {
     public static final int INITIAL_LINK_RADIUS_METERS = 300;
 
     // Edge lists should be constructed after the fact from edges. This minimizes serialized size too.
-    public transient List<TIntList> outgoingEdges;
-    public transient List<TIntList> incomingEdges;
+    public transient EdgeLists outgoingEdges;
+    public transient EdgeLists incomingEdges;
 
     /** A spatial index of all street network edges, using fixed-point WGS84 coordinates. */
     public transient IntHashGrid spatialIndex = new IntHashGrid();
@@ -1160,20 +1161,29 @@ public class StreetLayer implements Serializable, Cloneable {
     /**
      * The edge lists (which edges go out of and come into each vertex) are derived from the edges in the EdgeStore.
      * So any time you add edges or change their endpoints, you need to rebuild the edge index.
-     * TODO some way to signal that a few new edges have been added, rather than rebuilding the whole lists.
+     * In a scenario copy the edges of the base network cannot change, so the base network's edge lists are reused
+     * and only the edges added by the scenario are indexed.
      */
     public void buildEdgeLists() {
         LOG.info("Building edge lists from edges...");
-        outgoingEdges = new ArrayList<>(vertexStore.getVertexCount());
-        incomingEdges = new ArrayList<>(vertexStore.getVertexCount());
-        for (int v = 0; v < vertexStore.getVertexCount(); v++) {
-            outgoingEdges.add(new TIntArrayList(4));
-            incomingEdges.add(new TIntArrayList(4));
-        }
+        int nVertices = vertexStore.getVertexCount();
+        int nEdges = edgeStore.nEdges();
         Edge edge = edgeStore.getCursor();
-        while (edge.advance()) {
-            outgoingEdges.get(edge.getFromVertex()).add(edge.edgeIndex);
-            incomingEdges.get(edge.getToVertex()).add(edge.edgeIndex);
+        IntUnaryOperator fromVertex = e -> {
+            edge.seek(e);
+            return edge.getFromVertex();
+        };
+        IntUnaryOperator toVertex = e -> {
+            edge.seek(e);
+            return edge.getToVertex();
+        };
+        if (edgeStore.isExtendOnlyCopy() && baseStreetLayer != null && baseStreetLayer.outgoingEdges != null
+                && baseStreetLayer.outgoingEdges.getBaseEdgeCount() == edgeStore.firstModifiableEdge) {
+            outgoingEdges = baseStreetLayer.outgoingEdges.extend(nEdges, fromVertex);
+            incomingEdges = baseStreetLayer.incomingEdges.extend(nEdges, toVertex);
+        } else {
+            outgoingEdges = EdgeLists.build(nVertices, nEdges, fromVertex);
+            incomingEdges = EdgeLists.build(nVertices, nEdges, toVertex);
         }
         LOG.info("Done building edge lists.");
     }
@@ -0,0 +1,51 @@
+package com.conveyal.r5.streets;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+/**
+ * Holds at most one idle search buffer per thread, for buffers with an entry for every edge of a street layer. These
+ * are too large to allocate for every search, but also too large to keep on every thread that ever ran a search, such
+ * as the common fork-join pool threads used while building egress cost tables, or after a worker has moved on to
+ * another network. So the idle buffer is only softly held, allowing the garbage collector to reclaim it when memory
+ * runs short, and it is only handed out again for the street layer it was used with. Scenario copies of a street layer
+ * share buffers with their base layer, since they only add edges to it, though a buffer still has to be checked to
+ * be large enough for the added edges.
+ */
+class StreetLayerBufferPool<T> {
+
+    private final ThreadLocal<Entry<T>> idleBuffers = new ThreadLocal<>();
+
+    /**
+     * Take this thread's idle buffer if there is one for the given street layer, removing it from the pool while it
+     * is in use. An idle buffer for any other layer is dropped.
+     * @return the idle buffer, or null if the caller must create a new one.
+     */
+    T take (StreetLayer streetLayer) {
+        Entry<T> entry = idleBuffers.get();
+        if (entry == null) return null;
+        idleBuffers.remove();
+        return entry.streetLayer.get() == baseLayer(streetLayer) ? entry.buffer.get() : null;
+    }
+
+    /** Make a buffer that is no longer in use available to the next search on this thread on the same street layer. */
+    void put (StreetLayer streetLayer, T buffer) {
+        idleBuffers.set(new Entry<>(baseLayer(streetLayer), buffer));
+    }
+
+    private static StreetLayer baseLayer (StreetLayer streetLayer) {
+        return streetLayer.isScenarioCopy() ? streetLayer.baseStreetLayer : streetLayer;
+    }
+
+    /** Neither reference keeps its referent alive, so neither the buffer nor its street layer is pinned by a thread. */
+    private static class Entry<T> {
+        final WeakReference<StreetLayer> streetLayer;
+        final SoftReference<T> buffer;
+
+        Entry (StreetLayer streetLayer, T buffer) {
+            this.streetLayer = new WeakReference<>(streetLayer);
+            this.buffer = new SoftReference<>(buffer);
+        }
+    }
+
+}
@@ -30,6 +30,7 @@ import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -149,6 +150,26 @@ public class StreetRouter {
      */
     TIntObjectMultimap<State> bestStatesAtEdge = new TIntObjectHashMultimap<>();
 
+    /**
+     * If this is true and no turn restrictions can apply to the search, route() will use a compact search that keeps
+     * a single label per edge in primitive arrays and an indexed heap of edges, rather than creating a State object
+     * for every edge traversal. This greatly reduces allocation in large searches. The compact search produces the
+     * same best value of the routing variable at each edge, but does not retain paths, so it should only be enabled
+     * by callers that read travel times, distances or States without following their backState references. Those
+     * callers should call releaseSearchLabels() once they have finished reading results, so the large label arrays
+     * can be reused by the next search on the same thread.
+     */
+    public boolean compactSearch = false;
+
+    /** The labels produced by a compact search, or null if the search was performed using State objects. */
+    private CompactEdgeLabels compactLabels = null;
+
+    /** True if the labels of a compact search have been released, so the results of this router can't be read. */
+    private boolean compactLabelsReleased = false;
+
+    /** True if the origin States were created without any history, so can be converted to compact search labels. */
+    private boolean simpleOrigin = false;
+
     // The queue is prioritized by the specified optimization objective variable.
     PriorityQueue<State> queue = new PriorityQueue<>(
             Comparator.comparingInt(s0 -> (s0.getRoutingVariable(quantityToMinimize) + s0.heuristic)));
@@ -229,8 +250,21 @@ public class StreetRouter {
      * objective variable for the optimal path to that vertex.
      */
     public TIntIntMap getReachedVertices () {
+        checkLabelsNotReleased();
         TIntIntMap result = new TIntIntHashMap();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
+        if (compactLabels != null) {
+            for (int i = 0; i < compactLabels.reachedEdges.size(); i++) {
+                int eidx = compactLabels.reachedEdges.get(i);
+                int value = compactLabels.getRoutingVariable(eidx);
+                e.seek(eidx);
+                int vidx = e.getToVertex();
+                if (!result.containsKey(vidx) || result.get(vidx) > value) {
+                    result.put(vidx, value);
+                }
+            }
+            return result;
+        }
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
             // Iterating over a little list and reducing the values with a stream might be slow.
@@ -248,6 +282,26 @@ public class StreetRouter {
         return result;
     }
 
+    /**
+     * The same as getReachedVertices(), but returning a packed array of (vertexIndex, value) pairs sorted by vertex as
+     * described in VertexDistanceTable. After a compact search, this is built without creating any hash map.
+     */
+    public int[] getReachedVerticesPacked () {
+        checkLabelsNotReleased();
+        if (compactLabels == null) {
+            return VertexDistanceTable.fromMap(getReachedVertices());
+        }
+        EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
+        int nReachedEdges = compactLabels.reachedEdges.size();
+        long[] encodedPairs = new long[nReachedEdges];
+        for (int i = 0; i < nReachedEdges; i++) {
+            int eidx = compactLabels.reachedEdges.get(i);
+            e.seek(eidx);
+            encodedPairs[i] = VertexDistanceTable.encode(e.getToVertex(), compactLabels.getRoutingVariable(eidx));
+        }
+        return VertexDistanceTable.fromEncodedPairs(encodedPairs, nReachedEdges);
+    }
+
     /**
      * After a search has been run, calling this method will returns a map from vertex indexes to the value of
      * the objective variable for the optimal path to that vertex, but only for vertices with a certain flag set.
@@ -262,9 +316,25 @@ public class StreetRouter {
         if (flagSearch == flag && routingVisitor instanceof VertexFlagVisitor) {
             return ((VertexFlagVisitor) routingVisitor).getVertices();
         }
+        checkLabelsNotReleased();
         TIntObjectMap<State> result = new TIntObjectHashMap<>();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
+        if (compactLabels != null) {
+            for (int i = 0; i < compactLabels.reachedEdges.size(); i++) {
+                int eidx = compactLabels.reachedEdges.get(i);
+                e.seek(eidx);
+                int vidx = e.getToVertex();
+                v.seek(vidx);
+                if (v.getFlag(flag)) {
+                    if (!result.containsKey(vidx) || result.get(vidx).getRoutingVariable(quantityToMinimize) >
+                                                                compactLabels.getRoutingVariable(eidx)) {
+                        result.put(vidx, compactLabelToState(eidx));
+                    }
+                }
+            }
+            return result;
+        }
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
 
@@ -319,6 +389,8 @@ public class StreetRouter {
         }
 
         originSplit = split;
+        resetCompactLabels();
+        simpleOrigin = true;
         bestStatesAtEdge.clear();
         queue.clear();
         // The states are located at the end of edges. Vertex0 is at the end of the reverse edge (split.edge + 1).
@@ -362,6 +434,8 @@ public class StreetRouter {
     }
 
     public void setOrigin (int fromVertex) {
+        resetCompactLabels();
+        simpleOrigin = true;
         bestStatesAtEdge.clear();
         queue.clear();
 
@@ -386,6 +460,9 @@ public class StreetRouter {
      * @param legMode What origin search is this bike share or P+R
      */
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
+        // These origin states continue searches in other modes, so are not converted to compact search labels.
+        resetCompactLabels();
+        simpleOrigin = false;
         bestStatesAtEdge.clear();
         queue.clear();
         //Maximal origin latitude is used in goal direction heuristic.
@@ -496,6 +573,12 @@ public class StreetRouter {
             LOG.debug("Using time limit of {} sec", timeLimitSeconds);
         }
 
+        if (compactLabels != null || canUseCompactSearch()) {
+            routeCompact(distanceLimitMm, tmpTimeLimitSeconds);
+            LOG.debug("Compact routing took {} msec", System.currentTimeMillis() - startTime);
+            return;
+        }
+
         if (queue.size() == 0) {
             LOG.warn("Routing without first setting an origin, no search will happen.");
         }
@@ -575,15 +658,10 @@ public class StreetRouter {
                 }
             }
 
-            TIntList edgeList;
-            if (profileRequest.reverseSearch) {
-                edgeList = streetLayer.incomingEdges.get(s0.vertex);
-            } else {
-                edgeList = streetLayer.outgoingEdges.get(s0.vertex);
-            }
+            EdgeLists edgeLists = profileRequest.reverseSearch ? streetLayer.incomingEdges : streetLayer.outgoingEdges;
             // explore edges leaving this vertex
-            edgeList.forEach(eidx -> {
-                edge.seek(eidx);
+            for (int i = 0, nEdges = edgeLists.size(s0.vertex); i < nEdges; i++) {
+                edge.seek(edgeLists.get(s0.vertex, i));
                 State s1 = edge.traverse(s0, streetMode, profileRequest, timeCalculator);
                 if (s1 != null && s1.distance <= distanceLimitMm && s1.getDurationSeconds() < tmpTimeLimitSeconds) {
                     if (!isDominated(s1)) {
@@ -593,8 +671,7 @@ public class StreetRouter {
                         queue.add(s1);
                     }
                 }
-                return true; // Iteration over the edge list should continue.
-            });
+            }
         }
         if (DEBUG_OUTPUT) {
             debugPrintStream.close();
@@ -603,6 +680,188 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    /**
+     * The compact search is used only when it was requested and is known to give the same results as the search with
+     * State objects: no turn restrictions can apply, and no features of the search need access to intermediate States.
+     */
+    private boolean canUseCompactSearch () {
+        if (!compactSearch || !simpleOrigin || DEBUG_OUTPUT) {
+            return false;
+        }
+        // Goal direction, early termination at a destination, and visitors all operate on States.
+        if (destinationSplit != null || toVertex > 0 || routingVisitor != null || transitStopSearch || flagSearch != null) {
+            return false;
+        }
+        // Turn restrictions only apply to cars. Those in both directions are indexes into the StreetLayer's list.
+        if (streetMode == StreetMode.CAR) {
+            return streetLayer.turnRestrictions.isEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * The main loop of the compact search, equivalent to the main loop of route() but without creating any States.
+     * On the first call, the origin States placed in the queue by setOrigin are converted into labels.
+     */
+    private void routeCompact (int distanceLimitMm, int timeLimitSeconds) {
+        if (compactLabels == null) {
+            compactLabels = CompactEdgeLabels.checkOut(
+                    streetLayer,
+                    quantityToMinimize == State.RoutingVariable.DURATION_SECONDS
+            );
+            if (queue.size() == 0) {
+                LOG.warn("Routing without first setting an origin, no search will happen.");
+            }
+            for (State state : queue) {
+                if (state.backEdge >= 0) {
+                    compactLabels.update(state.backEdge, state.durationSeconds, state.distance, state.streetMode);
+                    compactLabels.originLabels.set(state.backEdge);
+                }
+            }
+            // A search from a vertex has a single origin state with no back edge, which is not recorded at any edge.
+            for (State state : queue) {
+                if (state.backEdge < 0) {
+                    relaxCompact(state.backEdge, state.vertex, state.durationSeconds, state.distance, false,
+                            distanceLimitMm, timeLimitSeconds);
+                }
+            }
+            queue.clear();
+        }
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        while (!compactLabels.isEmpty()) {
+            int e0 = compactLabels.poll();
+            edge.seek(e0);
+            int vertex = profileRequest.reverseSearch ? edge.getFromVertex() : edge.getToVertex();
+            relaxCompact(e0, vertex, compactLabels.durationSeconds[e0], compactLabels.distanceMillimeters[e0],
+                    !compactLabels.originLabels.get(e0), distanceLimitMm, timeLimitSeconds);
+        }
+    }
+
+    /**
+     * Traverse every edge leaving the given vertex from a label at the end of edge e0 (or a negative edge index for
+     * the origin vertex of a search), updating the labels at the ends of those edges where they are improved. This
+     * must produce the same results as EdgeStore.Edge.traverse in the absence of turn restrictions, so any change to
+     * that method should be reflected here.
+     *
+     * @param hasBackState false for states created at the origin of the search, which are allowed to be followed by
+     *                     two link edges in a row.
+     */
+    private void relaxCompact (int e0, int vertex, int duration0, int distance0, boolean hasBackState,
+                               int distanceLimitMm, int timeLimitSeconds) {
+        final EdgeStore edgeStore = streetLayer.edgeStore;
+        final boolean reverseSearch = profileRequest.reverseSearch;
+        final boolean backEdgeIsLink = e0 >= 0 && hasBackState &&
+                edgeStore.getCursor(e0).getFlag(EdgeStore.EdgeFlag.LINK);
+        EdgeLists edgeLists = reverseSearch ? streetLayer.incomingEdges : streetLayer.outgoingEdges;
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        for (int i = 0, nEdges = edgeLists.size(vertex); i < nEdges; i++) {
+            int eidx = edgeLists.get(vertex, i);
+            if (edgeStore.temporarilyDeletedEdges != null && edgeStore.temporarilyDeletedEdges.contains(eidx)) {
+                continue;
+            }
+            edge.seek(eidx);
+            if (backEdgeIsLink && edge.getFlag(EdgeStore.EdgeFlag.LINK)) {
+                // Two link edges in a row, in other words a shortcut. Disallow this.
+                continue;
+            }
+            // Check whether this edge allows the selected mode, considering the request settings.
+            StreetMode mode = streetMode;
+            if (mode == StreetMode.WALK) {
+                if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) continue;
+                if (profileRequest.wheelchair && !edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_WHEELCHAIR)) continue;
+            } else if (mode == StreetMode.BICYCLE) {
+                // If biking is not allowed on this edge, or if the traffic stress is too high, walk the bike.
+                boolean tryWalking = !edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE);
+                int bikeTrafficStress = profileRequest.bikeTrafficStress;
+                if (bikeTrafficStress > 0 && bikeTrafficStress < 4) {
+                    if (edge.getFlag(EdgeStore.EdgeFlag.BIKE_LTS_4)) tryWalking = true;
+                    if (bikeTrafficStress < 3 && edge.getFlag(EdgeStore.EdgeFlag.BIKE_LTS_3)) tryWalking = true;
+                    if (bikeTrafficStress < 2 && edge.getFlag(EdgeStore.EdgeFlag.BIKE_LTS_2)) tryWalking = true;
+                }
+                if (tryWalking) {
+                    if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) continue;
+                    mode = StreetMode.WALK;
+                }
+            } else if (mode == StreetMode.CAR) {
+                if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_CAR)) continue;
+            }
+            int traverseTimeSeconds = timeCalculator.traversalTimeSeconds(edge, mode, profileRequest);
+            int turnTimeSeconds = 0;
+            if (e0 >= 0) {
+                turnTimeSeconds = reverseSearch ?
+                        timeCalculator.turnTimeSeconds(eidx, e0, mode) : timeCalculator.turnTimeSeconds(e0, eidx, mode);
+            }
+            int duration1 = duration0;
+            int increment = traverseTimeSeconds + turnTimeSeconds;
+            // State.incrementTimeInSeconds ignores negative increments.
+            if (increment >= 0) {
+                duration1 += increment;
+            }
+            int distance1 = distance0 + edge.getLengthMm();
+            // Make sure we don't have states that don't increment weight/time, otherwise we could create loops.
+            if (duration1 == duration0) duration1 += 1;
+            if (distance1 == distance0) distance1 += 1;
+            if (distance1 <= distanceLimitMm && duration1 < timeLimitSeconds) {
+                int value = quantityToMinimize == State.RoutingVariable.DURATION_SECONDS ? duration1 : distance1;
+                // As in isDominated, an existing label with the same value wins over the new one.
+                if (!compactLabels.isReached(eidx) || value < compactLabels.getRoutingVariable(eidx)) {
+                    compactLabels.update(eidx, duration1, distance1, mode);
+                }
+            }
+        }
+    }
+
+    /** Create a State equivalent to the label at the end of the given edge after a compact search. */
+    private State compactLabelToState (int edgeIndex) {
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor(edgeIndex);
+        int vertex = profileRequest.reverseSearch ? edge.getFromVertex() : edge.getToVertex();
+        State state = new State(vertex, edgeIndex, compactLabels.getStreetMode(edgeIndex));
+        state.durationSeconds = compactLabels.durationSeconds[edgeIndex];
+        state.durationFromOriginSeconds = state.durationSeconds;
+        state.distance = compactLabels.distanceMillimeters[edgeIndex];
+        return state;
+    }
+
+    /**
+     * Get all the best States at the end of the given edge, whether the search was performed using States or using
+     * compact labels. The compact search always has at most one State per edge.
+     */
+    private Collection<State> getStatesAtEdge (int edgeIndex) {
+        checkLabelsNotReleased();
+        if (compactLabels == null) {
+            return bestStatesAtEdge.get(edgeIndex);
+        }
+        if (!compactLabels.isReached(edgeIndex)) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(compactLabelToState(edgeIndex));
+    }
+
+    /**
+     * Return the labels of a compact search to a pool, so they can be reused by the next compact search on the current
+     * thread. The results of this router can no longer be read after this is called. This has no effect if this
+     * router did not perform a compact search.
+     */
+    public void releaseSearchLabels () {
+        if (compactLabels != null) {
+            compactLabels.release();
+            compactLabels = null;
+            compactLabelsReleased = true;
+        }
+    }
+
+    /** Release any labels from a previous compact search, before setting up a new search. */
+    private void resetCompactLabels () {
+        releaseSearchLabels();
+        compactLabelsReleased = false;
+    }
+
+    private void checkLabelsNotReleased () {
+        if (compactLabelsReleased) {
+            throw new IllegalStateException("Results of a compact street search cannot be read after its labels are released.");
+        }
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
@@ -682,7 +941,7 @@ public class StreetRouter {
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
-        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
+        Collection<State> states = getStatesAtEdge(edgeIndex);
         if (states.isEmpty()) {
             return null; // Unreachable
         }
@@ -698,15 +957,9 @@ public class StreetRouter {
     public State getStateAtVertex (int vertexIndex) {
         State ret = null;
 
-        TIntList edgeList;
-        if (profileRequest.reverseSearch) {
-            edgeList = streetLayer.outgoingEdges.get(vertexIndex);
-        } else {
-            edgeList = streetLayer.incomingEdges.get(vertexIndex);
-        }
-
-        for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            int eidx = it.next();
+        EdgeLists edgeLists = profileRequest.reverseSearch ? streetLayer.outgoingEdges : streetLayer.incomingEdges;
+        for (int i = 0, nEdges = edgeLists.size(vertexIndex); i < nEdges; i++) {
+            int eidx = edgeLists.get(vertexIndex, i);
 
             State state = getStateAtEdge(eidx);
 
@@ -722,6 +975,19 @@ public class StreetRouter {
     }
 
     public int getTravelTimeToVertex (int vertexIndex) {
+        if (compactLabels != null) {
+            // Equivalent to the general case below, without creating a State for every reached edge.
+            EdgeLists edgeLists = profileRequest.reverseSearch ? streetLayer.outgoingEdges : streetLayer.incomingEdges;
+            int bestEdge = -1;
+            for (int i = 0, nEdges = edgeLists.size(vertexIndex); i < nEdges; i++) {
+                int eidx = edgeLists.get(vertexIndex, i);
+                if (!compactLabels.isReached(eidx)) continue;
+                if (bestEdge < 0 || compactLabels.getRoutingVariable(bestEdge) > compactLabels.getRoutingVariable(eidx)) {
+                    bestEdge = eidx;
+                }
+            }
+            return bestEdge >= 0 ? compactLabels.durationSeconds[bestEdge] : Integer.MAX_VALUE;
+        }
         State state = getStateAtVertex(vertexIndex);
         return state != null ? state.durationSeconds : Integer.MAX_VALUE;
     }
@@ -749,7 +1015,7 @@ public class StreetRouter {
         }
         // TODO change iteration style to imperative
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             // NB this needs a state to copy turn restrictions into. We then don't use that state, which is fine because
             // we don't need the turn restrictions any more because we're at the end of the search
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge, s), profileRequest.reverseSearch))
@@ -780,7 +1046,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             for (State state : states) {
                 if (!e.canTurnFrom(state, new State(-1, split.edge + 1, state), profileRequest.reverseSearch)) {
                     continue;
@@ -1189,6 +1455,16 @@ public class StreetRouter {
      * Just allowing more than one mode doesn't give the desired effect - we really want a sequence of separate modes.
      */
     public void keepRoutingOnFoot() {
+        if (compactLabels != null) {
+            compactLabels.clearHeap();
+            compactLabels.reachedEdges.forEach(edge -> {
+                compactLabels.enqueue(edge);
+                return true;
+            });
+            streetMode = StreetMode.WALK;
+            route();
+            return;
+        }
         queue.clear();
         bestStatesAtEdge.forEachEntry((edgeId, states) -> queue.addAll(states));
         streetMode = StreetMode.WALK;
@@ -0,0 +1,175 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.TIntSet;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A bounded walking search from one street vertex that finds only the distances to transit stops, used to find
+ * transfers between stops. It follows the same rules as a walking StreetRouter search minimizing distance: it uses
+ * only edges that allow pedestrians, never traverses two link edges in a row except when leaving the origin, and skips
+ * edges that are temporarily deleted by a scenario. But it keeps nothing except one distance per edge, and does not
+ * need to find the states at every stop vertex after the search, because edges are settled in order of increasing
+ * distance, so the first time a stop's vertex is reached its distance is final.
+ *
+ * The distance array covers every edge in the street layer, so as with CompactEdgeLabels, instances are pooled per
+ * thread and street layer, and only the entries touched by a search are reset between searches.
+ */
+public class TransferSearch {
+
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+    /** Each thread holds at most one idle instance, which is removed from the pool while it's in use. */
+    private static final StreetLayerBufferPool<TransferSearch> pool = new StreetLayerBufferPool<>();
+
+    /** The number of edges this search can handle. */
+    private final int capacity;
+
+    /** The best distance found to the end of each edge, or UNREACHED. */
+    private final int[] distanceMillimeters;
+
+    /** Every edge that has a distance, used to reset them after the search. */
+    private final TIntArrayList reachedEdges = new TIntArrayList();
+
+    /** The stops reached so far in the current search. */
+    private final BitSet reachedStops = new BitSet();
+
+    /** The stops reached and their distances, as packed pairs in the order they were reached. */
+    private final TIntArrayList results = new TIntArrayList();
+
+    /**
+     * A binary min-heap of edges, each encoded as (distance << 32 | edge) so that ordering the longs orders the edges
+     * by distance. An edge is added again each time its distance improves, so the heap may contain stale entries,
+     * which are skipped when removed.
+     */
+    private long[] heap = new long[1024];
+
+    private int heapSize = 0;
+
+    private TransferSearch (int capacity) {
+        this.capacity = capacity;
+        this.distanceMillimeters = new int[capacity];
+        Arrays.fill(distanceMillimeters, UNREACHED);
+    }
+
+    /**
+     * Find the walking distance to every stop within the distance limit of the origin vertex.
+     * @param stopForVertex the index of the stop at each street vertex, or -1 if the vertex is not a stop.
+     * @return packed pairs of (stopIndex, distanceMillimeters), in order of increasing distance.
+     */
+    public static int[] findStops (StreetLayer streetLayer, int originVertex, int distanceLimitMillimeters,
+                                   int[] stopForVertex) {
+        int nEdges = streetLayer.edgeStore.nEdges();
+        TransferSearch search = pool.take(streetLayer);
+        if (search == null || search.capacity < nEdges) {
+            search = new TransferSearch(nEdges);
+        }
+        try {
+            return search.route(streetLayer, originVertex, distanceLimitMillimeters, stopForVertex);
+        } finally {
+            search.reset();
+            pool.put(streetLayer, search);
+        }
+    }
+
+    private int[] route (StreetLayer streetLayer, int originVertex, int distanceLimitMillimeters, int[] stopForVertex) {
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        relax(streetLayer, edge, originVertex, 0, false, distanceLimitMillimeters);
+        while (heapSize > 0) {
+            long top = poll();
+            int edgeIndex = (int) top;
+            int distance = (int) (top >>> 32);
+            if (distance > distanceMillimeters[edgeIndex]) {
+                // A better distance to this edge was found after this entry was added.
+                continue;
+            }
+            edge.seek(edgeIndex);
+            int vertex = edge.getToVertex();
+            boolean backEdgeIsLink = edge.getFlag(EdgeStore.EdgeFlag.LINK);
+            int stop = vertex < stopForVertex.length ? stopForVertex[vertex] : -1;
+            if (stop >= 0 && !reachedStops.get(stop)) {
+                reachedStops.set(stop);
+                results.add(stop);
+                results.add(distance);
+            }
+            relax(streetLayer, edge, vertex, distance, backEdgeIsLink, distanceLimitMillimeters);
+        }
+        return results.isEmpty() ? EMPTY_INT_ARRAY : results.toArray();
+    }
+
+    /** Traverse every walkable edge out of the given vertex, recording any improved distances. */
+    private void relax (StreetLayer streetLayer, EdgeStore.Edge edge, int vertex, int distance0,
+                        boolean backEdgeIsLink, int distanceLimitMillimeters) {
+        TIntSet deletedEdges = streetLayer.edgeStore.temporarilyDeletedEdges;
+        EdgeLists edgeLists = streetLayer.outgoingEdges;
+        for (int i = 0, nEdges = edgeLists.size(vertex); i < nEdges; i++) {
+            int edgeIndex = edgeLists.get(vertex, i);
+            if (deletedEdges != null && deletedEdges.contains(edgeIndex)) continue;
+            edge.seek(edgeIndex);
+            // Two link edges in a row would be a shortcut through a stop or other linked point.
+            if (backEdgeIsLink && edge.getFlag(EdgeStore.EdgeFlag.LINK)) continue;
+            if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) continue;
+            int distance1 = distance0 + edge.getLengthMm();
+            // As in the StreetRouter, every edge increases the distance to avoid loops.
+            if (distance1 == distance0) distance1 += 1;
+            if (distance1 <= distanceLimitMillimeters && distance1 < distanceMillimeters[edgeIndex]) {
+                if (distanceMillimeters[edgeIndex] == UNREACHED) {
+                    reachedEdges.add(edgeIndex);
+                }
+                distanceMillimeters[edgeIndex] = distance1;
+                add(((long) distance1 << 32) | edgeIndex);
+            }
+        }
+    }
+
+    private void reset () {
+        for (int i = 0; i < reachedEdges.size(); i++) {
+            distanceMillimeters[reachedEdges.get(i)] = UNREACHED;
+        }
+        reachedEdges.resetQuick();
+        reachedStops.clear();
+        results.resetQuick();
+        heapSize = 0;
+    }
+
+    private void add (long entry) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        int position = heapSize++;
+        while (position > 0) {
+            int parentPosition = (position - 1) >>> 1;
+            if (heap[parentPosition] <= entry) break;
+            heap[position] = heap[parentPosition];
+            position = parentPosition;
+        }
+        heap[position] = entry;
+    }
+
+    private long poll () {
+        long top = heap[0];
+        heapSize -= 1;
+        if (heapSize > 0) {
+            long entry = heap[heapSize];
+            int position = 0;
+            int half = heapSize >>> 1;
+            while (position < half) {
+                int childPosition = 2 * position + 1;
+                int rightPosition = childPosition + 1;
+                if (rightPosition < heapSize && heap[rightPosition] < heap[childPosition]) {
+                    childPosition = rightPosition;
+                }
+                if (entry <= heap[childPosition]) break;
+                heap[position] = heap[childPosition];
+                position = childPosition;
+            }
+            heap[position] = entry;
+        }
+        return top;
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.set.TIntSet;
+
+import java.util.Arrays;
+
+/**
+ * Static methods for working with tables of the distances (or other routing variables) from a single origin to many
+ * street vertices, stored as packed arrays of (vertexIndex, value) pairs sorted by vertex index. One of these is kept
+ * for each transit stop in the TransitLayer. Compared to one hash map per stop, these use no space beyond the pairs
+ * themselves and create only one object per stop, while still allowing lookups by vertex with a binary search.
+ */
+public abstract class VertexDistanceTable {
+
+    public static final int[] EMPTY = new int[0];
+
+    /** @return a packed table of all the entries in the given map. */
+    public static int[] fromMap (TIntIntMap valueForVertex) {
+        int[] vertices = valueForVertex.keys();
+        Arrays.sort(vertices);
+        int[] table = new int[vertices.length * 2];
+        for (int i = 0; i < vertices.length; i++) {
+            table[i * 2] = vertices[i];
+            table[i * 2 + 1] = valueForVertex.get(vertices[i]);
+        }
+        return table;
+    }
+
+    /**
+     * Make a table from the first n elements of an array of (vertex, value) pairs encoded into longs by encode(). The
+     * vertices may appear in any order and more than once, in which case the lowest value is retained. The supplied
+     * array is sorted in place.
+     */
+    public static int[] fromEncodedPairs (long[] encodedPairs, int n) {
+        if (n == 0) return EMPTY;
+        // As both vertex and value are non-negative, sorting the longs orders them by vertex then increasing value.
+        Arrays.sort(encodedPairs, 0, n);
+        int nVertices = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || vertex(encodedPairs[i]) != vertex(encodedPairs[i - 1])) nVertices += 1;
+        }
+        int[] table = new int[nVertices * 2];
+        int t = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || vertex(encodedPairs[i]) != vertex(encodedPairs[i - 1])) {
+                table[t++] = vertex(encodedPairs[i]);
+                table[t++] = (int) encodedPairs[i];
+            }
+        }
+        return table;
+    }
+
+    /** Combine a non-negative vertex index and value into a single long for sorting. */
+    public static long encode (int vertex, int value) {
+        return ((long) vertex << 32) | value;
+    }
+
+    private static int vertex (long encodedPair) {
+        return (int) (encodedPair >>> 32);
+    }
+
+    /** @return the value for the given vertex in the table, or -1 if the table does not contain the vertex. */
+    public static int getValue (int[] table, int vertex) {
+        int low = 0;
+        int high = table.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midVertex = table[mid * 2];
+            if (midVertex < vertex) {
+                low = mid + 1;
+            } else if (midVertex > vertex) {
+                high = mid - 1;
+            } else {
+                return table[mid * 2 + 1];
+            }
+        }
+        return -1;
+    }
+
+    /** @return true if the table contains any of the given vertices. */
+    public static boolean containsAny (int[] table, TIntSet vertices) {
+        for (int i = 0; i < table.length; i += 2) {
+            if (vertices.contains(table[i])) return true;
+        }
+        return false;
+    }
+
+}
@@ -3,6 +3,7 @@ package com.conveyal.r5.transit;
 import com.conveyal.r5.api.util.ParkRideParking;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.TransferSearch;
 import com.conveyal.r5.util.LambdaCounter;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
@@ -13,6 +14,9 @@ import gnu.trove.map.hash.TIntObjectHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -28,8 +32,8 @@ public class TransferFinder {
 
     private static final Logger LOG = LoggerFactory.getLogger(TransferFinder.class);
 
-    // Optimization: use the same empty list for all stops with no transfers
-    private static final TIntArrayList EMPTY_INT_LIST = new TIntArrayList();
+    // Optimization: use the same empty array for all stops with no transfers
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
 
     // Optimization: use the same empty list for all stops with no transfers
     private static final TIntObjectMap<StreetRouter.State> EMPTY_STATE_MAP = new TIntObjectHashMap<>();
@@ -101,84 +105,118 @@ public class TransferFinder {
      * However, existing transfer lists will be extended if new stops are reachable from existing stops.
      */
     public void findTransfers () {
-        // Look at the existing list of transfers (if any) and do enough iterations to make that transfer list as long
-        // as the list of stops.
-        int firstStopToProcess = transitLayer.transfersForStop.size();
+        // Look at the existing table of transfers (if any) and find transfers for all the stops it does not contain.
+        int firstStopToProcess = transitLayer.transfersForStop.getStopCount();
         int nStopsTotal = transitLayer.getStopCount();
         int nStopsToProcess =  nStopsTotal - firstStopToProcess;
         LOG.info("Finding transfers through the street network from {} stops...", nStopsToProcess);
+        long startTime = System.currentTimeMillis();
         LambdaCounter stopCounter = new LambdaCounter(LOG, nStopsToProcess, 10_000,
                 "Found transfers from {} of {} transit stops.");
         LambdaCounter unconnectedCounter = new LambdaCounter(LOG, nStopsToProcess, 1_000,
                 "{} of {} transit stops are unlinked.");
 
-        // Create transfers for all new stops, appending them to the list of transfers for any existing stops.
-        // This handles both newly built networks and the case where a scenario adds stops to an existing network.
-        transitLayer.transfersForStop.addAll(
-                IntStream.range(firstStopToProcess, nStopsTotal).parallel().mapToObj(sourceStopIndex -> {
+        // The searches look up the stop at every vertex they reach, so use an array rather than the map.
+        int[] stopForVertex = new int[streetLayer.getVertexCount()];
+        Arrays.fill(stopForVertex, -1);
+        transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
+            if (streetVertex >= 0 && streetVertex < stopForVertex.length) stopForVertex[streetVertex] = stop;
+            return true;
+        });
+        final int distanceLimitMillimeters = TRANSFER_DISTANCE_LIMIT_METERS * 1000;
+
+        // Find transfers for all new stops. This handles both newly built networks and the case where a scenario
+        // adds stops to an existing network.
+        List<int[]> transfersForNewStops = IntStream.range(firstStopToProcess, nStopsTotal).parallel()
+                .mapToObj(sourceStopIndex -> {
             stopCounter.increment();
             // From each stop, run a street search looking for other transit stops.
             int originStreetVertex = transitLayer.streetVertexForStop.get(sourceStopIndex);
             if (originStreetVertex == -1) {
                 unconnectedCounter.increment();
-                // We must add an array to transfersForStop for every source stop to maintain the right length.
-                return EMPTY_INT_LIST;
+                // We must add transfers for every source stop to maintain the right length.
+                return EMPTY_INT_ARRAY;
             }
-
-            StreetRouter streetRouter = new StreetRouter(streetLayer);
-            streetRouter.distanceLimitMeters = TRANSFER_DISTANCE_LIMIT_METERS;
-
-            streetRouter.setOrigin(originStreetVertex);
-            streetRouter.quantityToMinimize = RoutingVariable.DISTANCE_MILLIMETERS;
-
-            streetRouter.route();
-            TIntIntMap distancesToReachedStops = streetRouter.getReachedStops();
+            int[] distancesToReachedStops = TransferSearch.findStops(streetLayer, originStreetVertex,
+                    distanceLimitMillimeters, stopForVertex);
             // TODO the following optimization is incorrect for some loop and U-shaped routes, measure that it's actually improving routing speed
-            retainClosestStopsOnPatterns(distancesToReachedStops);
-            // At this point we have the distances to all stops that are the closest one on some pattern.
-            // Make transfers to them, packed as pairs of (target stop index, distance).
-            TIntList packedTransfers = new TIntArrayList();
-            distancesToReachedStops.forEachEntry((targetStopIndex, distance) -> {
-                packedTransfers.add(targetStopIndex);
-                packedTransfers.add(distance);
-                return true;
-            });
-            // Record this list of transfers as leading out of the stop with index sourceStopIndex.
-            // Deduplicate empty lists.
-            if (packedTransfers.size() > 0) {
-                return packedTransfers;
-            } else {
-                return EMPTY_INT_LIST;
-            }
-        }).collect(Collectors.toList()));
+            // What remains are the distances to all stops that are the closest one on some pattern, packed as pairs
+            // of (target stop index, distance).
+            return retainClosestStopsOnPatterns(distancesToReachedStops);
+        }).collect(Collectors.toList());
+        stopCounter.done();
         LOG.info("Done finding transfers. {} stops were not linked to the street network.", unconnectedCounter.getCount());
 
-        // If we are applying a scenario (extending the transfers list rather than starting from scratch), for
+        // If we are applying a scenario (extending the transfers table rather than starting from scratch), for
         // all transfers out of a scenario stop into a base network stop we must also create the reverse transfer.
-        // The original packed transfers list is copied on write to avoid perturbing the base network.
+        // The transfers out of those base stops are replaced in the new table, leaving the base network untouched.
         // This is technically slightly incorrect, as distance(a, b) != distance(b, a), but for walking the equality
         // is close to holding. We do this by post-processing the list to allow parallel computation above. This
         // post-processing stage is much faster than performing the street searches and does not lend itself well to
         // a streaming approach.
+        TIntObjectMap<TIntList> inverseTransfers = new TIntObjectHashMap<>();
         if (firstStopToProcess > 0) {
-            LOG.info("Appending inverse transfers for scenario application...", nStopsToProcess);
+            LOG.info("Appending inverse transfers for scenario application...");
             for (int sourceStopIndex = firstStopToProcess; sourceStopIndex < nStopsTotal; sourceStopIndex++) {
-                TIntList distancesToTargetStops = transitLayer.transfersForStop.get(sourceStopIndex);
-                for (int i = 0; i < distancesToTargetStops.size(); i += 2) {
-                    int targetStopIndex = distancesToTargetStops.get(i);
-                    int distance = distancesToTargetStops.get(i + 1);
+                int[] distancesToTargetStops = transfersForNewStops.get(sourceStopIndex - firstStopToProcess);
+                for (int i = 0; i < distancesToTargetStops.length; i += 2) {
+                    int targetStopIndex = distancesToTargetStops[i];
+                    int distance = distancesToTargetStops[i + 1];
                     // Only create inverted transfers when target is a pre-existing (non-scenario) stop
                     if (targetStopIndex < firstStopToProcess) {
-                        TIntList packedTransfersCopy = new TIntArrayList(transitLayer.transfersForStop.get(targetStopIndex));
+                        TIntList packedTransfersCopy = inverseTransfers.get(targetStopIndex);
+                        if (packedTransfersCopy == null) {
+                            packedTransfersCopy = new TIntArrayList(
+                                    transitLayer.transfersForStop.getPackedTransfers(targetStopIndex));
+                            inverseTransfers.put(targetStopIndex, packedTransfersCopy);
+                        }
                         packedTransfersCopy.add(sourceStopIndex);
                         packedTransfersCopy.add(distance);
-                        transitLayer.transfersForStop.set(targetStopIndex, packedTransfersCopy);
                     }
                 }
             }
         }
+        TIntObjectMap<int[]> replacementTransfers = new TIntObjectHashMap<>(inverseTransfers.size());
+        inverseTransfers.forEachEntry((stop, packedTransfers) -> {
+            replacementTransfers.put(stop, packedTransfers.toArray());
+            return true;
+        });
+        transitLayer.transfersForStop = transitLayer.transfersForStop.extend(transfersForNewStops, replacementTransfers);
+        LOG.info("Transfer table has {} transfers out of {} stops, using {} MB. Finding transfers took {} sec.",
+                transitLayer.transfersForStop.getTransferCount(),
+                transitLayer.transfersForStop.getStopCount(),
+                String.format("%.1f", transitLayer.transfersForStop.getMemoryBytes() / 1e6),
+                String.format("%.1f", (System.currentTimeMillis() - startTime) / 1000D));
     }
 
+    /**
+     * Filter down packed pairs of (target stop index, distance), in order of increasing distance, so they only include
+     * those stops that are the closest on some pattern. Because the stops are in order of distance, a stop is the
+     * closest on a pattern exactly when no stop before it is on that pattern. This has the same caveats as the
+     * version of this method for maps below.
+     */
+    private int[] retainClosestStopsOnPatterns (int[] distancesToReachedStops) {
+        BitSet patternsSeen = new BitSet(transitLayer.tripPatterns.size());
+        TIntList retained = new TIntArrayList();
+        for (int i = 0; i < distancesToReachedStops.length; i += 2) {
+            int stopIndex = distancesToReachedStops[i];
+            boolean closestOnSomePattern = false;
+            int end = transitLayer.firstPatternForStop[stopIndex + 1];
+            for (int p = transitLayer.firstPatternForStop[stopIndex]; p < end; p++) {
+                int patternIndex = transitLayer.patternsForStop[p];
+                if (!patternsSeen.get(patternIndex)) {
+                    patternsSeen.set(patternIndex);
+                    closestOnSomePattern = true;
+                }
+            }
+            if (closestOnSomePattern) {
+                retained.add(stopIndex);
+                retained.add(distancesToReachedStops[i + 1]);
+            }
+        }
+        // Deduplicate empty arrays.
+        return retained.isEmpty() ? EMPTY_INT_ARRAY : retained.toArray();
+    }
 
     /**
      * Filter down a map from target stop indexes to distances so it only includes those stops that are the
@@ -193,7 +231,9 @@ public class TransferFinder {
         // For every reached stop,
         timesToReachedStops.forEachEntry((stopIndex, distanceToStop) -> {
             // For every pattern passing through that stop,
-            transitLayer.patternsForStop.get(stopIndex).forEach(patternIndex -> {
+            int end = transitLayer.firstPatternForStop[stopIndex + 1];
+            for (int i = transitLayer.firstPatternForStop[stopIndex]; i < end; i++) {
+                int patternIndex = transitLayer.patternsForStop[i];
                 int currentBestStop = bestStopOnPattern.get(patternIndex);
                 // Record this stop if it's the closest one yet seen on that pattern.
                 if (currentBestStop == -1) {
@@ -204,8 +244,7 @@ public class TransferFinder {
                         bestStopOnPattern.put(patternIndex, stopIndex);
                     }
                 }
-                return true; // iteration should continue
-            });
+            }
             return true; // iteration should continue
         });
         timesToReachedStops.retainEntries((stop, distance) -> bestStopOnPattern.containsValue(stop));
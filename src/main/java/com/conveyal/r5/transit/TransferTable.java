@@ -0,0 +1,149 @@
+package com.conveyal.r5.transit;
+
+import gnu.trove.map.TIntObjectMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The walking transfers out of every transit stop, held in a single flat array of packed (targetStop, distance)
+ * pairs, with distances in millimeters. Two more arrays give the positions in that array where the transfers out of
+ * each stop begin and end. Compared to a TIntArrayList per stop this creates three objects rather than one for every
+ * stop, and iterating over the transfers in routing does not need to follow any references.
+ *
+ * Instances are not modified once built. When a scenario adds stops, extend() makes a new table holding the base
+ * transfers plus the transfers out of the new stops. Base stops whose transfers change (because new reverse transfers
+ * lead back to the new stops) have their complete list of transfers appended to the end of the array, and their
+ * positions updated to point at it.
+ *
+ * Iterate over the transfers out of a stop with an index from zero up to size(stop), calling getTargetStop(stop, i)
+ * and getDistanceMillimeters(stop, i).
+ */
+public class TransferTable implements Serializable {
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+    private int nStops;
+
+    /** For each stop, the index in transfers where its packed pairs begin. */
+    private int[] transferStart;
+
+    /** For each stop, the index in transfers just after its last packed pair. */
+    private int[] transferEnd;
+
+    /** Packed pairs of (targetStop, distanceMillimeters) for all stops. */
+    private int[] transfers;
+
+    /** Create a table with no stops. */
+    public TransferTable () {
+        this.transferStart = EMPTY_INT_ARRAY;
+        this.transferEnd = EMPTY_INT_ARRAY;
+        this.transfers = EMPTY_INT_ARRAY;
+    }
+
+    /**
+     * Make a table from one array per stop, in stop order, each containing packed (targetStop, distance) pairs.
+     */
+    public static TransferTable fromPackedTransfers (List<int[]> packedTransfersForStop) {
+        return new TransferTable().extend(packedTransfersForStop, null);
+    }
+
+    /**
+     * Make a new table for a scenario, containing all the stops in this table followed by new stops.
+     * @param packedTransfersForNewStops one array of packed (targetStop, distance) pairs for each new stop.
+     * @param replacementTransfers complete replacement arrays of packed pairs for some existing stops, or null.
+     */
+    public TransferTable extend (List<int[]> packedTransfersForNewStops, TIntObjectMap<int[]> replacementTransfers) {
+        int nNewStops = packedTransfersForNewStops.size();
+        long nAdditionalInts = 0;
+        for (int[] packedTransfers : packedTransfersForNewStops) {
+            nAdditionalInts += packedTransfers.length;
+        }
+        if (replacementTransfers != null) {
+            for (int[] packedTransfers : replacementTransfers.valueCollection()) {
+                nAdditionalInts += packedTransfers.length;
+            }
+        }
+        if (transfers.length + nAdditionalInts > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many transfers to hold in a single array.");
+        }
+        TransferTable extended = new TransferTable();
+        extended.nStops = nStops + nNewStops;
+        extended.transferStart = Arrays.copyOf(transferStart, extended.nStops);
+        extended.transferEnd = Arrays.copyOf(transferEnd, extended.nStops);
+        extended.transfers = Arrays.copyOf(transfers, (int) (transfers.length + nAdditionalInts));
+        int position = transfers.length;
+        for (int i = 0; i < nNewStops; i++) {
+            position = extended.append(nStops + i, packedTransfersForNewStops.get(i), position);
+        }
+        if (replacementTransfers != null) {
+            // Sort the stops so the layout of the array does not depend on the iteration order of the map.
+            int[] replacedStops = replacementTransfers.keys();
+            Arrays.sort(replacedStops);
+            for (int stop : replacedStops) {
+                if (stop < 0 || stop >= extended.nStops) {
+                    throw new IllegalArgumentException("Cannot replace transfers for nonexistent stop " + stop);
+                }
+                position = extended.append(stop, replacementTransfers.get(stop), position);
+            }
+        }
+        return extended;
+    }
+
+    /** Copy the given packed pairs into the transfers array at the given position, returning the next position. */
+    private int append (int stop, int[] packedTransfers, int position) {
+        if (packedTransfers.length % 2 != 0) {
+            throw new IllegalArgumentException("Packed transfers must have an even number of elements.");
+        }
+        System.arraycopy(packedTransfers, 0, transfers, position, packedTransfers.length);
+        transferStart[stop] = position;
+        transferEnd[stop] = position + packedTransfers.length;
+        return position + packedTransfers.length;
+    }
+
+    /** @return the number of stops in this table. */
+    public int getStopCount () {
+        return nStops;
+    }
+
+    /** @return the number of transfers out of the given stop. */
+    public int size (int stop) {
+        if (stop >= nStops) return 0;
+        return (transferEnd[stop] - transferStart[stop]) / 2;
+    }
+
+    /** @return the stop reached by the transfer at the given position in the list of transfers out of a stop. */
+    public int getTargetStop (int stop, int index) {
+        return transfers[transferStart[stop] + index * 2];
+    }
+
+    /** @return the walking distance of the transfer at the given position in the list of transfers out of a stop. */
+    public int getDistanceMillimeters (int stop, int index) {
+        return transfers[transferStart[stop] + index * 2 + 1];
+    }
+
+    /**
+     * @return a new array containing the packed (targetStop, distance) pairs for all transfers out of the given stop.
+     *         This allocates on every call, so should not be used in routing.
+     */
+    public int[] getPackedTransfers (int stop) {
+        if (stop >= nStops) return EMPTY_INT_ARRAY;
+        return Arrays.copyOfRange(transfers, transferStart[stop], transferEnd[stop]);
+    }
+
+    /** @return the total number of transfers out of all stops. */
+    public long getTransferCount () {
+        long nInts = 0;
+        for (int stop = 0; stop < nStops; stop++) {
+            nInts += transferEnd[stop] - transferStart[stop];
+        }
+        return nInts / 2;
+    }
+
+    /** @return the approximate number of bytes of heap memory used by this table. */
+    public long getMemoryBytes () {
+        return ((long) transferStart.length + transferEnd.length + transfers.length) * Integer.BYTES;
+    }
+
+}
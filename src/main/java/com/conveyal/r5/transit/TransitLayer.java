@@ -14,6 +14,7 @@ import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.streets.EdgeStore;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.VertexDistanceTable;
 import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.util.LambdaCounter;
 import com.conveyal.r5.util.LocationIndexedLineInLocalCoordinateSystem;
@@ -49,11 +50,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
+import static com.conveyal.r5.common.Util.newIntArray;
+
 
 /**
  * A key simplifying factor is that we don't handle overnight trips. This is fine for analysis at usual times of day.
@@ -110,9 +114,9 @@ public class TransitLayer implements Serializable, Cloneable {
     // Inverse map of streetVertexForStop, and reconstructed from that list.
     public transient TIntIntMap stopForStreetVertex;
 
-    // For each stop, a packed list of transfers to other stops
-    // FIXME we may currently be storing weight or time to reach other stop, which we did to avoid floating point division. Instead, store distances in millimeters, and divide by speed in mm/sec.
-    public List<TIntList> transfersForStop = new ArrayList<>();
+    // For each stop, the walking transfers to other stops with distances in millimeters. Not modified once built;
+    // scenarios that add stops replace it with an extended copy.
+    public TransferTable transfersForStop = new TransferTable();
 
     /** Information about a route */
     public List<RouteInfo> routes = new ArrayList<>();
@@ -120,7 +124,16 @@ public class TransitLayer implements Serializable, Cloneable {
     /** The names of the stops */
     public List<String> stopNames = new ArrayList<>();
 
-    public List<TIntList> patternsForStop;
+    /**
+     * Which patterns pass through each stop, in compressed sparse row form. The indexes of the patterns passing
+     * through stop s are the elements of patternsForStop from firstPatternForStop[s] (inclusive) to
+     * firstPatternForStop[s + 1] (exclusive), in increasing order. This holds the whole index in two flat arrays
+     * instead of one list object per stop.
+     */
+    public transient int[] firstPatternForStop;
+
+    /** Pattern indexes for all stops, concatenated. See firstPatternForStop. */
+    public transient int[] patternsForStop;
 
     public List<Service> services = new ArrayList<>();
 
@@ -144,7 +157,9 @@ public class TransitLayer implements Serializable, Cloneable {
     public boolean hasSchedules = false;
 
     /**
-     * For each transit stop, an int-int map giving the walking distance to every reachable street vertex from that stop.
+     * For each transit stop, a table giving the walking distance in millimeters to every reachable street vertex from
+     * that stop, as packed (vertex, distance) pairs sorted by vertex (see VertexDistanceTable). The table is null for
+     * stops that are not linked to the street network.
      * This is the result of running a distance-constrained street search outward from every stop in the graph.
      * If these tables are present, we serialize them when persisting a network to disk to avoid recalculating them
      * upon re-load. However, these tables are only computed when the network is first built in certain code
@@ -152,7 +167,7 @@ public class TransitLayer implements Serializable, Cloneable {
      * Serializing this table makes network files much bigger and makes our checks to ensure that scenario application
      * does not damage base graphs slower.
      */
-    public List<TIntIntMap> stopToVertexDistanceTables;
+    public List<int[]> stopToVertexDistanceTables;
 
     /**
      * The TransportNetwork containing this TransitLayer. This link up the object tree also allows us to access the
@@ -488,19 +503,34 @@ public class TransitLayer implements Serializable, Cloneable {
 
         // 1. Which patterns pass through each stop?
         // We could store references to patterns rather than indexes.
+        // Two passes over the patterns: first count the patterns at each stop to find where each stop's section of the
+        // compressed sparse row array begins, then fill in the pattern indexes. Patterns are visited in increasing
+        // order, so remembering the last pattern recorded at each stop is enough to skip stops visited more than once
+        // by the same pattern (loops).
         int nStops = stopIdForIndex.size();
-        patternsForStop = new ArrayList<>(nStops);
-        for (int i = 0; i < nStops; i++) {
-            patternsForStop.add(new TIntArrayList());
+        int[] lastPatternAtStop = newIntArray(nStops, -1);
+        firstPatternForStop = new int[nStops + 1];
+        for (int p = 0; p < tripPatterns.size(); p++) {
+            for (int stopIndex : tripPatterns.get(p).stops) {
+                if (lastPatternAtStop[stopIndex] != p) {
+                    lastPatternAtStop[stopIndex] = p;
+                    firstPatternForStop[stopIndex + 1] += 1;
+                }
+            }
         }
-        int p = 0;
-        for (TripPattern pattern : tripPatterns) {
-            for (int stopIndex : pattern.stops) {
-                if (!patternsForStop.get(stopIndex).contains(p)) {
-                    patternsForStop.get(stopIndex).add(p);
+        for (int s = 0; s < nStops; s++) {
+            firstPatternForStop[s + 1] += firstPatternForStop[s];
+        }
+        patternsForStop = new int[firstPatternForStop[nStops]];
+        int[] nextSlotForStop = Arrays.copyOf(firstPatternForStop, nStops);
+        Arrays.fill(lastPatternAtStop, -1);
+        for (int p = 0; p < tripPatterns.size(); p++) {
+            for (int stopIndex : tripPatterns.get(p).stops) {
+                if (lastPatternAtStop[stopIndex] != p) {
+                    lastPatternAtStop[stopIndex] = p;
+                    patternsForStop[nextSlotForStop[stopIndex]++] = p;
                 }
             }
-            p++;
         }
 
         // 2. What street vertex represents each transit stop? Invert the serialized map.
@@ -543,25 +573,61 @@ public class TransitLayer implements Serializable, Cloneable {
      * @param rebuildZone the zone within which to rebuild tables in FIXED-POINT DEGREES, or null to build all tables.
      */
     public void buildDistanceTables(Geometry rebuildZone) {
-
         LOG.info("Finding distances from transit stops to street vertices.");
-        if (rebuildZone != null) {
+        if (rebuildZone == null) {
+            buildDistanceTables(stopIndex -> true);
+        } else {
             LOG.info("Selectively finding distances for only those stops potentially affected by scenario application.");
+            // Skip existing or new stops outside the zone that may be affected by the scenario.
+            buildDistanceTables(stopIndex -> {
+                Point p = getJTSPointForStopFixed(stopIndex);
+                return p != null && rebuildZone.contains(p);
+            });
         }
+    }
 
+    /**
+     * After a scenario has modified the street network, rebuild the distance tables for only those stops whose
+     * searches could have a different result. Any path that differs from those in the existing search must traverse
+     * an edge added or removed by the scenario. The first such edge on the path begins at a vertex reached without
+     * passing through any changed edge, which must already appear in the existing table (or be the stop's own vertex)
+     * if it is within the distance limit. So only new stops and stops whose existing table contains a vertex at
+     * either end of a changed edge need to be searched again. This is usually a much smaller set of stops than those
+     * within a fixed distance of the changes.
+     */
+    public void rebuildDistanceTablesAffectedByScenario () {
+        LOG.info("Finding distances from transit stops to street vertices affected by scenario application.");
+        EdgeStore edgeStore = parentNetwork.streetLayer.edgeStore;
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        TIntSet changedVertices = new TIntHashSet();
+        edgeStore.forEachTemporarilyAddedOrDeletedEdge(e -> {
+            edge.seek(e);
+            changedVertices.add(edge.getFromVertex());
+            changedVertices.add(edge.getToVertex());
+        });
+        List<int[]> existingTables = stopToVertexDistanceTables;
+        buildDistanceTables(stopIndex -> {
+            if (existingTables == null || stopIndex >= existingTables.size()) return true;
+            int[] existingTable = existingTables.get(stopIndex);
+            int originVertex = streetVertexForStop.get(stopIndex);
+            if (existingTable == null) return originVertex != -1;
+            return changedVertices.contains(originVertex)
+                    || VertexDistanceTable.containsAny(existingTable, changedVertices);
+        });
+    }
+
+    /**
+     * Working in parallel, create a new list containing one distance table for each stop index. The tables for stops
+     * not matching the supplied predicate are carried over from the existing list where present.
+     */
+    private void buildDistanceTables (IntPredicate shouldBuildTable) {
+        List<int[]> existingTables = stopToVertexDistanceTables;
         LambdaCounter buildCounter = new LambdaCounter(LOG, getStopCount(), 1000,
                 "Computed distances to street vertices from {} of {} transit stops.");
-
-        // Working in parallel, create a new list containing one distance table for each stop index, optionally
-        // skipping stops falling outside the specified geometry.
         stopToVertexDistanceTables = IntStream.range(0, getStopCount()).parallel().mapToObj(stopIndex -> {
-            if (rebuildZone != null) {
-                // Skip existing or new stops outside the zone that may be affected by the scenario.
-                Point p = getJTSPointForStopFixed(stopIndex);
-                if (p == null || !rebuildZone.contains(p)) {
-                    // This stop can't be affected, return any existing one.
-                    return stopIndex < stopToVertexDistanceTables.size() ? stopToVertexDistanceTables.get(stopIndex) : null;
-                }
+            if (existingTables != null && !shouldBuildTable.test(stopIndex)) {
+                // This stop can't be affected, return any existing table.
+                return stopIndex < existingTables.size() ? existingTables.get(stopIndex) : null;
             }
             buildCounter.increment();
             return this.buildOneDistanceTable(stopIndex);
@@ -572,10 +638,12 @@ public class TransitLayer implements Serializable, Cloneable {
     /**
      * Perform a single on-street WALK search from the specified transit stop.
      * Return the distance in millimeters to every reached street vertex.
+     * The search uses the compact mode of the StreetRouter, whose large per-edge arrays are retained and reused by
+     * each thread, so building tables for many stops in parallel does not allocate them repeatedly.
      * @param stop the internal integer stop ID for which to build a distance table.
-     * @return a map from street vertex numbers to distances in millimeters
+     * @return packed (vertex, distance in millimeters) pairs sorted by vertex, or null if the stop is not linked.
      */
-    public TIntIntMap buildOneDistanceTable(int stop) {
+    public int[] buildOneDistanceTable(int stop) {
         int originVertex = streetVertexForStop.get(stop);
         if (originVertex == -1) {
             // -1 indicates that this stop is not linked to the street network.
@@ -584,6 +652,7 @@ public class TransitLayer implements Serializable, Cloneable {
         }
         StreetRouter router = new StreetRouter(parentNetwork.streetLayer);
         router.distanceLimitMeters = WALK_DISTANCE_LIMIT_METERS;
+        router.compactSearch = true;
 
         // Dominate based on distance in millimeters, since (a) we're using a hard distance limit, and (b) we divide
         // by a speed to get time when we use these tables.
@@ -591,8 +660,10 @@ public class TransitLayer implements Serializable, Cloneable {
         router.setOrigin(originVertex);
         router.route();
 
-        // The values in this map will be distances in millimeters since that is our dominance function.
-        return router.getReachedVertices();
+        // The values in this table will be distances in millimeters since that is our dominance function.
+        int[] distanceTable = router.getReachedVerticesPacked();
+        router.releaseSearchLabels();
+        return distanceTable;
     }
 
     public int getStopCount () {
@@ -738,7 +809,6 @@ public class TransitLayer implements Serializable, Cloneable {
             copy.stopNames = new ArrayList<>(this.stopNames);
             copy.streetVertexForStop = new TIntArrayList(this.streetVertexForStop);
             copy.stopToVertexDistanceTables = new ArrayList<>(this.stopToVertexDistanceTables);
-            copy.transfersForStop = new ArrayList<>(this.transfersForStop);
             copy.routes = new ArrayList<>(this.routes);
             // To indicate that this layer is different than the one it was copied from, record the scenarioId of
             // the scenario that modified it. If the scenario will not affect the contents of the layer, its
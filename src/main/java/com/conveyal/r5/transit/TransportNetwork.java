@@ -27,9 +27,9 @@ import java.io.Serializable;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -56,15 +56,22 @@ public class TransportNetwork implements Serializable {
     public TransitLayer transitLayer;
 
     /**
-     * This stores any number of lightweight scenario networks built upon the current base network.
-     * FIXME that sounds like a memory leak, should be a WeighingCache or at least size-limited.
+     * This stores any number of lightweight scenario networks built upon the current base network. They are evicted
+     * from memory along with the base network by the TransportNetworkCache.
      * A single network cache at the top level could store base networks and scenarios since they all have globally
      * unique IDs. A hierarchical cache does have the advantage of evicting all the scenarios with the associated
      * base network, which keeps the references in the scenarios from holding on to the base network. But considering
      * that we have never started evicting networks (other than for a "cache" of one element) this might be getting
      * ahead of ourselves.
      */
-    public transient Map<String, TransportNetwork> scenarios = new HashMap<>();
+    public transient Map<String, TransportNetwork> scenarios = new ConcurrentHashMap<>();
+
+    /**
+     * The same scenario networks as in the scenarios map, keyed on a hash of the content of their modifications (see
+     * Scenario.getModificationPrefixHashes) rather than on scenario ID. This allows reusing a scenario network when
+     * the same modifications are sent under a new scenario ID.
+     */
+    public transient Map<String, TransportNetwork> scenariosByContentHash = new ConcurrentHashMap<>();
 
     /**
      * A grid point set that covers the full extent of this transport network.
@@ -176,6 +183,9 @@ public class TransportNetwork implements Serializable {
         streetLayer.associateStops(transitLayer);
         // Edge lists must be built after all inter-layer linking has occurred.
         streetLayer.buildEdgeLists();
+        if (tnBuilderConfig.packEdgeGeometries) {
+            streetLayer.edgeStore.packGeometries();
+        }
         transitLayer.rebuildTransientIndexes();
 
         // Create transfers
@@ -7,15 +7,22 @@ import com.conveyal.file.FileUtils;
 import com.conveyal.gtfs.GTFSCache;
 import com.conveyal.r5.analyst.cluster.BundleManifest;
 import com.conveyal.r5.analyst.cluster.ScenarioCache;
+import com.conveyal.r5.analyst.error.TaskError;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.kryo.KryoNetworkSerializer;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EgressCostTable;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.MappedStopToPointTables;
 import com.conveyal.r5.streets.OSMCache;
 import com.conveyal.r5.streets.StreetLayer;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,9 +31,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -35,19 +50,52 @@ import java.util.zip.ZipInputStream;
  * This holds one or more TransportNetworks keyed on unique strings.
  * Because (de)serialization is now much faster than building networks from scratch, built graphs are cached on the
  * local filesystem and on S3 for later re-use.
- * Currently this holds ONLY ONE base (non-scenario) network, and evicts that network when a new network is requested.
- * However there may be many scenario networks derived from that base network, which  are stored in the scenarios
- * field of the baseNetwork.
+ * Base (non-scenario) networks are held in memory as long as their combined estimated size stays within a limit,
+ * after which the least recently used are evicted. A worker alternating between a few networks that fit together in
+ * memory therefore does not reload them from disk every time it switches. There may be many scenario networks derived
+ * from each base network, which are stored in the scenarios field of the baseNetwork and evicted along with it.
+ *
+ * Loading a network or applying a scenario only blocks requests for that same network or scenario. Requests for
+ * networks and scenarios that are already in memory are served immediately while others are being prepared.
  */
 public class TransportNetworkCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(TransportNetworkCache.class);
 
-    /** Cache size is currently limited to one, i.e. the worker holds on to only one network at a time. */
-    private static final int DEFAULT_CACHE_SIZE = 1;
+    /**
+     * If this is true, a scenario whose modifications begin with all the modifications of a scenario already applied
+     * is built by applying only its remaining modifications on top of that existing scenario network. This is only
+     * done when none of the modifications affect the street layer, as scenario copies of street layers are designed
+     * to wrap only a base network.
+     */
+    private static final boolean APPLY_SCENARIOS_IN_LAYERS = true;
+
+    /** By default, the estimated sizes of all networks held in memory may add up to this fraction of the heap. */
+    private static final double DEFAULT_MAX_HEAP_FRACTION = 0.6;
 
+    /**
+     * Networks may take many minutes to load or build, so they are loaded asynchronously. Caffeine's synchronous
+     * LoadingCache computes values inside its backing map, where a long load can block access to other keys.
+     */
     // TODO change all other caches from Guava to Caffeine caches. This one is already a Caffeine cache.
-    private final LoadingCache<String, TransportNetwork> cache;
+    private final AsyncLoadingCache<String, TransportNetwork> cache;
+
+    /** Runs network loading and background scenario application, so it doesn't tie up the common fork-join pool. */
+    private final Executor loadingExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("network-loader-%d").setDaemon(true).build()
+    );
+
+    /**
+     * Ensures only one thread applies any given scenario, without blocking those applying other scenarios or looking
+     * up scenario networks that are already built.
+     */
+    private final Striped<Lock> scenarioLocks = Striped.lazyWeakLock(64);
+
+    /** The maximum total estimated size of the networks in the cache, in kilobytes. */
+    private final long maxNetworkKilobytes;
+
+    /** Called with the ID of each network removed from the cache. */
+    private final List<Consumer<String>> removalListeners = new CopyOnWriteArrayList<>();
 
     private final FileStorage fileStorage;
     private final GTFSCache gtfsCache;
@@ -62,17 +110,30 @@ public class TransportNetworkCache {
 
     /** Create a transport network cache. If source bucket is null, will work offline. */
     public TransportNetworkCache(FileStorage fileStorage, GTFSCache gtfsCache, OSMCache osmCache, String bucket) {
+        this(fileStorage, gtfsCache, osmCache, bucket,
+                (long) (Runtime.getRuntime().maxMemory() * DEFAULT_MAX_HEAP_FRACTION));
+    }
+
+    /**
+     * Create a transport network cache holding networks whose estimated sizes add up to no more than maxNetworkBytes.
+     * At least one network is always retained, however large. If source bucket is null, will work offline.
+     */
+    public TransportNetworkCache(FileStorage fileStorage, GTFSCache gtfsCache, OSMCache osmCache, String bucket,
+                                 long maxNetworkBytes) {
         this.osmCache = osmCache;
         this.gtfsCache = gtfsCache;
         this.bucket = bucket;
-        this.cache = createCache(DEFAULT_CACHE_SIZE);
+        this.maxNetworkKilobytes = Math.max(1, maxNetworkBytes / 1024);
+        this.cache = createCache(maxNetworkKilobytes);
         this.fileStorage = fileStorage;
+        LOG.info("Transport networks with a total estimated size of up to {} MB will be held in memory.",
+                maxNetworkKilobytes / 1024);
     }
 
     /** Convenience method that returns transport network from cache. */
-    public synchronized TransportNetwork getNetwork (String networkId) {
+    public TransportNetwork getNetwork (String networkId) {
         try {
-            return cache.get(networkId);
+            return cache.get(networkId).join();
         } catch (Exception e) {
             LOG.error("Exception while loading a transport network into the cache: {}", e.toString());
             e.printStackTrace();
@@ -80,6 +141,35 @@ public class TransportNetworkCache {
         }
     }
 
+    /**
+     * Begin loading the given network in the background if it's not already in memory, then apply the given scenario
+     * to it if one is specified. This allows a worker to be told which network and scenario its upcoming tasks will
+     * need, so they are ready by the time the tasks arrive. The scenario must already be remembered or be available
+     * in storage. This returns immediately, and any errors are only logged: they will be encountered again and
+     * reported when the network is actually requested.
+     * @param scenarioId the ID of the scenario to apply, or null to only load the base network.
+     */
+    public void prefetch (String networkId, String scenarioId) {
+        CompletableFuture<TransportNetwork> baseNetworkFuture = cache.get(networkId);
+        if (scenarioId == null) {
+            return;
+        }
+        baseNetworkFuture.thenRunAsync(() -> getNetworkForScenario(networkId, scenarioId), loadingExecutor)
+                .exceptionally(throwable -> {
+                    LOG.warn("Could not prefetch scenario {} on network {}: {}", scenarioId, networkId,
+                            throwable.toString());
+                    return null;
+                });
+    }
+
+    /**
+     * Register a function to be called with the ID of each network removed from this cache, so that other components
+     * can release any references they hold to the network or its scenarios.
+     */
+    public void addRemovalListener (Consumer<String> listener) {
+        removalListeners.add(listener);
+    }
+
     /**
      * Stopgap measure to associate full scenarios with their IDs, when scenarios are sent inside single point requests.
      */
@@ -104,15 +194,38 @@ public class TransportNetworkCache {
      * the problem is that then you resolve the scenario every time, even when the ID is enough to look up the already built network.
      * So we need to pass the whole task in here, so either the ID or full scenario are visible.
      */
-    public synchronized TransportNetwork getNetworkForScenario (String networkId, String scenarioId) {
-        // The following call clears the scenarioNetworkCache if the current base graph changes.
-        // FIXME does it? What does that mean? Are we trying to say that the cache of scenario networks is cleared?
+    public TransportNetwork getNetworkForScenario (String networkId, String scenarioId) {
+        // Scenario networks are held in a map on their base network, so are evicted along with the base network.
         TransportNetwork baseNetwork = this.getNetwork(networkId);
-        if (baseNetwork.scenarios == null) {
-            baseNetwork.scenarios = new HashMap<>();
+        synchronized (baseNetwork) {
+            if (!(baseNetwork.scenarios instanceof ConcurrentHashMap)) {
+                baseNetwork.scenarios = new ConcurrentHashMap<>();
+            }
+            if (baseNetwork.scenariosByContentHash == null) {
+                baseNetwork.scenariosByContentHash = new ConcurrentHashMap<>();
+            }
+        }
+        TransportNetwork scenarioNetwork = baseNetwork.scenarios.get(scenarioId);
+        if (scenarioNetwork != null) {
+            LOG.info("Reusing cached TransportNetwork for scenario {}.", scenarioId);
+            return scenarioNetwork;
         }
+        Lock scenarioLock = scenarioLocks.get(scenarioId);
+        scenarioLock.lock();
+        try {
+            return applyScenarioIfAbsent(baseNetwork, networkId, scenarioId);
+        } finally {
+            scenarioLock.unlock();
+        }
+    }
 
-        TransportNetwork scenarioNetwork =  baseNetwork.scenarios.get(scenarioId);
+    /**
+     * Look up the network for the given scenario on the given base network, applying the scenario if it has not
+     * already been applied. The caller must hold the lock for the scenario ID.
+     */
+    private TransportNetwork applyScenarioIfAbsent (TransportNetwork baseNetwork, String networkId, String scenarioId) {
+        // Another thread may have applied the scenario while we were waiting for the lock.
+        TransportNetwork scenarioNetwork = baseNetwork.scenarios.get(scenarioId);
         if (scenarioNetwork == null) {
             // The network for this scenario was not found in the cache. Create that scenario network and cache it.
             LOG.info("Applying scenario to base network...");
@@ -123,7 +236,7 @@ public class TransportNetworkCache {
             // However, because we are caching transportNetworks with scenarios already applied to them, we can’t use
             // the InactiveTripsFilter. The solution may be to cache linked point sets based on scenario ID but always
             // apply scenarios every time.
-            scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+            scenarioNetwork = applyScenarioReusingContent(baseNetwork, scenario);
             LOG.info("Done applying scenario. Caching the resulting network.");
             baseNetwork.scenarios.put(scenario.id, scenarioNetwork);
         } else {
@@ -132,6 +245,60 @@ public class TransportNetworkCache {
         return scenarioNetwork;
     }
 
+    /**
+     * Apply the given scenario to the given base network, reusing any scenario network already built from the same
+     * modifications under a different scenario ID. Failing that, and if enabled, apply only the modifications that
+     * follow the longest leading subsequence of modifications that has already been applied.
+     */
+    private TransportNetwork applyScenarioReusingContent (TransportNetwork baseNetwork, Scenario scenario) {
+        List<String> prefixHashes = scenario.getModificationPrefixHashes();
+        String contentHash = prefixHashes.get(prefixHashes.size() - 1);
+        TransportNetwork scenarioNetwork = baseNetwork.scenariosByContentHash.get(contentHash);
+        if (scenarioNetwork != null) {
+            LOG.info("Scenario {} has the same modifications as a scenario already applied, reusing its network.",
+                    scenario.id);
+            return scenarioNetwork;
+        }
+        if (APPLY_SCENARIOS_IN_LAYERS && !scenario.affectsStreetLayer()) {
+            // Look for the longest proper prefix of the ordered modifications that has already been applied.
+            for (int nPrefix = scenario.modifications.size() - 1; nPrefix > 0; nPrefix--) {
+                TransportNetwork prefixNetwork = baseNetwork.scenariosByContentHash.get(prefixHashes.get(nPrefix - 1));
+                if (prefixNetwork != null) {
+                    LOG.info("Applying only the last {} modifications of scenario {} to an existing scenario network.",
+                            scenario.modifications.size() - nPrefix, scenario.id);
+                    scenarioNetwork = applyScenarioTail(prefixNetwork, scenario, nPrefix);
+                    break;
+                }
+            }
+        }
+        if (scenarioNetwork == null) {
+            scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+        }
+        baseNetwork.scenariosByContentHash.putIfAbsent(contentHash, scenarioNetwork);
+        return scenarioNetwork;
+    }
+
+    /**
+     * Apply all but the first nPrefix modifications of the given scenario to a network that already has those first
+     * modifications applied. The first modifications are not applied again, but any warnings and information they
+     * produced are retained in the resulting network.
+     */
+    private static TransportNetwork applyScenarioTail (TransportNetwork prefixNetwork, Scenario scenario, int nPrefix) {
+        Scenario tail = new Scenario();
+        tail.id = scenario.id;
+        tail.description = scenario.description;
+        tail.feedChecksums = scenario.feedChecksums;
+        tail.modifications = new ArrayList<>(scenario.modifications.subList(nPrefix, scenario.modifications.size()));
+        TransportNetwork scenarioNetwork = tail.applyToTransportNetwork(prefixNetwork);
+        List<TaskError> warnings = new ArrayList<>(prefixNetwork.scenarioApplicationWarnings);
+        warnings.addAll(scenarioNetwork.scenarioApplicationWarnings);
+        scenarioNetwork.scenarioApplicationWarnings = warnings;
+        List<TaskError> info = new ArrayList<>(prefixNetwork.scenarioApplicationInfo);
+        info.addAll(scenarioNetwork.scenarioApplicationInfo);
+        scenarioNetwork.scenarioApplicationInfo = info;
+        return scenarioNetwork;
+    }
+
     private String getScenarioFilename(String networkId, String scenarioId) {
         return String.format("%s_%s.json", networkId, scenarioId);
     }
@@ -143,7 +310,20 @@ public class TransportNetworkCache {
             File r5Network = fileStorage.getFile(r5Key);
             LOG.info("Loading cached transport network at {}", r5Network);
             try {
-                return KryoNetworkSerializer.read(r5Network);
+                TransportNetwork network = KryoNetworkSerializer.read(r5Network);
+                EgressCostTable baseWalkCostTable = getBaseWalkEgressCostTable(network);
+                if (baseWalkCostTable != null && baseWalkCostTable.stopToPointLinkageCostTables == null) {
+                    // The tables were stored in a separate file rather than serialized with the rest of the network.
+                    FileStorageKey tablesKey = getStopToPointTablesFileStorageKey(networkId);
+                    if (!fileStorage.exists(tablesKey)) {
+                        LOG.error("Could not find stop to point tables for cached transport network " + networkId);
+                        return null;
+                    }
+                    File tablesFile = fileStorage.getFile(tablesKey);
+                    LOG.info("Mapping stop to point tables for base walk linkage from {}", tablesFile);
+                    baseWalkCostTable.stopToPointLinkageCostTables = MappedStopToPointTables.map(tablesFile);
+                }
+                return network;
             } catch (Exception e) {
                 LOG.error("Exception occurred retrieving cached transport network", e);
             }
@@ -161,6 +341,22 @@ public class TransportNetworkCache {
         return new FileStorageKey(bucket, getR5NetworkFilename(networkId));
     }
 
+    private FileStorageKey getStopToPointTablesFileStorageKey (String networkId) {
+        String filename = networkId + "_" + BackendVersion.instance.version + "_walk_stop_point.dat";
+        return new FileStorageKey(bucket, filename);
+    }
+
+    /**
+     * @return the egress cost table of the region-wide walk linkage built with the network, or null if the network
+     *         has no such linkage.
+     */
+    private static EgressCostTable getBaseWalkEgressCostTable (TransportNetwork network) {
+        if (network.fullExtentGridPointSet == null) return null;
+        LinkedPointSet baseLinkage = network.linkageCache.getUnevictableLinkage(
+                network.fullExtentGridPointSet, network.streetLayer, StreetMode.WALK);
+        return (baseLinkage == null) ? null : baseLinkage.getEgressCostTable();
+    }
+
     /** If we did not find a cached network, build one */
     public TransportNetwork buildNetwork (String networkId) {
         TransportNetwork network;
@@ -184,11 +380,28 @@ public class TransportNetworkCache {
         network.transitLayer.buildDistanceTables(null);
         network.rebuildLinkedGridPointSet(StreetMode.WALK);
 
-        // Cache the serialized network on the local filesystem.
-
+        // Store the stop to point tables of the base walk linkage in a separate flat file, which workers will map
+        // into memory instead of deserializing them onto the heap. If this fails they are serialized with the network.
+        EgressCostTable baseWalkCostTable = getBaseWalkEgressCostTable(network);
+        List<int[]> stopToPointTables = baseWalkCostTable.stopToPointLinkageCostTables;
+        FileStorageKey tablesKey = getStopToPointTablesFileStorageKey(networkId);
+        boolean tablesStoredSeparately = false;
+        try {
+            File tablesFile = FileUtils.createScratchFile();
+            MappedStopToPointTables.write(stopToPointTables, tablesFile);
+            fileStorage.moveIntoStorage(tablesKey, tablesFile);
+            tablesStoredSeparately = true;
+        } catch (Exception e) {
+            LOG.error("Error saving stop to point tables, they will be serialized with the network.", e);
+        }
 
+        // Cache the serialized network on the local filesystem.
         try {
             File cacheLocation = FileUtils.createScratchFile();
+            // Leave out the tables if they were stored separately. They are re-attached when the network is loaded.
+            if (tablesStoredSeparately) {
+                baseWalkCostTable.stopToPointLinkageCostTables = null;
+            }
             // Serialize TransportNetwork to local cache on this worker
             KryoNetworkSerializer.write(network, cacheLocation);
             // Store locally (and on S3)
@@ -196,6 +409,18 @@ public class TransportNetworkCache {
         } catch (Exception e) {
             // Don't break here as we do have a network to return, we just couldn't cache it.
             LOG.error("Error saving cached network", e);
+        } finally {
+            baseWalkCostTable.stopToPointLinkageCostTables = stopToPointTables;
+        }
+
+        // Release the heap copy of the tables on this machine as well, in favor of the mapped file.
+        if (tablesStoredSeparately) {
+            try {
+                baseWalkCostTable.stopToPointLinkageCostTables =
+                        MappedStopToPointTables.map(fileStorage.getFile(tablesKey));
+            } catch (Exception e) {
+                LOG.error("Error mapping stop to point tables, retaining them on the heap.", e);
+            }
         }
         return network;
     }
@@ -294,10 +519,73 @@ public class TransportNetworkCache {
         return GTFSCache.cleanId(networkId) + ".json";
     }
 
-    private LoadingCache createCache(int size) {
+    private AsyncLoadingCache<String, TransportNetwork> createCache(long maxKilobytes) {
         return Caffeine.newBuilder()
-                .maximumSize(size)
-                .build(this::loadNetwork);
+                .maximumWeight(maxKilobytes)
+                .weigher(this::weighNetwork)
+                .executor(loadingExecutor)
+                .removalListener((String networkId, TransportNetwork network, RemovalCause cause) -> {
+                    LOG.info("Transport network {} was removed from the cache ({}).", networkId, cause);
+                    removalListeners.forEach(listener -> listener.accept(networkId));
+                })
+                .buildAsync(this::loadNetwork);
+    }
+
+    /**
+     * The weight of each network in the cache is its estimated size in kilobytes. This is capped at the cache
+     * capacity so that a network larger than the limit is still retained on its own, rather than being evicted as
+     * soon as it is loaded and then reloaded on every request.
+     */
+    private int weighNetwork (String networkId, TransportNetwork network) {
+        long kilobytes = estimateMemoryBytes(network) / 1024;
+        LOG.info("Estimated size of transport network {} is {} MB.", networkId, kilobytes / 1024);
+        return (int) Math.min(Math.min(kilobytes, maxNetworkKilobytes), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Roughly estimate the heap memory used by a base network. The largest arrays that vary in size from one stop,
+     * trip or point to the next are measured directly. Everything held per street edge or vertex is estimated with an
+     * average observed on typical networks. Scenarios applied to the network later are not included: they share most
+     * of their data with the base network.
+     */
+    private static long estimateMemoryBytes (TransportNetwork network) {
+        // Per-edge arrays in the EdgeStore, edge geometries, edge lists, and the spatial index.
+        final long BYTES_PER_EDGE = 80;
+        // Coordinates and flags in the VertexStore, and the stop and vertex maps in the TransitLayer.
+        final long BYTES_PER_VERTEX = 24;
+        long bytes = 0;
+        if (network.streetLayer != null) {
+            bytes += network.streetLayer.edgeStore.nEdges() * BYTES_PER_EDGE;
+            bytes += network.streetLayer.vertexStore.getVertexCount() * BYTES_PER_VERTEX;
+        }
+        TransitLayer transitLayer = network.transitLayer;
+        if (transitLayer != null) {
+            for (TripPattern pattern : transitLayer.tripPatterns) {
+                for (TripSchedule schedule : pattern.tripSchedules) {
+                    bytes += (schedule.arrivals.length + schedule.departures.length) * Integer.BYTES;
+                }
+            }
+            if (transitLayer.stopToVertexDistanceTables != null) {
+                for (int[] table : transitLayer.stopToVertexDistanceTables) {
+                    if (table != null) bytes += table.length * Integer.BYTES;
+                }
+            }
+            if (transitLayer.transfersForStop != null) {
+                bytes += transitLayer.transfersForStop.getMemoryBytes();
+            }
+        }
+        EgressCostTable baseWalkCostTable = getBaseWalkEgressCostTable(network);
+        if (baseWalkCostTable != null) {
+            // Four ints per point in the linkage, plus the stop to point tables unless they are mapped from a file.
+            bytes += network.fullExtentGridPointSet.featureCount() * 4L * Integer.BYTES;
+            List<int[]> stopToPointTables = baseWalkCostTable.stopToPointLinkageCostTables;
+            if (stopToPointTables != null && !(stopToPointTables instanceof MappedStopToPointTables)) {
+                for (int[] table : stopToPointTables) {
+                    if (table != null) bytes += table.length * Integer.BYTES;
+                }
+            }
+        }
+        return bytes;
     }
 
     /**
@@ -332,11 +620,11 @@ public class TransportNetworkCache {
      * mechanism to fairly allocate the workers to jobs.
      */
     public Set<String> getLoadedNetworkIds() {
-        return cache.asMap().keySet();
+        return cache.synchronous().asMap().keySet();
     }
 
     public Set<String> getAppliedScenarios() {
-        return cache.asMap().values().stream()
+        return cache.synchronous().asMap().values().stream()
                 .filter(network -> network.scenarios != null)
                 .map(network -> network.scenarios.keySet())
                 .flatMap(Collection::stream)
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.function.Predicate;
 
 /**
  * We lazy-load and lazy-build a lot of things, including TransportNetworks, grid linkages, and distance tables.
@@ -132,6 +133,17 @@ public abstract class AsyncLoader<K,V> {
         return state;
     }
 
+    /**
+     * Forget the completed values for all keys matching the given predicate, so they can be garbage collected. The
+     * next request for one of these keys will build the value again. Values still being built are not affected.
+     */
+    protected void removeValues (Predicate<K> keyPredicate) {
+        synchronized (map) {
+            map.entrySet().removeIf(entry ->
+                    entry.getValue().status == Status.PRESENT && keyPredicate.test(entry.getKey()));
+        }
+    }
+
     /**
      * Override this method in concrete subclasses to specify the logic to build/calculate/fetch a value.
      * Implementations may call setProgress to report progress on long operations.
@@ -0,0 +1,70 @@
+package com.conveyal.r5.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps cells of a square grid to their positions along a Hilbert curve, a path through every cell of the grid that
+ * only ever steps to an adjacent cell. Any run of consecutive positions along the curve covers a compact patch of the
+ * grid, so sorting points by their position along the curve keeps nearby points together.
+ */
+public abstract class HilbertCurve {
+
+    /** The largest supported order, such that every position along the curve fits in 32 bits. */
+    public static final int MAX_ORDER = 16;
+
+    /**
+     * @param order the curve covers a grid 2^order cells on a side.
+     * @return the position of cell (x, y) along the curve, from zero to 4^order - 1.
+     */
+    public static long index (int order, int x, int y) {
+        int n = 1 << order;
+        long index = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the curve within it has the standard orientation.
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+    /** @return the smallest order whose grid is at least the given number of cells on a side. */
+    public static int orderForSize (int size) {
+        int order = 0;
+        while ((1 << order) < size) order += 1;
+        return order;
+    }
+
+    /**
+     * Find the order in which to visit a set of points so that points near each other are visited close together.
+     * @param xs the grid column of each point, from zero to 2^order - 1.
+     * @param ys the grid row of each point, from zero to 2^order - 1.
+     * @return the point numbers sorted by their positions along the curve, with ties in increasing numeric order.
+     */
+    public static int[] sortByIndex (int order, int[] xs, int[] ys) {
+        if (order > MAX_ORDER) {
+            throw new IllegalArgumentException("Hilbert curve order must not exceed " + MAX_ORDER);
+        }
+        // Pack each position with its point number into one long, so a primitive sort orders them.
+        long[] keys = new long[xs.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (index(order, xs[i], ys[i]) << 31) | i;
+        }
+        Arrays.sort(keys);
+        int[] points = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            points[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        }
+        return points;
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.analysis.components.eventbus.EventBus;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check how many tasks the broker decides to send to workers in response to one poll, depending on the number of
+ * processors, free task slots and recent throughput they report.
+ */
+public class BrokerDeliverySizeTest {
+
+    private final Broker broker = new Broker(new TestConfig(), null, new EventBus(null), null);
+
+    /** Older workers do not report free task slots, and receive a fixed number of tasks. */
+    @Test
+    public void testWorkerNotReportingFreeSlots () {
+        WorkerStatus workerStatus = workerStatus(8, -1, 6000);
+        assertEquals(broker.MAX_TASKS_PER_WORKER, broker.getDeliverySize(workerStatus));
+    }
+
+    @Test
+    public void testFullQueue () {
+        assertEquals(0, broker.getDeliverySize(workerStatus(8, 0, 6000)));
+        assertEquals(0, broker.getDeliverySize(workerStatus(8, 0, 0)));
+    }
+
+    /** Workers that have not completed any tasks yet receive one task per processor, or at least one task. */
+    @Test
+    public void testNoThroughput () {
+        assertEquals(8, broker.getDeliverySize(workerStatus(8, 100, 0)));
+        assertEquals(1, broker.getDeliverySize(workerStatus(0, 100, 0)));
+        WorkerStatus noThroughputReported = workerStatus(8, 100, 0);
+        noThroughputReported.tasksPerMinuteByJobId = null;
+        assertEquals(8, broker.getDeliverySize(noThroughputReported));
+    }
+
+    /** Workers receive enough tasks to keep them busy until a target time, summing their throughput on all jobs. */
+    @Test
+    public void testThroughput () {
+        int tasksPerMinute = 120;
+        int expectedTasks = tasksPerMinute * broker.TARGET_SECONDS_PER_DELIVERY / 60;
+        assertEquals(expectedTasks, broker.getDeliverySize(workerStatus(8, 500, tasksPerMinute)));
+        WorkerStatus twoJobs = workerStatus(8, 500, 0);
+        twoJobs.tasksPerMinuteByJobId.put("job-a", tasksPerMinute / 2);
+        twoJobs.tasksPerMinuteByJobId.put("job-b", tasksPerMinute / 2);
+        assertEquals(expectedTasks, broker.getDeliverySize(twoJobs));
+        // Slow workers still receive one task per processor.
+        assertEquals(8, broker.getDeliverySize(workerStatus(8, 500, 1)));
+    }
+
+    /** Workers never receive more tasks than they can queue, or than the broker's limit per delivery. */
+    @Test
+    public void testLimits () {
+        assertEquals(100, broker.getDeliverySize(workerStatus(8, 100, 6000)));
+        assertEquals(3, broker.getDeliverySize(workerStatus(8, 3, 0)));
+        int manySlots = broker.MAX_TASKS_PER_DELIVERY * 10;
+        int manyTasksPerMinute = manySlots * 60 / broker.TARGET_SECONDS_PER_DELIVERY;
+        assertEquals(broker.MAX_TASKS_PER_DELIVERY,
+                broker.getDeliverySize(workerStatus(8, manySlots, manyTasksPerMinute)));
+        assertEquals(broker.MAX_TASKS_PER_DELIVERY,
+                broker.getDeliverySize(workerStatus(manySlots, manySlots, 0)));
+    }
+
+    /** Make the status a worker would report, with all of its recent throughput on a single job. */
+    private static WorkerStatus workerStatus (int processors, int freeTaskSlots, int tasksPerMinute) {
+        WorkerStatus workerStatus = new WorkerStatus();
+        workerStatus.processors = processors;
+        workerStatus.freeTaskSlots = freeTaskSlots;
+        Map<String, Integer> tasksPerMinuteByJobId = new HashMap<>();
+        if (tasksPerMinute > 0) {
+            tasksPerMinuteByJobId.put("job", tasksPerMinute);
+        }
+        workerStatus.tasksPerMinuteByJobId = tasksPerMinuteByJobId;
+        return workerStatus;
+    }
+
+    private static class TestConfig implements Broker.Config {
+        @Override public boolean offline () { return false; }
+        @Override public int maxWorkers () { return 10; }
+        @Override public String resultsBucket () { return null; }
+        @Override public String bundleBucket () { return null; }
+        @Override public boolean testTaskRedelivery () { return false; }
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.conveyal.file;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Check that the concatenated gzip members produced by ParallelGzipOutputStream decompress to the original bytes.
+ */
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void testRoundTrip () throws IOException {
+        Random random = new Random(42);
+        // Include inputs that are empty, smaller than a block, exactly one block, and many blocks plus a remainder.
+        for (int length : new int[] { 0, 1, 1000, 4096, 100_000 }) {
+            byte[] original = new byte[length];
+            for (int i = 0; i < length; i++) {
+                // Use a small alphabet so the data is compressible, as our result files are.
+                original[i] = (byte) random.nextInt(8);
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(compressed, 4096);
+            // Write in uneven pieces to exercise blocks filling up part way through a write.
+            int offset = 0;
+            while (offset < length) {
+                int n = Math.min(length - offset, 1 + random.nextInt(3000));
+                if (n == 1) {
+                    gzipOutputStream.write(original[offset]);
+                } else {
+                    gzipOutputStream.write(original, offset, n);
+                }
+                offset += n;
+            }
+            gzipOutputStream.close();
+            byte[] decompressed = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())).readAllBytes();
+            assertArrayEquals(original, decompressed);
+        }
+    }
+
+}
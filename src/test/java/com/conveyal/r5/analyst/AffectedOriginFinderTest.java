@@ -0,0 +1,129 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.RemoveTrips;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+
+import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static com.conveyal.r5.analyst.scenario.FakeGraph.set;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the origins left unaffected by a scenario are reported as runs of consecutive task IDs, and that origins
+ * reported unaffected really do have the same results with and without the scenario.
+ */
+public class AffectedOriginFinderTest {
+
+    /** Only every few origins in each direction are routed, to keep the test reasonably fast. */
+    private static final int ORIGIN_STEP = 3;
+
+    @Test
+    public void testUnaffectedTaskRanges () {
+        BitSet affected = new BitSet();
+        affected.set(2, 4);
+        affected.set(7);
+        assertArrayEquals(new int[] { 0, 2, 4, 7, 8, 10 }, AffectedOriginFinder.getUnaffectedTaskRanges(affected, 10));
+
+        // Bits set beyond the last origin are ignored.
+        affected.set(12);
+        assertArrayEquals(new int[] { 0, 2, 4, 7, 8, 10 }, AffectedOriginFinder.getUnaffectedTaskRanges(affected, 10));
+
+        BitSet all = new BitSet();
+        all.set(0, 10);
+        assertArrayEquals(new int[0], AffectedOriginFinder.getUnaffectedTaskRanges(all, 10));
+        assertArrayEquals(new int[] { 0, 10 }, AffectedOriginFinder.getUnaffectedTaskRanges(new BitSet(), 10));
+    }
+
+    /**
+     * Remove the only transit line from a small network, then route from a sample of origins with and without that
+     * scenario. Every origin whose travel times changed must have been reported affected, as must the origins at the
+     * removed line's stops. Some origins must also be reported unaffected, or the test would prove nothing.
+     */
+    @Test
+    public void testUnaffectedOriginsHaveSameResults () {
+        TransportNetwork baseNetwork = buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        baseNetwork.rebuildLinkedGridPointSet(StreetMode.WALK);
+        RemoveTrips removeTrips = new RemoveTrips();
+        removeTrips.routes = set("SINGLE_LINE:route");
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(removeTrips);
+        TransportNetwork scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+
+        RegionalTask regionalTask = new RegionalTask();
+        setTaskParameters(regionalTask, baseNetwork);
+        BitSet affectedOrigins = AffectedOriginFinder.findAffectedOrigins(regionalTask, baseNetwork, scenarioNetwork);
+
+        int zoom = regionalTask.zoom;
+        for (int stop = 0; stop < baseNetwork.transitLayer.getStopCount(); stop++) {
+            Coordinate coordinate = baseNetwork.transitLayer.getCoordinateForStopFixed(stop);
+            if (coordinate == null) continue;
+            int x = Grid.lonToPixel(VertexStore.fixedDegreesToFloating(coordinate.x), zoom) - regionalTask.west;
+            int y = Grid.latToPixel(VertexStore.fixedDegreesToFloating(coordinate.y), zoom) - regionalTask.north;
+            assertTrue("Origin at a stop of the removed line is not affected.",
+                    affectedOrigins.get(y * regionalTask.width + x));
+        }
+
+        int nUnaffectedChecked = 0;
+        int nChanged = 0;
+        for (int y = 0; y < regionalTask.height; y += ORIGIN_STEP) {
+            for (int x = 0; x < regionalTask.width; x += ORIGIN_STEP) {
+                TravelTimeSurfaceTask task = new TravelTimeSurfaceTask();
+                setTaskParameters(task, baseNetwork);
+                task.fromLat = Grid.pixelToCenterLat(task.north + y, zoom);
+                task.fromLon = Grid.pixelToCenterLon(task.west + x, zoom);
+                int[][] baseTimes = travelTimes(task, baseNetwork);
+                int[][] scenarioTimes = travelTimes(task, scenarioNetwork);
+                boolean changed = !Arrays.deepEquals(baseTimes, scenarioTimes);
+                boolean affected = affectedOrigins.get(y * task.width + x);
+                assertTrue("Travel times changed from an origin reported unaffected.", affected || !changed);
+                if (changed) nChanged += 1;
+                if (!affected) nUnaffectedChecked += 1;
+            }
+        }
+        assertTrue("Scenario did not change the results of any origin.", nChanged > 0);
+        assertTrue("No origins were reported unaffected.", nUnaffectedChecked > 0);
+    }
+
+    /** Set the same routing parameters and origin grid on a task, covering the whole street network. */
+    private static void setTaskParameters (AnalysisWorkerTask task, TransportNetwork network) {
+        WebMercatorGridPointSet grid = network.fullExtentGridPointSet;
+        task.zoom = grid.zoom;
+        task.west = grid.west;
+        task.north = grid.north;
+        task.width = grid.width;
+        task.height = grid.height;
+        task.date = LocalDate.of(2020, 1, 15);
+        task.fromTime = 7 * 3600 + 30 * 60;
+        task.toTime = 7 * 3600 + 40 * 60;
+        task.monteCarloDraws = 10;
+        task.maxTripDurationMinutes = 20;
+        task.percentiles = new int[] { 50 };
+        task.accessModes = EnumSet.of(LegMode.WALK);
+        task.egressModes = EnumSet.of(LegMode.WALK);
+        task.directModes = EnumSet.of(LegMode.WALK);
+        task.transitModes = EnumSet.allOf(TransitModes.class);
+    }
+
+    private static int[][] travelTimes (TravelTimeSurfaceTask task, TransportNetwork network) {
+        OneOriginResult result = new TravelTimeComputer(task, network).computeTravelTimes();
+        return result.travelTimes.getValues();
+    }
+
+}
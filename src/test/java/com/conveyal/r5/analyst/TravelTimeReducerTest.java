@@ -0,0 +1,52 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Check that extracting percentiles of travel time using a histogram gives exactly the same results as sorting.
+ */
+public class TravelTimeReducerTest {
+
+    @Test
+    public void testHistogramPercentilesMatchSorting () {
+        RegionalTask task = new RegionalTask();
+        task.fromTime = 7 * 60 * 60;
+        task.toTime = 8 * 60 * 60;
+        task.monteCarloDraws = 1200;
+        task.maxTripDurationMinutes = 120;
+        task.percentiles = new int[] { 1, 5, 25, 50, 50, 75, 95, 99 };
+        task.recordAccessibility = false;
+        task.recordTimes = false;
+
+        TravelTimeReducer sortingReducer = new TravelTimeReducer(task);
+        sortingReducer.percentileMethod = TravelTimeReducer.PercentileMethod.SORT;
+        TravelTimeReducer histogramReducer = new TravelTimeReducer(task);
+        histogramReducer.percentileMethod = TravelTimeReducer.PercentileMethod.HISTOGRAM;
+
+        final int nTimes = task.getTimeWindowLengthMinutes() * task.getMonteCarloDrawsPerMinute();
+        Random random = new Random(42);
+        for (int trial = 0; trial < 1000; trial++) {
+            // Vary the proportion of unreached iterations and the spread of travel times, including times beyond
+            // the maximum trip duration that should all land in the overflow bucket.
+            double unreachedProbability = random.nextDouble();
+            int maxTimeSeconds = 1 + random.nextInt(task.maxTripDurationMinutes * 60 * 2);
+            int[] times = new int[nTimes];
+            for (int i = 0; i < nTimes; i++) {
+                times[i] = random.nextDouble() < unreachedProbability ? UNREACHED : random.nextInt(maxTimeSeconds);
+            }
+            int[] unmodifiedTimes = times.clone();
+            int[] expected = sortingReducer.extractPercentiles(times.clone()).clone();
+            int[] actual = histogramReducer.extractPercentiles(times);
+            assertArrayEquals(expected, actual);
+            assertArrayEquals("Histogram method should not modify travel times.", unmodifiedTimes, times);
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.osmlib.VarIntOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that regional work results survive a round trip through their binary form, including extreme values.
+ */
+public class RegionalWorkResultCodecTest {
+
+    @Test
+    public void testRoundTrip () throws IOException {
+        RegionalWorkResult accessibility = result("job-a", 12);
+        accessibility.accessibilityValues = new int[][][] {
+            { { 0, 10, 250, 1000 }, { 0, 5, 100, 900 } },
+            { { 3, 3, 3, 3 }, { Integer.MAX_VALUE, Integer.MIN_VALUE, 0, -1 } }
+        };
+        RegionalWorkResult travelTimes = result("job-b", 0);
+        travelTimes.travelTimeValues = new int[][] { { 30, 45, Integer.MAX_VALUE }, { } };
+        RegionalWorkResult unaffected = result("job-a", 400000);
+        unaffected.unaffectedTaskRanges = new int[] { 0, 12, 13, 500000 };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RegionalWorkResultCodec.write(Arrays.asList(accessibility, travelTimes, unaffected), out);
+        List<RegionalWorkResult> decoded = new ArrayList<>();
+        int nResults = RegionalWorkResultCodec.read(new ByteArrayInputStream(out.toByteArray()), decoded::add);
+
+        assertEquals(3, nResults);
+        assertEquals("job-a", decoded.get(0).jobId);
+        assertEquals(12, decoded.get(0).taskId);
+        for (int d = 0; d < 2; d++) {
+            for (int p = 0; p < 2; p++) {
+                assertArrayEquals(accessibility.accessibilityValues[d][p], decoded.get(0).accessibilityValues[d][p]);
+            }
+        }
+        assertNull(decoded.get(0).travelTimeValues);
+        assertNull(decoded.get(0).unaffectedTaskRanges);
+
+        assertEquals("job-b", decoded.get(1).jobId);
+        assertArrayEquals(travelTimes.travelTimeValues[0], decoded.get(1).travelTimeValues[0]);
+        assertEquals(0, decoded.get(1).travelTimeValues[1].length);
+        assertNull(decoded.get(1).accessibilityValues);
+
+        assertEquals("job-a", decoded.get(2).jobId);
+        assertEquals(400000, decoded.get(2).taskId);
+        assertArrayEquals(unaffected.unaffectedTaskRanges, decoded.get(2).unaffectedTaskRanges);
+    }
+
+    @Test
+    public void testTruncatedBatchIsRejected () throws IOException {
+        RegionalWorkResult workResult = result("job", 1);
+        workResult.accessibilityValues = new int[][][] { { { 1, 2, 3 } } };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RegionalWorkResultCodec.write(Arrays.asList(workResult, workResult), out);
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() / 2);
+        try {
+            RegionalWorkResultCodec.read(new ByteArrayInputStream(truncated), r -> { });
+            fail("A truncated batch should not be read as complete.");
+        } catch (Exception e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Lengths that no analysis could produce, including those that overflow a signed int, must be rejected as corrupt
+     * input before any array is allocated for them.
+     */
+    @Test
+    public void testImpossibleLengthsAreRejected () throws IOException {
+        // Travel times for more percentiles than allowed, for more destinations than allowed, and for 2^32 - 1
+        // destinations, which reads as a negative length.
+        assertCorrupt(1, 6, 10);
+        assertCorrupt(1, 1, 50_000_000);
+        assertCorrupt(1, 1, -1);
+        // The same for accessibility values with more cutoffs than any task has.
+        assertCorrupt(2, 1, 1, 1000);
+        // A job ID referring to a job not yet seen in the batch.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VarIntOutputStream out = uncompressedBatch(bytes);
+        out.writeByte(1);
+        out.writeUInt32(3);
+        assertReadFails(bytes.toByteArray());
+    }
+
+    /** Write a single result with the given flags, followed by the given nested lengths without any values. */
+    private static void assertCorrupt (int flags, int... lengths) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VarIntOutputStream out = uncompressedBatch(bytes);
+        out.writeByte(1);
+        out.writeUInt32(0);
+        out.writeString("job");
+        out.writeUInt32(0);
+        out.writeByte(flags);
+        for (int length : lengths) {
+            out.writeUInt32(length);
+        }
+        assertReadFails(bytes.toByteArray());
+    }
+
+    private static VarIntOutputStream uncompressedBatch (ByteArrayOutputStream bytes) throws IOException {
+        VarIntOutputStream out = new VarIntOutputStream(bytes);
+        out.writeBytes(new byte[] { 'R', '5', 'W', 'R', 1, 0 });
+        return out;
+    }
+
+    private static void assertReadFails (byte[] batch) {
+        try {
+            RegionalWorkResultCodec.read(new ByteArrayInputStream(batch), r -> fail("No result should be read."));
+            fail("A corrupt batch should not be read.");
+        } catch (IOException e) {
+            // Any other exception, including running out of memory, fails the test. The batches end right after the
+            // bad length, so also check that it was the length and not the end of the stream that was detected.
+            assertTrue(e.getMessage(), e.getMessage() != null && e.getMessage().contains("corrupted"));
+        }
+    }
+
+    private static RegionalWorkResult result (String jobId, int taskId) {
+        RegionalWorkResult workResult = new RegionalWorkResult();
+        workResult.jobId = jobId;
+        workResult.taskId = taskId;
+        return workResult;
+    }
+
+}
@@ -107,6 +107,12 @@ public class TestDecayFunctions extends TestCase {
             double almostZeroValue = Math.abs(function.computeWeight(cutoffSeconds, zero - 1));
             // If we check that they exceed epsilon, then functions that return a precise zero point can fail the test.
             checkState(almostZeroValue > 0, "Values left of zero point must be above zero.");
+            // Finally, check that tabulated weights are exactly those that would be computed on the fly.
+            double[] weightTable = function.computeWeightTable(cutoffSeconds, zero);
+            checkState(weightTable.length == zero, "Weight table should extend up to the zero point.");
+            for (int s = 0; s < zero; s++) {
+                checkState(weightTable[s] == function.computeWeight(cutoffSeconds, s), "Tabulated weight must match.");
+            }
         }
     }
 
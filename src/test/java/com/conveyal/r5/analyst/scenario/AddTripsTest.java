@@ -7,8 +7,6 @@ import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
-import gnu.trove.list.TIntList;
-import gnu.trove.map.TIntIntMap;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -21,7 +19,6 @@ import java.util.stream.Collectors;
 import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -302,18 +299,18 @@ public class AddTripsTest {
         assertTrue(r.getReachedVertices().size() > 5);
 
         // Make sure a distance table exists for this stop.
-        TIntIntMap distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(pattern.stops[1]);
+        int[] distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(pattern.stops[1]);
         assertNotNull(distanceTable);
-        assertFalse(distanceTable.isEmpty());
+        assertTrue(distanceTable.length > 0);
 
         // Make sure this stop has transfers.
-        TIntList transfers = mod.transitLayer.transfersForStop.get(pattern.stops[1]);
+        int[] transfers = mod.transitLayer.transfersForStop.getPackedTransfers(pattern.stops[1]);
         assertNotNull(transfers);
         // make sure that s2 is a target of a transfer
         boolean s2found = false;
 
-        for (int i = 0; i < transfers.size(); i += 2) {
-            if ("SINGLE_LINE:s2".equals(mod.transitLayer.stopIdForIndex.get(transfers.get(i)))) {
+        for (int i = 0; i < transfers.length; i += 2) {
+            if ("SINGLE_LINE:s2".equals(mod.transitLayer.stopIdForIndex.get(transfers[i]))) {
                 s2found = true;
                 break;
             }
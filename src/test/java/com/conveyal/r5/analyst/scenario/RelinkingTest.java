@@ -1,8 +1,8 @@
 package com.conveyal.r5.analyst.scenario;
 
 import com.conveyal.gtfs.model.Route;
+import com.conveyal.r5.streets.VertexDistanceTable;
 import com.conveyal.r5.transit.TransportNetwork;
-import gnu.trove.map.TIntIntMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.junit.Before;
@@ -77,7 +77,7 @@ public class RelinkingTest {
         // Unfortunately new stops don't have string IDs so we have to couple this strongly to the implementation
         // and assume that these new stops will be added in the order they are specified in the modification.
         TIntSet foundStops = new TIntHashSet();
-        int[] transfers = mod.transitLayer.transfersForStop.get(6).toArray();
+        int[] transfers = mod.transitLayer.transfersForStop.getPackedTransfers(6);
         for (int i = 0; i < transfers.length; i += 2) {
             int stop = transfers[i];
             int distance = transfers[i+1];
@@ -89,7 +89,7 @@ public class RelinkingTest {
 
         // Check that stop stop 6 (the middle stop of the three new ones at indexes 5, 6, 7)
         // is in the transfers for existing stop s4
-        transfers = mod.transitLayer.transfersForStop.get(s4StopIndex).toArray();
+        transfers = mod.transitLayer.transfersForStop.getPackedTransfers(s4StopIndex);
         foundStops.clear();
         for (int i = 0; i < transfers.length; i += 2) {
             int stop = transfers[i];
@@ -101,13 +101,13 @@ public class RelinkingTest {
 
         // Check that stops s3 and s4 are included in the distance table
         // for stop 6 (the middle stop of the three new ones at indexes 5, 6, 7)
-        TIntIntMap distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(6);
+        int[] distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(6);
         assertNotNull(distanceTable);
         int s4streetVertexIndex = mod.transitLayer.streetVertexForStop.get(s4StopIndex);
-        assertTrue(distanceTable.containsKey(s4streetVertexIndex));
+        assertTrue(VertexDistanceTable.getValue(distanceTable, s4streetVertexIndex) >= 0);
         int s3StopIndex = mod.transitLayer.indexForStopId.get("SINGLE_LINE:s3");
         int s3streetVertexIndex = mod.transitLayer.streetVertexForStop.get(s3StopIndex);
-        assertTrue(distanceTable.containsKey(s3streetVertexIndex));
+        assertTrue(VertexDistanceTable.getValue(distanceTable, s3streetVertexIndex) >= 0);
 
         // Check that stop 6 (the middle stop of the three new ones at indexes 5, 6, 7)
         // is included in the distance table for stops s3 and s4
@@ -115,10 +115,10 @@ public class RelinkingTest {
         assertTrue(newStopStreetVertex > 2000);
         distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(s3StopIndex);
         assertNotNull(distanceTable);
-        assertTrue(distanceTable.containsKey(newStopStreetVertex));
+        assertTrue(VertexDistanceTable.getValue(distanceTable, newStopStreetVertex) >= 0);
         distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(s4StopIndex);
         assertNotNull(distanceTable);
-        assertTrue(distanceTable.containsKey(newStopStreetVertex));
+        assertTrue(VertexDistanceTable.getValue(distanceTable, newStopStreetVertex) >= 0);
 
         // TODO check that PointSets are properly relinked to the new street layer.
 
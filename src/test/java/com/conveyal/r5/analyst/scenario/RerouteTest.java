@@ -4,8 +4,6 @@ import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
-import gnu.trove.list.TIntList;
-import gnu.trove.map.TIntIntMap;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -228,16 +226,16 @@ public class RerouteTest {
         assertEquals(39.967, v.getLat(), 1e-6);
 
         // Was a distance table built?
-        TIntIntMap distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(sidx);
+        int[] distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(sidx);
         assertNotNull(distanceTable);
         // jagged array, should reach more than 10 vertices
-        assertTrue(distanceTable.size() > 20);
+        assertTrue(distanceTable.length / 2 > 20);
 
         // Does it have transfers?
-        TIntList transfers = mod.transitLayer.transfersForStop.get(sidx);
+        int[] transfers = mod.transitLayer.transfersForStop.getPackedTransfers(sidx);
         assertNotNull(transfers);
         // transfers is a jagged array, should have at least one stop
-        assertTrue(transfers.size() >= 2);
+        assertTrue(transfers.length >= 2);
 
         assertEquals(1, mod.transitLayer.tripPatterns.size());
 
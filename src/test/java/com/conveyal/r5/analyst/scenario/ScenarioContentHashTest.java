@@ -0,0 +1,66 @@
+package com.conveyal.r5.analyst.scenario;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Check that scenarios are identified by the content of their modifications, independent of scenario ID, comments,
+ * and the order in which modifications of different types were supplied.
+ */
+public class ScenarioContentHashTest {
+
+    @Test
+    public void testSameContentSameHash () {
+        Scenario a = scenario("A", removeTrips("route1"), adjustSpeed("route2", 1.5));
+        Scenario b = scenario("B", adjustSpeed("route2", 1.5), removeTrips("route1"));
+        b.modifications.get(0).comment = "Faster buses on route 2";
+        assertEquals(a.getModificationPrefixHashes(), b.getModificationPrefixHashes());
+
+        Scenario c = scenario("C", removeTrips("route1"), adjustSpeed("route2", 2.0));
+        assertNotEquals(last(a.getModificationPrefixHashes()), last(c.getModificationPrefixHashes()));
+    }
+
+    @Test
+    public void testPrefixHashes () {
+        Scenario shorter = scenario("short", adjustSpeed("route2", 1.5));
+        Scenario longer = scenario("long", adjustSpeed("route2", 1.5), removeTrips("route1"));
+        List<String> shorterHashes = shorter.getModificationPrefixHashes();
+        List<String> longerHashes = longer.getModificationPrefixHashes();
+        assertEquals(1, shorterHashes.size());
+        assertEquals(2, longerHashes.size());
+        assertEquals(shorterHashes.get(0), longerHashes.get(0));
+        assertNotEquals(longerHashes.get(0), longerHashes.get(1));
+        assertEquals(1, scenario("empty").getModificationPrefixHashes().size());
+    }
+
+    private static Scenario scenario (String id, Modification... modifications) {
+        Scenario scenario = new Scenario();
+        scenario.id = id;
+        scenario.modifications.addAll(Arrays.asList(modifications));
+        return scenario;
+    }
+
+    private static RemoveTrips removeTrips (String routeId) {
+        RemoveTrips removeTrips = new RemoveTrips();
+        removeTrips.routes = Sets.newHashSet(routeId);
+        return removeTrips;
+    }
+
+    private static AdjustSpeed adjustSpeed (String routeId, double scale) {
+        AdjustSpeed adjustSpeed = new AdjustSpeed();
+        adjustSpeed.routes = Sets.newHashSet(routeId);
+        adjustSpeed.scale = scale;
+        return adjustSpeed;
+    }
+
+    private static String last (List<String> hashes) {
+        return hashes.get(hashes.size() - 1);
+    }
+
+}
@@ -6,13 +6,16 @@ import com.conveyal.r5.analyst.scenario.FakeGraph;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.IntHashGrid;
 import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Ignore;
 import org.junit.Test;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.BitSet;
 
 import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 /**
  * Tests that serialization and deserialization of TransportNetworks functions as expected and does not corrupt objects.
@@ -20,6 +23,8 @@ import static org.junit.Assert.assertFalse;
  */
 public class KryoNetworkSerializerTest {
 
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(KryoNetworkSerializerTest.class);
+
     /**
      * We do not cross-check the result using the checksum, because the checksum is performed using serialization.
      */
@@ -43,6 +48,11 @@ public class KryoNetworkSerializerTest {
         // Reading the file also rebuilds transient indexes and primes the linkage cache with any saved linkage.
         TransportNetwork copiedNetwork1 = KryoNetworkSerializer.read(tempFile);
         assertNoDifferences(originalNetwork, copiedNetwork1);
+        // References between objects saved in different sections of the file should be restored.
+        assertSame(copiedNetwork1, copiedNetwork1.streetLayer.parentNetwork);
+        assertSame(copiedNetwork1, copiedNetwork1.transitLayer.parentNetwork);
+        assertSame(copiedNetwork1.streetLayer, copiedNetwork1.streetLayer.edgeStore.layer);
+        assertSame(copiedNetwork1.streetLayer.vertexStore, copiedNetwork1.streetLayer.edgeStore.vertexStore);
 
         // Load the graph again and confirm that the second loaded graph is identical to the first.
         TransportNetwork copiedNetwork2 = KryoNetworkSerializer.read(tempFile);
@@ -50,6 +60,54 @@ public class KryoNetworkSerializerTest {
         assertNoDifferences(copiedNetwork1, copiedNetwork2);
     }
 
+    /**
+     * Networks saved by previous versions of R5 as a single Kryo stream should still be readable.
+     */
+    @Test
+    public void testReadSingleStreamFormat () throws Exception {
+        TransportNetwork originalNetwork = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        originalNetwork.rebuildLinkedGridPointSet(StreetMode.WALK);
+        File tempFile = File.createTempFile("r5-serialization-test-", ".dat");
+        tempFile.deleteOnExit();
+        KryoNetworkSerializer.writeSingleStream(originalNetwork, tempFile);
+        TransportNetwork copiedNetwork = KryoNetworkSerializer.read(tempFile);
+        assertNoDifferences(originalNetwork, copiedNetwork);
+    }
+
+    /**
+     * Save the same network in the single stream and sectioned formats, and log their sizes and average load times.
+     * The sections of the test network are tiny, so this only checks that the parallel loading does not add much
+     * overhead. Any real speedup only shows on regional networks, which are far too large to build in a unit test.
+     */
+    @Test
+    @Ignore("Only logs load times, which mean little for the small test network.")
+    public void testLoadTime () throws Exception {
+        TransportNetwork network = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        network.rebuildLinkedGridPointSet(StreetMode.WALK);
+        File singleStreamFile = File.createTempFile("r5-serialization-test-", ".dat");
+        singleStreamFile.deleteOnExit();
+        KryoNetworkSerializer.writeSingleStream(network, singleStreamFile);
+        File sectionedFile = File.createTempFile("r5-serialization-test-", ".dat");
+        sectionedFile.deleteOnExit();
+        KryoNetworkSerializer.write(network, sectionedFile);
+        final int nRepetitions = 5;
+        long singleStreamNanos = 0;
+        long sectionedNanos = 0;
+        // Alternate between the two formats so that warm-up affects both of them equally.
+        for (int i = 0; i < nRepetitions; i++) {
+            long startNanos = System.nanoTime();
+            KryoNetworkSerializer.read(singleStreamFile);
+            singleStreamNanos += System.nanoTime() - startNanos;
+            startNanos = System.nanoTime();
+            KryoNetworkSerializer.read(sectionedFile);
+            sectionedNanos += System.nanoTime() - startNanos;
+        }
+        LOG.info("Single stream file: {} kB, loaded in {} ms on average.",
+                singleStreamFile.length() / 1000, singleStreamNanos / nRepetitions / 1_000_000);
+        LOG.info("Sectioned file: {} kB, loaded in {} ms on average.",
+                sectionedFile.length() / 1000, sectionedNanos / nRepetitions / 1_000_000);
+    }
+
     /**
      * Create an ObjectDiffer configured to work on R5 TransportNetworks.
      * Make some exclusions for classes that are inherently transient or contain unordered lists we can't yet compare.
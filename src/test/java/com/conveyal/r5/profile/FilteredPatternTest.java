@@ -0,0 +1,103 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Check that the binary and linear boarding searches on FilteredPattern find exactly the same trips that the original
+ * trip-by-trip scan over TripPattern.tripSchedules would find.
+ */
+public class FilteredPatternTest {
+
+    private static final int ACTIVE_SERVICE = 0;
+    private static final int INACTIVE_SERVICE = 1;
+
+    @Test
+    public void testBoardingSearchWithoutOvertaking () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1, 2 }));
+        addTrip(pattern, "A", ACTIVE_SERVICE, 1000, 1100, 1200);
+        addTrip(pattern, "B", INACTIVE_SERVICE, 1500, 1600, 1700);
+        addTrip(pattern, "C", ACTIVE_SERVICE, 2000, 2100, 2200);
+        addTrip(pattern, "D", ACTIVE_SERVICE, 2000, 2150, 2300);
+        addTrip(pattern, "E", ACTIVE_SERVICE, 3000, 3100, 3200);
+        checkAgainstLinearScan(pattern);
+    }
+
+    @Test
+    public void testBoardingSearchWithOvertaking () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1, 2 }));
+        addTrip(pattern, "A", ACTIVE_SERVICE, 1000, 1500, 2500);
+        addTrip(pattern, "B", ACTIVE_SERVICE, 1200, 1300, 1400);
+        addTrip(pattern, "C", INACTIVE_SERVICE, 1300, 1400, 1500);
+        addTrip(pattern, "D", ACTIVE_SERVICE, 2000, 2100, 2200);
+        checkAgainstLinearScan(pattern);
+    }
+
+    @Test
+    public void testNoActiveTrips () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1 }));
+        addTrip(pattern, "A", INACTIVE_SERVICE, 1000, 1100);
+        FilteredPattern filteredPattern = new FilteredPattern(pattern, activeServices());
+        assertEquals(0, filteredPattern.nTrips);
+        assertEquals(-1, filteredPattern.firstTripDepartingAfter(0, 0));
+    }
+
+    private static void addTrip (TripPattern pattern, String tripId, int serviceCode, int... times) {
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = tripId;
+        int[] stopSequences = new int[times.length];
+        for (int i = 0; i < times.length; i++) stopSequences[i] = i;
+        pattern.addTrip(TripSchedule.create(trip, times.clone(), times.clone(), null, stopSequences, serviceCode));
+    }
+
+    private static BitSet activeServices () {
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(ACTIVE_SERVICE);
+        return servicesActive;
+    }
+
+    /**
+     * Compare the filtered searches to the original scans for every stop, every time in a range covering all
+     * departures, and (for the backing-up search) every possible current trip.
+     */
+    private static void checkAgainstLinearScan (TripPattern pattern) {
+        BitSet servicesActive = activeServices();
+        FilteredPattern filteredPattern = new FilteredPattern(pattern, servicesActive);
+        for (int stopPosition = 0; stopPosition < pattern.stops.length; stopPosition++) {
+            for (int time = 900; time < 3300; time += 50) {
+                TripSchedule expected = null;
+                for (TripSchedule schedule : pattern.tripSchedules) {
+                    if (!servicesActive.get(schedule.serviceCode)) continue;
+                    if (time < schedule.departures[stopPosition]) {
+                        expected = schedule;
+                        break;
+                    }
+                }
+                int trip = filteredPattern.firstTripDepartingAfter(stopPosition, time);
+                assertSame(expected, trip == -1 ? null : filteredPattern.trips[trip]);
+
+                for (int currentTrip = 0; currentTrip < filteredPattern.nTrips; currentTrip++) {
+                    int expectedTrip = currentTrip;
+                    for (int t = currentTrip - 1; t >= 0; t--) {
+                        if (filteredPattern.trips[t].departures[stopPosition] > time) {
+                            expectedTrip = t;
+                        } else {
+                            break;
+                        }
+                    }
+                    assertEquals(expectedTrip, filteredPattern.earliestTripDepartingAfter(stopPosition, time, currentTrip));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.conveyal.r5.profile;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Check that the branch-free propagation kernel gives exactly the same results as the original per-iteration loop,
+ * including for unreached stops and times near the travel time cutoff.
+ */
+public class PerTargetPropagaterTest {
+
+    private static final int MAX_TRAVEL_TIME_SECONDS = 7200;
+
+    @Test
+    public void testPropagationKernelMatchesOriginalLoop () {
+        Random random = new Random(42);
+        final int nIterations = 1000;
+        for (int trial = 0; trial < 100; trial++) {
+            int[] rawTimesAtStop = new int[nIterations];
+            int[] clampedTimesAtStop = new int[nIterations];
+            int[] bestTimes = new int[nIterations];
+            for (int i = 0; i < nIterations; i++) {
+                rawTimesAtStop[i] = random.nextInt(5) == 0 ? UNREACHED : random.nextInt(MAX_TRAVEL_TIME_SECONDS * 2);
+                clampedTimesAtStop[i] = Math.min(rawTimesAtStop[i], MAX_TRAVEL_TIME_SECONDS);
+                bestTimes[i] = random.nextInt(5) == 0 ? UNREACHED : random.nextInt(MAX_TRAVEL_TIME_SECONDS);
+            }
+            int secondsFromStopToTarget = random.nextInt(1800);
+
+            int[] expected = Arrays.copyOf(bestTimes, nIterations);
+            for (int i = 0; i < nIterations; i++) {
+                int timeAtStop = rawTimesAtStop[i];
+                if (timeAtStop >= MAX_TRAVEL_TIME_SECONDS || timeAtStop >= expected[i]) continue;
+                int timeAtTarget = timeAtStop + secondsFromStopToTarget;
+                if (timeAtTarget < MAX_TRAVEL_TIME_SECONDS && timeAtTarget < expected[i]) {
+                    expected[i] = timeAtTarget;
+                }
+            }
+
+            int[] actual = Arrays.copyOf(bestTimes, nIterations);
+            PerTargetPropagater.propagateTimesFromStop(
+                    clampedTimesAtStop, secondsFromStopToTarget, MAX_TRAVEL_TIME_SECONDS, actual
+            );
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+}
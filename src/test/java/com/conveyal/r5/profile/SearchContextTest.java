@@ -0,0 +1,139 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.AdjustFrequency;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that buffers are reused only within a job, and that reused RaptorStates are indistinguishable from new ones.
+ */
+public class SearchContextTest {
+
+    @Test
+    public void testBuffersReusedWithinJob () {
+        SearchContext context = SearchContext.forJob("job-a");
+        int[][] times = context.getTravelTimesToStopsPerIteration(10, 5);
+        RaptorState[] states = context.getScheduleState(3, 5, 3600);
+        assertSame(context, SearchContext.forJob("job-a"));
+        assertSame(times, context.getTravelTimesToStopsPerIteration(10, 5));
+        assertSame(states, context.getScheduleState(3, 5, 3600));
+        // Different dimensions require new buffers.
+        assertNotSame(times, context.getTravelTimesToStopsPerIteration(10, 6));
+        // A different job does not reuse buffers from the previous one.
+        context = SearchContext.forJob("job-b");
+        assertNotSame(states, context.getScheduleState(3, 5, 3600));
+    }
+
+    @Test
+    public void testReusedStatesAreReset () {
+        SearchContext context = SearchContext.forJob("job-c");
+        RaptorState[] states = context.getScheduleState(2, 4, 3600);
+        states[1].departureTime = 1000;
+        states[1].setTimeAtStop(2, 1500, 7, 1, 30, 400, false);
+        states = context.getScheduleState(2, 4, 3600);
+        RaptorState fresh = new RaptorState(4, 3600);
+        assertNull(states[0].previous);
+        assertSame(states[0], states[1].previous);
+        assertArrayEquals(fresh.bestTimes, states[1].bestTimes);
+        assertArrayEquals(fresh.bestNonTransferTimes, states[1].bestNonTransferTimes);
+        assertArrayEquals(fresh.previousPatterns, states[1].previousPatterns);
+        assertArrayEquals(fresh.previousStop, states[1].previousStop);
+        assertArrayEquals(fresh.nonTransferWaitTime, states[1].nonTransferWaitTime);
+        assertArrayEquals(fresh.nonTransferInVehicleTravelTime, states[1].nonTransferInVehicleTravelTime);
+        assertTrue(states[1].stopsUpdated.isEmpty());
+        assertTrue(states[1].nonTransferStopsUpdated.isEmpty());
+    }
+
+    @Test
+    public void testCopyFrom () {
+        RaptorState original = new RaptorState(4, 3600);
+        original.departureTime = 1000;
+        original.setTimeAtStop(3, 1200, 5, 0, 60, 100, false);
+        RaptorState target = new RaptorState(4, 1800);
+        target.setTimeAtStop(1, 900, 2, 0, 0, 0, true);
+        target.copyFrom(original);
+        RaptorState copy = original.copy();
+        assertArrayEquals(copy.bestTimes, target.bestTimes);
+        assertArrayEquals(copy.bestNonTransferTimes, target.bestNonTransferTimes);
+        assertArrayEquals(copy.previousPatterns, target.previousPatterns);
+        assertArrayEquals(copy.transferStop, target.transferStop);
+        assertArrayEquals(copy.nonTransferWaitTime, target.nonTransferWaitTime);
+        assertEquals(UNREACHED, target.bestTimes[1]);
+        assertEquals(1000, target.departureTime);
+        assertEquals(3600, target.maxDurationSeconds);
+        assertTrue(target.stopsUpdated.isEmpty());
+    }
+
+    /**
+     * Several sequential Monte Carlo draws at each departure minute all run on the same reused states, so each draw's
+     * times must be kept separately. Route the same origin on a frequency network with and without a search context,
+     * making the same draws in both, and check that every iteration gives identical travel times.
+     */
+    @Test
+    public void testReusedFrequencyDrawsMatchFreshDraws () {
+        TransportNetwork baseNetwork = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_PATTERNS);
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.startTime = 6 * 3600;
+        entry.endTime = 16 * 3600;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = entry.saturday = entry.sunday = true;
+        entry.sourceTrip = "MULTIPLE_PATTERNS:trip25200";
+        AdjustFrequency adjustFrequency = new AdjustFrequency();
+        adjustFrequency.route = "MULTIPLE_PATTERNS:route";
+        adjustFrequency.entries = Arrays.asList(entry);
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(adjustFrequency);
+        TransportNetwork network = scenario.applyToTransportNetwork(baseNetwork);
+        assertTrue(network.transitLayer.hasFrequencies);
+
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2020, 1, 15);
+        request.fromTime = 8 * 3600;
+        request.toTime = 8 * 3600 + 5 * 60;
+        request.monteCarloDraws = 20;
+        request.maxRides = 2;
+        request.transitModes = EnumSet.allOf(TransitModes.class);
+        assertTrue(request.getMonteCarloDrawsPerMinute() > 1);
+        TIntIntMap accessStops = new TIntIntHashMap();
+        accessStops.put(baseNetwork.transitLayer.indexForStopId.get("MULTIPLE_PATTERNS:s1"), 60);
+
+        int[][] fresh = new FastRaptorWorker(
+                network.transitLayer, request, accessStops, new FrequencyRandomOffsets(network.transitLayer, 42)
+        ).route();
+        // Copy the travel times out of the reused buffers before anything else can overwrite them.
+        FastRaptorWorker reusingWorker = new FastRaptorWorker(
+                network.transitLayer, request, accessStops, new FrequencyRandomOffsets(network.transitLayer, 42)
+        );
+        reusingWorker.searchContext = SearchContext.forJob("job-d");
+        int[][] reused = Arrays.stream(reusingWorker.route()).map(int[]::clone).toArray(int[][]::new);
+
+        assertEquals(fresh.length, reused.length);
+        boolean drawsDiffer = false;
+        for (int i = 0; i < fresh.length; i++) {
+            assertArrayEquals("Travel times differ at iteration " + i, fresh[i], reused[i]);
+            if (i > 0 && !Arrays.equals(fresh[i], fresh[i - 1])) drawsDiffer = true;
+        }
+        // If all draws gave the same times, this test could not tell whether they were kept separately.
+        assertTrue(drawsDiffer);
+    }
+
+}
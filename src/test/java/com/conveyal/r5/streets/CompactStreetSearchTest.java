@@ -0,0 +1,149 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that the compact search mode of the StreetRouter, which keeps one primitive label per edge instead of State
+ * objects, finds the same best value of the routing variable at every vertex as the standard search.
+ */
+public class CompactStreetSearchTest {
+
+    private static StreetLayer streetLayer;
+
+    @BeforeClass
+    public static void setUp () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromUrl(CompactStreetSearchTest.class.getResource("subgraph.pbf").toString());
+        streetLayer = new StreetLayer(TNBuilderConfig.defaultConfig());
+        streetLayer.loadFromOsm(osm, false, true);
+        streetLayer.buildEdgeLists();
+    }
+
+    @Test
+    public void testWalkSearches () {
+        compareSearches(StreetMode.WALK, StreetRouter.State.RoutingVariable.DURATION_SECONDS, false);
+        compareSearches(StreetMode.WALK, StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS, false);
+        compareSearches(StreetMode.WALK, StreetRouter.State.RoutingVariable.DURATION_SECONDS, true);
+    }
+
+    @Test
+    public void testBicycleSearches () {
+        compareSearches(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.DURATION_SECONDS, false);
+        compareSearches(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS, false);
+    }
+
+    @Test
+    public void testContinuingOnFoot () {
+        int nVertices = streetLayer.vertexStore.getVertexCount();
+        for (int vertex = 0; vertex < nVertices; vertex += nVertices / 10) {
+            StreetRouter standard = makeRouter(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.DURATION_SECONDS, false);
+            standard.setOrigin(vertex);
+            standard.route();
+            standard.keepRoutingOnFoot();
+
+            StreetRouter compact = makeRouter(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.DURATION_SECONDS, false);
+            compact.compactSearch = true;
+            compact.setOrigin(vertex);
+            compact.route();
+            compact.keepRoutingOnFoot();
+
+            assertEquals(standard.getReachedVertices(), compact.getReachedVertices());
+        }
+    }
+
+    @Test
+    public void testReadingAfterRelease () {
+        StreetRouter compact = makeRouter(StreetMode.WALK, StreetRouter.State.RoutingVariable.DURATION_SECONDS, false);
+        compact.compactSearch = true;
+        compact.setOrigin(0);
+        compact.route();
+        assertFalse(compact.getReachedVertices().isEmpty());
+        compact.releaseSearchLabels();
+        try {
+            compact.getReachedVertices();
+            fail("Results should not be readable after the search labels are released.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // The router can be reused for a new search, which will reuse the released labels.
+        compact.setOrigin(0);
+        compact.route();
+        assertFalse(compact.getReachedVertices().isEmpty());
+        compact.releaseSearchLabels();
+    }
+
+    /**
+     * Released labels are only reused for searches on the same street layer or a scenario copy of it, so that labels
+     * sized for a network no longer in use are not kept.
+     */
+    @Test
+    public void testLabelsArePooledPerStreetLayer () {
+        CompactEdgeLabels labels = CompactEdgeLabels.checkOut(streetLayer, true);
+        labels.release();
+        CompactEdgeLabels reused = CompactEdgeLabels.checkOut(streetLayer, true);
+        assertSame(labels, reused);
+        reused.release();
+
+        StreetLayer scenarioLayer = new StreetLayer(TNBuilderConfig.defaultConfig());
+        scenarioLayer.baseStreetLayer = streetLayer;
+        CompactEdgeLabels scenarioLabels = CompactEdgeLabels.checkOut(scenarioLayer, true);
+        assertSame(labels, scenarioLabels);
+        scenarioLabels.release();
+
+        StreetLayer otherLayer = new StreetLayer(TNBuilderConfig.defaultConfig());
+        CompactEdgeLabels otherLabels = CompactEdgeLabels.checkOut(otherLayer, true);
+        assertNotSame(labels, otherLabels);
+        otherLabels.release();
+    }
+
+    private static StreetRouter makeRouter (StreetMode mode, StreetRouter.State.RoutingVariable variable, boolean reverse) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = mode;
+        router.quantityToMinimize = variable;
+        router.profileRequest.reverseSearch = reverse;
+        return router;
+    }
+
+    /**
+     * Route from a sample of vertices using both the standard and compact searches, with the compact router reused
+     * between origins to check that labels are correctly reset.
+     */
+    private static void compareSearches (StreetMode mode, StreetRouter.State.RoutingVariable variable, boolean reverse) {
+        StreetRouter compact = makeRouter(mode, variable, reverse);
+        compact.compactSearch = true;
+        int nVertices = streetLayer.vertexStore.getVertexCount();
+        for (int vertex = 0; vertex < nVertices; vertex += nVertices / 20) {
+            StreetRouter standard = makeRouter(mode, variable, reverse);
+            standard.setOrigin(vertex);
+            standard.route();
+            compact.setOrigin(vertex);
+            compact.route();
+
+            TIntIntMap expected = standard.getReachedVertices();
+            TIntIntMap actual = compact.getReachedVertices();
+            assertEquals(expected, actual);
+            if (variable == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+                for (int v : expected.keys()) {
+                    assertEquals(standard.getTravelTimeToVertex(v), compact.getTravelTimeToVertex(v));
+                    StreetRouter.State state = compact.getStateAtVertex(v);
+                    assertTrue(state != null && state.durationSeconds == standard.getTravelTimeToVertex(v));
+                }
+            }
+        }
+        compact.releaseSearchLabels();
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that edge lists in compressed sparse row form contain the same edges in the same order as one list per
+ * vertex, including when extended with scenario edges, and compare the time taken to build and iterate over them.
+ */
+public class EdgeListsTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EdgeListsTest.class);
+
+    @Test
+    public void testSameAsListPerVertex () {
+        final int nVertices = 1000;
+        int[] fromVertices = makeRandomVertices(5000, nVertices, 42);
+        EdgeLists edgeLists = EdgeLists.build(nVertices, fromVertices.length, e -> fromVertices[e]);
+        assertSameEdges(buildListPerVertex(nVertices, fromVertices), edgeLists);
+    }
+
+    @Test
+    public void testExtend () {
+        final int nBaseVertices = 100;
+        final int nBaseEdges = 400;
+        // A scenario adds edges at existing vertices and at new vertices beyond the end of the base network.
+        int[] fromVertices = makeRandomVertices(nBaseEdges + 50, nBaseVertices + 10, 1);
+        for (int e = 0; e < nBaseEdges; e++) {
+            fromVertices[e] %= nBaseVertices;
+        }
+        EdgeLists baseEdgeLists = EdgeLists.build(nBaseVertices, nBaseEdges, e -> fromVertices[e]);
+        EdgeLists extendedEdgeLists = baseEdgeLists.extend(fromVertices.length, e -> fromVertices[e]);
+        assertEquals(nBaseEdges, extendedEdgeLists.getBaseEdgeCount());
+        assertSameEdges(buildListPerVertex(nBaseVertices + 10, fromVertices), extendedEdgeLists);
+        // The base edge lists should not be affected by the scenario.
+        int[] baseFromVertices = new int[nBaseEdges];
+        System.arraycopy(fromVertices, 0, baseFromVertices, 0, nBaseEdges);
+        assertSameEdges(buildListPerVertex(nBaseVertices, baseFromVertices), baseEdgeLists);
+        assertEquals(0, baseEdgeLists.size(nBaseVertices + 5));
+    }
+
+    /**
+     * Log how long it takes to build and walk through three million edges on a million vertices, about the size of a
+     * large city's street network, as one list per vertex and as compressed sparse rows. The edges leave from random
+     * vertices, so unlike real networks neither structure benefits from neighboring edges having nearby numbers.
+     */
+    @Test
+    @Ignore("Allocates a million lists only to log timings. Remove this annotation to run it by hand.")
+    public void testSpeedComparedToListPerVertex () {
+        final int nVertices = 1_000_000;
+        int[] fromVertices = makeRandomVertices(nVertices * 3, nVertices, 2);
+
+        long startNanos = System.nanoTime();
+        List<TIntList> listPerVertex = buildListPerVertex(nVertices, fromVertices);
+        long listBuildNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        EdgeLists edgeLists = EdgeLists.build(nVertices, fromVertices.length, e -> fromVertices[e]);
+        long csrBuildNanos = System.nanoTime() - startNanos;
+
+        long[] sums = new long[2];
+        startNanos = System.nanoTime();
+        for (int v = 0; v < nVertices; v++) {
+            TIntList edges = listPerVertex.get(v);
+            for (int i = 0; i < edges.size(); i++) sums[0] += edges.get(i);
+        }
+        long listIterationNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int v = 0; v < nVertices; v++) {
+            for (int i = 0, n = edgeLists.size(v); i < n; i++) sums[1] += edgeLists.get(v, i);
+        }
+        long csrIterationNanos = System.nanoTime() - startNanos;
+        assertEquals(sums[0], sums[1]);
+
+        LOG.info("One list per vertex: built in {} ms, iterated in {} ms.",
+                listBuildNanos / 1_000_000, listIterationNanos / 1_000_000);
+        LOG.info("Compressed sparse rows: built in {} ms, iterated in {} ms.",
+                csrBuildNanos / 1_000_000, csrIterationNanos / 1_000_000);
+    }
+
+    private static void assertSameEdges (List<TIntList> expected, EdgeLists edgeLists) {
+        for (int v = 0; v < expected.size(); v++) {
+            TIntList expectedEdges = expected.get(v);
+            assertEquals(expectedEdges.size(), edgeLists.size(v));
+            for (int i = 0; i < expectedEdges.size(); i++) {
+                assertEquals(expectedEdges.get(i), edgeLists.get(v, i));
+            }
+            assertEquals(expectedEdges, edgeLists.get(v));
+        }
+    }
+
+    /** The edge lists as they were previously built by StreetLayer.buildEdgeLists. */
+    private static List<TIntList> buildListPerVertex (int nVertices, int[] vertexForEdge) {
+        List<TIntList> edgeLists = new ArrayList<>(nVertices);
+        for (int v = 0; v < nVertices; v++) {
+            edgeLists.add(new TIntArrayList(4));
+        }
+        for (int e = 0; e < vertexForEdge.length; e++) {
+            edgeLists.get(vertexForEdge[e]).add(e);
+        }
+        return edgeLists;
+    }
+
+    private static int[] makeRandomVertices (int nEdges, int nVertices, long seed) {
+        Random random = new Random(seed);
+        int[] vertices = new int[nEdges];
+        for (int e = 0; e < nEdges; e++) {
+            vertices[e] = random.nextInt(nVertices);
+        }
+        return vertices;
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the compressed sparse row transposition of egress cost tables contains exactly the same entries as the
+ * hash map per point it replaced, and compare the memory consumption and iteration speed of the two structures.
+ */
+public class EgressCostTableTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EgressCostTableTest.class);
+
+    @Test
+    public void testTransposition () {
+        final int nPoints = 1000;
+        List<int[]> stopToPointTables = makeStopToPointTables(300, nPoints, 50, 42);
+        TIntIntMap[] expected = transposeToMaps(stopToPointTables, nPoints);
+        EgressCostTable.PointCursor cursor = transpose(stopToPointTables, nPoints);
+        for (int point = 0; point < nPoints; point++) {
+            cursor.seek(point);
+            int previousStop = -1;
+            int nEntries = 0;
+            while (cursor.advance()) {
+                assertTrue("Stops should be in ascending order.", cursor.getStop() > previousStop);
+                previousStop = cursor.getStop();
+                assertTrue(expected[point] != null && expected[point].containsKey(cursor.getStop()));
+                assertEquals(expected[point].get(cursor.getStop()), cursor.getCost());
+                nEntries += 1;
+            }
+            assertEquals(expected[point] == null ? 0 : expected[point].size(), nEntries);
+            // The cursor should stay exhausted until it is repositioned.
+            assertFalse(cursor.advance());
+        }
+    }
+
+    @Test
+    public void testEmptyTables () {
+        List<int[]> stopToPointTables = new ArrayList<>(Arrays.asList(null, new int[0], null));
+        EgressCostTable.PointCursor cursor = transpose(stopToPointTables, 5);
+        for (int point = 0; point < 5; point++) {
+            cursor.seek(point);
+            assertFalse(cursor.advance());
+        }
+    }
+
+    /**
+     * Transpose random tables for 4000 stops each reaching up to 500 of 100,000 points, roughly a small city, into a
+     * hash map per point and into compressed sparse rows. Logs the estimated size of each and the time taken to build
+     * and read it. The hash map size is estimated from its capacity, ignoring any padding the JVM adds.
+     */
+    @Test
+    @Ignore("Builds 100,000 hash maps to log their size and speed; run by hand when changing the transposition.")
+    public void testMemoryAndSpeedComparedToMaps () {
+        final int nStops = 4000;
+        final int nPoints = 100_000;
+        List<int[]> stopToPointTables = makeStopToPointTables(nStops, nPoints, 500, 1);
+
+        long startNanos = System.nanoTime();
+        TIntIntMap[] maps = transposeToMaps(stopToPointTables, nPoints);
+        long mapBuildNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        EgressCostTable.PointCursor cursor = transpose(new ArrayList<>(stopToPointTables), nPoints);
+        long csrBuildNanos = System.nanoTime() - startNanos;
+
+        long mapBytes = 0;
+        long nEntries = 0;
+        for (TIntIntMap map : maps) {
+            if (map == null) continue;
+            // Each map has an object header and fields, plus key, value and state arrays sized to its capacity.
+            mapBytes += 64 + ((TIntIntHashMap) map).capacity() * (Integer.BYTES * 2 + 1);
+            nEntries += map.size();
+        }
+        long csrBytes = (nPoints + 1) * Integer.BYTES + nEntries * Integer.BYTES * 2;
+
+        long[] sums = new long[2];
+        startNanos = System.nanoTime();
+        for (int point = 0; point < nPoints; point++) {
+            if (maps[point] == null) continue;
+            maps[point].forEachEntry((stop, cost) -> {
+                sums[0] += stop + cost;
+                return true;
+            });
+        }
+        long mapIterationNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int point = 0; point < nPoints; point++) {
+            cursor.seek(point);
+            while (cursor.advance()) {
+                sums[1] += cursor.getStop() + cursor.getCost();
+            }
+        }
+        long csrIterationNanos = System.nanoTime() - startNanos;
+        assertEquals(sums[0], sums[1]);
+
+        LOG.info("{} entries. Hash maps: ~{} MB, built in {} ms, iterated in {} ms.", nEntries,
+                mapBytes / 1_000_000, mapBuildNanos / 1_000_000, mapIterationNanos / 1_000_000);
+        LOG.info("Compressed sparse rows: {} MB, built in {} ms, iterated in {} ms.",
+                csrBytes / 1_000_000, csrBuildNanos / 1_000_000, csrIterationNanos / 1_000_000);
+        assertTrue(csrBytes < mapBytes);
+    }
+
+    /** Make random tables of (point, cost) pairs for each stop, with each stop reaching nearby points. */
+    private static List<int[]> makeStopToPointTables (int nStops, int nPoints, int maxPointsPerStop, long seed) {
+        Random random = new Random(seed);
+        List<int[]> tables = new ArrayList<>();
+        for (int stop = 0; stop < nStops; stop++) {
+            if (random.nextInt(10) == 0) {
+                // Some stops are not linked to any points.
+                tables.add(null);
+                continue;
+            }
+            int firstPoint = random.nextInt(nPoints - maxPointsPerStop);
+            int nPointsForStop = random.nextInt(maxPointsPerStop);
+            int[] table = new int[nPointsForStop * 2];
+            for (int i = 0; i < nPointsForStop; i++) {
+                table[i * 2] = firstPoint + i;
+                table[i * 2 + 1] = random.nextInt(2_000_000);
+            }
+            tables.add(table);
+        }
+        return tables;
+    }
+
+    /** The transposition into one hash map per point, as previously performed by EgressCostTable. */
+    private static TIntIntMap[] transposeToMaps (List<int[]> stopToPointTables, int nPoints) {
+        TIntIntMap[] result = new TIntIntMap[nPoints];
+        for (int stop = 0; stop < stopToPointTables.size(); stop++) {
+            int[] table = stopToPointTables.get(stop);
+            if (table == null) continue;
+            for (int idx = 0; idx < table.length; idx += 2) {
+                int point = table[idx];
+                if (result[point] == null) {
+                    result[point] = new TIntIntHashMap();
+                }
+                result[point].put(stop, table[idx + 1]);
+            }
+        }
+        return result;
+    }
+
+    private static EgressCostTable.PointCursor transpose (List<int[]> stopToPointTables, int nPoints) {
+        EgressCostTable egressCostTable = new EgressCostTable(
+                null,
+                StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS,
+                null
+        );
+        egressCostTable.transpose(stopToPointTables, nPoints);
+        return egressCostTable.getPointCursor();
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.conveyal.r5.streets;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that stop to point cost tables written to a file are read back identically through a memory map.
+ */
+public class MappedStopToPointTablesTest {
+
+    @Test
+    public void testRoundTrip () throws IOException {
+        List<int[]> tables = Arrays.asList(
+                new int[] { 3, 1200, 7, 5400 },
+                null,
+                new int[0],
+                new int[] { 0, 0 },
+                null
+        );
+        File file = File.createTempFile("stop_point", ".dat");
+        file.deleteOnExit();
+        MappedStopToPointTables.write(tables, file);
+        List<int[]> mapped = MappedStopToPointTables.map(file);
+        assertEquals(tables.size(), mapped.size());
+        assertArrayEquals(tables.get(0), mapped.get(0));
+        assertNull(mapped.get(1));
+        // Empty tables are represented as null, as they are in the EgressCostTable.
+        assertNull(mapped.get(2));
+        assertArrayEquals(tables.get(3), mapped.get(3));
+        assertNull(mapped.get(4));
+    }
+
+    @Test
+    public void testRejectsOtherFiles () throws IOException {
+        File file = File.createTempFile("not_stop_point", ".dat");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("R5NETWORK and some other content".getBytes());
+        }
+        try {
+            MappedStopToPointTables.map(file);
+            fail("A file without the expected header should not be mapped.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+}
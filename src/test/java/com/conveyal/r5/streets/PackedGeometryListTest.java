@@ -0,0 +1,135 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.trove.AugmentedList;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.conveyal.r5.streets.EdgeStore.EMPTY_INT_ARRAY;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that geometries packed into a single array are read back identically, and compare the memory consumption
+ * and reading speed of the packed geometries and the separate arrays they replace.
+ */
+public class PackedGeometryListTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackedGeometryListTest.class);
+
+    @Test
+    public void testRoundTrip () {
+        List<int[]> geometries = makeGeometries(10_000, 42);
+        // Include extreme values whose differences overflow, and the special cases of empty and null geometries.
+        geometries.add(new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE });
+        geometries.add(EMPTY_INT_ARRAY);
+        geometries.add(null);
+        PackedGeometryList packed = new PackedGeometryList(geometries);
+        assertEquals(geometries.size(), packed.size());
+        for (int i = 0; i < geometries.size(); i++) {
+            assertArrayEquals(geometries.get(i), packed.get(i));
+        }
+        // All straight edges should share the same empty array, as some code checks for it by identity.
+        assertSame(EMPTY_INT_ARRAY, packed.get(geometries.size() - 2));
+        assertNull(packed.get(geometries.size() - 1));
+    }
+
+    @Test
+    public void testModification () {
+        PackedGeometryList packed = new PackedGeometryList();
+        packed.add(EMPTY_INT_ARRAY);
+        packed.add(new int[] { 10, 20 });
+        int[] previous = packed.set(0, new int[] { 1, 2, 3, 4, 5, 6 });
+        assertSame(EMPTY_INT_ARRAY, previous);
+        assertArrayEquals(new int[] { 1, 2, 3, 4, 5, 6 }, packed.get(0));
+        assertArrayEquals(new int[] { 10, 20 }, packed.get(1));
+        // Scenario copies of an EdgeStore extend the base list of geometries without modifying it.
+        List<int[]> extended = new AugmentedList<>(packed);
+        extended.add(new int[] { 7, 8 });
+        assertEquals(3, extended.size());
+        assertArrayEquals(new int[] { 10, 20 }, extended.get(1));
+        assertArrayEquals(new int[] { 7, 8 }, extended.get(2));
+        assertEquals(2, packed.size());
+    }
+
+    /**
+     * Pack a million random street geometries, about as many edge pairs as a large city, and log the estimated memory
+     * used by the separate arrays and by the packed list, along with the time taken to read every coordinate from
+     * each. Array sizes assume compressed references and 16-byte array headers.
+     */
+    @Test
+    @Ignore("Allocates a million geometries to log memory and read times; run it by hand after changing the packing.")
+    public void testMemoryAndSpeedComparedToArrays () {
+        final int nEdgePairs = 1_000_000;
+        List<int[]> geometries = makeGeometries(nEdgePairs, 1);
+        PackedGeometryList packed = new PackedGeometryList(geometries);
+
+        long arrayBytes = 0;
+        long nArrays = 0;
+        for (int[] geometry : geometries) {
+            // A reference in the list, plus an array header and contents padded to a multiple of eight bytes.
+            arrayBytes += 4;
+            if (geometry.length > 0) {
+                arrayBytes += (16 + geometry.length * Integer.BYTES + 7) / 8 * 8;
+                nArrays += 1;
+            }
+        }
+        long packedBytes = packed.getMemoryBytes();
+
+        long[] sums = new long[2];
+        long startNanos = System.nanoTime();
+        for (int[] geometry : geometries) {
+            for (int coordinate : geometry) sums[0] += coordinate;
+        }
+        long arrayNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int i = 0; i < packed.size(); i++) {
+            for (int coordinate : packed.get(i)) sums[1] += coordinate;
+        }
+        long packedNanos = System.nanoTime() - startNanos;
+        assertEquals(sums[0], sums[1]);
+
+        LOG.info("Separate arrays: {} objects, ~{} MB, read in {} ms.",
+                nArrays, arrayBytes / 1_000_000, arrayNanos / 1_000_000);
+        LOG.info("Packed geometries: 2 objects, {} MB, read in {} ms.",
+                packedBytes / 1_000_000, packedNanos / 1_000_000);
+        assertTrue(packedBytes < arrayBytes);
+    }
+
+    /**
+     * Make random geometries resembling those of streets, with about a third being straight lines and the rest having
+     * intermediate points a short distance apart.
+     */
+    private static List<int[]> makeGeometries (int nGeometries, long seed) {
+        Random random = new Random(seed);
+        List<int[]> geometries = new ArrayList<>();
+        for (int g = 0; g < nGeometries; g++) {
+            int nPoints = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(10);
+            if (nPoints == 0) {
+                geometries.add(EMPTY_INT_ARRAY);
+                continue;
+            }
+            int[] geometry = new int[nPoints * 2];
+            // Fixed-point degrees with seven decimal places, somewhere in the mid latitudes.
+            int lat = 400_000_000 + random.nextInt(10_000_000);
+            int lon = -750_000_000 + random.nextInt(10_000_000);
+            for (int p = 0; p < nPoints; p++) {
+                lat += random.nextInt(2001) - 1000;
+                lon += random.nextInt(2001) - 1000;
+                geometry[p * 2] = lat;
+                geometry[p * 2 + 1] = lon;
+            }
+            geometries.add(geometry);
+        }
+        return geometries;
+    }
+
+}
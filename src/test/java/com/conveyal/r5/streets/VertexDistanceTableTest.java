@@ -0,0 +1,59 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that packed vertex distance tables are built in vertex order, keep the lowest value for each vertex, and
+ * give the same results as the maps they replace.
+ */
+public class VertexDistanceTableTest {
+
+    @Test
+    public void testFromEncodedPairs () {
+        long[] pairs = new long[] {
+                VertexDistanceTable.encode(12, 500),
+                VertexDistanceTable.encode(3, 900),
+                VertexDistanceTable.encode(12, 200),
+                VertexDistanceTable.encode(0, 0),
+                VertexDistanceTable.encode(3, 1000),
+                // Beyond n, should be ignored.
+                VertexDistanceTable.encode(7, 1)
+        };
+        int[] table = VertexDistanceTable.fromEncodedPairs(pairs, 5);
+        assertArrayEquals(new int[] { 0, 0, 3, 900, 12, 200 }, table);
+        assertEquals(0, VertexDistanceTable.getValue(table, 0));
+        assertEquals(900, VertexDistanceTable.getValue(table, 3));
+        assertEquals(200, VertexDistanceTable.getValue(table, 12));
+        assertEquals(-1, VertexDistanceTable.getValue(table, 7));
+        assertEquals(-1, VertexDistanceTable.getValue(table, 13));
+        assertEquals(0, VertexDistanceTable.fromEncodedPairs(new long[0], 0).length);
+    }
+
+    @Test
+    public void testMatchesMap () {
+        TIntIntMap map = new TIntIntHashMap();
+        for (int v = 0; v < 1000; v += 7) {
+            map.put(v, v * 13 % 5000);
+        }
+        int[] table = VertexDistanceTable.fromMap(map);
+        assertEquals(map.size() * 2, table.length);
+        for (int v = 0; v < 1000; v++) {
+            int expected = map.containsKey(v) ? map.get(v) : -1;
+            assertEquals(expected, VertexDistanceTable.getValue(table, v));
+        }
+        TIntSet vertices = new TIntHashSet(new int[] { 1, 2, 3 });
+        assertFalse(VertexDistanceTable.containsAny(table, vertices));
+        vertices.add(49);
+        assertTrue(VertexDistanceTable.containsAny(table, vertices));
+    }
+
+}
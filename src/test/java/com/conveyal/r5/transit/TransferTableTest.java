@@ -0,0 +1,62 @@
+package com.conveyal.r5.transit;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the flat transfer table gives back the transfers it was built from, and that extending it for a scenario
+ * adds and replaces transfers without changing the table it was extended from.
+ */
+public class TransferTableTest {
+
+    @Test
+    public void testFromPackedTransfers () {
+        TransferTable table = TransferTable.fromPackedTransfers(Arrays.asList(
+                new int[] { 1, 1000, 2, 2500 },
+                new int[0],
+                new int[] { 0, 2400 }
+        ));
+        assertEquals(3, table.getStopCount());
+        assertEquals(3, table.getTransferCount());
+        assertEquals(2, table.size(0));
+        assertEquals(0, table.size(1));
+        assertEquals(1, table.size(2));
+        assertEquals(2, table.getTargetStop(0, 1));
+        assertEquals(2500, table.getDistanceMillimeters(0, 1));
+        assertEquals(0, table.getTargetStop(2, 0));
+        assertEquals(2400, table.getDistanceMillimeters(2, 0));
+        // Stops beyond the end of the table have no transfers.
+        assertEquals(0, table.size(3));
+        assertEquals(0, table.getPackedTransfers(3).length);
+        assertEquals(0, new TransferTable().getStopCount());
+    }
+
+    @Test
+    public void testExtend () {
+        TransferTable base = TransferTable.fromPackedTransfers(Arrays.asList(
+                new int[] { 1, 1000 },
+                new int[] { 0, 1100 }
+        ));
+        TIntObjectMap<int[]> replacements = new TIntObjectHashMap<>();
+        replacements.put(1, new int[] { 0, 1100, 2, 300 });
+        TransferTable extended = base.extend(Arrays.asList(new int[] { 1, 350 }), replacements);
+
+        assertEquals(3, extended.getStopCount());
+        assertArrayEquals(new int[] { 1, 1000 }, extended.getPackedTransfers(0));
+        assertArrayEquals(new int[] { 0, 1100, 2, 300 }, extended.getPackedTransfers(1));
+        assertArrayEquals(new int[] { 1, 350 }, extended.getPackedTransfers(2));
+        assertEquals(2, extended.getTargetStop(1, 1));
+        assertEquals(300, extended.getDistanceMillimeters(1, 1));
+
+        // The base table is unchanged.
+        assertEquals(2, base.getStopCount());
+        assertArrayEquals(new int[] { 0, 1100 }, base.getPackedTransfers(1));
+    }
+
+}
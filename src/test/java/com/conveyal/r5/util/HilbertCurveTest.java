@@ -0,0 +1,65 @@
+package com.conveyal.r5.util;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the Hilbert curve visits every cell of its grid once, always stepping to an adjacent cell, and that it
+ * can order the cells of grids that are not square powers of two.
+ */
+public class HilbertCurveTest {
+
+    @Test
+    public void testCurveVisitsAdjacentCells () {
+        for (int order = 1; order <= 6; order++) {
+            int size = 1 << order;
+            int nCells = size * size;
+            int[] xs = new int[nCells];
+            int[] ys = new int[nCells];
+            BitSet visited = new BitSet(nCells);
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    int index = (int) HilbertCurve.index(order, x, y);
+                    assertFalse("Two cells have the same position along the curve.", visited.get(index));
+                    visited.set(index);
+                    xs[index] = x;
+                    ys[index] = y;
+                }
+            }
+            assertEquals(nCells, visited.cardinality());
+            for (int i = 1; i < nCells; i++) {
+                assertEquals(1, Math.abs(xs[i] - xs[i - 1]) + Math.abs(ys[i] - ys[i - 1]));
+            }
+        }
+    }
+
+    @Test
+    public void testSortRectangularGrid () {
+        int width = 7;
+        int height = 3;
+        int[] xs = new int[width * height];
+        int[] ys = new int[width * height];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = i % width;
+            ys[i] = i / width;
+        }
+        int order = HilbertCurve.orderForSize(width);
+        assertEquals(3, order);
+        int[] sorted = HilbertCurve.sortByIndex(order, xs, ys);
+        BitSet seen = new BitSet();
+        for (int i = 0; i < sorted.length; i++) {
+            seen.set(sorted[i]);
+            if (i > 0) {
+                assertTrue(HilbertCurve.index(order, xs[sorted[i - 1]], ys[sorted[i - 1]])
+                        < HilbertCurve.index(order, xs[sorted[i]], ys[sorted[i]]));
+            }
+        }
+        assertEquals(xs.length, seen.cardinality());
+    }
+
+}